@@ -6,6 +6,7 @@ module org.kadampa.festivalstreaming {
     requires com.google.gson;
     requires javafx.media;
     requires org.slf4j;
+    requires jdk.unsupported;
 
     opens org.kadampa.festivalstreaming to com.google.gson;
     exports org.kadampa.festivalstreaming;
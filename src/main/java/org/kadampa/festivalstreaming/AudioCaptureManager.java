@@ -1,13 +1,21 @@
 package org.kadampa.festivalstreaming;
 
 import org.kadampa.festivalstreaming.linux.PulseAudioDevices;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.sound.sampled.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages audio capture from various input devices using a singleton pattern.
@@ -16,15 +24,56 @@ import java.util.concurrent.CopyOnWriteArrayList;
  */
 public class AudioCaptureManager {
     private static final AudioCaptureManager INSTANCE = new AudioCaptureManager();
+    private static final Logger logger = LoggerFactory.getLogger(AudioCaptureManager.class);
 
     private final Map<Mixer.Info, DeviceCapture> deviceCaptures = new ConcurrentHashMap<>();
 
+    /**
+     * Captures whose last listener has left, still running, by when they were released, oldest
+     * first. Also the lock under which captures are attached to and released: see
+     * {@link #unregisterListener}.
+     */
+    private final LinkedHashMap<Mixer.Info, Long> warmCaptures = new LinkedHashMap<>();
+    /** Listeners that found their device's capture still warm, and those that had to open it. */
+    private long warmHits;
+    private long warmMisses;
+    private final ScheduledExecutorService warmReaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "WarmCaptureReaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /** The rate to ask devices for, from the settings. It is also the rate recordings are made at. */
     private static volatile int preferredSampleRate = 48000;
 
     /** The configured ffmpeg path, needed on Linux where the device list comes from ffmpeg. */
     private static volatile String ffmpegPath;
 
+    /**
+     * The headphone monitoring latency to aim for, in milliseconds, or 0 for the standard
+     * buffering: see {@link DeviceCapture#beginMonitoringPlayback}.
+     */
+    private static volatile int monitorLatencyMs = 0;
+    private static final int MIN_MONITOR_LATENCY_MS = 10;
+    private static final int MAX_MONITOR_LATENCY_MS = 200;
+
+    /**
+     * How often the capture hands out a buffer, in milliseconds, or 0 for a quarter of the
+     * device's buffer: see {@link DeviceCapture#captureOnce()}.
+     */
+    private static volatile int captureIntervalMs = 0;
+    private static final int MIN_CAPTURE_INTERVAL_MS = 5;
+    private static final int MAX_CAPTURE_INTERVAL_MS = 75;
+
+    /**
+     * How long a capture is kept running after its last listener leaves, in seconds, or 0 to
+     * close it at once: see {@link #unregisterListener}.
+     */
+    private static volatile int warmCaptureSeconds = 30;
+    private static final int MAX_WARM_CAPTURE_SECONDS = 600;
+    /** Captures kept warm at most; past that the one released longest ago is closed. */
+    private static final int MAX_WARM_CAPTURES = 4;
+
     /** One synthetic device handle per Linux source, so every meter of a device shares a capture. */
     private static final Map<String, Mixer.Info> linuxDeviceInfos = new ConcurrentHashMap<>();
 
@@ -45,6 +94,32 @@ public class AudioCaptureManager {
         ffmpegPath = configuredPath;
     }
 
+    /**
+     * Sets the latency headphone monitoring aims for, from the settings; 0 or less keeps the
+     * standard buffering. Takes effect the next time monitoring is switched on.
+     */
+    public static void setMonitorLatencyMs(int latencyMs) {
+        monitorLatencyMs = latencyMs <= 0 ? 0
+                : Math.max(MIN_MONITOR_LATENCY_MS, Math.min(MAX_MONITOR_LATENCY_MS, latencyMs));
+    }
+
+    /**
+     * Sets how often the capture reads a buffer, from the settings; 0 or less keeps a quarter of
+     * the device's buffer. Takes effect the next time a device is opened.
+     */
+    public static void setCaptureIntervalMs(int intervalMs) {
+        captureIntervalMs = intervalMs <= 0 ? 0
+                : Math.max(MIN_CAPTURE_INTERVAL_MS, Math.min(MAX_CAPTURE_INTERVAL_MS, intervalMs));
+    }
+
+    /**
+     * Sets how long a released capture is kept running, from the settings; 0 or less closes
+     * captures as soon as their last listener leaves. Takes effect at the next release.
+     */
+    public static void setWarmCaptureSeconds(int seconds) {
+        warmCaptureSeconds = Math.max(0, Math.min(MAX_WARM_CAPTURE_SECONDS, seconds));
+    }
+
     /**
      * Returns the singleton instance of the AudioCaptureManager.
      *
@@ -111,6 +186,23 @@ public class AudioCaptureManager {
         }
     }
 
+    /**
+     * Starts live monitoring of a mix of a device's channels rather than of one of them: the
+     * broadcast mix of a language, heard as the audience will hear it. See {@link MonitorMix}.
+     *
+     * @param mixerInfo The mixer info for the device to monitor.
+     * @param mix       The channels to mix and their gains.
+     */
+    public void startMonitoring(Mixer.Info mixerInfo, MonitorMix mix) {
+        if (mixerInfo == null) {
+            return;
+        }
+        DeviceCapture capture = deviceCaptures.get(mixerInfo);
+        if (capture != null) {
+            capture.startMonitoring(mix);
+        }
+    }
+
     /**
      * Stops live monitoring for a specific audio device.
      *
@@ -126,8 +218,43 @@ public class AudioCaptureManager {
         }
     }
 
+    /**
+     * What a listener's queue does when the listener is still busy with earlier audio as new
+     * audio arrives: see {@link ListenerQueue}. Either way the capture itself never waits.
+     */
+    public enum DispatchPolicy {
+        /**
+         * Up to two seconds of audio waits, however short the buffers, and past that the oldest
+         * buffer is dropped: for consumers that need every buffer and only fall behind briefly.
+         */
+        DROP_OLDEST,
+        /**
+         * Only the newest buffer waits, replacing any it finds: for consumers that only show
+         * the current state, such as a meter, where a stale buffer is worth nothing.
+         */
+        COALESCE_LATEST
+    }
+
+    /**
+     * How one listener of a device is keeping up, for the meter window.
+     *
+     * @param device        the device's name
+     * @param listener      the listener's name: see {@link AudioDataListener#listenerName()}
+     * @param policy        what its queue does when it is behind
+     * @param delivered     buffers it has been given
+     * @param overruns      buffers it never got because it was behind
+     * @param lagMillis     how long the last buffer it got had waited since the device
+     * @param peakLagMillis the longest wait since the previous report
+     */
+    public record ListenerStats(String device, String listener, DispatchPolicy policy,
+                                long delivered, long overruns, double lagMillis, double peakLagMillis) {
+    }
+
     /**
      * A listener interface for receiving raw audio data from a capture device.
+     * <p>
+     * Every listener is called on a thread of its own, behind a queue of its own, never on the
+     * capture thread: a listener that takes its time only delays itself.
      */
     public interface AudioDataListener {
         /**
@@ -146,36 +273,222 @@ public class AudioCaptureManager {
          * @param message A human-readable description of the failure.
          */
         default void onCaptureError(String message) {}
+
+        /** What to do with new audio while this listener is still busy: drop the oldest by default. */
+        default DispatchPolicy dispatchPolicy() {
+            return DispatchPolicy.DROP_OLDEST;
+        }
+
+        /** How this listener is named in the meter window and in its thread's name. */
+        default String listenerName() {
+            return getClass().getSimpleName();
+        }
+    }
+
+    /**
+     * A listener that wants the levels of the device's channels rather than its samples: the
+     * meters. The levels are measured once per buffer for all such listeners of a device, so a
+     * device watched by fourteen meters is still scanned once: see {@link ChannelLevels}.
+     */
+    public interface LevelListener extends AudioDataListener {
+        /**
+         * Called on the listener's own thread with the levels of each new buffer.
+         *
+         * @param levels the peak and RMS of every channel; never changed afterwards
+         */
+        void onLevels(ChannelLevels levels);
+
+        /** A meter only ever wants the newest levels, so a buffer it missed is skipped. */
+        @Override
+        default DispatchPolicy dispatchPolicy() {
+            return DispatchPolicy.COALESCE_LATEST;
+        }
+
+        /** Level listeners have no use for the samples themselves. */
+        @Override
+        default void onAudioData(byte[] buffer, int bytesRead, AudioFormat format) {}
+    }
+
+    /**
+     * A listener that wants the samples decoded rather than as bytes: see {@link AudioFrame}. The
+     * frame is only valid during the call unless the listener retains it.
+     */
+    public interface FrameListener extends AudioDataListener {
+        /**
+         * Called on the listener's own thread with each new buffer.
+         *
+         * @param frame the buffer, decoding its channels on demand; {@link AudioFrame#retain()}
+         *              it to keep it past this call
+         */
+        void onFrame(AudioFrame frame);
+
+        /** Frame listeners read the frame instead. */
+        @Override
+        default void onAudioData(byte[] buffer, int bytesRead, AudioFormat format) {}
+    }
+
+    /**
+     * A mix of some of one device's channels, each at its own gain, for the headphones. The
+     * stream mixes a language with the prayers and, past English, with the English at low
+     * level, and the balance the audience hears is that mix's; with this the coordinator hears
+     * it too, off the same capture buffers the meters read, as soon as the headphone button is
+     * pressed and without tapping the stream. Only the noise reduction is missing.
+     *
+     * @param channels the zero-based channels mixed
+     * @param gains    the linear gain of each: see StreamRecorderRunnable.broadcastMixGains
+     */
+    public record MonitorMix(int[] channels, float[] gains) {
+    }
+
+    /**
+     * How headphone monitoring of a device is doing, for the meter whose button switched it on.
+     *
+     * @param latencyMillis from the capture of a sample to its playback, estimated from the
+     *                      buffer's length, its wait and what the output line holds, and
+     *                      smoothed; NaN until the first buffer has been played
+     * @param underruns     how often the output ran dry, each time faded back in
+     * @param trims         buffers skipped to keep the output from drifting later than aimed for
+     * @param lowLatency    whether a target latency is set, rather than the standard buffering
+     */
+    public record MonitorStats(double latencyMillis, long underruns, long trims, boolean lowLatency) {
+    }
+
+    /**
+     * How punctually a device's reads arrive: see {@link ReadTimings}.
+     *
+     * @param device                 the device's name
+     * @param expectedIntervalMillis how often a read should return, from the chunk size
+     * @param reads                  reads so far
+     * @param intervalHistogram      reads per interval bucket, bounded by
+     *                               {@link ReadTimings#INTERVAL_BOUNDS_MS}, with one more for the rest
+     * @param fillHistogram          reads per fill bucket, bounded by
+     *                               {@link ReadTimings#FILL_BOUNDS_PERCENT}, the last a full read
+     * @param lateReads              reads that came more than half an interval late
+     * @param overruns               reads after which the device's buffer was nearly full
+     * @param peakBacklogMillis      the most audio left waiting after a read since the last report
+     */
+    public record CaptureTimings(String device, double expectedIntervalMillis, long reads,
+                                 long[] intervalHistogram, long[] fillHistogram,
+                                 long lateReads, long overruns, double peakBacklogMillis) {
+    }
+
+    /**
+     * How far a device's audio has drifted from the machine's clock: see {@link ClockDrift}.
+     *
+     * @param device       the device's name
+     * @param driftPpm     how fast the audio runs against the clock, negative when it runs fast;
+     *                     NaN until half a minute of steady capture has been seen
+     * @param offsetMillis how far behind the clock the audio has fallen since the capture began,
+     *                     gaps and audio a relay threw away included
+     * @param fitSeconds   how long the drift has been measured over since the last gap
+     * @param gaps         stretches of audio that went missing, reopenings of the device included
+     * @param shortReads   reads that came back with less than they asked for; the rest of the
+     *                     audio comes with a later read, so these delay it and lose none
+     * @param shortMillis  how much audio the short reads came back without, all together
+     * @param events       the most recent gaps, oldest first
+     */
+    public record ClockStats(String device, double driftPpm, double offsetMillis, double fitSeconds,
+                             long gaps, long shortReads, double shortMillis, List<Dropout> events) {
+    }
+
+    /**
+     * Audio that went missing.
+     *
+     * @param atMillis when it was noticed, as wall-clock milliseconds
+     * @param kind     what happened: a gap, a reopening of the device, a relay overflow or trim
+     * @param millis   how much audio it cost
+     */
+    public record Dropout(long atMillis, String kind, double millis) {
+    }
+
+    /**
+     * How the warm captures are doing, for the meter window.
+     *
+     * @param hits        listeners that found their device's capture still running
+     * @param misses      listeners that had to open it
+     * @param warmDevices the devices kept warm now, released longest ago first
+     * @param recorders   of those, the pw-record processes still running for them
+     */
+    public record WarmCaptureStats(long hits, long misses, List<String> warmDevices, int recorders) {
+        /** The share of attachments served warm, from 0 to 1; 0 before any. */
+        public double hitRate() {
+            return hits + misses > 0 ? (double) hits / (hits + misses) : 0;
+        }
+    }
+
+    /** A listener together with the queue that feeds it. */
+    private record Subscriber(AudioDataListener listener, ListenerQueue queue) {
     }
 
     /**
      * Represents and manages the audio capture process for a single audio device.
      * It handles the capture thread, listeners, and monitoring output.
+     * <p>
+     * The capture thread only reads the device and publishes each buffer as a frame to every
+     * listener's queue. The listeners, and the headphone monitor with its blocking output line,
+     * each take it from there on their own thread: see {@link ListenerQueue}.
      */
     private static class DeviceCapture {
         private final Mixer.Info mixerInfo;
-        private final List<AudioDataListener> listeners = new CopyOnWriteArrayList<>();
+        private final List<Subscriber> listeners = new CopyOnWriteArrayList<>();
+        /** Feeds the headphone monitor, for as long as the capture runs. */
+        private ListenerQueue monitorQueue;
         private Thread captureThread;
         private TargetDataLine inputLine;
         /** On Linux the samples come from pw-record instead of a Java Sound line. */
         private Process linuxRecorder;
         private java.io.InputStream linuxStream;
+        // The output line and what goes with it belong to the monitor's thread
         private SourceDataLine outputLine;
+        private AudioFormat playbackFormat;
+        private byte[] outputBuffer = new byte[0];
+        /** The target the open output line was sized for, 0 for the standard buffering. */
+        private volatile int outputLineLatencyMs;
+        /** The capture chunk the open output line was sized for, in frames. */
+        private int outputLineChunkFrames;
+        /** The frames of a full read, for as long as the device is open: see {@link #captureOnce()}. */
+        private volatile int chunkFrames;
+        /** Frames written to the output line, on its own frame-position scale. */
+        private long framesWritten;
+        // After a gap in the output the sound is faded back in, starting from rampFrom
+        private float lastSample;
+        private float rampFrom;
+        private int rampPosition = Integer.MAX_VALUE;
+        private volatile double monitorLatencyMillis = Double.NaN;
+        private volatile long monitorUnderruns;
+        private volatile long monitorTrims;
         private volatile boolean running = false;
         private volatile boolean monitoring = false;
-        // Set by the FX thread; the capture thread opens/prefills/starts the output
+        // Set by the FX thread; the monitor's thread opens/prefills/starts the output
         // line itself so playback never begins on an empty running line (crackle).
         private volatile boolean monitorStartPending = false;
         private volatile String channel;
-        private AudioFormat captureFormat;
-        private AudioFormat playbackFormat;
+        /** The mix to hear instead of the channel, or null. */
+        private volatile MonitorMix monitorMix;
+        /** The monitor's thread: the mixed channels of the buffer at hand, kept between buffers. */
+        private float[][] mixInputs = new float[0][];
+        private volatile AudioFormat captureFormat;
+        /** The frames the buffers are decoded into, made for each opening of the device. */
+        private AudioFrame.Pool framePool;
+        /** The levels of the last buffer, when a level listener is attached. */
+        private volatile ChannelLevels latestLevels;
+        /** How punctually the reads arrive, across every opening of the device. */
+        private final ReadTimings readTimings = new ReadTimings();
+        /** The settings the device was last opened with: see {@link #openedAsConfigured()}. */
+        private volatile int openedSampleRate;
+        private volatile int openedIntervalMs;
+        /** How far the audio drifts from the machine's clock, across every opening of the device. */
+        private final ClockDrift clockDrift;
         /** When samples last arrived, watched on Linux to catch a silently dead recorder. */
         private volatile long lastDataNanos;
         private static final long STALL_TIMEOUT_NANOS = 3_000_000_000L;
         private static final long RETRY_DELAY_MS = 2000;
+        /** How long the monitor takes to fade back in after a gap in its output. */
+        private static final double MONITOR_RAMP_SECONDS = 0.005;
 
         DeviceCapture(Mixer.Info mixerInfo) {
             this.mixerInfo = mixerInfo;
+            this.clockDrift = new ClockDrift(mixerInfo.getName());
         }
 
         /**
@@ -184,21 +497,63 @@ public class AudioCaptureManager {
          * @param listener The listener to add.
          */
         void addListener(AudioDataListener listener) {
-            listeners.add(listener);
+            listeners.add(new Subscriber(listener, new ListenerQueue(
+                    mixerInfo.getName() + "-" + listener.listenerName(), listener.dispatchPolicy(),
+                    frame -> deliver(listener, frame))));
             if (listeners.size() == 1) {
                 start();
             }
         }
 
         /**
-         * Removes a listener. Stops the capture thread if it's the last listener.
+         * Removes a listener. The capture keeps running without any: whether it is then stopped
+         * or kept warm is the manager's call, see {@link #unregisterListener}.
          *
          * @param listener The listener to remove.
          */
         void removeListener(AudioDataListener listener) {
-            listeners.remove(listener);
-            if (listeners.isEmpty()) {
-                stop();
+            for (Subscriber subscriber : listeners) {
+                if (subscriber.listener() == listener) {
+                    listeners.remove(subscriber);
+                    subscriber.queue().close();
+                }
+            }
+        }
+
+        /**
+         * Whether the capture thread is still at work. Away from Linux a failed device ends it,
+         * and a warm capture in that state cannot be handed back out.
+         */
+        boolean isCapturing() {
+            Thread thread = captureThread;
+            return running && thread != null && thread.isAlive();
+        }
+
+        /**
+         * Whether the device was opened with the rate and capture interval the settings ask for
+         * now. A warm capture opened otherwise is not handed back out: the listener would get
+         * audio in a format or chunk size it was not set up for.
+         */
+        boolean openedAsConfigured() {
+            return openedSampleRate == preferredSampleRate && openedIntervalMs == captureIntervalMs;
+        }
+
+        /** Whether a pw-record process is running for this capture. */
+        boolean hasLiveRecorder() {
+            Process recorder = linuxRecorder;
+            return recorder != null && recorder.isAlive();
+        }
+
+        /** A listener's thread: hands a frame over in the form the listener asked for. */
+        private void deliver(AudioDataListener listener, AudioFrame frame) {
+            if (listener instanceof LevelListener levelListener) {
+                ChannelLevels levels = frame.levels();
+                latestLevels = levels;
+                levelListener.onLevels(levels);
+            } else if (listener instanceof FrameListener frameListener) {
+                frameListener.onFrame(frame);
+            } else {
+                listener.onAudioData(frame.bytes(), frame.byteCount(), frame.format());
             }
         }
 
@@ -209,6 +564,17 @@ public class AudioCaptureManager {
          */
         void startMonitoring(String channel) {
             this.channel = channel;
+            monitorMix = null;
+            monitorStartPending = true;
+        }
+
+        /**
+         * Enables audio monitoring of a mix of channels.
+         *
+         * @param mix The channels and their gains.
+         */
+        void startMonitoring(MonitorMix mix) {
+            monitorMix = mix;
             monitorStartPending = true;
         }
 
@@ -283,16 +649,24 @@ public class AudioCaptureManager {
 
         /**
          * Sets up the output line (SourceDataLine) for audio monitoring playback.
-         * The line is opened but NOT started: the capture thread prefills it with
+         * The line is opened but NOT started: the monitor's thread prefills it with
          * silence and starts it only when monitoring actually begins.
+         *
+         * @param latencyMs   the target latency to size the buffer for, 0 for the standard 400ms
+         * @param chunkFrames the capture's chunk, which the buffer holds on top of the target
          */
-        private void setupOutputLine() {
+        private void setupOutputLine(int latencyMs, int chunkFrames) {
             try {
                 DataLine.Info outputInfo = new DataLine.Info(SourceDataLine.class, playbackFormat);
                 outputLine = (SourceDataLine) AudioSystem.getLine(outputInfo);
-                // Increased buffer to 400ms for more stability
-                int outputBufferSize = (int) (playbackFormat.getSampleRate() * playbackFormat.getFrameSize() * 0.4f);
+                // Increased buffer to 400ms for more stability, unless a latency is aimed for
+                float bufferSeconds = latencyMs > 0
+                        ? latencyMs / 1000f + chunkFrames / playbackFormat.getSampleRate() : 0.4f;
+                int outputBufferSize = (int) (playbackFormat.getSampleRate() * playbackFormat.getFrameSize() * bufferSeconds);
+                outputBufferSize -= outputBufferSize % playbackFormat.getFrameSize();
                 outputLine.open(playbackFormat, outputBufferSize);
+                outputLineLatencyMs = latencyMs;
+                outputLineChunkFrames = chunkFrames;
             } catch (LineUnavailableException e) {
                 System.err.println("Failed to setup output line: " + e.getMessage());
                 outputLine = null;
@@ -300,51 +674,68 @@ public class AudioCaptureManager {
         }
 
         /**
-         * Transitions monitoring on, called on the capture thread. Lazily opens the
+         * Transitions monitoring on, called on the monitor's thread. Lazily opens the
          * output line, then prefills it with ~200ms of silence before starting it so
          * the play cursor never catches the write pointer while the buffer ramps up
          * (that starvation is what caused the crackling at monitoring start).
+         * A line left open at another rate, by a capture that reopened differently, is
+         * replaced.
+         * <p>
+         * With a target latency set, that standard buffering - 400ms of line, 200ms of it
+         * silence before the first sample - is what makes a coordinator in the room hear the
+         * interpreter twice. The line is then sized to one capture chunk plus the target
+         * instead, and primed with a single buffer of silence. The capture's chunk itself is
+         * left alone - the relays, the meters and the journal read the same buffers, and would
+         * otherwise change pace whenever a meter is listened to - so it adds its own length on
+         * top, and a shorter capture interval (see {@link #setCaptureIntervalMs}) is what
+         * brings the whole down further. Such a tight line can run dry, and
+         * {@link #writeToMonitor} catches that and fades back in rather than clicking.
          */
-        private void beginMonitoringPlayback() {
-            if (outputLine == null) {
-                setupOutputLine();
+        private void beginMonitoringPlayback(AudioFrame frame) {
+            AudioFormat capturedFormat = frame.format();
+            int latencyMs = monitorLatencyMs;
+            int chunk = Math.max(chunkFrames, frame.frames());
+            if (outputLine != null && (playbackFormat.getSampleRate() != capturedFormat.getSampleRate()
+                    || outputLineLatencyMs != latencyMs || outputLineChunkFrames != chunk)) {
+                closeOutputLine();
             }
+            playbackFormat = new AudioFormat(capturedFormat.getSampleRate(), 16, 1, true, false);
             if (outputLine == null) {
+                setupOutputLine(latencyMs, chunk);
+            }
+            // Read once: stopping the capture closes the line from another thread
+            SourceDataLine line = outputLine;
+            if (line == null) {
                 return;
             }
-            outputLine.stop();
-            outputLine.flush();
-            int silenceBytes = (int) (playbackFormat.getSampleRate() * playbackFormat.getFrameSize() * 0.2f);
+            line.stop();
+            line.flush();
+            int silenceBytes = latencyMs > 0 ? frame.frames() * playbackFormat.getFrameSize()
+                    : (int) (playbackFormat.getSampleRate() * playbackFormat.getFrameSize() * 0.2f);
             silenceBytes -= silenceBytes % playbackFormat.getFrameSize();
-            outputLine.write(new byte[silenceBytes], 0, silenceBytes);
-            outputLine.start();
+            line.write(new byte[silenceBytes], 0, silenceBytes);
+            framesWritten = line.getLongFramePosition() + silenceBytes / playbackFormat.getFrameSize();
+            rampFrom = 0;
+            rampPosition = 0;
+            monitorLatencyMillis = Double.NaN;
+            line.start();
             monitoring = true;
         }
 
         /**
-         * Processes raw audio data for monitoring. This includes channel selection,
-         * down-mixing from stereo to mono, and bit-depth conversion.
+         * Prepares a frame for monitoring: the selected channel, both sides of a stereo cable
+         * mixed, or the monitor mix, as 16-bit mono. The frame has already decoded the samples, so this only picks
+         * the channel and scales it back up - whatever the device's bit depth. After a gap in
+         * the output the first few milliseconds glide from where the sound left off.
          *
-         * @param inputBuffer  The raw audio buffer from the input line.
-         * @param bytesRead    The number of bytes read from the input buffer.
+         * @param frame        The decoded buffer.
          * @param outputBuffer The buffer to write the processed audio data into.
          * @return The number of bytes written to the output buffer.
          */
-        private int processAudioForMonitoring(byte[] inputBuffer, int bytesRead, byte[] outputBuffer) {
-            int inputChannels = captureFormat.getChannels();
-            int inputBitDepth = captureFormat.getSampleSizeInBits();
-            int outputChannels = playbackFormat.getChannels();
-            int outputBitDepth = playbackFormat.getSampleSizeInBits();
-
-            if (inputChannels == 1 && inputBitDepth == 16 && outputChannels == 1 && outputBitDepth == 16) {
-                System.arraycopy(inputBuffer, 0, outputBuffer, 0, bytesRead);
-                return bytesRead;
-            }
-
-            int inputFrameSize = captureFormat.getFrameSize();
+        private int processAudioForMonitoring(AudioFrame frame, byte[] outputBuffer) {
+            int inputChannels = frame.channels();
             int outputFrameSize = playbackFormat.getFrameSize();
-            int frameCount = bytesRead / inputFrameSize;
-            int outputBytes = frameCount * outputFrameSize;
+            int frameCount = Math.min(frame.frames(), outputBuffer.length / outputFrameSize);
 
             // Default to stereo if channel is not specified
             if (channel == null) {
@@ -355,38 +746,56 @@ public class AudioCaptureManager {
                     && !SettingsUtil.AUDIO_CHANNEL_LEFT.equals(channel)
                     && !SettingsUtil.AUDIO_CHANNEL_RIGHT.equals(channel);
             int selectedChannel = Math.min(SettingsUtil.audioChannelIndex(channel), inputChannels - 1);
+            float[] first = frame.channel(mixBothChannels ? 0 : selectedChannel);
+            float[] second = mixBothChannels ? frame.channel(1) : null;
+            // A mix sums its channels at their gains; one the device does not have is left out
+            MonitorMix mix = monitorMix;
+            float[] gains = null;
+            if (mix != null) {
+                gains = mix.gains();
+                if (mixInputs.length != gains.length) {
+                    mixInputs = new float[gains.length][];
+                }
+                for (int k = 0; k < gains.length; k++) {
+                    mixInputs[k] = mix.channels()[k] < inputChannels ? frame.channel(mix.channels()[k]) : null;
+                }
+            }
 
+            int rampFrames = Math.max(1, (int) (playbackFormat.getSampleRate() * MONITOR_RAMP_SECONDS));
             for (int i = 0; i < frameCount; i++) {
-                long monoSample;
-                if (mixBothChannels) {
-                    monoSample = (AudioSamples.readSample(inputBuffer, i * inputFrameSize, 0, inputBitDepth)
-                            + AudioSamples.readSample(inputBuffer, i * inputFrameSize, 1, inputBitDepth)) / 2;
+                float sample;
+                if (gains != null) {
+                    sample = 0;
+                    for (int k = 0; k < gains.length; k++) {
+                        if (mixInputs[k] != null) {
+                            sample += mixInputs[k][i] * gains[k];
+                        }
+                    }
                 } else {
-                    monoSample = AudioSamples.readSample(inputBuffer, i * inputFrameSize, selectedChannel, inputBitDepth);
+                    sample = second != null ? (first[i] + second[i]) / 2 : first[i];
                 }
-
-                if (outputBitDepth == 16) {
-                    short finalSample;
-                    if (inputBitDepth == 24) {
-                        finalSample = (short) (monoSample >> 8);
-                    } else {
-                        finalSample = (short) monoSample;
-                    }
-                    outputBuffer[i * outputFrameSize] = (byte) (finalSample & 0xFF);
-                    outputBuffer[i * outputFrameSize + 1] = (byte) (finalSample >> 8);
+                if (rampPosition < rampFrames) {
+                    float gain = (float) rampPosition++ / rampFrames;
+                    sample = rampFrom * (1 - gain) + sample * gain;
                 }
+                lastSample = sample;
+                int finalSample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sample * 32768f)));
+                outputBuffer[i * outputFrameSize] = (byte) (finalSample & 0xFF);
+                outputBuffer[i * outputFrameSize + 1] = (byte) (finalSample >> 8);
             }
-            return outputBytes;
+            return frameCount * outputFrameSize;
         }
 
         /**
          * Starts the audio capture thread.
-         * The thread reads from the TargetDataLine, dispatches data to listeners,
-         * and writes to the monitoring line if enabled.
+         * The thread reads from the TargetDataLine and publishes each buffer to the
+         * listeners' queues, and to the monitor's while monitoring is on.
          */
         private void start() {
             if (running) return;
             running = true;
+            monitorQueue = new ListenerQueue(mixerInfo.getName() + "-Monitor",
+                    DispatchPolicy.DROP_OLDEST, this::playMonitor);
             captureThread = new Thread(() -> {
                 try {
                     while (running) {
@@ -398,8 +807,8 @@ public class AudioCaptureManager {
                                 break;
                             }
                             System.err.println("Error in audio capture thread for " + mixerInfo.getName() + ": " + e.getMessage());
-                            for (AudioDataListener listener : listeners) {
-                                listener.onCaptureError(e.getMessage());
+                            for (Subscriber subscriber : listeners) {
+                                subscriber.listener().onCaptureError(e.getMessage());
                             }
                             cleanup();
                             if (!Host.isLinux()) {
@@ -423,6 +832,9 @@ public class AudioCaptureManager {
 
         /** Opens the device and reads it until the capture stops or the source dies. */
         private void captureOnce() throws Exception {
+            openedSampleRate = preferredSampleRate;
+            int intervalMs = captureIntervalMs;
+            openedIntervalMs = intervalMs;
             int lineBufferSize;
             if (Host.isLinux()) {
                 lineBufferSize = openLinuxCapture();
@@ -432,23 +844,31 @@ public class AudioCaptureManager {
                 inputLine.start();
                 lineBufferSize = inputLine.getBufferSize();
             }
-            playbackFormat = new AudioFormat(captureFormat.getSampleRate(), 16, 1, true, false);
-
             byte[] inputBuffer = new byte[lineBufferSize];
-            int outputBufferSize = (inputBuffer.length / captureFormat.getFrameSize()) * playbackFormat.getFrameSize();
-            byte[] outputBuffer = new byte[outputBufferSize];
 
             // Read a quarter of the line buffer per call (~37ms): keeps the meters
             // responsive and leaves headroom in the line buffer against overruns.
+            // A configured interval replaces that, up to half the buffer so the headroom stays
             int chunkSize = inputBuffer.length / 4;
+            if (intervalMs > 0) {
+                int frames = (int) (captureFormat.getSampleRate() * intervalMs / 1000f);
+                chunkSize = Math.min(inputBuffer.length / 2, frames * captureFormat.getFrameSize());
+            }
             chunkSize -= chunkSize % captureFormat.getFrameSize();
             if (chunkSize <= 0) {
                 chunkSize = captureFormat.getFrameSize();
             }
+            double bytesPerMillisecond = captureFormat.getSampleRate() * captureFormat.getFrameSize() / 1000.0;
+            readTimings.restart(chunkSize / bytesPerMillisecond, bytesPerMillisecond);
+            clockDrift.restart(captureFormat.getSampleRate(), System.nanoTime());
+
+            chunkFrames = chunkSize / captureFormat.getFrameSize();
+            framePool = new AudioFrame.Pool(captureFormat, chunkFrames);
 
             System.out.println("Started capture: " + captureFormat + ", buffer: " + inputBuffer.length + " bytes");
 
             while (running) {
+                boolean monitored = monitoring || monitorStartPending;
                 int bytesRead = readChunk(inputBuffer, chunkSize);
                 if (bytesRead < 0) {
                     if (running) {
@@ -458,20 +878,41 @@ public class AudioCaptureManager {
                 }
                 if (bytesRead > 0) {
                     lastDataNanos = System.nanoTime();
-                    for (AudioDataListener listener : listeners) {
-                        listener.onAudioData(inputBuffer, bytesRead, captureFormat);
-                    }
-                    if (monitorStartPending) {
-                        monitorStartPending = false;
-                        beginMonitoringPlayback();
-                    }
-                    if (monitoring) {
-                        writeToMonitor(inputBuffer, bytesRead, outputBuffer);
+                    readTimings.record(lastDataNanos, bytesRead, chunkSize, backlogBytes(),
+                            inputLine != null ? inputLine.getBufferSize() : 0);
+                    int frameSize = captureFormat.getFrameSize();
+                    clockDrift.record(lastDataNanos, bytesRead / frameSize, bytesRead < chunkSize,
+                            (chunkSize - bytesRead) / frameSize);
+                    // Read and publish, nothing more: every consumer takes the frame on its
+                    // own thread, so none of them can keep this one from the next read
+                    AudioFrame frame = framePool.wrap(inputBuffer, bytesRead, captureFormat, lastDataNanos);
+                    try {
+                        for (Subscriber subscriber : listeners) {
+                            subscriber.queue().publish(frame);
+                        }
+                        if (monitored) {
+                            monitorQueue.publish(frame);
+                        }
+                    } finally {
+                        frame.release();
                     }
                 }
             }
         }
 
+        /** The monitor's thread: starts the headphone output when asked to, and feeds it. */
+        private void playMonitor(AudioFrame frame) {
+            if (monitorStartPending) {
+                monitorStartPending = false;
+                beginMonitoringPlayback(frame);
+            } else if (monitoring && playbackFormat.getSampleRate() != frame.format().getSampleRate()) {
+                beginMonitoringPlayback(frame);
+            }
+            if (monitoring) {
+                writeToMonitor(frame);
+            }
+        }
+
         /**
          * Destroys the recorder when samples stop arriving, which unblocks the capture thread's
          * read so it can reopen the device. A recorder whose stream the server has dropped (the
@@ -515,6 +956,22 @@ public class AudioCaptureManager {
             return inputLine.read(buffer, 0, chunkSize);
         }
 
+        /**
+         * How much audio the source already holds beyond what was just read: the line's own
+         * count on Java Sound, what is waiting in pw-record's pipe on Linux. -1 when it cannot
+         * tell.
+         */
+        private int backlogBytes() {
+            if (linuxStream != null) {
+                try {
+                    return linuxStream.available();
+                } catch (java.io.IOException e) {
+                    return -1;
+                }
+            }
+            return inputLine != null ? inputLine.available() : -1;
+        }
+
         /**
          * Starts pw-record on this device and captures its output. The server resamples to the
          * configured rate and delivers the device's channels in hardware order, which neither of
@@ -587,7 +1044,8 @@ public class AudioCaptureManager {
         }
 
         /**
-         * Cleans up audio resources, stopping and closing input and output lines.
+         * Cleans up the capture's resources, stopping and closing the input. The monitor's
+         * output line stays with the monitor's thread, and is closed when the capture stops.
          */
         private void cleanup() {
             System.out.println("Cleaning capture for " + mixerInfo.getName() + " - input:" + inputLine + " - output:" + outputLine);
@@ -601,17 +1059,21 @@ public class AudioCaptureManager {
                 inputLine.close();
                 inputLine = null;
             }
-            if (outputLine != null) {
-                outputLine.stop();
-                outputLine.close();
-                outputLine = null;
+        }
+
+        private void closeOutputLine() {
+            SourceDataLine line = outputLine;
+            outputLine = null;
+            if (line != null) {
+                line.stop();
+                line.close();
             }
         }
 
         /**
-         * Stops the audio capture thread and waits briefly for it to release the line,
-         * so a capture for the same device can be reopened immediately afterwards.
-         * Safe to call more than once.
+         * Stops the audio capture thread and waits briefly for it to release the line - and on
+         * Linux for pw-record to exit - so a capture for the same device can be reopened
+         * immediately afterwards. Safe to call more than once.
          */
         private void stop() {
             running = false;
@@ -631,6 +1093,24 @@ public class AudioCaptureManager {
                 }
                 System.out.println("Stopped capture for " + mixerInfo.getName());
             }
+            if (recorder != null) {
+                try {
+                    recorder.waitFor(500, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            ListenerQueue monitor = monitorQueue;
+            if (monitor != null) {
+                monitor.close();
+                // Closing the line releases a write blocked on a full buffer, which lets the
+                // monitor's thread see it has been closed
+                closeOutputLine();
+                monitor.awaitClosed(500);
+                monitoring = false;
+                // In case the monitor's thread was just opening one as it was being closed
+                closeOutputLine();
+            }
         }
 
         /**
@@ -643,20 +1123,140 @@ public class AudioCaptureManager {
         }
 
         /**
-         * Writes processed audio data to the output line for monitoring.
+         * Writes processed audio data to the output line for monitoring. Blocks while the
+         * line's buffer is full, which only ever holds up the monitor's own thread.
+         * <p>
+         * Before each write the line's own play position says how much is still queued. None
+         * at all means it ran dry and played silence: it is primed again with a buffer of
+         * silence and the sound fades back in, instead of resuming mid-waveform with a click.
+         * With a target latency, a buffer that would not fit is skipped rather than waited
+         * for - waiting is how a monitor slowly drifts later and later - and the next one
+         * glides on from the last sample played. The latency is estimated on the way, from the
+         * buffer's own length, its wait since the device, and what is queued ahead of it; what
+         * the sound card and the headphones add beyond the line is not seen from here.
          *
-         * @param buffer      The raw audio buffer.
-         * @param bytesRead   The number of bytes read from the raw buffer.
-         * @param outputBuffer The buffer to write the processed data into.
+         * @param frame The decoded buffer.
          */
-        private void writeToMonitor(byte[] buffer, int bytesRead, byte[] outputBuffer) {
-            if (outputLine != null && outputLine.isOpen()) {
-                int bytesToWrite = processAudioForMonitoring(buffer, bytesRead, outputBuffer);
-                if (bytesToWrite > 0) {
-                    outputLine.write(outputBuffer, 0, bytesToWrite);
-                }
+        private void writeToMonitor(AudioFrame frame) {
+            SourceDataLine line = outputLine;
+            if (line == null || !line.isOpen()) {
+                return;
+            }
+            int frameSize = playbackFormat.getFrameSize();
+            int frames = frame.frames();
+            if (outputBuffer.length < frames * frameSize) {
+                outputBuffer = new byte[frames * frameSize];
+            }
+            long queued = framesWritten - line.getLongFramePosition();
+            if (queued <= 0) {
+                monitorUnderruns++;
+                Arrays.fill(outputBuffer, 0, frames * frameSize, (byte) 0);
+                line.write(outputBuffer, 0, frames * frameSize);
+                framesWritten = line.getLongFramePosition() + frames;
+                queued = frames;
+                rampFrom = 0;
+                rampPosition = 0;
+            } else if (outputLineLatencyMs > 0 && (queued + frames) * frameSize > line.getBufferSize()) {
+                monitorTrims++;
+                rampFrom = lastSample;
+                rampPosition = 0;
+                return;
+            }
+            int bytesToWrite = processAudioForMonitoring(frame, outputBuffer);
+            if (bytesToWrite > 0) {
+                float rate = playbackFormat.getSampleRate();
+                double latency = (frames + queued) * 1000.0 / rate
+                        + (System.nanoTime() - frame.capturedAtNanos()) / 1e6;
+                double smoothed = monitorLatencyMillis;
+                monitorLatencyMillis = Double.isNaN(smoothed) ? latency : smoothed * 0.9 + latency * 0.1;
+                line.write(outputBuffer, 0, bytesToWrite);
+                framesWritten += bytesToWrite / frameSize;
+            }
+        }
+    }
+
+    /** How punctually each device being captured gets its audio. The peak backlogs start over with each call. */
+    public List<CaptureTimings> captureTimings() {
+        List<CaptureTimings> timings = new ArrayList<>();
+        for (DeviceCapture capture : deviceCaptures.values()) {
+            timings.add(capture.readTimings.snapshot(capture.mixerInfo.getName()));
+        }
+        return timings;
+    }
+
+    /** How far each device being captured has drifted from the machine's clock. */
+    public List<ClockStats> clockStats() {
+        List<ClockStats> stats = new ArrayList<>();
+        for (DeviceCapture capture : deviceCaptures.values()) {
+            stats.add(capture.clockDrift.snapshot());
+        }
+        return stats;
+    }
+
+    /** The drift of one device, or null when it is not being captured. */
+    public ClockStats clockStats(Mixer.Info mixerInfo) {
+        DeviceCapture capture = mixerInfo != null ? deviceCaptures.get(mixerInfo) : null;
+        return capture != null ? capture.clockDrift.snapshot() : null;
+    }
+
+    /**
+     * Records audio of a device lost after its capture - a relay that had to throw its backlog
+     * away - with the device's gaps, since it shifts the stream just the same.
+     */
+    public void reportDropout(Mixer.Info mixerInfo, String kind, double millis) {
+        DeviceCapture capture = mixerInfo != null ? deviceCaptures.get(mixerInfo) : null;
+        if (capture != null) {
+            capture.clockDrift.dropout(kind, millis);
+        }
+    }
+
+    /** How monitoring of a device is doing, or null when it is not being monitored. */
+    public MonitorStats monitorStats(Mixer.Info mixerInfo) {
+        DeviceCapture capture = mixerInfo != null ? deviceCaptures.get(mixerInfo) : null;
+        if (capture == null || !capture.monitoring) {
+            return null;
+        }
+        return new MonitorStats(capture.monitorLatencyMillis, capture.monitorUnderruns,
+                capture.monitorTrims, capture.outputLineLatencyMs > 0);
+    }
+
+    /** The format a device is being captured in, or null when it is not being captured. */
+    public AudioFormat captureFormat(Mixer.Info mixerInfo) {
+        DeviceCapture capture = mixerInfo != null ? deviceCaptures.get(mixerInfo) : null;
+        return capture != null && capture.isCapturing() ? capture.captureFormat : null;
+    }
+
+    /**
+     * The levels of the last buffer captured from a device, or null when it is not being
+     * captured or nothing measures it.
+     */
+    public ChannelLevels latestLevels(Mixer.Info mixerInfo) {
+        DeviceCapture capture = mixerInfo != null ? deviceCaptures.get(mixerInfo) : null;
+        return capture != null ? capture.latestLevels : null;
+    }
+
+    /**
+     * How every listener of every device being captured is keeping up, device by device. The
+     * peak lags start over with each call.
+     */
+    public List<ListenerStats> listenerStats() {
+        List<ListenerStats> stats = new ArrayList<>();
+        for (DeviceCapture capture : deviceCaptures.values()) {
+            String device = capture.mixerInfo.getName();
+            List<ListenerQueue> queues = new ArrayList<>();
+            for (Subscriber subscriber : capture.listeners) {
+                queues.add(subscriber.queue());
+            }
+            if (capture.monitoring && capture.monitorQueue != null) {
+                queues.add(capture.monitorQueue);
+            }
+            for (ListenerQueue queue : queues) {
+                String name = queue.name().substring(Math.min(queue.name().length(), device.length() + 1));
+                stats.add(new ListenerStats(device, name, queue.policy(), queue.delivered(), queue.overruns(),
+                        queue.lastLagNanos() / 1e6, queue.takePeakLagNanos() / 1e6));
             }
         }
+        return stats;
     }
 
     /**
@@ -667,24 +1267,128 @@ public class AudioCaptureManager {
      */
     public void registerListener(Mixer.Info mixerInfo, AudioDataListener listener) {
         if (mixerInfo == null) return;
-        deviceCaptures.computeIfAbsent(mixerInfo, DeviceCapture::new).addListener(listener);
+        synchronized (warmCaptures) {
+            DeviceCapture capture = deviceCaptures.get(mixerInfo);
+            if (warmCaptures.remove(mixerInfo) != null) {
+                if (capture.isCapturing() && capture.openedAsConfigured()) {
+                    warmHits++;
+                    logger.info("Reattached to the warm capture of {}", mixerInfo.getName());
+                } else {
+                    // Dead, or opened at a rate or chunk size the settings have changed since.
+                    // Closed before its replacement opens the device, under the lock so no
+                    // other listener opens it meanwhile: two captures of one device at once
+                    // fail to open on some systems
+                    capture.stop();
+                    capture = null;
+                }
+            }
+            if (capture == null) {
+                warmMisses++;
+                capture = new DeviceCapture(mixerInfo);
+                deviceCaptures.put(mixerInfo, capture);
+            }
+            capture.addListener(listener);
+        }
     }
 
     /**
      * Unregisters a listener from a specific audio device.
-     * If no listeners remain for a device, its capture resources are released.
+     * <p>
+     * A capture left without listeners is not closed at once but kept running for a while:
+     * moving a language to another device and back, or the meters restarting after a rescan,
+     * used to close the device and reopen it moments later - on Linux a new pw-record and a
+     * round of sound-server lookups each time, with the meters dark meanwhile. A listener that
+     * comes back within {@link #setWarmCaptureSeconds the time} finds it still reading. Only a
+     * few are kept, and when one more is released the one released longest ago is closed. The
+     * headphone monitor is switched off on release; it belongs to the meter that left.
      *
      * @param mixerInfo The mixer info for the device.
      * @param listener  The listener to unregister.
      */
     public void unregisterListener(Mixer.Info mixerInfo, AudioDataListener listener) {
         if (mixerInfo == null) return;
-        DeviceCapture capture = deviceCaptures.get(mixerInfo);
-        if (capture != null) {
+        List<DeviceCapture> toStop = new ArrayList<>();
+        int keepSeconds = warmCaptureSeconds;
+        synchronized (warmCaptures) {
+            DeviceCapture capture = deviceCaptures.get(mixerInfo);
+            if (capture == null) {
+                return;
+            }
             capture.removeListener(listener);
-            if (!capture.hasListeners()) {
+            if (capture.hasListeners()) {
+                return;
+            }
+            if (keepSeconds <= 0 || !capture.isCapturing()) {
                 deviceCaptures.remove(mixerInfo);
+                toStop.add(capture);
+            } else {
+                capture.stopMonitoring();
+                // Taken out first, so a capture released again goes to the young end of the order
+                warmCaptures.remove(mixerInfo);
+                warmCaptures.put(mixerInfo, System.nanoTime());
+                Iterator<Mixer.Info> oldest = warmCaptures.keySet().iterator();
+                while (warmCaptures.size() > MAX_WARM_CAPTURES) {
+                    toStop.add(deviceCaptures.remove(oldest.next()));
+                    oldest.remove();
+                }
+                warmReaper.schedule(this::closeExpiredWarmCaptures, keepSeconds, TimeUnit.SECONDS);
+            }
+        }
+        for (DeviceCapture capture : toStop) {
+            capture.stop();
+        }
+    }
+
+    /** The reaper's thread: closes the captures kept warm for longer than the setting allows. */
+    private void closeExpiredWarmCaptures() {
+        List<DeviceCapture> expired = new ArrayList<>();
+        long oldestKept = System.nanoTime() - TimeUnit.SECONDS.toNanos(warmCaptureSeconds);
+        synchronized (warmCaptures) {
+            Iterator<Map.Entry<Mixer.Info, Long>> entries = warmCaptures.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Mixer.Info, Long> entry = entries.next();
+                if (entry.getValue() - oldestKept > 0) {
+                    break;  // released in order, so the rest are younger still
+                }
+                expired.add(deviceCaptures.remove(entry.getKey()));
+                entries.remove();
+            }
+        }
+        for (DeviceCapture capture : expired) {
+            capture.stop();
+        }
+    }
+
+    /**
+     * Closes every capture kept warm, at once: when the meters close for good, so no pw-record
+     * outlives the application.
+     */
+    public void releaseWarmCaptures() {
+        List<DeviceCapture> released = new ArrayList<>();
+        synchronized (warmCaptures) {
+            for (Mixer.Info mixerInfo : warmCaptures.keySet()) {
+                released.add(deviceCaptures.remove(mixerInfo));
+            }
+            warmCaptures.clear();
+        }
+        for (DeviceCapture capture : released) {
+            capture.stop();
+        }
+    }
+
+    /** How often a listener found its capture warm, and what is being kept running for it. */
+    public WarmCaptureStats warmCaptureStats() {
+        synchronized (warmCaptures) {
+            List<String> devices = new ArrayList<>();
+            int recorders = 0;
+            for (Mixer.Info mixerInfo : warmCaptures.keySet()) {
+                devices.add(mixerInfo.getName());
+                DeviceCapture capture = deviceCaptures.get(mixerInfo);
+                if (capture != null && capture.hasLiveRecorder()) {
+                    recorders++;
+                }
             }
+            return new WarmCaptureStats(warmHits, warmMisses, devices, recorders);
         }
     }
 }
@@ -0,0 +1,219 @@
+package org.kadampa.festivalstreaming;
+
+import javax.sound.sampled.AudioFormat;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One capture buffer, as a plane of samples per channel that is decoded once for everybody.
+ * <p>
+ * The capture hands out interleaved bytes, and everything that wanted the samples themselves
+ * used to decode them on its own: the meters, the headphone monitoring, each with its own bounds
+ * checks and its own branch on the bit depth for every sample. A frame decodes a channel the
+ * first time anyone asks for it, into floats between -1 and 1 - measured against one more than
+ * the largest sample, the scale the meters have always used - and every later reader gets the
+ * same plane. A 24-bit device then costs its consumers no more than a 16-bit one, and a consumer
+ * that wants one channel reads one array from start to end.
+ * <p>
+ * Only the channels somebody reads are decoded. Decoding all of the Qu-5's 32 channels costs more
+ * than measuring all their levels straight from the bytes, and the usual reader - the headphone
+ * monitor - wants one. So the frame keeps its own copy of the bytes, decodes planes on demand,
+ * and works out the {@link ChannelLevels} from the bytes in the single pass that class makes,
+ * again only once whoever asks first.
+ * <p>
+ * Frames come from a small pool per device and are counted: the capture holds one reference
+ * while it hands the frame round, each listener's queue holds one until its listener has had the
+ * frame, and a {@link AudioCaptureManager.FrameListener} that wants to keep it past its callback
+ * calls {@link #retain()}, and {@link #release()} when done. The last
+ * release puts the frame back in the pool, so a steady capture reuses the same few frames instead
+ * of making new ones. A frame must not be touched after its last release; it is then being
+ * refilled with somebody else's audio.
+ */
+public final class AudioFrame {
+
+    private static final VarHandle SHORTS = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final Pool pool;
+    private final byte[] bytes;
+    private final float[][] planes;
+    private final boolean[] decoded;
+    private final AtomicInteger references = new AtomicInteger();
+    private int byteCount;
+    private int frameCount;
+    private AudioFormat format;
+    private long capturedAtNanos;
+    private long sequence;
+    private ChannelLevels levels;
+
+    private AudioFrame(Pool pool, int channels, int capacity, int frameSize) {
+        this.pool = pool;
+        this.bytes = new byte[capacity * frameSize];
+        this.planes = new float[channels][capacity];
+        this.decoded = new boolean[channels];
+    }
+
+    /**
+     * The samples of one channel, counting from zero, decoded on the first request; only the
+     * first {@link #frames()} are this buffer's.
+     */
+    public synchronized float[] channel(int channel) {
+        if (!decoded[channel]) {
+            decode(channel);
+            decoded[channel] = true;
+        }
+        return planes[channel];
+    }
+
+    /** The peak and RMS of every channel, measured the first time they are asked for. */
+    public synchronized ChannelLevels levels() {
+        if (levels == null) {
+            levels = ChannelLevels.measure(bytes, byteCount, format);
+        }
+        return levels;
+    }
+
+    /**
+     * The buffer as captured, interleaved, for a consumer that passes bytes on unchanged. Only the
+     * first {@link #byteCount()} are this buffer's, and they must not be changed.
+     */
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    public int byteCount() {
+        return byteCount;
+    }
+
+    public int channels() {
+        return planes.length;
+    }
+
+    /** How many samples each channel holds. */
+    public int frames() {
+        return frameCount;
+    }
+
+    /** The format the bytes were captured in. */
+    public AudioFormat format() {
+        return format;
+    }
+
+    /** When the buffer was read from the device, by {@link System#nanoTime()}. */
+    public long capturedAtNanos() {
+        return capturedAtNanos;
+    }
+
+    /**
+     * The buffer's place among those read since the device was opened, from zero: a listener
+     * that finds a number skipped knows its queue dropped a buffer, and one that finds it going
+     * back knows the device was opened again.
+     */
+    public long sequence() {
+        return sequence;
+    }
+
+    /** Keeps the frame beyond the callback that handed it over: pair with {@link #release()}. */
+    public AudioFrame retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    /** Gives up one reference; the last one returns the frame to its pool. */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            pool.recycle(this);
+        }
+    }
+
+    /** Takes a copy of the capture's buffer, which the capture reuses as soon as it returns. */
+    private synchronized void fill(byte[] buffer, int bytesRead, AudioFormat format, long capturedAtNanos, long sequence) {
+        int frameSize = format.getFrameSize();
+        frameCount = Math.min(planes[0].length, Math.min(bytesRead, buffer.length) / frameSize);
+        byteCount = frameCount * frameSize;
+        System.arraycopy(buffer, 0, bytes, 0, byteCount);
+        this.format = format;
+        this.capturedAtNanos = capturedAtNanos;
+        this.sequence = sequence;
+        Arrays.fill(decoded, false);
+        levels = null;
+    }
+
+    /** Signed little-endian PCM into one plane: 16 or 24 bits, anything else as silence. */
+    private void decode(int channel) {
+        float[] plane = planes[channel];
+        int bitDepth = format.getSampleSizeInBits();
+        int frameSize = format.getFrameSize();
+        float scale = (float) (1.0 / (AudioSamples.fullScale(bitDepth) + 1));
+        if (bitDepth == 16) {
+            int offset = channel * 2;
+            for (int frame = 0; frame < frameCount; frame++, offset += frameSize) {
+                plane[frame] = (short) SHORTS.get(bytes, offset) * scale;
+            }
+        } else if (bitDepth == 24) {
+            int offset = channel * 3;
+            for (int frame = 0; frame < frameCount; frame++, offset += frameSize) {
+                // Shifted up into an int and back down, which sign extends the top byte
+                int sample = ((bytes[offset] & 0xFF) << 8
+                        | (bytes[offset + 1] & 0xFF) << 16
+                        | bytes[offset + 2] << 24) >> 8;
+                plane[frame] = sample * scale;
+            }
+        } else {
+            Arrays.fill(plane, 0, frameCount, 0f);
+        }
+    }
+
+    /**
+     * The frames of one capture. Sized for the capture's own chunk, which does not change while
+     * it runs; a frame still held by a slow consumer is simply not in the pool, and a new one is
+     * made if the pool runs dry, so nobody ever waits for a frame.
+     */
+    static final class Pool {
+
+        /**
+         * Frames kept for reuse; more than this in circulation are left to the collector. Every
+         * listener's queue can be holding one while it works on another, hence room for more
+         * than a handful.
+         */
+        private static final int CAPACITY = 16;
+
+        private final BlockingQueue<AudioFrame> free = new ArrayBlockingQueue<>(CAPACITY);
+        private final int channels;
+        private final int capacity;
+        private final int frameSize;
+        private long created;
+        private long wrapped;
+
+        Pool(AudioFormat format, int framesPerBuffer) {
+            this.channels = format.getChannels();
+            this.frameSize = format.getFrameSize();
+            this.capacity = framesPerBuffer;
+        }
+
+        /** A frame holding a copy of the buffer, with one reference for the caller. */
+        AudioFrame wrap(byte[] buffer, int bytesRead, AudioFormat format, long capturedAtNanos) {
+            AudioFrame frame = free.poll();
+            if (frame == null) {
+                frame = new AudioFrame(this, channels, capacity, frameSize);
+                created++;
+            }
+            frame.references.set(1);
+            frame.fill(buffer, bytesRead, format, capturedAtNanos, wrapped++);
+            return frame;
+        }
+
+        /** How many frames were ever made, which stays at a handful when consumers let go in time. */
+        long framesCreated() {
+            return created;
+        }
+
+        private void recycle(AudioFrame frame) {
+            free.offer(frame);
+        }
+    }
+}
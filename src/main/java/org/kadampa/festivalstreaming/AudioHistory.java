@@ -0,0 +1,534 @@
+package org.kadampa.festivalstreaming;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.SourceDataLine;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The last minutes of every language's channel, held in memory, so that "did my channel drop out
+ * a minute ago?" can be answered by listening rather than by scrubbing the recording once the
+ * session is over.
+ * <p>
+ * Each device with a language on it gets one listener for the stream, like the stems, and each
+ * of its languages' channels a ring of audio that is reserved in full with the first buffer and
+ * then written over, oldest first - so the memory a history takes is known from the start and
+ * never grows. The audio is kept small in two steps. It is first brought down to about 8 kHz, the
+ * telephone's band: enough to hear that somebody is speaking and what they say, which is what the
+ * question needs. A windowed-sinc low-pass, worked out only at the samples that are kept, keeps
+ * what is above that band from folding back into it. It is then coded as 4-bit IMA ADPCM, in
+ * blocks of 512 samples that each start with the coder's state, so playback can start at any
+ * block. That is 4 KB a second, 2.4 MB for ten minutes of a channel.
+ * <p>
+ * The cost is as fixed as the memory: a few multiply-adds for every sample that comes in, a
+ * filter's worth for every sample kept, and nothing allocated once the rings are made. Both are
+ * measured and shown in the meter window.
+ * <p>
+ * Playback is on a thread of its own, one history at a time, through the default output as the
+ * headphone monitor is. It follows the capture at the distance it was started at, and the rings
+ * are read without a lock: a block is used only if it was still there once it had been decoded.
+ * When a stream ends its histories stop growing but stay to be listened to, until the next
+ * stream starts.
+ */
+final class AudioHistory implements AudioCaptureManager.FrameListener {
+
+    /** The rate the histories aim for; the capture rate is divided by the nearest whole number. */
+    private static final int TARGET_RATE = 8000;
+    static final int BLOCK_SAMPLES = 512;
+    /** The predictor and step index the block starts from, then two samples a byte. */
+    private static final int HEADER_BYTES = 4;
+    private static final int BLOCK_BYTES = HEADER_BYTES + BLOCK_SAMPLES / 2;
+    /** Filter taps for every step of the division, which keeps the transition band narrow at any rate. */
+    private static final int TAPS_PER_STEP = 16;
+    /** The low-pass's cut-off, as a part of the kept rate: under half, so the roll-off ends before it folds. */
+    private static final double CUTOFF = 0.4;
+    /** The longest history that can be asked for, which bounds what it may take. */
+    static final int MAX_MINUTES = 60;
+
+    private static final int[] STEPS = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45, 50, 55, 60, 66, 73, 80,
+            88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230, 253, 279, 307, 337, 371, 408, 449, 494, 544,
+            598, 658, 724, 796, 876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749,
+            3024, 3327, 3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487,
+            12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767};
+    private static final int[] INDEX_STEPS = {-1, -1, -1, -1, 2, 4, 6, 8, -1, -1, -1, -1, 2, 4, 6, 8};
+
+    private static final Logger logger = LoggerFactory.getLogger(AudioHistory.class);
+    /** The histories to be heard, of the stream running or of the last one, by device. */
+    private static final Map<Mixer.Info, AudioHistory> HELD = new ConcurrentHashMap<>();
+
+    /**
+     * What one device's histories take, for the meter window.
+     *
+     * @param device        the device's name
+     * @param channels      channels with a history
+     * @param minutes       how long each history is
+     * @param heldSeconds   how much of that is there yet
+     * @param bytesReserved memory taken by all the device's histories together
+     * @param corePercentPerChannel the share of one core each channel's history costs the listener
+     * @param micros        what one buffer costs the listener, all its channels together
+     */
+    record Stats(String device, int channels, int minutes, double heldSeconds, long bytesReserved,
+                 double corePercentPerChannel, double micros) {
+    }
+
+    private final Mixer.Info device;
+    private final int minutes;
+    /** An array, not a list, so that walking it makes no iterator for every buffer. */
+    private final Track[] tracks;
+    private volatile boolean feeding = true;
+    // The listener's thread, apart from being read for the figures
+    private AudioFormat format;
+    private volatile long busyNanos;
+    private volatile long audioNanos;
+    private volatile long buffers;
+
+    private AudioHistory(Mixer.Info device, int minutes, Track[] tracks) {
+        this.device = device;
+        this.minutes = minutes;
+        this.tracks = tracks;
+    }
+
+    /**
+     * Starts the history of the given channels of a device, replacing whatever was held of it.
+     *
+     * @param channels the zero-based channels to keep
+     * @param minutes  how much of each to keep, up to {@link #MAX_MINUTES}
+     */
+    static AudioHistory open(Mixer.Info device, Collection<Integer> channels, int minutes) {
+        Track[] tracks = new Track[channels.size()];
+        int index = 0;
+        for (int channel : channels) {
+            tracks[index++] = new Track(channel);
+        }
+        AudioHistory history = new AudioHistory(device, Math.min(minutes, MAX_MINUTES), tracks);
+        HELD.put(device, history);
+        AudioCaptureManager.getInstance().registerListener(device, history);
+        return history;
+    }
+
+    /** Lets go of every history held, so a new stream's take their memory. */
+    static void discardAll() {
+        Player.stop();
+        HELD.clear();
+    }
+
+    /** The history of one channel of a device, or null when none is held. */
+    static Track track(Mixer.Info device, int channel) {
+        AudioHistory history = device != null ? HELD.get(device) : null;
+        if (history != null) {
+            for (Track track : history.tracks) {
+                if (track.channel == channel) {
+                    return track;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** The figures of every device whose histories are still growing. */
+    static List<Stats> active() {
+        List<Stats> stats = new ArrayList<>();
+        for (AudioHistory history : HELD.values()) {
+            if (history.feeding) {
+                stats.add(history.stats());
+            }
+        }
+        return stats;
+    }
+
+    Stats stats() {
+        long reserved = 0;
+        double held = 0;
+        for (Track track : tracks) {
+            reserved += track.reservedBytes();
+            held = Math.max(held, track.heldSeconds());
+        }
+        long audio = audioNanos;
+        long count = buffers;
+        return new Stats(device.getName(), tracks.length, minutes, held, reserved,
+                audio > 0 ? busyNanos * 100.0 / audio / tracks.length : 0, count > 0 ? busyNanos / 1e3 / count : 0);
+    }
+
+    @Override
+    public void onFrame(AudioFrame frame) {
+        long started = System.nanoTime();
+        AudioFormat frameFormat = frame.format();
+        if (format == null || frameFormat.getSampleRate() != format.getSampleRate()) {
+            // The first buffer, or the device reopened at another rate: the rings start again
+            format = frameFormat;
+            float[] filter = lowPass(divisionFor(frameFormat.getSampleRate()));
+            for (Track track : tracks) {
+                track.reserve(frameFormat.getSampleRate(), filter, minutes);
+            }
+        }
+        int frames = frame.frames();
+        // The frame is stamped when it was read, which is when its last sample came in
+        long firstSampleNanos = frame.capturedAtNanos() - (long) (frames * 1e9 / format.getSampleRate());
+        for (Track track : tracks) {
+            if (track.channel < frameFormat.getChannels()) {
+                track.append(frame.channel(track.channel), frames, firstSampleNanos);
+            }
+        }
+        busyNanos += System.nanoTime() - started;
+        audioNanos += (long) (frames * 1e9 / format.getSampleRate());
+        buffers++;
+    }
+
+    @Override
+    public String listenerName() {
+        return "History";
+    }
+
+    /** Stops the histories growing; what they hold stays to be heard until the next stream. */
+    void close() {
+        AudioCaptureManager.getInstance().unregisterListener(device, this);
+        feeding = false;
+        Stats stats = stats();
+        logger.info("History of {}: {} channels, {} s held of {} min, {} MB, {}% of a core a channel",
+                stats.device(), stats.channels(), Math.round(stats.heldSeconds()), stats.minutes(),
+                String.format("%.1f", stats.bytesReserved() / 1e6), String.format("%.3f", stats.corePercentPerChannel()));
+    }
+
+    /** By how much a capture rate is divided to come near the target. */
+    private static int divisionFor(float sampleRate) {
+        return Math.max(1, Math.round(sampleRate / TARGET_RATE));
+    }
+
+    /** A Hamming-windowed sinc whose taps add up to one, so the level is kept. */
+    private static float[] lowPass(int step) {
+        int taps = TAPS_PER_STEP * step;
+        float[] filter = new float[taps];
+        double cutoff = CUTOFF / step;  // of the capture rate
+        double middle = (taps - 1) / 2.0;
+        double sum = 0;
+        for (int tap = 0; tap < taps; tap++) {
+            double x = tap - middle;
+            double sinc = x == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            double window = 0.54 - 0.46 * Math.cos(2 * Math.PI * tap / (taps - 1));
+            filter[tap] = (float) (sinc * window);
+            sum += filter[tap];
+        }
+        for (int tap = 0; tap < taps; tap++) {
+            filter[tap] /= (float) sum;
+        }
+        return filter;
+    }
+
+    /**
+     * One channel's history: a ring of ADPCM blocks with the time each began. Written on the
+     * listener's thread, read on the player's and the interface's.
+     */
+    static final class Track {
+        private final int channel;
+        // Replaced whole, and published through blocksWritten, when the rate changes
+        private volatile float sourceRate;
+        private volatile int step;
+        private byte[] ring = new byte[0];
+        private long[] startNanos = new long[0];
+        private int capacity;
+        /** Blocks completed since the ring was made; the one being filled is this one. */
+        private volatile long blocksWritten;
+        // The listener's thread
+        private float[] filter = new float[0];
+        private float[] window = new float[0];
+        private int windowAt;
+        private int phase;
+        private int predictor;
+        private int stepIndex;
+        private int blockSample;
+
+        Track(int channel) {
+            this.channel = channel;
+        }
+
+        private void reserve(float rate, float[] lowPass, int minutes) {
+            int division = divisionFor(rate);
+            int blocks = (int) Math.ceil(minutes * 60.0 * rate / division / BLOCK_SAMPLES);
+            capacity = Math.max(2, blocks);
+            ring = new byte[capacity * BLOCK_BYTES];
+            startNanos = new long[capacity];
+            filter = lowPass;
+            window = new float[2 * lowPass.length];
+            windowAt = 0;
+            phase = 0;
+            predictor = 0;
+            stepIndex = 0;
+            blockSample = 0;
+            step = division;
+            sourceRate = rate;
+            blocksWritten = 0;
+        }
+
+        /** The listener's thread: runs the samples through the low-pass and codes every kept one. */
+        private void append(float[] samples, int frames, long firstSampleNanos) {
+            float[] taps = filter;
+            float[] held = window;
+            int length = taps.length;
+            int division = step;
+            for (int index = 0; index < frames; index++) {
+                // Every sample is written twice, so the last taps' worth is always one straight run
+                held[windowAt] = samples[index];
+                held[windowAt + length] = samples[index];
+                if (++windowAt == length) {
+                    windowAt = 0;
+                }
+                if (++phase < division) {
+                    continue;
+                }
+                phase = 0;
+                float sum = 0;
+                for (int tap = 0; tap < length; tap++) {
+                    sum += taps[tap] * held[windowAt + tap];
+                }
+                if (blockSample == 0) {
+                    startBlock(firstSampleNanos + (long) (index * 1e9 / sourceRate));
+                }
+                encode(Math.max(-32768, Math.min(32767, Math.round(sum * 32768))));
+            }
+        }
+
+        private void startBlock(long nanos) {
+            int slot = (int) (blocksWritten % capacity);
+            int at = slot * BLOCK_BYTES;
+            ring[at] = (byte) predictor;
+            ring[at + 1] = (byte) (predictor >> 8);
+            ring[at + 2] = (byte) stepIndex;
+            startNanos[slot] = nanos;
+        }
+
+        /** IMA ADPCM: the difference from the prediction in four bits, against a step that adapts. */
+        private void encode(int sample) {
+            int stepSize = STEPS[stepIndex];
+            int difference = sample - predictor;
+            int code = 0;
+            if (difference < 0) {
+                code = 8;
+                difference = -difference;
+            }
+            int change = stepSize >> 3;
+            if (difference >= stepSize) {
+                code |= 4;
+                difference -= stepSize;
+                change += stepSize;
+            }
+            stepSize >>= 1;
+            if (difference >= stepSize) {
+                code |= 2;
+                difference -= stepSize;
+                change += stepSize;
+            }
+            stepSize >>= 1;
+            if (difference >= stepSize) {
+                code |= 1;
+                change += stepSize;
+            }
+            predictor = Math.max(-32768, Math.min(32767, predictor + ((code & 8) != 0 ? -change : change)));
+            stepIndex = Math.max(0, Math.min(STEPS.length - 1, stepIndex + INDEX_STEPS[code]));
+
+            int at = (int) (blocksWritten % capacity) * BLOCK_BYTES + HEADER_BYTES + (blockSample >> 1);
+            ring[at] = (byte) ((blockSample & 1) == 0 ? code : (ring[at] & 0x0F) | code << 4);
+            if (++blockSample == BLOCK_SAMPLES) {
+                blockSample = 0;
+                blocksWritten++;
+            }
+        }
+
+        /**
+         * Decodes one block into the samples given, answering false when the block is not there:
+         * not written yet, or written over before it could be read.
+         */
+        boolean decode(long block, short[] samples) {
+            // The count first: its being volatile is what makes the ring it counts visible
+            long written = blocksWritten;
+            byte[] bytes = ring;
+            int slots = capacity;
+            if (block >= written || block < written - slots + 1) {
+                return false;
+            }
+            int at = (int) (block % slots) * BLOCK_BYTES;
+            if (at + BLOCK_BYTES > bytes.length) {
+                // The ring was being made again, for another rate
+                return false;
+            }
+            int value = (short) ((bytes[at] & 0xFF) | bytes[at + 1] << 8);
+            int index = Math.min(STEPS.length - 1, bytes[at + 2] & 0xFF);
+            for (int sample = 0; sample < BLOCK_SAMPLES; sample++) {
+                int packed = bytes[at + HEADER_BYTES + (sample >> 1)];
+                int code = (sample & 1) == 0 ? packed & 0x0F : (packed >> 4) & 0x0F;
+                int stepSize = STEPS[index];
+                int change = stepSize >> 3;
+                if ((code & 4) != 0) {
+                    change += stepSize;
+                }
+                if ((code & 2) != 0) {
+                    change += stepSize >> 1;
+                }
+                if ((code & 1) != 0) {
+                    change += stepSize >> 2;
+                }
+                value = Math.max(-32768, Math.min(32767, value + ((code & 8) != 0 ? -change : change)));
+                index = Math.max(0, Math.min(STEPS.length - 1, index + INDEX_STEPS[code]));
+                samples[sample] = (short) value;
+            }
+            // The writer may have come round to this block while it was being read
+            return block >= oldestBlock();
+        }
+
+        /** The oldest whole block; the one before it is the slot being written over. */
+        long oldestBlock() {
+            return Math.max(0, blocksWritten - capacity + 1);
+        }
+
+        long blocksWritten() {
+            return blocksWritten;
+        }
+
+        /** The block that was being heard at the given time, or the nearest one there is. */
+        long blockAt(long nanos) {
+            long written = blocksWritten;
+            long[] starts = startNanos;
+            int slots = capacity;
+            long low = Math.max(0, written - slots + 1);
+            long high = written - 1;
+            if (high < low || starts.length < slots) {
+                return low;
+            }
+            while (low < high) {
+                long middle = (low + high + 1) >>> 1;
+                if (starts[(int) (middle % slots)] <= nanos) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+
+        /** How far back the history goes now. */
+        double heldSeconds() {
+            long blocks = blocksWritten - oldestBlock();
+            float rate = sourceRate;
+            return rate > 0 ? blocks * BLOCK_SAMPLES * step / rate : 0;
+        }
+
+        float sourceRate() {
+            return sourceRate;
+        }
+
+        int step() {
+            return step;
+        }
+
+        long reservedBytes() {
+            return ring.length + startNanos.length * 8L;
+        }
+    }
+
+    /**
+     * Plays one history at a time to the default output, following the capture at the distance
+     * it was started at. Brought back to the capture's rate by drawing straight lines between the
+     * kept samples, which the telephone band this is leaves nothing to lose to.
+     */
+    static final class Player {
+
+        private static final long WAIT_MILLIS = 20;
+        private static volatile Player current;
+
+        private final Track track;
+        private final long distanceNanos;
+        private volatile boolean stopped;
+
+        private Player(Track track, long distanceNanos) {
+            this.track = track;
+            this.distanceNanos = distanceNanos;
+        }
+
+        /** Starts playing a history from the given time back, stopping any other. */
+        static void play(Track track, double secondsBack) {
+            stop();
+            Player player = new Player(track, (long) (Math.max(1, secondsBack) * 1e9));
+            current = player;
+            Thread thread = new Thread(player::run, "HistoryPlayer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        static void stop() {
+            Player player = current;
+            current = null;
+            if (player != null) {
+                player.stopped = true;
+            }
+        }
+
+        /** Whether this history is the one being played. */
+        static boolean isPlaying(Track track) {
+            Player player = current;
+            return player != null && player.track == track && !player.stopped;
+        }
+
+        private void run() {
+            float rate = track.sourceRate();
+            int step = track.step();
+            AudioFormat playback = new AudioFormat(rate, 16, 1, true, false);
+            SourceDataLine line;
+            try {
+                line = (SourceDataLine) AudioSystem.getLine(new DataLine.Info(SourceDataLine.class, playback));
+                int bufferBytes = (int) (rate * 0.25f) * 2;
+                line.open(playback, bufferBytes);
+            } catch (LineUnavailableException | IllegalArgumentException e) {
+                logger.warn("The history cannot be played: {}", e.getMessage());
+                stopped = true;
+                return;
+            }
+            short[] samples = new short[BLOCK_SAMPLES];
+            byte[] output = new byte[BLOCK_SAMPLES * step * 2];
+            int previous = 0;
+            long block = track.blockAt(System.nanoTime() - distanceNanos);
+            line.start();
+            try {
+                while (!stopped && current == this) {
+                    if (block >= track.blocksWritten()) {
+                        TimeUnit.MILLISECONDS.sleep(WAIT_MILLIS);
+                        continue;
+                    }
+                    if (!track.decode(block, samples)) {
+                        // Written over while it waited: on from the oldest that is left
+                        block = track.oldestBlock();
+                        continue;
+                    }
+                    int at = 0;
+                    for (short sample : samples) {
+                        for (int part = 1; part <= step; part++) {
+                            int value = previous + (sample - previous) * part / step;
+                            output[at++] = (byte) value;
+                            output[at++] = (byte) (value >> 8);
+                        }
+                        previous = sample;
+                    }
+                    line.write(output, 0, at);
+                    block++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                line.stop();
+                line.flush();
+                line.close();
+                stopped = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package org.kadampa.festivalstreaming;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.Mixer;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Everything one device delivered while a stream ran, as it came off the desk: every channel,
+ * interleaved, before the noise reduction, the mixing and the encoder have touched it.
+ * <p>
+ * ffmpeg's output was the only recording, so a wrong noise-reduction setting, a language routed
+ * to the wrong channel or an encode that failed halfway lost the interpreters' audio for good.
+ * The journal takes the same frames the meters get and writes their bytes unchanged into
+ * segment files of a fixed length, each a WAV file that any player or ffmpeg opens as it is.
+ * <p>
+ * A segment is created whole before its first byte is written - sized, mapped and given its
+ * header - so the listener's thread only ever copies bytes into memory. Sizing a file sparse costs
+ * nothing, and the page cache writes the pages out in the background; the next segment is made
+ * on another thread once the current one is half full, and the first as soon as the journal
+ * opens when the capture's format is known by then. A full segment is handed to that thread as
+ * well, to be written out to the disk - hundreds of megabytes for a desk's worth of channels,
+ * which the listener's queue could not ride out - and then unmapped, so only the segments being
+ * written and made are ever mapped. The header states the full length from the start, so a
+ * segment that was completed is a correct WAV file whatever happens afterwards. Besides the
+ * format it carries a chunk of its own, which readers skip: when its first sample was
+ * captured, how many frames were written - updated with every buffer, so after a crash the last
+ * segment says where its audio ends and its silence begins - and which language is on which
+ * channel. A clean end shortens the last segment to what it holds.
+ * <p>
+ * The journal is a listener like any other, behind a queue of its own: a disk that stalls for
+ * longer than the queue holds loses buffers to the journal only, counted with the rest in the
+ * meter window. The time spent writing each buffer is measured and shown there too.
+ */
+final class CaptureJournal implements AudioCaptureManager.FrameListener {
+
+    /** The largest segment one mapping can hold, header included. */
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    /** Header bytes: RIFF, fmt and our own chunk, up to where the samples start. */
+    static final int HEADER_BYTES = 512;
+    private static final int FORMAT_CHUNK_AT = 12;
+    private static final int JOURNAL_CHUNK_AT = 36;
+    private static final int JOURNAL_CHUNK_BYTES = HEADER_BYTES - JOURNAL_CHUNK_AT - 8 - 8;
+    /** Positions inside the file of the journal chunk's fields. */
+    static final int START_MILLIS_AT = JOURNAL_CHUNK_AT + 8 + 4;
+    static final int START_NANOS_AT = START_MILLIS_AT + 8;
+    static final int FRAMES_WRITTEN_AT = START_NANOS_AT + 8;
+    private static final int CHANNEL_MAP_AT = FRAMES_WRITTEN_AT + 8;
+    private static final int DATA_CHUNK_AT = HEADER_BYTES - 8;
+    private static final int JOURNAL_VERSION = 1;
+    /** Free space the disk has to keep beyond a new segment, or the journal stops. */
+    private static final long MIN_FREE_BYTES = 2L << 30;
+
+    private static final Logger logger = LoggerFactory.getLogger(CaptureJournal.class);
+    /** Makes the next segment of every journal, and finishes the last one, off the listeners' threads. */
+    private static final ExecutorService PREPARER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "CaptureJournal");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final List<CaptureJournal> OPEN = new CopyOnWriteArrayList<>();
+    /**
+     * Unmaps a mapping at once rather than whenever the collector gets round to it; null where
+     * the runtime does not offer it, and the mapping is then left to the collector.
+     */
+    private static final MethodHandle UNMAP = findUnmap();
+
+    /**
+     * What a journal has written, for the meter window.
+     *
+     * @param device       the device's name
+     * @param directory    where its segments go
+     * @param segments     segments started
+     * @param bytesWritten audio bytes written
+     * @param micros       the average time spent on one buffer, in microseconds
+     * @param peakMicros   the longest, likewise
+     * @param lateSegments segments that were not ready in time, so a buffer waited for one
+     * @param stopped      whether it gave up: the disk was full, or would not take a segment
+     */
+    record Stats(String device, Path directory, int segments, long bytesWritten, double micros,
+                 double peakMicros, int lateSegments, boolean stopped) {
+    }
+
+    private final Mixer.Info device;
+    private final String fileStem;
+    private final Path directory;
+    private final byte[] channelMap;
+    private final int segmentSeconds;
+
+    // The listener's thread only, apart from the published figures
+    private Segment segment;
+    private Future<Segment> nextSegment;
+    /** The last segment handed over to be finished, waited for on close. */
+    private Future<?> finishing;
+    private volatile int segments;
+    private volatile long bytesWritten;
+    private volatile long writes;
+    private volatile long writeNanos;
+    private volatile long peakWriteNanos;
+    private volatile int lateSegments;
+    private volatile boolean stopped;
+    private boolean closed;  // under the journal's lock
+
+    private CaptureJournal(Mixer.Info device, Path directory, String channelMap, int segmentSeconds) {
+        this.device = device;
+        this.fileStem = fileStem(device.getName());
+        this.directory = directory;
+        this.channelMap = channelMap.getBytes(StandardCharsets.UTF_8);
+        this.segmentSeconds = segmentSeconds;
+    }
+
+    /**
+     * Starts journaling a device into the given directory, or answers null when the directory
+     * cannot be made: the stream goes on without it.
+     *
+     * @param channelMap which language is on which channel, kept in every segment
+     */
+    static CaptureJournal open(Mixer.Info device, Path directory, String channelMap, int segmentSeconds) {
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            logger.warn("The capture journal of {} cannot be written to {}: {}", device.getName(), directory, e.getMessage());
+            return null;
+        }
+        CaptureJournal journal = new CaptureJournal(device, directory, channelMap, Math.max(10, segmentSeconds));
+        AudioFormat format = AudioCaptureManager.getInstance().captureFormat(device);
+        if (format != null) {
+            // Usually so: the meters have the device open already
+            journal.nextSegment = PREPARER.submit(() -> journal.createSegment(format, 1));
+        }
+        OPEN.add(journal);
+        AudioCaptureManager.getInstance().registerListener(device, journal);
+        logger.info("Journaling the raw audio of {} into {}", device.getName(), directory);
+        return journal;
+    }
+
+    /** The figures of every journal being written. */
+    static List<Stats> active() {
+        List<Stats> stats = new ArrayList<>();
+        for (CaptureJournal journal : OPEN) {
+            stats.add(journal.stats());
+        }
+        return stats;
+    }
+
+    Stats stats() {
+        long count = writes;
+        return new Stats(device.getName(), directory, segments, bytesWritten,
+                count > 0 ? writeNanos / 1e3 / count : 0, peakWriteNanos / 1e3, lateSegments, stopped);
+    }
+
+    /**
+     * The listener's thread. The lock is only ever contended by {@link #close()}, which cannot
+     * wait for the queue's thread to finish a frame any other way.
+     */
+    @Override
+    public synchronized void onFrame(AudioFrame frame) {
+        if (stopped || closed) {
+            return;
+        }
+        long started = System.nanoTime();
+        byte[] bytes = frame.bytes();
+        int length = frame.byteCount();
+        int offset = 0;
+        if (segment != null && !segment.holds(frame.format())) {
+            // The device was reopened in another format: a segment has one
+            finishSegment();
+        }
+        while (offset < length) {
+            if (segment == null || segment.isFull()) {
+                if (!nextSegment(frame)) {
+                    return;
+                }
+            }
+            offset += segment.write(bytes, offset, length - offset, started, frame);
+        }
+        bytesWritten += length;
+        long spent = System.nanoTime() - started;
+        writeNanos += spent;
+        writes++;
+        if (spent > peakWriteNanos) {
+            peakWriteNanos = spent;
+        }
+        if (nextSegment == null && segment.isHalfFull()) {
+            AudioFormat format = frame.format();
+            int index = segments + 1;
+            nextSegment = PREPARER.submit(() -> createSegment(format, index));
+        }
+    }
+
+    @Override
+    public String listenerName() {
+        return "Journal";
+    }
+
+    /** Moves on to a fresh segment, waiting for it if it was not made in time. */
+    private boolean nextSegment(AudioFrame frame) {
+        finishSegment();
+        Segment next = null;
+        Future<Segment> prepared = nextSegment;
+        nextSegment = null;
+        try {
+            if (prepared != null) {
+                if (!prepared.isDone()) {
+                    lateSegments++;
+                }
+                next = prepared.get();
+                if (next != null && !next.holds(frame.format())) {
+                    next.discard();
+                    next = null;
+                }
+            }
+            if (next == null) {
+                // The first segment when the format was not known at the start, or one for a new
+                // format: only known once the audio is here
+                next = createSegment(frame.format(), segments + 1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warn("The next journal segment of {} failed", device.getName(), e.getCause());
+        }
+        if (next == null) {
+            stopped = true;
+            logger.error("The capture journal of {} stopped; the stream itself goes on", device.getName());
+            return false;
+        }
+        segment = next;
+        segments++;
+        return true;
+    }
+
+    /**
+     * States the segment's real length and hands it over to be written out and let go of, which
+     * can take longer than the listener's queue holds.
+     */
+    private void finishSegment() {
+        if (segment != null) {
+            Segment finished = segment;
+            segment = null;
+            finished.seal();
+            finishing = PREPARER.submit(finished::finish);
+        }
+    }
+
+    /** Sizes, maps and heads a new segment file, or answers null when the disk will not take it. */
+    private Segment createSegment(AudioFormat format, int index) {
+        int frameSize = format.getFrameSize();
+        long capacityFrames = Math.min((long) (format.getSampleRate() * segmentSeconds),
+                (MAX_SEGMENT_BYTES - HEADER_BYTES) / frameSize);
+        long fileBytes = HEADER_BYTES + capacityFrames * frameSize;
+        long free = directory.toFile().getUsableSpace();
+        if (free < fileBytes + MIN_FREE_BYTES) {
+            logger.error("Only {} MB left in {}: no more journal segments", free >> 20, directory);
+            return null;
+        }
+        String name = String.format("%s-%04d.wav", fileStem, index);
+        Path path = directory.resolve(name);
+        for (int suffix = 2; Files.exists(path); suffix++) {
+            path = directory.resolve(name.replace(".wav", "-" + suffix + ".wav"));
+        }
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(fileBytes);
+            // The mapping outlives the channel, and is unmapped once the segment is finished
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileBytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            writeHeader(buffer, format, capacityFrames * frameSize, channelMap);
+            buffer.position(HEADER_BYTES);
+            return new Segment(path, buffer, format, capacityFrames);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not create the journal segment {}: {}", path, e.getMessage());
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {
+                // Nothing more to do about it
+            }
+            return null;
+        }
+    }
+
+    /** The WAV header and our chunk, stating a segment full to the brim until it is finished. */
+    static void writeHeader(ByteBuffer buffer, AudioFormat format, long dataBytes, byte[] channelMap) {
+        buffer.put(0, ascii("RIFF"));
+        buffer.putInt(4, (int) (HEADER_BYTES - 8 + dataBytes));
+        buffer.put(8, ascii("WAVE"));
+        buffer.put(FORMAT_CHUNK_AT, ascii("fmt "));
+        buffer.putInt(FORMAT_CHUNK_AT + 4, 16);
+        buffer.putShort(FORMAT_CHUNK_AT + 8, (short) 1);  // integer PCM
+        buffer.putShort(FORMAT_CHUNK_AT + 10, (short) format.getChannels());
+        buffer.putInt(FORMAT_CHUNK_AT + 12, (int) format.getSampleRate());
+        buffer.putInt(FORMAT_CHUNK_AT + 16, (int) format.getSampleRate() * format.getFrameSize());
+        buffer.putShort(FORMAT_CHUNK_AT + 20, (short) format.getFrameSize());
+        buffer.putShort(FORMAT_CHUNK_AT + 22, (short) format.getSampleSizeInBits());
+        buffer.put(JOURNAL_CHUNK_AT, ascii("kfsj"));
+        buffer.putInt(JOURNAL_CHUNK_AT + 4, JOURNAL_CHUNK_BYTES);
+        buffer.putInt(JOURNAL_CHUNK_AT + 8, JOURNAL_VERSION);
+        int mapLength = Math.min(channelMap.length, DATA_CHUNK_AT - CHANNEL_MAP_AT - 2);
+        buffer.putShort(CHANNEL_MAP_AT, (short) mapLength);
+        buffer.put(CHANNEL_MAP_AT + 2, channelMap, 0, mapLength);
+        buffer.put(DATA_CHUNK_AT, ascii("data"));
+        buffer.putInt(DATA_CHUNK_AT + 4, (int) dataBytes);
+    }
+
+    /** What a segment's files are named after: the device's name, kept to what every file system takes. */
+    static String fileStem(String deviceName) {
+        return deviceName.replaceAll("[^a-zA-Z0-9-]", "_");
+    }
+
+    /**
+     * What the header of a journal segment says, read back for a re-render.
+     *
+     * @param format     the samples' format
+     * @param startMillis when the first sample was taken, by the wall clock
+     * @param startNanos when the first sample was taken, on the clock the other devices' journals use
+     * @param frames     how many frames were written: the end of the audio even when the session
+     *                   crashed and the header still states the segment full
+     * @param channelMap which language is on which channel
+     */
+    record SegmentHeader(AudioFormat format, long startMillis, long startNanos, long frames, String channelMap) {
+        double seconds() {
+            return frames / format.getSampleRate();
+        }
+
+        /**
+         * The wall-clock time at which {@link #startNanos} would have been zero: the same, give
+         * or take adjustments to the wall clock, for every segment written while the program
+         * ran, and unrelated between runs, whose nanosecond clocks have origins of their own.
+         */
+        long clockOriginMillis() {
+            return startMillis - startNanos / 1_000_000L;
+        }
+    }
+
+    /** Reads a segment's header, or answers null when the file is not a journal segment. */
+    static SegmentHeader readHeader(Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (header.hasRemaining() && file.read(header) >= 0) {
+                // Until the header is in, or the file ends short of it
+            }
+        }
+        if (header.hasRemaining() || !"kfsj".equals(new String(header.array(), JOURNAL_CHUNK_AT, 4, StandardCharsets.US_ASCII))
+                || header.getInt(JOURNAL_CHUNK_AT + 8) != JOURNAL_VERSION) {
+            return null;
+        }
+        int channels = header.getShort(FORMAT_CHUNK_AT + 10);
+        int bits = header.getShort(FORMAT_CHUNK_AT + 22);
+        AudioFormat format = new AudioFormat(header.getInt(FORMAT_CHUNK_AT + 12), bits, channels, true, false);
+        int mapLength = header.getShort(CHANNEL_MAP_AT);
+        String channelMap = new String(header.array(), CHANNEL_MAP_AT + 2, mapLength, StandardCharsets.UTF_8);
+        return new SegmentHeader(format, header.getLong(START_MILLIS_AT), header.getLong(START_NANOS_AT),
+                header.getLong(FRAMES_WRITTEN_AT), channelMap);
+    }
+
+    private static MethodHandle findUnmap() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("Journal segments will be unmapped by the collector: {}", e.toString());
+            return null;
+        }
+    }
+
+    private static byte[] ascii(String tag) {
+        return tag.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Stops taking audio and finishes the last segment, shortened to what it holds; a segment
+     * made in advance and never written to is removed.
+     */
+    void close() {
+        AudioCaptureManager.getInstance().unregisterListener(device, this);
+        OPEN.remove(this);
+        Future<Segment> prepared;
+        Future<?> finished;
+        synchronized (this) {
+            // A frame the queue was still handing over is written first; none after it
+            closed = true;
+            finishSegment();
+            prepared = nextSegment;
+            nextSegment = null;
+            finished = finishing;
+        }
+        if (finished != null) {
+            try {
+                finished.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                logger.warn("The last journal segment of {} was not finished", device.getName(), e.getCause());
+            }
+        }
+        if (prepared != null) {
+            try {
+                Segment unused = prepared.get();
+                if (unused != null) {
+                    unused.discard();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // It was never made, so there is nothing to remove
+            }
+        }
+        Stats stats = stats();
+        logger.info("Journal of {}: {} MB in {} segments, {} us per buffer (peak {} us)", stats.device(),
+                stats.bytesWritten() >> 20, stats.segments(), String.format("%.1f", stats.micros()),
+                String.format("%.0f", stats.peakMicros()));
+    }
+
+    /** One segment file, mapped whole. */
+    private static final class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private final AudioFormat format;
+        private final int frameSize;
+        private final long capacityFrames;
+        private long framesWritten;
+
+        Segment(Path path, MappedByteBuffer buffer, AudioFormat format, long capacityFrames) {
+            this.path = path;
+            this.buffer = buffer;
+            this.format = format;
+            this.frameSize = format.getFrameSize();
+            this.capacityFrames = capacityFrames;
+        }
+
+        /** Whether audio in this format belongs here; compared field by field, with no allocation. */
+        boolean holds(AudioFormat other) {
+            return other.getSampleRate() == format.getSampleRate() && other.getChannels() == format.getChannels()
+                    && other.getSampleSizeInBits() == format.getSampleSizeInBits();
+        }
+
+        boolean isFull() {
+            return framesWritten >= capacityFrames;
+        }
+
+        boolean isHalfFull() {
+            return framesWritten * 2 >= capacityFrames;
+        }
+
+        /**
+         * Copies as much of the buffer as fits, stamping the segment's start with its first
+         * write; answers how many bytes were taken.
+         */
+        int write(byte[] bytes, int offset, int length, long nowNanos, AudioFrame frame) {
+            int frames = (int) Math.min(length / frameSize, capacityFrames - framesWritten);
+            int taken = frames * frameSize;
+            if (framesWritten == 0) {
+                // Back from the moment the buffer was read to when its first sample was taken,
+                // plus the part of the buffer an earlier segment already holds
+                long firstSampleNanos = frame.capturedAtNanos()
+                        - (long) ((frame.frames() - offset / frameSize) * 1e9 / format.getSampleRate());
+                buffer.putLong(START_NANOS_AT, firstSampleNanos);
+                buffer.putLong(START_MILLIS_AT, System.currentTimeMillis() - (nowNanos - firstSampleNanos) / 1_000_000L);
+            }
+            buffer.put(bytes, offset, taken);
+            framesWritten += frames;
+            buffer.putLong(FRAMES_WRITTEN_AT, framesWritten);
+            return taken;
+        }
+
+        /** The listener's thread: states the real length in the header, the last write to the segment. */
+        void seal() {
+            long dataBytes = framesWritten * frameSize;
+            buffer.putInt(4, (int) (HEADER_BYTES - 8 + dataBytes));
+            buffer.putInt(DATA_CHUNK_AT + 4, (int) dataBytes);
+        }
+
+        /** The preparer's thread: writes the pages out, unmaps them and trims the file to its audio. */
+        void finish() {
+            buffer.force();
+            boolean unmapped = false;
+            if (UNMAP != null) {
+                try {
+                    UNMAP.invokeExact(buffer);
+                    unmapped = true;
+                } catch (Throwable e) {
+                    logger.debug("Could not unmap {}: {}", path, e.toString());
+                }
+            }
+            if (framesWritten < capacityFrames) {
+                try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                    file.setLength(HEADER_BYTES + framesWritten * frameSize);
+                } catch (IOException e) {
+                    // Windows will not shorten a file still mapped; the header already says where
+                    // the audio ends, and players stop there
+                    logger.debug("Could not trim {} ({}): {}", path, unmapped ? "unmapped" : "still mapped", e.getMessage());
+                }
+            }
+        }
+
+        /** Removes a segment that was never written to. */
+        void discard() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                logger.debug("Could not delete {}", path, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package org.kadampa.festivalstreaming;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.Mixer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Watches the channels a stream takes its languages from for the faults nobody hears in time:
+ * clipping, peaks between the samples, a DC offset, a channel frozen at one value or gone silent.
+ * <p>
+ * The meters show a peak to whoever is looking, and VolumeMonitor compares ten-second averages
+ * once a second and speaks up after six. Neither sees a cable that puts a DC offset on the line, a
+ * converter that has stopped and holds its last sample, or a voice that is under full scale on
+ * every sample and clips in the encoder because the waveform between two samples goes over. So
+ * every device with a language on it gets one listener, which reads the used channels of each
+ * buffer as it is captured and says so on the console as soon as the fault is there - within a
+ * buffer for clipping and peaks, within a tenth of a second for an offset or a frozen channel.
+ * <p>
+ * Everything is measured incrementally, sample by sample, with state carried from one buffer to
+ * the next: the oversampling filter keeps its last samples, the offset is followed by a low-pass
+ * that runs on across buffers, and the length of the current run of identical samples goes on
+ * counting. The state is made when the detector opens and the filter's working array with the
+ * first buffer, so a running detector allocates nothing; only a line for the console is made, and
+ * only when there is something to say.
+ * <p>
+ * The true peak is the one EBU R128 asks to stay under -1 dBTP: the signal oversampled four times
+ * through the interpolation filter of ITU-R BS.1770, whose four phases are each a 12-tap FIR. That
+ * is the expensive part, and most buffers cannot come near the limit: no phase can lift a signal
+ * by more than the sum of its taps' magnitudes, so a buffer whose samples stay under the limit
+ * divided by that sum is passed over and only its last samples kept for the next one.
+ * <p>
+ * Each fault is said once when it starts, then not again on that channel for a while, so a
+ * singer who keeps hitting the limit makes one line every few seconds rather than a stream of
+ * them. A frozen channel, an offset or a silence that goes away again is reported as over.
+ */
+final class ChannelFaultDetector implements AudioCaptureManager.FrameListener {
+
+    /** The BS.1770 limit, which the encoder is also given room under: peaks above it clip there. */
+    private static final double TRUE_PEAK_LIMIT_DBTP = -1.0;
+    /** Samples in a row at full scale that count as clipping rather than a peak that just reached it. */
+    private static final int CLIPPED_SAMPLES = 3;
+    /** An offset beyond this, about -40 dBFS, is not noise: an analogue stage is putting it there. */
+    private static final double DC_LIMIT = 0.01;
+    /**
+     * The time constant of each of the two one-pole low-passes the offset is read through. Short
+     * enough that a new offset is past half its size in 40 ms, and the pair still takes a 100 Hz
+     * voice down by more than 40 dB; averaging fixed windows instead let every fraction of a cycle that
+     * did not fit the window through, and a voice alone crossed the limit.
+     */
+    private static final double DC_TIME_CONSTANT_SECONDS = 0.025;
+    /**
+     * How long the offset must stay past the limit on one side: longer than half a cycle of the
+     * lowest pop or thump, which swing both ways. With the filter's rise, an offset is told in
+     * about 100 ms.
+     */
+    private static final double DC_SECONDS = 0.06;
+    /** A run of one value other than zero this long is a frozen input; no real signal holds still for it. */
+    private static final double STUCK_SECONDS = 0.1;
+    /**
+     * A run of zeros this long is a silent channel. Far longer than a frozen one: a desk's gate
+     * or mute sends exact zeros too, and an interpreter who pauses is not a fault.
+     */
+    private static final double DEAD_SECONDS = 5;
+    /** How long a channel keeps quiet about a fault it has just reported. */
+    private static final long REPEAT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * BS.1770-4 Annex 2, the four phases of the 48-tap interpolation filter. The last two are the
+     * first two backwards.
+     */
+    private static final float[][] PHASES = {
+            {0.0017089843750f, 0.0109863281250f, -0.0196533203125f, 0.0332031250000f, -0.0594482421875f,
+                    0.1373291015625f, 0.9721679687500f, -0.1022949218750f, 0.0476074218750f,
+                    -0.0266113281250f, 0.0148925781250f, -0.0083007812500f},
+            {-0.0291748046875f, 0.0292968750000f, -0.0517578125000f, 0.0891113281250f, -0.1665039062500f,
+                    0.4650878906250f, 0.7797851562500f, -0.2003173828125f, 0.1015625000000f,
+                    -0.0582275390625f, 0.0330810546875f, -0.0189208984375f},
+            {-0.0189208984375f, 0.0330810546875f, -0.0582275390625f, 0.1015625000000f, -0.2003173828125f,
+                    0.7797851562500f, 0.4650878906250f, -0.1665039062500f, 0.0891113281250f,
+                    -0.0517578125000f, 0.0292968750000f, -0.0291748046875f},
+            {-0.0083007812500f, 0.0148925781250f, -0.0266113281250f, 0.0476074218750f, -0.1022949218750f,
+                    0.9721679687500f, 0.1373291015625f, -0.0594482421875f, 0.0332031250000f,
+                    -0.0196533203125f, 0.0109863281250f, 0.0017089843750f}};
+    private static final int TAPS = 12;
+    /** The most any phase can lift a signal: below the limit divided by this, no peak can pass it. */
+    private static final float FILTER_GAIN_BOUND;
+
+    static {
+        float bound = 0;
+        for (float[] phase : PHASES) {
+            float sum = 0;
+            for (float tap : phase) {
+                sum += Math.abs(tap);
+            }
+            bound = Math.max(bound, sum);
+        }
+        FILTER_GAIN_BOUND = bound;
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(ChannelFaultDetector.class);
+
+    /** What goes wrong on a channel, and how loudly the console says so. */
+    private enum Fault {
+        CLIPPING(ConsoleSeverity.WARNING, false),
+        TRUE_PEAK(ConsoleSeverity.WARNING, false),
+        DC_OFFSET(ConsoleSeverity.WARNING, true),
+        STUCK(ConsoleSeverity.ERROR, true),
+        DEAD(ConsoleSeverity.WARNING, true);
+
+        private final ConsoleSeverity severity;
+        /** A state the channel is in until it is over, rather than a moment that passes. */
+        private final boolean lasting;
+
+        Fault(ConsoleSeverity severity, boolean lasting) {
+            this.severity = severity;
+            this.lasting = lasting;
+        }
+    }
+
+    private static final Fault[] FAULTS = Fault.values();
+
+    private final Mixer.Info device;
+    /** An array, not a list: walking a list made an iterator for every buffer. */
+    private final Watch[] watches;
+    private final BiConsumer<String, ConsoleSeverity> alerts;
+    // The listener's thread
+    private AudioFormat format;
+    private float clipLevel;
+    private float trueLimit;
+    private float gateLevel;
+    private float dcCoefficient;
+    private long dcSamples;
+    private long stuckSamples;
+    private long deadSamples;
+    private float[] window = new float[0];
+
+    private ChannelFaultDetector(Mixer.Info device, List<Watch> watches, BiConsumer<String, ConsoleSeverity> alerts) {
+        this.device = device;
+        this.watches = watches.toArray(new Watch[0]);
+        this.alerts = alerts;
+    }
+
+    /**
+     * Starts watching the given channels of a device.
+     *
+     * @param names  what is on each channel, by zero-based channel, for the console lines
+     * @param alerts told, on the listener's thread, each line to put on the console
+     */
+    static ChannelFaultDetector open(Mixer.Info device, Map<Integer, String> names,
+                                     BiConsumer<String, ConsoleSeverity> alerts) {
+        List<Watch> watches = new ArrayList<>();
+        names.forEach((channel, name) -> watches.add(new Watch(channel, name + " (channel " + (channel + 1)
+                + " of " + device.getName() + ")")));
+        ChannelFaultDetector detector = new ChannelFaultDetector(device, watches, alerts);
+        AudioCaptureManager.getInstance().registerListener(device, detector);
+        return detector;
+    }
+
+    @Override
+    public void onFrame(AudioFrame frame) {
+        AudioFormat frameFormat = frame.format();
+        if (format == null || frameFormat.getSampleRate() != format.getSampleRate()
+                || frameFormat.getSampleSizeInBits() != format.getSampleSizeInBits()
+                || frameFormat.getChannels() != format.getChannels()) {
+            // The first buffer, or the device reopened in another format: every run starts again
+            adopt(frameFormat);
+        }
+        int frames = frame.frames();
+        if (window.length < frames + TAPS - 1) {
+            window = new float[frames + TAPS - 1];
+        }
+        long now = System.nanoTime();
+        for (Watch watch : watches) {
+            if (watch.channel < format.getChannels()) {
+                inspect(watch, frame.channel(watch.channel), frames, now);
+            }
+        }
+    }
+
+    @Override
+    public String listenerName() {
+        return "Fault detector";
+    }
+
+    private void adopt(AudioFormat frameFormat) {
+        format = frameFormat;
+        double fullScale = AudioSamples.fullScale(frameFormat.getSampleSizeInBits());
+        // The planes are scaled by one more than full scale, so a clipped sample reads just under 1
+        clipLevel = (float) (fullScale / (fullScale + 1));
+        trueLimit = (float) Math.pow(10, TRUE_PEAK_LIMIT_DBTP / 20);
+        gateLevel = trueLimit / FILTER_GAIN_BOUND;
+        float rate = frameFormat.getSampleRate();
+        dcCoefficient = (float) (1 - Math.exp(-1 / (rate * DC_TIME_CONSTANT_SECONDS)));
+        dcSamples = Math.round(rate * DC_SECONDS);
+        stuckSamples = Math.round(rate * STUCK_SECONDS);
+        deadSamples = Math.round(rate * DEAD_SECONDS);
+        for (Watch watch : watches) {
+            watch.reset();
+        }
+    }
+
+    /** One pass over the channel's samples for everything but the true peak, which only runs when it could matter. */
+    private void inspect(Watch watch, float[] samples, int frames, long now) {
+        float peak = 0;
+        int clipRun = watch.clipRun;
+        boolean clipped = false;
+        float last = watch.lastSample;
+        long run = watch.run;
+        float dcCoefficient = this.dcCoefficient;
+        float dcLimit = (float) DC_LIMIT;
+        float smoothed = watch.smoothed;
+        float dc = watch.dc;
+        long dcRun = watch.dcRun;
+        for (int index = 0; index < frames; index++) {
+            float sample = samples[index];
+            float magnitude = Math.abs(sample);
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+            if (magnitude >= clipLevel) {
+                if (++clipRun >= CLIPPED_SAMPLES) {
+                    clipped = true;
+                }
+            } else {
+                clipRun = 0;
+            }
+            if (sample == last) {
+                run++;
+            } else {
+                last = sample;
+                run = 1;
+            }
+            smoothed += dcCoefficient * (sample - smoothed);
+            float previousDc = dc;
+            dc += dcCoefficient * (smoothed - dc);
+            if (dc >= dcLimit || dc <= -dcLimit) {
+                // A run ends when the offset crosses to the other side
+                dcRun = previousDc * dc > 0 ? dcRun + 1 : 1;
+            } else {
+                dcRun = 0;
+            }
+        }
+        watch.clipRun = clipRun;
+        watch.lastSample = last;
+        watch.run = run;
+        watch.smoothed = smoothed;
+        watch.dc = dc;
+        watch.dcRun = dcRun;
+
+        if (clipped) {
+            if (due(watch, Fault.CLIPPING, now)) {
+                report(watch, Fault.CLIPPING, "is clipping: " + CLIPPED_SAMPLES + " or more samples in a row at full scale");
+            }
+        } else {
+            float truePeak = Math.max(peak, watch.historyPeak) >= gateLevel ? truePeak(watch, samples, frames) : 0;
+            if (truePeak > trueLimit && due(watch, Fault.TRUE_PEAK, now)) {
+                report(watch, Fault.TRUE_PEAK, String.format("peaks at %+.1f dBTP between its samples, over the %.0f dBTP"
+                        + " the encoder can take without clipping", 20 * Math.log10(truePeak), TRUE_PEAK_LIMIT_DBTP));
+            }
+        }
+        carryHistory(watch, samples, frames);
+
+        if (last != 0 && run >= stuckSamples) {
+            if (due(watch, Fault.STUCK, now)) {
+                report(watch, Fault.STUCK, String.format("has frozen: the same sample for %.1f s. The input"
+                        + " or its converter has stopped", run / format.getSampleRate()));
+            }
+        } else if (clear(watch, Fault.STUCK, "is moving again")) {
+            // What the offset filter took in while the channel was frozen is not an offset of its signal
+            watch.smoothed = 0;
+            watch.dc = 0;
+            watch.dcRun = 0;
+            dcRun = 0;
+        }
+        if (last == 0 && run >= deadSamples) {
+            if (due(watch, Fault.DEAD, now)) {
+                report(watch, Fault.DEAD, String.format("has been digital silence for %.0f s: muted on the desk,"
+                        + " or nothing is reaching it", run / format.getSampleRate()));
+            }
+        } else {
+            clear(watch, Fault.DEAD, "has a signal again");
+        }
+        // A frozen channel is one long offset too, but it is the freeze that wants telling: an
+        // offset under a signal that has not moved while it built up waits to see if it is one
+        if (dcRun >= dcSamples && run < dcSamples) {
+            if (due(watch, Fault.DC_OFFSET, now)) {
+                report(watch, Fault.DC_OFFSET, String.format("carries a DC offset of %.0f dBFS (%+.1f %%): check the"
+                        + " cable, the phantom power and the input's own DC filter", 20 * Math.log10(Math.abs(dc)), dc * 100));
+            }
+        } else if (Math.abs(dc) < dcLimit / 2) {
+            // Half the limit to call it gone, so an offset on the edge does not come and go
+            clear(watch, Fault.DC_OFFSET, "has no DC offset any more");
+        }
+    }
+
+    /**
+     * The highest of the four interpolated samples over the buffer. The filter reads the last
+     * samples of the previous buffer followed by this one's, laid end to end in one array so that
+     * each output is a straight run over it.
+     */
+    private float truePeak(Watch watch, float[] samples, int frames) {
+        float[] input = window;
+        System.arraycopy(watch.history, 0, input, 0, TAPS - 1);
+        System.arraycopy(samples, 0, input, TAPS - 1, frames);
+        float peak = 0;
+        for (float[] phase : PHASES) {
+            for (int index = 0; index < frames; index++) {
+                float sum = 0;
+                for (int tap = 0; tap < TAPS; tap++) {
+                    sum += phase[tap] * input[index + tap];
+                }
+                float magnitude = Math.abs(sum);
+                if (magnitude > peak) {
+                    peak = magnitude;
+                }
+            }
+        }
+        return peak;
+    }
+
+    /** Keeps the last samples for the filter's next buffer, and how high they go for the gate. */
+    private void carryHistory(Watch watch, float[] samples, int frames) {
+        float[] history = watch.history;
+        int keep = TAPS - 1;
+        if (frames >= keep) {
+            System.arraycopy(samples, frames - keep, history, 0, keep);
+        } else {
+            System.arraycopy(history, frames, history, 0, keep - frames);
+            System.arraycopy(samples, 0, history, keep - frames, frames);
+        }
+        float peak = 0;
+        for (float sample : history) {
+            peak = Math.max(peak, Math.abs(sample));
+        }
+        watch.historyPeak = peak;
+    }
+
+    /**
+     * Counts a buffer at fault, and answers whether a line is due: only when the fault has just
+     * started, and has not been told on this channel for a while. The line is made by the caller
+     * and only then, so a fault that goes on costs its buffers nothing.
+     */
+    private boolean due(Watch watch, Fault fault, long now) {
+        int kind = fault.ordinal();
+        watch.counts[kind]++;
+        if (watch.active[kind]) {
+            // Still the same fault
+            return false;
+        }
+        watch.active[kind] = fault.lasting;
+        if (watch.reportedNanos[kind] != 0 && now - watch.reportedNanos[kind] < REPEAT_NANOS) {
+            return false;
+        }
+        watch.reportedNanos[kind] = now;
+        watch.told[kind] = fault.lasting;
+        return true;
+    }
+
+    private void report(Watch watch, Fault fault, String what) {
+        alerts.accept(watch.label + " " + what + ".", fault.severity);
+    }
+
+    /**
+     * The fault has gone; said on the console only when it had been told. Answers whether the
+     * fault had been there.
+     */
+    private boolean clear(Watch watch, Fault fault, String what) {
+        int kind = fault.ordinal();
+        if (!watch.active[kind]) {
+            return false;
+        }
+        watch.active[kind] = false;
+        if (watch.told[kind]) {
+            watch.told[kind] = false;
+            alerts.accept(watch.label + " " + what + ".", ConsoleSeverity.INFO);
+        }
+        return true;
+    }
+
+    /** Stops watching, and puts into the session log how often each channel was at fault. */
+    void close() {
+        AudioCaptureManager.getInstance().unregisterListener(device, this);
+        for (Watch watch : watches) {
+            StringBuilder faults = new StringBuilder();
+            for (Fault fault : FAULTS) {
+                if (watch.counts[fault.ordinal()] > 0) {
+                    faults.append(faults.isEmpty() ? "" : ", ").append(fault.name().toLowerCase().replace('_', ' '))
+                            .append(" x").append(watch.counts[fault.ordinal()]);
+                }
+            }
+            if (!faults.isEmpty()) {
+                logger.info("Faults on {} over this stream: {}", watch.label, faults);
+            }
+        }
+    }
+
+    /**
+     * One channel's running state, all of it the listener's thread's. Counts are of the buffers
+     * found at fault.
+     */
+    private static final class Watch {
+        private final int channel;
+        private final String label;
+        private final float[] history = new float[TAPS - 1];
+        private final long[] counts = new long[FAULTS.length];
+        private final boolean[] active = new boolean[FAULTS.length];
+        private final boolean[] told = new boolean[FAULTS.length];
+        private final long[] reportedNanos = new long[FAULTS.length];
+        private float historyPeak;
+        private int clipRun;
+        private float lastSample;
+        private long run;
+        private float smoothed;
+        private float dc;
+        private long dcRun;
+
+        Watch(int channel, String label) {
+            this.channel = channel;
+            this.label = label;
+        }
+
+        void reset() {
+            Arrays.fill(history, 0);
+            historyPeak = 0;
+            clipRun = 0;
+            lastSample = Float.NaN;
+            run = 0;
+            smoothed = 0;
+            dc = 0;
+            dcRun = 0;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.kadampa.festivalstreaming;
+
+import javax.sound.sampled.AudioFormat;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * The peak and RMS of every channel of one capture buffer, worked out once for all the meters of
+ * a device.
+ * <p>
+ * Each meter used to scan the whole interleaved buffer for its own channel, decoding every sample
+ * through a shared reader with a bounds check and a bit-depth test each time.
+ * With fourteen languages on the Qu-5's 32 channels that was fourteen full scans of every buffer
+ * to read one channel each. The capture now measures each buffer once, for every channel, and
+ * every meter of the device reads its channel out of the result - so the work grows
+ * with the channels the device has, not with the channels times the meters. Sixteen-bit samples
+ * are read four channels to a load, with the running figures kept in locals rather than arrays,
+ * which is what lets one pass over all 32 channels - RMS included - cost less than the old
+ * fourteen single-channel scans did.
+ * <p>
+ * A snapshot is made fresh for each buffer and never changed afterwards, so it can be handed to
+ * any thread. The levels are fractions of full scale, measured the way the meters always have:
+ * against one more than the largest sample, so a full-scale square wave reads just under one.
+ */
+public final class ChannelLevels {
+
+    /** Four little-endian 16-bit samples at a time, at any byte offset. */
+    private static final VarHandle FOUR_SAMPLES = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle ONE_SAMPLE = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final float[] peaks;
+    private final float[] rms;
+    private final int frames;
+    private final float sampleRate;
+
+    private ChannelLevels(float[] peaks, float[] rms, int frames, float sampleRate) {
+        this.peaks = peaks;
+        this.rms = rms;
+        this.frames = frames;
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Measures a buffer of signed little-endian PCM, the only kind the capture asks for.
+     *
+     * @return the levels, all silent for a depth other than 16 or 24 bits
+     */
+    public static ChannelLevels measure(byte[] buffer, int bytesRead, AudioFormat format) {
+        int channels = Math.max(1, format.getChannels());
+        int bitDepth = format.getSampleSizeInBits();
+        int frameSize = format.getFrameSize();
+        int frames = frameSize > 0 ? Math.min(bytesRead, buffer.length) / frameSize : 0;
+        float[] peaks = new float[channels];
+        float[] rms = new float[channels];
+        if (frames == 0 || (bitDepth != 16 && bitDepth != 24)) {
+            return new ChannelLevels(peaks, rms, frames, format.getSampleRate());
+        }
+        int[] maxima = new int[channels];
+        long[] squares = new long[channels];
+        if (bitDepth == 16) {
+            measure16(buffer, frames, channels, maxima, squares);
+        } else {
+            int end = frames * frameSize;
+            for (int channel = 0; channel < channels; channel++) {
+                int max = 0;
+                long sum = 0;
+                for (int offset = channel * 3; offset < end; offset += frameSize) {
+                    // Shifted up into an int and back down, which sign extends the top byte
+                    int sample = ((buffer[offset] & 0xFF) << 8
+                            | (buffer[offset + 1] & 0xFF) << 16
+                            | buffer[offset + 2] << 24) >> 8;
+                    max = Math.max(max, Math.abs(sample));
+                    sum += (long) sample * sample;
+                }
+                maxima[channel] = max;
+                squares[channel] = sum;
+            }
+        }
+        double fullScale = AudioSamples.fullScale(bitDepth) + 1;
+        for (int channel = 0; channel < channels; channel++) {
+            peaks[channel] = (float) (maxima[channel] / fullScale);
+            rms[channel] = (float) (Math.sqrt((double) squares[channel] / frames) / fullScale);
+        }
+        return new ChannelLevels(peaks, rms, frames, format.getSampleRate());
+    }
+
+    /**
+     * The 16-bit pass: four neighbouring channels per sweep down the buffer, read with one load
+     * per frame, then whatever channels are left over one at a time.
+     */
+    private static void measure16(byte[] buffer, int frames, int channels, int[] maxima, long[] squares) {
+        int frameSize = channels * 2;
+        int end = frames * frameSize;
+        int channel = 0;
+        for (; channel + 3 < channels; channel += 4) {
+            int max0 = 0, max1 = 0, max2 = 0, max3 = 0;
+            long sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+            for (int offset = channel * 2; offset < end; offset += frameSize) {
+                long four = (long) FOUR_SAMPLES.get(buffer, offset);
+                int sample0 = (short) four;
+                int sample1 = (short) (four >> 16);
+                int sample2 = (short) (four >> 32);
+                int sample3 = (short) (four >> 48);
+                max0 = Math.max(max0, Math.abs(sample0));
+                max1 = Math.max(max1, Math.abs(sample1));
+                max2 = Math.max(max2, Math.abs(sample2));
+                max3 = Math.max(max3, Math.abs(sample3));
+                sum0 += sample0 * sample0;
+                sum1 += sample1 * sample1;
+                sum2 += sample2 * sample2;
+                sum3 += sample3 * sample3;
+            }
+            maxima[channel] = max0;
+            maxima[channel + 1] = max1;
+            maxima[channel + 2] = max2;
+            maxima[channel + 3] = max3;
+            squares[channel] = sum0;
+            squares[channel + 1] = sum1;
+            squares[channel + 2] = sum2;
+            squares[channel + 3] = sum3;
+        }
+        for (; channel < channels; channel++) {
+            int max = 0;
+            long sum = 0;
+            for (int offset = channel * 2; offset < end; offset += frameSize) {
+                int sample = (short) ONE_SAMPLE.get(buffer, offset);
+                max = Math.max(max, Math.abs(sample));
+                sum += sample * sample;
+            }
+            maxima[channel] = max;
+            squares[channel] = sum;
+        }
+    }
+
+    public int channels() {
+        return peaks.length;
+    }
+
+    /** The largest sample of a channel, 0 to 1; silence for a channel the device does not have. */
+    public double peak(int channel) {
+        return channel >= 0 && channel < peaks.length ? peaks[channel] : 0;
+    }
+
+    /** The RMS of a channel, 0 to 1; silence for a channel the device does not have. */
+    public double rms(int channel) {
+        return channel >= 0 && channel < rms.length ? rms[channel] : 0;
+    }
+
+    /** How many frames the buffer held. */
+    public int frames() {
+        return frames;
+    }
+
+    /** How long the buffer lasted, in seconds. */
+    public double durationSeconds() {
+        return sampleRate > 0 ? frames / (double) sampleRate : 0;
+    }
+}
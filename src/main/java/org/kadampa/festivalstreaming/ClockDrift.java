@@ -0,0 +1,198 @@
+package org.kadampa.festivalstreaming;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How far one device's audio has drifted from the machine's clock, and where audio went missing.
+ * <p>
+ * Audio handed to ffmpeg over a pipe is stamped by counting its samples: see the comment in
+ * {@code StreamRecorderRunnable.addAudioInput}. A device whose clock runs a little slow or fast
+ * against the nominal rate, or a capture that loses a stretch of audio, therefore moves the
+ * sound against the picture, silently and for good - 20 ppm is half a second over a seven-hour
+ * festival day. The capture thread counts the audio in here against the monotonic clock on every
+ * read, so the shift can be watched as it builds and a session restarted before it shows.
+ * <p>
+ * A single read says little: it returns whenever the device and the scheduler allow, a whole
+ * chunk late at times. So each second keeps only its smallest offset - the wall time passed less
+ * the audio received - which is the read that came back soonest after its samples were taken and
+ * is clean of that jitter. The drift is the slope of a least-squares line through those minima,
+ * kept as running sums, so it costs the same after six hours as after a minute; the accumulated
+ * offset is how far the latest minimum has moved since the first. A minimum that jumps by more
+ * than {@link #GAP_MILLIS} in one second is audio that never arrived, and is logged as a gap with
+ * the time it was noticed; so is a reopening of the device, and audio a relay had to throw away
+ * (see {@link #dropout}). The line is fitted afresh after each of them, since a step is not a
+ * drift. A read that returns less than it asked for is only counted: what it lacks comes with the
+ * next read, so it delays the audio a little and loses none, and logging it as a gap would claim
+ * dropouts that never happened. Audio that did go missing shows in the offset all the same.
+ * <p>
+ * One thread - the capture's - records; the figures are published for any thread to read, and
+ * the events go into a short list of the most recent.
+ */
+final class ClockDrift {
+
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+    /** A rise of the offset within one window that can only be missing audio. */
+    static final double GAP_MILLIS = 20;
+    /** The first seconds of an opening, while the device's buffers settle, are left out of the fit. */
+    private static final long SETTLE_NANOS = 5_000_000_000L;
+    /** Seconds of fit before a drift is reported at all; any shorter and the noise dominates. */
+    private static final int MIN_FIT_WINDOWS = 30;
+    private static final int MAX_EVENTS = 64;
+    /** How often the figures go to the log while the device is captured. */
+    private static final long SUMMARY_NANOS = 10 * 60 * 1_000_000_000L;
+
+    private static final Logger logger = LoggerFactory.getLogger(ClockDrift.class);
+
+    private final String device;
+    private final Deque<AudioCaptureManager.Dropout> events = new ConcurrentLinkedDeque<>();
+
+    // Capture thread only
+    private double sampleRate;
+    private long firstReadNanos = -1;
+    /** The audio received since the first read, in nanoseconds of its own clock. */
+    private double audioNanos;
+    private long openedNanos;
+    private long windowStartNanos;
+    private double windowMinMillis = Double.POSITIVE_INFINITY;
+    private double lastWindowMinMillis = Double.NaN;
+    private double baselineMillis = Double.NaN;
+    private long lastSummaryNanos;
+    private boolean reopened;
+    // The running sums of the fit: x in seconds since it began, y the window minimum in ms
+    private long fitOriginNanos = -1;
+    private int fitCount;
+    private double sumX, sumY, sumXX, sumXY;
+
+    // Published for display
+    private volatile double driftPpm = Double.NaN;
+    private volatile double offsetMillis;
+    private volatile double fitSeconds;
+    private final AtomicLong gaps = new AtomicLong();
+    private volatile long shortReads;
+    private volatile double shortReadMillis;
+    /** Audio thrown away after the capture, by a relay: it shifts the stream all the same. */
+    private volatile double droppedMillis;  // written under the lock of dropout
+
+    ClockDrift(String device) {
+        this.device = device;
+    }
+
+    /** Capture thread: a new opening of the device. The audio across the reopening counts as a gap. */
+    void restart(float sampleRate, long nowNanos) {
+        this.sampleRate = sampleRate;
+        openedNanos = nowNanos;
+        reopened = firstReadNanos >= 0;
+        fitOriginNanos = -1;
+    }
+
+    /**
+     * Capture thread: one read.
+     *
+     * @param frames        the frames it delivered
+     * @param shortRead     whether it delivered less than it was asked for
+     * @param missingFrames what it fell short by, still to come
+     */
+    void record(long nowNanos, int frames, boolean shortRead, int missingFrames) {
+        if (sampleRate <= 0) {
+            return;
+        }
+        if (firstReadNanos < 0) {
+            firstReadNanos = nowNanos;
+            windowStartNanos = nowNanos;
+            lastSummaryNanos = nowNanos;
+        }
+        audioNanos += frames * 1e9 / sampleRate;
+        if (shortRead) {
+            shortReads++;
+            shortReadMillis += missingFrames * 1000.0 / sampleRate;
+        }
+        double offset = (nowNanos - firstReadNanos - audioNanos) / 1e6;
+        windowMinMillis = Math.min(windowMinMillis, offset);
+        if (nowNanos - windowStartNanos >= WINDOW_NANOS) {
+            closeWindow(nowNanos);
+        }
+    }
+
+    private void closeWindow(long nowNanos) {
+        double minimum = windowMinMillis;
+        windowMinMillis = Double.POSITIVE_INFINITY;
+        windowStartNanos = nowNanos;
+        if (Double.isNaN(baselineMillis)) {
+            baselineMillis = minimum;
+        }
+        offsetMillis = minimum - baselineMillis;
+        double rise = Double.isNaN(lastWindowMinMillis) ? 0 : minimum - lastWindowMinMillis;
+        lastWindowMinMillis = minimum;
+        if (reopened) {
+            reopened = false;
+            gaps.incrementAndGet();
+            addEvent("device reopened", Math.max(0, rise));
+        } else if (rise > GAP_MILLIS) {
+            gaps.incrementAndGet();
+            addEvent("gap", rise);
+            fitOriginNanos = -1;
+        }
+        fit(nowNanos, minimum);
+        if (nowNanos - lastSummaryNanos >= SUMMARY_NANOS) {
+            lastSummaryNanos = nowNanos;
+            logger.info("Clock of {}: drift {} ppm, audio {} ms behind the clock, {} gaps, {} short reads (delays, not losses)",
+                    device, Double.isNaN(driftPpm) ? "not yet known" : String.format("%+.1f", driftPpm),
+                    String.format("%+.1f", offsetMillis + droppedMillis), gaps.get(), shortReads);
+        }
+    }
+
+    /** Adds a window's minimum to the line, once the opening has settled. */
+    private void fit(long nowNanos, double minimum) {
+        if (nowNanos - openedNanos < SETTLE_NANOS) {
+            return;
+        }
+        if (fitOriginNanos < 0) {
+            fitOriginNanos = nowNanos;
+            fitCount = 0;
+            sumX = sumY = sumXX = sumXY = 0;
+        }
+        double x = (nowNanos - fitOriginNanos) / 1e9;
+        fitCount++;
+        sumX += x;
+        sumY += minimum;
+        sumXX += x * x;
+        sumXY += x * minimum;
+        fitSeconds = x;
+        double denominator = fitCount * sumXX - sumX * sumX;
+        if (fitCount >= MIN_FIT_WINDOWS && denominator > 0) {
+            // Milliseconds per second, which is a thousandth: times a thousand for parts per million
+            driftPpm = (fitCount * sumXY - sumX * sumY) / denominator * 1000;
+        }
+    }
+
+    /**
+     * Any thread: audio lost after the capture - a relay that had to throw its backlog away -
+     * logged with the rest and added to the offset, since the stream is shifted by it all the same.
+     */
+    synchronized void dropout(String kind, double millis) {
+        droppedMillis += millis;
+        gaps.incrementAndGet();
+        addEvent(kind, millis);
+    }
+
+    private void addEvent(String kind, double millis) {
+        events.addLast(new AudioCaptureManager.Dropout(System.currentTimeMillis(), kind, millis));
+        while (events.size() > MAX_EVENTS) {
+            events.pollFirst();
+        }
+        logger.warn("Audio of {}: {} of {} ms; the stream's audio is now {} ms behind the clock",
+                device, kind, String.format("%.0f", millis), String.format("%+.0f", offsetMillis + droppedMillis));
+    }
+
+    /** The figures for display. */
+    AudioCaptureManager.ClockStats snapshot() {
+        return new AudioCaptureManager.ClockStats(device, driftPpm, offsetMillis + droppedMillis, fitSeconds,
+                gaps.get(), shortReads, shortReadMillis, List.copyOf(events));
+    }
+}
@@ -0,0 +1,339 @@
+package org.kadampa.festivalstreaming;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.Mixer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how far apart in time two audio devices hear the same sound, so the delay of each
+ * extra device comes from the audio itself rather than from a value typed in by hand.
+ * <p>
+ * A stream with more than one audio device used to add the operator's "time needed to open a
+ * device" to the delay of every device after the first. The value was a guess per machine -
+ * read off the "start:" lines ffmpeg prints, when anyone remembered to - and it went stale with
+ * every change of cabling, driver or sound server. But the room is heard on every device: the
+ * prayers or the English bleed into the interpreters' microphones. So a few seconds of the
+ * reference channel are recorded from the first device together with every channel of each other
+ * device, and each of those is cross-correlated with the reference; the correlation peaks where
+ * the second recording has to be moved to line up with the first, to the sample.
+ * <p>
+ * The correlation is GCC-PHAT: the cross spectrum of the two recordings is divided by its own
+ * magnitude before it is turned back, so every frequency counts alike. Speech through different
+ * microphones and preamps shares its timing but not its colour, and a plain correlation would be
+ * ruled by the loud low end and smear its peak over milliseconds; whitened, the peak is one
+ * sample wide. Both recordings go through one complex FFT, the reference as its real part and the
+ * other as its imaginary part, and one inverse FFT brings the correlation back.
+ * <p>
+ * The recordings are lined up by when their buffers arrived, each taken at the read that came
+ * back soonest after its samples - the same clean estimate {@link ClockDrift} uses - so what is
+ * measured is the difference between the devices as the application receives them, which is
+ * what the relays hand on to ffmpeg. A channel whose peak does not stand well clear of the rest
+ * of the correlation heard nothing in common with the reference, and is not used.
+ * <p>
+ * A device that is not open yet takes a while to deliver its first buffer, so the measurement
+ * waits for every recording to fill, up to the typed time to open a device on top of the
+ * recording time. A buffer dropped on its way to a recording would splice the audio either side
+ * of it together and shift everything after it, so a recording that misses one - told by the
+ * frames' sequence numbers - is thrown away and its device reported as not measured.
+ */
+public final class DeviceOffsets {
+
+    /** Offsets further apart than this are not looked for: no two devices in one room differ by more. */
+    private static final double MAX_OFFSET_MS = 1000;
+    /** How far the peak has to stand above the rest of the correlation, in standard deviations. */
+    static final double MIN_CONFIDENCE = 10;
+    /** Room left around the recording in each device's capture, in seconds, for the listeners to settle. */
+    private static final double SETTLE_SECONDS = 0.5;
+    /** The least time allowed for the devices to open, in seconds, whatever time was typed for it. */
+    private static final double MIN_OPEN_SECONDS = 2;
+
+    private static final Logger logger = LoggerFactory.getLogger(DeviceOffsets.class);
+
+    /**
+     * How late one device hears the room compared with the reference device.
+     *
+     * @param device     the device's name
+     * @param channel    the zero-based channel whose correlation was used: the clearest one
+     * @param millis     how much later the device hears a sound than the reference does;
+     *                   negative when it hears it first
+     * @param confidence how far the correlation peak stood above the rest, in standard deviations
+     */
+    public record Offset(String device, int channel, double millis, double confidence) {
+        /** Whether the peak was clear enough to act on. */
+        public boolean reliable() {
+            return confidence >= MIN_CONFIDENCE;
+        }
+    }
+
+    private DeviceOffsets() {
+    }
+
+    /**
+     * Records the reference and every candidate channel for the given time and measures each
+     * other device against the reference. Blocks for the recording, so never on the FX thread.
+     *
+     * @param reference        the device the others are measured against
+     * @param referenceChannel its channel carrying the room, zero-based
+     * @param others           each other device with the channels that may hear the room
+     * @param seconds          how long to record; a few seconds of speech are plenty
+     * @param openMillis       how long a device takes to open, as typed for the stream: the
+     *                         devices are waited for that long each, beyond the recording time
+     * @return an offset for each other device that delivered whole audio, reliable or not
+     */
+    public static List<Offset> measure(Mixer.Info reference, int referenceChannel, Map<Mixer.Info, int[]> others,
+                                       double seconds, int openMillis) throws InterruptedException {
+        Map<Mixer.Info, Recording> recordings = new LinkedHashMap<>();
+        recordings.put(reference, new Recording(new int[]{referenceChannel}, seconds));
+        for (Map.Entry<Mixer.Info, int[]> other : others.entrySet()) {
+            recordings.put(other.getKey(), new Recording(other.getValue(), seconds));
+        }
+        AudioCaptureManager manager = AudioCaptureManager.getInstance();
+        double openSeconds = Math.max(MIN_OPEN_SECONDS, openMillis / 1000.0 * recordings.size());
+        long deadline = System.nanoTime() + (long) ((seconds + SETTLE_SECONDS + openSeconds) * 1e9);
+        recordings.forEach(manager::registerListener);
+        try {
+            for (Recording recording : recordings.values()) {
+                recording.done.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            recordings.forEach(manager::unregisterListener);
+        }
+
+        Recording referenceRecording = recordings.get(reference);
+        List<Offset> offsets = new ArrayList<>();
+        if (!referenceRecording.isFull()) {
+            logger.warn("The reference device {} cannot be measured against: {}", reference.getName(),
+                    referenceRecording.broken ? "buffers of its recording were dropped" : "it delivered too little audio");
+            return offsets;
+        }
+        float[] referenceSamples = referenceRecording.samples(0);
+        for (Map.Entry<Mixer.Info, int[]> other : others.entrySet()) {
+            Recording recording = recordings.get(other.getKey());
+            if (!recording.isFull() || recording.sampleRate != referenceRecording.sampleRate) {
+                logger.warn("The device {} cannot be measured: {}", other.getKey().getName(),
+                        recording.isFull() ? "its sample rate differs from the reference's"
+                                : recording.broken ? "buffers of its recording were dropped"
+                                : "it delivered too little audio in " + String.format("%.1f", openSeconds + seconds) + " s");
+                continue;
+            }
+            double startDifferenceMs = (recording.firstSampleNanos - referenceRecording.firstSampleNanos) / 1e6;
+            int maxLag = (int) (MAX_OFFSET_MS * recording.sampleRate / 1000);
+            Offset best = null;
+            for (int index = 0; index < other.getValue().length; index++) {
+                Correlation correlation = gccPhat(referenceSamples, recording.samples(index), maxLag);
+                double millis = startDifferenceMs + correlation.lag() * 1000.0 / recording.sampleRate;
+                if (best == null || correlation.confidence() > best.confidence()) {
+                    best = new Offset(other.getKey().getName(), other.getValue()[index], millis, correlation.confidence());
+                }
+            }
+            if (best != null) {
+                offsets.add(best);
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * Where {@code other} lines up with {@code reference}.
+     *
+     * @param lag        how many samples later a sound appears in {@code other} than in {@code reference}
+     * @param confidence how far the peak stands above the rest of the correlation, in standard deviations
+     */
+    record Correlation(int lag, double confidence) {
+    }
+
+    /**
+     * The generalised cross-correlation with phase transform of two recordings of the same
+     * length, searched for its peak within {@code maxLag} samples either way.
+     */
+    static Correlation gccPhat(float[] reference, float[] other, int maxLag) {
+        int length = Math.min(reference.length, other.length);
+        int size = Integer.highestOneBit(Math.max(1, 2 * length - 1));
+        if (size < 2 * length) {
+            size <<= 1;
+        }
+        double[] re = new double[size];
+        double[] im = new double[size];
+        for (int i = 0; i < length; i++) {
+            re[i] = reference[i];
+            im[i] = other[i];
+        }
+        fft(re, im, false);
+        // Taken apart again: with Z = FFT(r + i o), R[k] = (Z[k] + conj(Z[-k])) / 2 and
+        // O[k] = (Z[k] - conj(Z[-k])) / 2i; the cross spectrum conj(R) O is then whitened
+        double[] crossRe = new double[size];
+        double[] crossIm = new double[size];
+        for (int k = 0; k < size; k++) {
+            int mirror = (size - k) & (size - 1);
+            double rRe = (re[k] + re[mirror]) / 2;
+            double rIm = (im[k] - im[mirror]) / 2;
+            double oRe = (im[k] + im[mirror]) / 2;
+            double oIm = -(re[k] - re[mirror]) / 2;
+            double cRe = rRe * oRe + rIm * oIm;
+            double cIm = rRe * oIm - rIm * oRe;
+            double magnitude = Math.hypot(cRe, cIm);
+            if (magnitude > 1e-12) {
+                crossRe[k] = cRe / magnitude;
+                crossIm[k] = cIm / magnitude;
+            }
+        }
+        fft(crossRe, crossIm, true);
+
+        int searched = Math.min(maxLag, length - 1);
+        int peakLag = 0;
+        double peak = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        double sumSquares = 0;
+        for (int lag = -searched; lag <= searched; lag++) {
+            double value = crossRe[lag & (size - 1)];
+            sum += value;
+            sumSquares += value * value;
+            if (value > peak) {
+                peak = value;
+                peakLag = lag;
+            }
+        }
+        int count = 2 * searched + 1;
+        double mean = sum / count;
+        double deviation = Math.sqrt(Math.max(1e-24, sumSquares / count - mean * mean));
+        return new Correlation(peakLag, (peak - mean) / deviation);
+    }
+
+    /** An in-place radix-2 FFT; the inverse is scaled by 1/n. The length must be a power of two. */
+    static void fft(double[] re, double[] im, boolean inverse) {
+        int n = re.length;
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for (int half = 1; half < n; half <<= 1) {
+            double angle = (inverse ? Math.PI : -Math.PI) / half;
+            double stepRe = Math.cos(angle);
+            double stepIm = Math.sin(angle);
+            for (int start = 0; start < n; start += half << 1) {
+                double wRe = 1;
+                double wIm = 0;
+                for (int k = 0; k < half; k++) {
+                    int a = start + k;
+                    int b = a + half;
+                    double tRe = re[b] * wRe - im[b] * wIm;
+                    double tIm = re[b] * wIm + im[b] * wRe;
+                    re[b] = re[a] - tRe;
+                    im[b] = im[a] - tIm;
+                    re[a] += tRe;
+                    im[a] += tIm;
+                    double nextRe = wRe * stepRe - wIm * stepIm;
+                    wIm = wRe * stepIm + wIm * stepRe;
+                    wRe = nextRe;
+                }
+            }
+        }
+        if (inverse) {
+            for (int i = 0; i < n; i++) {
+                re[i] /= n;
+                im[i] /= n;
+            }
+        }
+    }
+
+    /**
+     * A few seconds of some channels of one device, with the moment its first sample was taken.
+     * Fed on its own listener thread, read once it is full - or broken, or out of time.
+     */
+    private static final class Recording implements AudioCaptureManager.FrameListener {
+        private final int[] channels;
+        private final double seconds;
+        /** Counted down once the recording is full or broken. */
+        private final CountDownLatch done = new CountDownLatch(1);
+        private float[][] samples;
+        private volatile int filled;
+        /** Whether a buffer went missing, which makes the recording worthless. */
+        private volatile boolean broken;
+        private float sampleRate;
+        /** The first sample's time, by the read that came back soonest after its samples. */
+        private volatile long firstSampleNanos = Long.MAX_VALUE;
+        private long framesSeen;
+        private long nextSequence = -1;
+
+        Recording(int[] channels, double seconds) {
+            this.channels = channels;
+            this.seconds = seconds;
+        }
+
+        @Override
+        public void onFrame(AudioFrame frame) {
+            if (broken) {
+                return;
+            }
+            if (nextSequence >= 0 && frame.sequence() != nextSequence) {
+                // Missed buffers splice the audio and put the times after them off by their
+                // length; once the recording is full, only its time is still being refined
+                if (!isFull()) {
+                    logger.debug("Buffer {} came after {} in an offset recording: thrown away",
+                            frame.sequence(), nextSequence - 1);
+                    broken = true;
+                    done.countDown();
+                }
+                return;
+            }
+            nextSequence = frame.sequence() + 1;
+            AudioFormat format = frame.format();
+            if (samples == null) {
+                sampleRate = format.getSampleRate();
+                samples = new float[channels.length][(int) (seconds * sampleRate)];
+            }
+            int frames = frame.frames();
+            framesSeen += frames;
+            long firstSample = frame.capturedAtNanos() - (long) (framesSeen * 1e9 / sampleRate);
+            firstSampleNanos = Math.min(firstSampleNanos, firstSample);
+            int room = samples[0].length - filled;
+            if (room <= 0) {
+                return;
+            }
+            int taken = Math.min(room, frames);
+            for (int index = 0; index < channels.length; index++) {
+                if (channels[index] < frame.channels()) {
+                    System.arraycopy(frame.channel(channels[index]), 0, samples[index], filled, taken);
+                }
+            }
+            filled += taken;
+            if (isFull()) {
+                done.countDown();
+            }
+        }
+
+        @Override
+        public String listenerName() {
+            return "Offset measurement";
+        }
+
+        boolean isFull() {
+            // The count first: it is written after the samples, so reading it makes them visible
+            int count = filled;
+            return !broken && samples != null && count == samples[0].length;
+        }
+
+        float[] samples(int index) {
+            return samples[index];
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.kadampa.festivalstreaming;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * The recent levels of one meter, kept so their range and average over the last second, ten
+ * seconds or minute can be read at any moment - for the meter's level tooltip - without walking
+ * through them.
+ * <p>
+ * The meters used to keep their last hundred readings as boxed doubles in a deque, guarded by
+ * the deque's monitor: every buffer boxed a value on the audio thread, and the volume check
+ * walked all hundred under the same lock once a second for every language. Here the readings are
+ * gathered into tenth-of-a-second slots in plain arrays, and next to each slot's sum and count
+ * sits the running total of everything before it - so the average over any window is the
+ * difference between two totals divided by the difference between two counts, however long the
+ * window. Each slot also keeps its lowest and highest reading, for the extremes of a window.
+ * <p>
+ * Time, not the number of readings, sets the windows: the meters skip a buffer when they fall
+ * behind (see {@link ListenerQueue}), and a window of readings would then quietly cover more
+ * time. A window ends at the moment it is read, so a meter that stops receiving readings ages
+ * out of its windows instead of repeating its last second forever.
+ * <p>
+ * One thread writes - the meter's audio thread - and any thread reads. There is no lock: the
+ * writer bumps a sequence number to odd before it touches the arrays and back to even after,
+ * and a reader that sees it odd, or changed by the time it is done, reads again. The writer never
+ * waits and never allocates.
+ */
+final class LevelHistory {
+
+    private static final long SLOT_NANOS = 100_000_000L;
+    /** Slots kept, a power of two above the longest window's 600 plus the one being filled. */
+    private static final int SLOTS = 1024;
+    private static final int MASK = SLOTS - 1;
+    /** The longest window that can be asked for. */
+    static final int MAX_WINDOW_SECONDS = 60;
+
+    private static final VarHandle SEQUENCE;
+
+    static {
+        try {
+            SEQUENCE = MethodHandles.lookup().findVarHandle(LevelHistory.class, "sequence", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * A window's readings at the moment it was read.
+     *
+     * @param average  the mean reading in dB, or {@code fallbackDb} when there were none
+     * @param min      the lowest reading, likewise
+     * @param max      the highest reading, likewise
+     * @param readings how many readings the window held
+     */
+    record Window(double average, double min, double max, long readings) {
+        boolean isEmpty() {
+            return readings == 0;
+        }
+    }
+
+    private final double fallbackDb;
+    @SuppressWarnings("unused")  // accessed through SEQUENCE
+    private long sequence;
+    private final double[] slotMin = new double[SLOTS];
+    private final double[] slotMax = new double[SLOTS];
+    /** Sum and count of every reading up to and including each slot. */
+    private final double[] totalSum = new double[SLOTS];
+    private final long[] totalCount = new long[SLOTS];
+    /**
+     * The slot being filled, as a count of slots since the clock's origin - which may lie in the
+     * future, making it negative - once {@link #started}.
+     */
+    private long currentSlot;
+    /** Whether there was ever a reading. */
+    private boolean started;
+    /** The first slot ever filled: totals before it are zero. */
+    private long firstSlot;
+
+    /** @param fallbackDb what an empty window reads as */
+    LevelHistory(double fallbackDb) {
+        this.fallbackDb = fallbackDb;
+    }
+
+    /** Writer side: one reading, in dB. */
+    void add(double db, long nowNanos) {
+        long slot = Math.floorDiv(nowNanos, SLOT_NANOS);
+        long sequenceNow = (long) SEQUENCE.getOpaque(this);
+        SEQUENCE.setOpaque(this, sequenceNow + 1);
+        VarHandle.storeStoreFence();
+        if (slot != currentSlot) {
+            openSlot(slot);
+        }
+        int index = (int) slot & MASK;
+        totalSum[index] += db;
+        totalCount[index]++;
+        slotMin[index] = Math.min(slotMin[index], db);
+        slotMax[index] = Math.max(slotMax[index], db);
+        SEQUENCE.setRelease(this, sequenceNow + 2);
+    }
+
+    /** Writer side: starts a new slot, carrying the totals across any slots with no readings. */
+    private void openSlot(long slot) {
+        if (!started || slot < currentSlot) {
+            // The first reading, or a clock that went backwards: start over
+            Arrays.fill(totalSum, 0);
+            Arrays.fill(totalCount, 0);
+            firstSlot = slot;
+            currentSlot = slot - 1;
+            started = true;
+        }
+        double sum = currentSlot >= firstSlot ? totalSum[(int) currentSlot & MASK] : 0;
+        long count = currentSlot >= firstSlot ? totalCount[(int) currentSlot & MASK] : 0;
+        // Only the last ring's worth can ever be read, so a long silence costs at most one lap
+        for (long skipped = Math.max(currentSlot + 1, slot - MASK); skipped <= slot; skipped++) {
+            int index = (int) skipped & MASK;
+            totalSum[index] = sum;
+            totalCount[index] = count;
+            slotMin[index] = Double.POSITIVE_INFINITY;
+            slotMax[index] = Double.NEGATIVE_INFINITY;
+        }
+        currentSlot = slot;
+    }
+
+    /**
+     * Any thread: the readings of the last {@code seconds}, up to {@link #MAX_WINDOW_SECONDS}, as
+     * one consistent view even while the writer is adding to them. The average takes the same
+     * few steps whatever the window; the extremes take a look at every slot of it.
+     */
+    Window window(int seconds, long nowNanos) {
+        int slots = Math.max(1, Math.min(MAX_WINDOW_SECONDS, seconds) * (int) (1_000_000_000L / SLOT_NANOS));
+        long endSlot = Math.floorDiv(nowNanos, SLOT_NANOS);
+        while (true) {
+            long before = (long) SEQUENCE.getAcquire(this);
+            if ((before & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            Window window = readWindow(endSlot - slots, endSlot);
+            VarHandle.loadLoadFence();
+            if ((long) SEQUENCE.getOpaque(this) == before) {
+                return window;
+            }
+        }
+    }
+
+    /** The slots after {@code startSlot} up to {@code endSlot}; only sound under the sequence check. */
+    private Window readWindow(long startSlot, long endSlot) {
+        long last = Math.min(endSlot, currentSlot);
+        if (!started || last <= startSlot || last - startSlot > MASK) {
+            return new Window(fallbackDb, fallbackDb, fallbackDb, 0);
+        }
+        int lastIndex = (int) last & MASK;
+        boolean fromStart = startSlot < firstSlot;
+        int baseIndex = (int) startSlot & MASK;
+        double sum = totalSum[lastIndex] - (fromStart ? 0 : totalSum[baseIndex]);
+        long count = totalCount[lastIndex] - (fromStart ? 0 : totalCount[baseIndex]);
+        if (count <= 0) {
+            return new Window(fallbackDb, fallbackDb, fallbackDb, 0);
+        }
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (long slot = Math.max(startSlot + 1, firstSlot); slot <= last; slot++) {
+            int index = (int) slot & MASK;
+            min = Math.min(min, slotMin[index]);
+            max = Math.max(max, slotMax[index]);
+        }
+        return new Window(sum / count, min, max, count);
+    }
+}
@@ -1,6 +1,9 @@
 package org.kadampa.festivalstreaming;
 
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
 import javafx.animation.PauseTransition;
+import javafx.animation.Timeline;
 import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
@@ -8,6 +11,10 @@ import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
+import javafx.scene.control.Slider;
+import javafx.scene.control.Tooltip;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.effect.DropShadow;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
@@ -18,10 +25,12 @@ import javafx.scene.text.FontWeight;
 import javafx.scene.text.TextAlignment;
 import javafx.util.Duration;
 
-import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.Mixer;
-import java.util.ArrayDeque;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Objects;
+import java.util.function.Supplier;
 
 public class LevelMeter {
 
@@ -64,6 +73,7 @@ public class LevelMeter {
     private static final Color COLOR_GLOW_PEAK = Color.rgb(255, 0, 0, 0.8);
     private static final Color COLOR_GLOW_OFF = Color.rgb(100, 100, 100, 0.8);
     private static final Color COLOR_SCALE_MARK = Color.rgb(255, 255, 255, 0.4);
+    private static final Color COLOR_STRIP_BAND = Color.rgb(255, 255, 255, 0.3);
     private static final Color COLOR_0DB_TICK = Color.rgb(255, 255, 0, 0.9);
     private static final Color COLOR_0DB_TICK_GLOW = Color.rgb(255, 255, 0, 0.4);
     //</editor-fold>
@@ -76,6 +86,7 @@ public class LevelMeter {
     private final VBox view;
     private final StackPane root;
     private Label dbLabel;
+    private final Tooltip levelTooltip = new Tooltip();
     private Label audioInterfaceLabel;
     private Circle statusIndicator;
     private DropShadow statusGlow;
@@ -83,7 +94,7 @@ public class LevelMeter {
     private volatile boolean running = false;
     private String channel;
     private final String language;
-    private AudioCaptureManager.AudioDataListener audioDataListener;
+    private AudioCaptureManager.LevelListener audioDataListener;
 
     private Rectangle peakHoldBar;
     private PauseTransition peakHoldTimer;
@@ -103,10 +114,31 @@ public class LevelMeter {
     private volatile double actualCurrentDb = MIN_DB;
     private double actualDisplayDb = MIN_DB;
 
-    // Written on the audio capture thread, read on the VolumeMonitor scheduler thread:
-    // every access must synchronize on the deque itself.
-    private final ArrayDeque<Double> volumeHistory = new ArrayDeque<>();
-    private static final int VOLUME_HISTORY_SIZE = 100; // Roughly 10 seconds at 10 updates/sec
+    // Written on the meter's audio thread, read on the FX thread for the level label's tooltip
+    private final LevelHistory levelHistory = new LevelHistory(MIN_DB);
+    /** Every reading since the meter first ran, for the strip: see {@link LevelPyramid}. */
+    private final LevelPyramid levelPyramid = new LevelPyramid();
+    private static final double STRIP_WIDTH = 248;
+    private static final double STRIP_HEIGHT = 34;
+    /** The strip never spans less than this, so a fresh meter fills it from the right rather than in big blocks. */
+    private static final long STRIP_MIN_SPAN_NANOS = 60_000_000_000L;
+    private static final long STRIP_REDRAW_NANOS = 1_000_000_000L;
+    private Canvas levelStrip;
+    private final float[] stripMin = new float[(int) STRIP_WIDTH];
+    private final float[] stripMax = new float[(int) STRIP_WIDTH];
+    private final float[] stripRms = new float[(int) STRIP_WIDTH];
+    private long lastStripNanos;
+    /**
+     * The channel's loudness as EBU R128 measures it, worked out from the samples on the
+     * device's loudness listener: see {@link LoudnessMeter}. Kept while the meter is stopped, so
+     * the integrated loudness covers everything the meter has heard until it is reset.
+     */
+    private final LoudnessMeter loudnessMeter = new LoudnessMeter();
+    private Label loudnessLabel;
+    private final Tooltip loudnessTooltip = new Tooltip();
+    private long lastLoudnessNanos;
+    /** The windows the level label's tooltip sums up, shortest first. */
+    private static final int[] LEVEL_WINDOW_SECONDS = {1, 10, LevelHistory.MAX_WINDOW_SECONDS};
 
     private double displayDb = MIN_DB;
     private double peakDb = MIN_DB;
@@ -122,7 +154,25 @@ public class LevelMeter {
     private long greenPeakTimestamp = 0;
 
     private Button monitorButton;
+    /** The estimated headphone latency, shown beside the button while this meter is monitored. */
+    private Label monitorLatencyLabel;
+    private final Tooltip monitorLatencyTooltip = new Tooltip();
+    private long lastMonitorStatsNanos;
+    private long lastMonitorUnderruns;
     private final BooleanProperty monitoringActive = new SimpleBooleanProperty(false);
+    /** Makes the broadcast mix of this meter's language, for a language the stream mixes; else null. */
+    private Supplier<AudioCaptureManager.MonitorMix> broadcastMix;
+    /** Whether the headphones hear the broadcast mix rather than the raw channel. */
+    private final BooleanProperty broadcastMixSelected = new SimpleBooleanProperty(false);
+    private Button mixButton;
+    // Listening back to the channel's last minutes: see AudioHistory
+    private Button historyButton;
+    private HBox historyRow;
+    private Slider historySlider;
+    private Button historyPlayButton;
+    private Label historyLabel;
+    /** Keeps the history row up to date while it is shown: how far back it goes, and whether it plays. */
+    private final Timeline historyRefresh = new Timeline(new KeyFrame(Duration.seconds(1), e -> refreshHistoryRow()));
 
     private ArrayList<Rectangle> meterBoxes;
     private ArrayList<Rectangle> meterBackgroundBoxes;
@@ -202,23 +252,65 @@ public class LevelMeter {
             updateBackgroundStyle(newVal ? originalBackgroundColor.brighter() : originalBackgroundColor);
             updateMonitorButtonStyle();
             if (newVal) {
+                // The channel live and its past at once would be two voices in the headphones
+                AudioHistory.Player.stop();
                 if (mixerInfo == null) {
                     // Nothing is being captured for this meter, so there is nothing to hear:
                     // the button must not stay lit pretending otherwise
                     Platform.runLater(() -> monitoringActive.set(false));
                     return;
                 }
-                AudioCaptureManager.getInstance().startMonitoring(mixerInfo, channel);
+                startMonitoringOutput();
             } else {
                 AudioCaptureManager.getInstance().stopMonitoring(mixerInfo);
             }
         });
+        broadcastMixSelected.addListener((obs, oldVal, newVal) -> {
+            updateMixButtonStyle();
+            if (monitoringActive.get() && mixerInfo != null) {
+                startMonitoringOutput();
+            }
+        });
 
         // Initial state
         updateBackgroundStyle(originalBackgroundColor);
         updateMonitorButtonStyle();
     }
 
+    /**
+     * Sends the raw channel or the broadcast mix to the headphones, whichever is selected. The
+     * mix is made afresh from the current routing each time, so a language moved to another
+     * channel is heard where it now is.
+     */
+    private void startMonitoringOutput() {
+        AudioCaptureManager.MonitorMix mix = broadcastMixSelected.get() && broadcastMix != null ? broadcastMix.get() : null;
+        if (mix != null) {
+            AudioCaptureManager.getInstance().startMonitoring(mixerInfo, mix);
+        } else {
+            AudioCaptureManager.getInstance().startMonitoring(mixerInfo, channel);
+        }
+    }
+
+    /**
+     * Offers the broadcast mix of this meter's language in the headphones, beside its raw
+     * channel: see AudioCaptureManager.MonitorMix.
+     *
+     * @param mix makes the mix from the routing as it is when monitoring starts
+     */
+    public void setBroadcastMix(Supplier<AudioCaptureManager.MonitorMix> mix) {
+        this.broadcastMix = mix;
+        mixButton.setVisible(mix != null);
+        mixButton.setManaged(mix != null);
+    }
+
+    private void updateMixButtonStyle() {
+        mixButton.setStyle((broadcastMixSelected.get()
+                ? "-fx-background-color: linear-gradient(to bottom, #ef4444, #dc2626); -fx-border-color: #fca5a5;"
+                : "-fx-background-color: rgba(0, 0, 0, 0.2); -fx-border-color: rgba(255, 255, 255, 0.2);")
+                + "-fx-background-radius: 8; -fx-border-width: 1; -fx-border-radius: 8; -fx-text-fill: white;"
+                + "-fx-font-size: 10; -fx-font-weight: bold;");
+    }
+
     private VBox createHeader(String language) {
         VBox headerBox = new VBox();
         headerBox.setAlignment(Pos.CENTER);
@@ -306,6 +398,7 @@ public class LevelMeter {
         dbLabel.setMinWidth(150);
         dbLabel.setStyle("-fx-background-color: " + toRgbaString(COLOR_BACKGROUND_DARK_TRANSPARENT) + "; -fx-background-radius: 25; -fx-padding: 6 40; -fx-border-color: " + toRgbaString(COLOR_BORDER) + "; -fx-border-width: 1; -fx-border-radius: 25;");
         addTextShadow(dbLabel);
+        dbLabel.setTooltip(levelTooltip);
 
         monitorButton = new Button();
         monitorButton.setPrefSize(35, 35);
@@ -315,18 +408,167 @@ public class LevelMeter {
             }
         });
 
+        // Only shown for a language the stream mixes: see setBroadcastMix
+        mixButton = new Button("MIX");
+        mixButton.setPrefHeight(35);
+        mixButton.setTooltip(new Tooltip("Hear what the audience hears: the prayers and the English mixed under this"
+                + " language at the stream's levels,\nwithout the noise reduction. Channels on another device are left out."));
+        mixButton.setOnAction(e -> broadcastMixSelected.set(!broadcastMixSelected.get()));
+        mixButton.setVisible(false);
+        mixButton.setManaged(false);
+        updateMixButtonStyle();
+
+        monitorLatencyLabel = new Label();
+        monitorLatencyLabel.setFont(Font.font("System", 11));
+        monitorLatencyLabel.setTextFill(COLOR_TEXT_PRIMARY);
+        monitorLatencyLabel.setTooltip(monitorLatencyTooltip);
+        monitorLatencyLabel.setVisible(false);
+        monitorLatencyLabel.setManaged(false);
+
+        historyButton = new Button("⏪");
+        historyButton.setPrefSize(35, 35);
+        historyButton.setTooltip(new Tooltip("Listen back to the last minutes of this channel, as the stream took it"));
+        historyButton.setOnAction(e -> showHistoryRow(!historyRow.isVisible()));
+        historyButton.setStyle(INACTIVE_BUTTON_STYLE);
+
+        loudnessLabel = new Label("M -- S -- I -- LUFS");
+        loudnessLabel.setFont(Font.font("System", 11));
+        loudnessLabel.setTextFill(COLOR_TEXT_SECONDARY);
+        loudnessLabel.setTooltip(loudnessTooltip);
+        loudnessLabel.setOnMouseClicked(e -> loudnessMeter.reset());
+
+        levelStrip = new Canvas(STRIP_WIDTH, STRIP_HEIGHT);
+        Tooltip.install(levelStrip, new Tooltip("This channel since its meter first ran, oldest on the left: the pale band"
+                + " runs from the quietest to the loudest peak,\nthe green line is the RMS and the dashed line the bottom"
+                + " of the green zone. Gaps are when the meters were closed."));
+
         HBox bottomRow = new HBox();
         bottomRow.setAlignment(Pos.CENTER);
         bottomRow.setSpacing(10);
         Region spacer = new Region();
         HBox.setHgrow(spacer, Priority.ALWAYS);
-        bottomRow.getChildren().addAll(dbLabel, spacer, monitorButton);
+        bottomRow.getChildren().addAll(dbLabel, spacer, monitorLatencyLabel, historyButton, mixButton, monitorButton);
 
-        infoBox.getChildren().addAll(bottomRow);
+        infoBox.getChildren().addAll(levelStrip, loudnessLabel, bottomRow, createHistoryRow());
 
         return infoBox;
     }
 
+    private static final String INACTIVE_BUTTON_STYLE = "-fx-background-color: rgba(0, 0, 0, 0.2);"
+            + "-fx-background-radius: 8; -fx-border-color: rgba(255, 255, 255, 0.2); -fx-border-width: 1;"
+            + "-fx-border-radius: 8; -fx-text-fill: white;";
+    private static final DateTimeFormatter HISTORY_TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    /**
+     * The scrub-and-play row, folded away until the history button opens it. The slider runs
+     * from the oldest audio held, on the left, to now; playback follows the capture at the
+     * distance it was started at, and moving the slider while it plays starts it again there.
+     */
+    private HBox createHistoryRow() {
+        historyPlayButton = new Button("▶");
+        historyPlayButton.setPrefSize(35, 28);
+        historyPlayButton.setStyle(INACTIVE_BUTTON_STYLE);
+        historyPlayButton.setOnAction(e -> {
+            AudioHistory.Track track = historyTrack();
+            if (track == null) {
+                return;
+            }
+            if (AudioHistory.Player.isPlaying(track)) {
+                AudioHistory.Player.stop();
+            } else {
+                playHistory(track);
+            }
+            refreshHistoryRow();
+        });
+
+        historySlider = new Slider(-60, 0, -60);
+        historySlider.setMinWidth(90);
+        HBox.setHgrow(historySlider, Priority.ALWAYS);
+        historySlider.valueProperty().addListener((obs, oldVal, newVal) -> {
+            updateHistoryLabel();
+            if (!historySlider.isValueChanging()) {
+                replayHistoryIfPlaying();
+            }
+        });
+        historySlider.valueChangingProperty().addListener((obs, wasChanging, isChanging) -> {
+            if (!isChanging) {
+                replayHistoryIfPlaying();
+            }
+        });
+
+        historyLabel = new Label();
+        historyLabel.setFont(Font.font("System", 11));
+        historyLabel.setTextFill(COLOR_TEXT_PRIMARY);
+        historyLabel.setMinWidth(105);
+
+        historyRow = new HBox(historyPlayButton, historySlider, historyLabel);
+        historyRow.setAlignment(Pos.CENTER);
+        historyRow.setSpacing(8);
+        historyRow.setVisible(false);
+        historyRow.setManaged(false);
+        historyRefresh.setCycleCount(Animation.INDEFINITE);
+        return historyRow;
+    }
+
+    private void showHistoryRow(boolean show) {
+        historyRow.setVisible(show);
+        historyRow.setManaged(show);
+        historyButton.setStyle(show ? INACTIVE_BUTTON_STYLE.replace("rgba(0, 0, 0, 0.2)", "rgba(255, 255, 255, 0.25)")
+                : INACTIVE_BUTTON_STYLE);
+        if (show) {
+            refreshHistoryRow();
+            historyRefresh.play();
+        } else {
+            historyRefresh.stop();
+            AudioHistory.Track track = historyTrack();
+            if (track != null && AudioHistory.Player.isPlaying(track)) {
+                AudioHistory.Player.stop();
+            }
+        }
+    }
+
+    /** The history of this meter's channel, found afresh so a meter moved to another input hears that one's. */
+    private AudioHistory.Track historyTrack() {
+        return AudioHistory.track(mixerInfo, SettingsUtil.audioChannelIndex(channel));
+    }
+
+    private void playHistory(AudioHistory.Track track) {
+        // Live monitoring and the history share the headphones
+        monitoringActive.set(false);
+        AudioHistory.Player.play(track, -historySlider.getValue());
+    }
+
+    private void replayHistoryIfPlaying() {
+        AudioHistory.Track track = historyTrack();
+        if (track != null && AudioHistory.Player.isPlaying(track)) {
+            playHistory(track);
+        }
+    }
+
+    private void refreshHistoryRow() {
+        AudioHistory.Track track = historyTrack();
+        double held = track != null ? Math.floor(track.heldSeconds()) : 0;
+        boolean available = held >= 1;
+        historySlider.setDisable(!available);
+        historyPlayButton.setDisable(!available);
+        if (available) {
+            historySlider.setMin(-held);
+        }
+        boolean playing = track != null && AudioHistory.Player.isPlaying(track);
+        historyPlayButton.setText(playing ? "■" : "▶");
+        updateHistoryLabel();
+    }
+
+    private void updateHistoryLabel() {
+        if (historySlider.isDisabled()) {
+            historyLabel.setText("Kept from the stream's start");
+            return;
+        }
+        int back = (int) Math.round(-historySlider.getValue());
+        historyLabel.setText(String.format("-%d:%02d  %s", back / 60, back % 60,
+                LocalTime.now().minusSeconds(back).format(HISTORY_TIME)));
+    }
+
     public BooleanProperty monitoringActiveProperty() {
         return monitoringActive;
     }
@@ -728,6 +970,124 @@ public class LevelMeter {
 
         updateStatusIndicator(now);
         drawMeter();
+        if (now - lastMonitorStatsNanos >= 500_000_000L) {
+            lastMonitorStatsNanos = now;
+            updateMonitorLatency();
+        }
+        if (now - lastLoudnessNanos >= 500_000_000L) {
+            lastLoudnessNanos = now;
+            updateLoudness();
+            updateLevelWindows();
+        }
+        if (now - lastStripNanos >= STRIP_REDRAW_NANOS) {
+            lastStripNanos = now;
+            drawLevelStrip();
+        }
+    }
+
+    /**
+     * Draws the whole session into the strip, one column per pixel. Each column is read from
+     * the pyramid at the resolution that suits it, so this costs the same however long the
+     * session has run; once a second is plenty for a picture of minutes and hours.
+     */
+    private void drawLevelStrip() {
+        GraphicsContext graphics = levelStrip.getGraphicsContext2D();
+        graphics.setFill(COLOR_BACKGROUND_METER);
+        graphics.fillRect(0, 0, STRIP_WIDTH, STRIP_HEIGHT);
+        long first = levelPyramid.firstNanos();
+        if (first < 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long span = Math.max(now - first, STRIP_MIN_SPAN_NANOS);
+        levelPyramid.columns(now - span, now, stripMin, stripMax, stripRms);
+
+        graphics.setStroke(COLOR_SCALE_MARK);
+        graphics.setLineWidth(1);
+        graphics.setLineDashes(3, 3);
+        double greenY = Math.floor(stripY(greenThresholdDb)) + 0.5;
+        graphics.strokeLine(0, greenY, STRIP_WIDTH, greenY);
+        graphics.setLineDashes();
+        for (int column = 0; column < stripMin.length; column++) {
+            if (Float.isNaN(stripMax[column])) {
+                continue;
+            }
+            double top = stripY(stripDb(stripMax[column]));
+            double bottom = stripY(stripDb(stripMin[column]));
+            graphics.setFill(COLOR_STRIP_BAND);
+            graphics.fillRect(column, top, 1, Math.max(1, bottom - top));
+            graphics.setFill(COLOR_STATUS_OK);
+            graphics.fillRect(column, stripY(stripDb(stripRms[column])) - 1, 1, 2);
+        }
+    }
+
+    /** A level from 0 to 1 on the meter's own scale, which puts full scale at its ceiling. */
+    private static double stripDb(float level) {
+        return level > 0 ? Math.max(MIN_DB, 20 * Math.log10(level) + METER_CEILING_DB) : MIN_DB;
+    }
+
+    private static double stripY(double db) {
+        double clamped = Math.max(MIN_DB, Math.min(METER_CEILING_DB, db));
+        return STRIP_HEIGHT - (clamped - MIN_DB) / (METER_CEILING_DB - MIN_DB) * STRIP_HEIGHT;
+    }
+
+    /**
+     * Shows the loudness as a broadcast meter would: momentary over 400 ms, short-term over 3 s,
+     * and integrated over everything since the meter first ran or was last reset - a click on
+     * the label resets it, for instance at the start of a talk.
+     */
+    private void updateLoudness() {
+        loudnessLabel.setText("M " + formatLufs(loudnessMeter.momentary()) + "   S " + formatLufs(loudnessMeter.shortTerm())
+                + "   I " + formatLufs(loudnessMeter.integrated()) + " LUFS");
+        loudnessTooltip.setText(String.format("Loudness as EBU R128 measures it: momentary (400 ms), short-term (3 s)"
+                + " and integrated, gated, since the meter first ran.%nClick to start the integrated loudness again."
+                + "%nMeasuring it costs %.3f%% of a core.", loudnessMeter.corePercent()));
+    }
+
+    /**
+     * Sums up the peak level over the last second, ten seconds and minute in the level label's
+     * tooltip: its range and its average, so a channel that only now and then rises out of the
+     * noise shows as such, not as the level of its last buffer.
+     */
+    private void updateLevelWindows() {
+        long now = System.nanoTime();
+        StringBuilder text = new StringBuilder("Peak level, lowest to highest and average:");
+        for (int seconds : LEVEL_WINDOW_SECONDS) {
+            LevelHistory.Window window = levelHistory.window(seconds, now);
+            String span = seconds == 1 ? "Last second" : seconds == 60 ? "Last minute" : "Last " + seconds + " s";
+            text.append(window.isEmpty() ? String.format("%n%s: no sound", span)
+                    : String.format("%n%s: %.1f to %.1f dB, %.1f dB on average",
+                    span, window.min(), window.max(), window.average()));
+        }
+        levelTooltip.setText(text.toString());
+    }
+
+    private static String formatLufs(double lufs) {
+        return lufs == LoudnessMeter.SILENCE ? "--" : String.format("%.1f", lufs);
+    }
+
+    /**
+     * Shows how late the headphones are behind the room, as estimated by the capture manager,
+     * while this meter is the one monitored. Orange when the output ran dry since the last look.
+     */
+    private void updateMonitorLatency() {
+        AudioCaptureManager.MonitorStats stats = monitoringActive.get()
+                ? AudioCaptureManager.getInstance().monitorStats(mixerInfo) : null;
+        monitorLatencyLabel.setVisible(stats != null);
+        monitorLatencyLabel.setManaged(stats != null);
+        if (stats == null) {
+            return;
+        }
+        monitorLatencyLabel.setText(Double.isNaN(stats.latencyMillis()) ? "~… ms"
+                : String.format("~%.0f ms", stats.latencyMillis()));
+        boolean ranDry = stats.underruns() > lastMonitorUnderruns;
+        lastMonitorUnderruns = stats.underruns();
+        monitorLatencyLabel.setTextFill(ranDry ? COLOR_WARNING_HIGH : COLOR_TEXT_PRIMARY);
+        monitorLatencyTooltip.setText(String.format(
+                "Headphone latency, from capture to playback, estimated (%s buffering)%n"
+                        + "The sound card and the headphones add their own on top%n"
+                        + "Output ran dry %d times, %d buffers skipped to stay on time",
+                stats.lowLatency() ? "low-latency" : "standard", stats.underruns(), stats.trims()));
     }
 
     /** Forgets the last animation timestamp so the next tick doesn't apply a huge decay step. */
@@ -851,6 +1211,9 @@ public class LevelMeter {
 
     public void setMixerInfo(Mixer.Info mixerInfo) {
         stop();
+        if (!Objects.equals(mixerInfo, this.mixerInfo)) {
+            loudnessMeter.reset();
+        }
         this.mixerInfo = mixerInfo;
         updateAudioInterfaceLabel();
         if (mixerInfo == null) {
@@ -859,8 +1222,17 @@ public class LevelMeter {
     }
 
     public void setChannel(String channel) {
+        if (running && !Objects.equals(channel, this.channel)) {
+            // Another channel is another loudness: measure it from the start
+            LoudnessMonitor.detach(mixerInfo, loudnessMeter);
+            loudnessMeter.reset();
+            LoudnessMonitor.attach(mixerInfo, channel, loudnessMeter);
+        }
         this.channel = channel;
         updateAudioInterfaceLabel();
+        if (monitoringActive.get() && mixerInfo != null) {
+            startMonitoringOutput();
+        }
     }
 
     public void stopAllMonitoring() {
@@ -873,18 +1245,18 @@ public class LevelMeter {
         if (running || mixerInfo == null) return;
         running = true;
         setWarningDisplay(false, "", null);
-        audioDataListener = new AudioCaptureManager.AudioDataListener() {
+        audioDataListener = new AudioCaptureManager.LevelListener() {
             private volatile boolean deviceWarningShown;
 
             @Override
-            public void onAudioData(byte[] buffer, int bytesRead, AudioFormat format) {
+            public void onLevels(ChannelLevels levels) {
                 if (running) {
                     if (deviceWarningShown) {
                         // The capture recovered (it reopens itself after a device hiccup)
                         deviceWarningShown = false;
                         setWarningDisplay(false, "", null);
                     }
-                    currentDb = calculateLevelImproved(buffer, bytesRead, format);
+                    currentDb = calculateLevelImproved(levels);
                 }
             }
 
@@ -895,28 +1267,38 @@ public class LevelMeter {
                     setWarningDisplay(true, "Device unavailable", COLOR_WARNING_HIGH);
                 }
             }
+
+            @Override
+            public String listenerName() {
+                return "Meter " + language;
+            }
         };
         AudioCaptureManager.getInstance().registerListener(mixerInfo, audioDataListener);
+        LoudnessMonitor.attach(mixerInfo, channel, loudnessMeter);
+        if (historyRow != null && historyRow.isVisible()) {
+            historyRefresh.play();
+        }
     }
 
     public void stop() {
         running = false;
         lastAnimationNanos = 0;
+        // A meter disposed with its history row open would otherwise keep the row ticking
+        historyRefresh.stop();
         if (audioDataListener != null && mixerInfo != null) {
             AudioCaptureManager.getInstance().unregisterListener(mixerInfo, audioDataListener);
             audioDataListener = null;
+            LoudnessMonitor.detach(mixerInfo, loudnessMeter);
         }
     }
 
-    private double calculateLevelImproved(byte[] buffer, int bytesRead, AudioFormat format) {
-        double maxSample = 0.0;
-        int channels = format.getChannels();
-        int frameSize = format.getFrameSize();
-        int bitDepth = format.getSampleSizeInBits();
-        if (bitDepth != 16 && bitDepth != 24) {
-            return MIN_DB;
-        }
-        double fullScale = AudioSamples.fullScale(bitDepth) + 1;
+    /**
+     * This meter's level, read out of the levels the capture measured for the whole device:
+     * see {@link ChannelLevels}.
+     */
+    private double calculateLevelImproved(ChannelLevels levels) {
+        double maxSample;
+        int channels = levels.channels();
 
         // Left and Right are the two halves of a stereo cable, "Ch n" is one input of a mixer,
         // and anything else (Join, Stereo, unset) watches whichever side is loudest
@@ -927,15 +1309,12 @@ public class LevelMeter {
         int selectedChannel = channels == 1 ? 0
                 : Math.min(SettingsUtil.audioChannelIndex(channel), channels - 1);
 
-        for (int i = 0; i < bytesRead - frameSize + 1; i += frameSize) {
-            if (bothChannels) {
-                double left = Math.abs(AudioSamples.readSample(buffer, i, 0, bitDepth) / fullScale);
-                double right = Math.abs(AudioSamples.readSample(buffer, i, 1, bitDepth) / fullScale);
-                maxSample = Math.max(maxSample, Math.max(left, right));
-            } else {
-                double sample = Math.abs(AudioSamples.readSample(buffer, i, selectedChannel, bitDepth) / fullScale);
-                maxSample = Math.max(maxSample, sample);
-            }
+        if (bothChannels) {
+            maxSample = Math.max(levels.peak(0), levels.peak(1));
+            levelPyramid.add(maxSample, Math.max(levels.rms(0), levels.rms(1)), System.nanoTime());
+        } else {
+            maxSample = levels.peak(selectedChannel);
+            levelPyramid.add(maxSample, levels.rms(selectedChannel), System.nanoTime());
         }
 
         if (maxSample == 0.0) {
@@ -946,29 +1325,19 @@ public class LevelMeter {
         double db = 20 * Math.log10(maxSample) + METER_CEILING_DB;
         actualCurrentDb = db;
 
-        // Add to history and maintain size
-        synchronized (volumeHistory) {
-            volumeHistory.addLast(actualCurrentDb);
-            if (volumeHistory.size() > VOLUME_HISTORY_SIZE) {
-                volumeHistory.removeFirst();
-            }
-        }
+        levelHistory.add(actualCurrentDb, System.nanoTime());
         return Math.max(db, MIN_DB);
     }
 
-    public double getAverageActualDb() {
-        synchronized (volumeHistory) {
-            if (volumeHistory.isEmpty()) {
-                return MIN_DB; // Or some other default/indicator
-            }
-            double sum = 0;
-            for (Double val : volumeHistory) {
-                sum += val;
-            }
-            return sum / volumeHistory.size();
-        }
+    /**
+     * The loudness of the last 3 seconds as a single channel of it reads, so a stereo pair and a
+     * mono channel can be compared: see {@link LoudnessMeter#shortTermPerChannel()}.
+     */
+    public double getShortTermLufsPerChannel() {
+        return loudnessMeter.shortTermPerChannel();
     }
 
+
     /**
      * Converts a JavaFX Color object to an RGBA string for use in CSS.
      * @param color The color to convert.
@@ -22,10 +22,15 @@ import javafx.stage.Stage;
 
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.Mixer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
 import java.util.function.IntSupplier;
 
 public class LevelMeterPanel extends Stage implements LevelMeter.MonitorToggleListener {
@@ -33,6 +38,10 @@ public class LevelMeterPanel extends Stage implements LevelMeter.MonitorToggleLi
     private static final int MIN_PERCENT = 50;
     private static final int MAX_PERCENT = 120;
     private static final int STEP_PERCENT = 5;
+    /** The dropouts of each device listed in the footer's tooltip, the latest last. */
+    private static final int DROPOUTS_SHOWN = 5;
+    private static final DateTimeFormatter DROPOUT_TIME = DateTimeFormatter.ofPattern("HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
 
     private static final String STEPPER_BUTTON_STYLE =
             "-fx-background-color: #3a3a3a; -fx-text-fill: #ddd; -fx-background-radius: 4;"
@@ -42,11 +51,13 @@ public class LevelMeterPanel extends Stage implements LevelMeter.MonitorToggleLi
     private final Settings settings;
     /** Kept for the device re-scan, which re-reads the selections without changing them. */
     private final ComboBox<String>[] inputAudioSources;
+    private final ComboBox<String>[] inputAudioSourcesChannel;
 
     // One shared timer drives every meter at ~30fps (every other JavaFX pulse):
     // twelve independent 60fps AnimationTimers doubled the GPU work for no visual gain
     private final AnimationTimer meterTicker = new AnimationTimer() {
         private long lastTick = 0;
+        private long lastFooterRefresh = 0;
 
         @Override
         public void handle(long now) {
@@ -57,8 +68,17 @@ public class LevelMeterPanel extends Stage implements LevelMeter.MonitorToggleLi
             for (LevelMeter vuMeter : vuMeters.values()) {
                 vuMeter.tick(now);
             }
+            if (now - lastFooterRefresh >= 1_000_000_000L) {
+                lastFooterRefresh = now;
+                refreshDispatchFooter();
+            }
         }
     };
+    /** How each device's reads and consumers keep up: see {@link #refreshDispatchFooter()}. */
+    private final Label dispatchFooter = new Label();
+    private final Tooltip dispatchDetails = new Tooltip();
+    /** Each running count at the previous refresh, to tell new losses and late reads from old ones. */
+    private final Map<String, Long> lastCounts = new HashMap<>();
     private final ScaleStepper widthStepper;
     private final ScaleStepper heightStepper;
     private final List<DbStepper> zoneSteppers = new ArrayList<>();
@@ -170,6 +190,7 @@ public class LevelMeterPanel extends Stage implements LevelMeter.MonitorToggleLi
     public LevelMeterPanel(ComboBox<String>[] inputAudioSources, ComboBox<String>[] inputAudioSourcesChannel, Settings settings) {
         this.settings = settings;
         this.inputAudioSources = inputAudioSources;
+        this.inputAudioSourcesChannel = inputAudioSourcesChannel;
         this.widthStepper = new ScaleStepper("Width:");
         this.heightStepper = new ScaleStepper("Height:");
 
@@ -186,6 +207,11 @@ public class LevelMeterPanel extends Stage implements LevelMeter.MonitorToggleLi
         BorderPane root = new BorderPane(flowPane);
         HBox toolbar = buildToolbar();
         root.setTop(toolbar);
+        dispatchFooter.setPadding(new Insets(2, 10, 4, 10));
+        dispatchFooter.setMaxWidth(Double.MAX_VALUE);
+        dispatchFooter.setStyle("-fx-background-color: #222; -fx-text-fill: #777; -fx-font-size: 11;");
+        dispatchFooter.setTooltip(dispatchDetails);
+        root.setBottom(dispatchFooter);
 
         // Floating chevron: collapses the controls line so the meters get the full window height
         Button toolbarToggle = new Button("▴");
@@ -213,6 +239,10 @@ public class LevelMeterPanel extends Stage implements LevelMeter.MonitorToggleLi
             String hexColor = languageColorsMap.getOrDefault(language, "#4E342E");
             LevelMeter vuMeter = new LevelMeter(language, getMixerInfo(inputAudioSources[i].getValue()), inputAudioSourcesChannel[i].getValue(), Color.web(hexColor), this, settings);
             vuMeters.put(language, vuMeter);
+            if (i >= 2) {
+                int languageIndex = i;
+                vuMeter.setBroadcastMix(() -> broadcastMix(languageIndex));
+            }
 
             // The Scale transform resizes the card; the Group wrapper makes the FlowPane
             // lay out using the transformed bounds (a node's own transform is ignored by layout)
@@ -363,6 +393,217 @@ public class LevelMeterPanel extends Stage implements LevelMeter.MonitorToggleLi
         }
     }
 
+    /**
+     * Shows how each device's capture and the consumers it feeds keep up. Every meter, the
+     * monitor and the stream's pipe take the audio on a thread of their own, so one that cannot
+     * keep up loses buffers instead of stalling the capture.
+     * <p>
+     * The summary line gives, device by device:
+     * <ul>
+     *   <li>how often its reads arrive, how many consumers it feeds and the longest any of them
+     *       waited for a buffer in the last second;</li>
+     *   <li>its clock drift, and what its journal, stems, history and loudness meters cost,
+     *       for those it has;</li>
+     *   <li>in orange, whatever fell behind in the last second: lost buffers, late reads, a
+     *       device buffer nearly full - how a device about to drop audio first shows - missing
+     *       audio, a stopped journal and lost stem blocks.</li>
+     * </ul>
+     * Devices kept open for a quick return follow, by name.
+     * <p>
+     * The tooltip has the details: every consumer, each device's read histograms, clock,
+     * journal, stems, history and loudness, and how often a meter found its device still open.
+     */
+    private void refreshDispatchFooter() {
+        Map<String, List<AudioCaptureManager.ListenerStats>> byDevice = new TreeMap<>();
+        for (AudioCaptureManager.ListenerStats stats : AudioCaptureManager.getInstance().listenerStats()) {
+            byDevice.computeIfAbsent(stats.device(), device -> new ArrayList<>()).add(stats);
+        }
+        Map<String, AudioCaptureManager.CaptureTimings> timingsByDevice = new HashMap<>();
+        for (AudioCaptureManager.CaptureTimings timings : AudioCaptureManager.getInstance().captureTimings()) {
+            timingsByDevice.put(timings.device(), timings);
+        }
+        Map<String, AudioCaptureManager.ClockStats> clocksByDevice = new HashMap<>();
+        for (AudioCaptureManager.ClockStats clock : AudioCaptureManager.getInstance().clockStats()) {
+            clocksByDevice.put(clock.device(), clock);
+        }
+        Map<String, CaptureJournal.Stats> journalsByDevice = new HashMap<>();
+        for (CaptureJournal.Stats journal : CaptureJournal.active()) {
+            journalsByDevice.put(journal.device(), journal);
+        }
+        Map<String, StemRecorder.Stats> stemsByDevice = new HashMap<>();
+        for (StemRecorder.Stats stems : StemRecorder.active()) {
+            stemsByDevice.put(stems.device(), stems);
+        }
+        Map<String, AudioHistory.Stats> historiesByDevice = new HashMap<>();
+        for (AudioHistory.Stats history : AudioHistory.active()) {
+            historiesByDevice.put(history.device(), history);
+        }
+        Map<String, LoudnessMonitor.Stats> loudnessByDevice = new HashMap<>();
+        for (LoudnessMonitor.Stats loudness : LoudnessMonitor.active()) {
+            loudnessByDevice.put(loudness.device(), loudness);
+        }
+        StringBuilder summary = new StringBuilder();
+        StringBuilder details = new StringBuilder();
+        boolean falling = false;
+        for (Map.Entry<String, List<AudioCaptureManager.ListenerStats>> device : byDevice.entrySet()) {
+            double peakLag = 0;
+            StringBuilder behind = new StringBuilder();
+            AudioCaptureManager.CaptureTimings timings = timingsByDevice.get(device.getKey());
+            if (timings != null) {
+                long late = newSinceLastRefresh(device.getKey() + "/late", timings.lateReads());
+                long overruns = newSinceLastRefresh(device.getKey() + "/overruns", timings.overruns());
+                if (late > 0) {
+                    behind.append("reads late ").append(late);
+                }
+                if (overruns > 0) {
+                    behind.append(behind.length() > 0 ? ", " : "").append("device buffer nearly full ").append(overruns);
+                }
+                details.append(describeReads(timings));
+            }
+            AudioCaptureManager.ClockStats clock = clocksByDevice.get(device.getKey());
+            if (clock != null) {
+                long gaps = newSinceLastRefresh(device.getKey() + "/gaps", clock.gaps());
+                if (gaps > 0) {
+                    behind.append(behind.length() > 0 ? ", " : "").append("audio missing ").append(gaps);
+                }
+                details.append(describeClock(clock));
+            }
+            CaptureJournal.Stats journal = journalsByDevice.get(device.getKey());
+            if (journal != null) {
+                if (journal.stopped()) {
+                    behind.append(behind.length() > 0 ? ", " : "").append("journal stopped");
+                }
+                details.append(String.format("%s - journal: %d MB in %d segments, %.1f us per buffer (peak %.0f us),"
+                                + " %d segments late, in %s%n", device.getKey(), journal.bytesWritten() >> 20,
+                        journal.segments(), journal.micros(), journal.peakMicros(), journal.lateSegments(),
+                        journal.directory()));
+            }
+            StemRecorder.Stats stems = stemsByDevice.get(device.getKey());
+            if (stems != null) {
+                long lostBlocks = newSinceLastRefresh(device.getKey() + "/stems", stems.lostBlocks());
+                if (lostBlocks > 0) {
+                    behind.append(behind.length() > 0 ? ", " : "").append("stems lost ").append(lostBlocks).append(" blocks");
+                }
+                details.append(String.format("%s - stems: %d files, %d MB, %.2f MB/s written at up to %.0f MB/s,"
+                                + " %d blocks waiting (peak %d), %d lost, in %s%n", device.getKey(), stems.stems(),
+                        stems.bytesWritten() >> 20, stems.megabytesPerSecond(), stems.writeMegabytesPerSecond(),
+                        stems.queuedBlocks(), stems.peakQueuedBlocks(), stems.lostBlocks(), stems.directory()));
+            }
+            AudioHistory.Stats history = historiesByDevice.get(device.getKey());
+            if (history != null) {
+                details.append(String.format("%s - history: %d channels, %.0f s held of %d min, %.1f MB reserved,"
+                                + " %.3f%% of a core a channel, %.1f us per buffer%n", device.getKey(), history.channels(),
+                        history.heldSeconds(), history.minutes(), history.bytesReserved() / 1e6,
+                        history.corePercentPerChannel(), history.micros()));
+            }
+            LoudnessMonitor.Stats loudness = loudnessByDevice.get(device.getKey());
+            if (loudness != null) {
+                details.append(String.format("%s - loudness: %d meters, %.3f%% of a core a meter, %.1f us per buffer%n",
+                        device.getKey(), loudness.meters(), loudness.corePercentPerChannel(), loudness.micros()));
+            }
+            for (AudioCaptureManager.ListenerStats stats : device.getValue()) {
+                peakLag = Math.max(peakLag, stats.peakLagMillis());
+                long lost = newSinceLastRefresh(device.getKey() + "/" + stats.listener(), stats.overruns());
+                if (lost > 0) {
+                    behind.append(behind.length() > 0 ? ", " : "").append(stats.listener()).append(" lost ").append(lost);
+                }
+                details.append(String.format("%s - %s: %d buffers, %d %s, lag %.1f ms (peak %.1f ms)%n",
+                        device.getKey(), stats.listener(), stats.delivered(), stats.overruns(),
+                        stats.policy() == AudioCaptureManager.DispatchPolicy.COALESCE_LATEST ? "skipped" : "dropped",
+                        stats.lagMillis(), stats.peakLagMillis()));
+            }
+            summary.append(summary.length() > 0 ? "   |   " : "").append(device.getKey()).append(": ");
+            if (timings != null) {
+                summary.append(String.format("reads every %.0f ms, ", timings.expectedIntervalMillis()));
+            }
+            summary.append(String.format("%d consumers, lag up to %.0f ms", device.getValue().size(), peakLag));
+            if (clock != null) {
+                summary.append(Double.isNaN(clock.driftPpm()) ? "" : String.format(", drift %+.1f ppm", clock.driftPpm()))
+                        .append(String.format(", %+.0f ms against the clock", clock.offsetMillis()));
+            }
+            if (journal != null) {
+                summary.append(String.format(", journal %.0f us a buffer", journal.micros()));
+            }
+            if (stems != null) {
+                summary.append(String.format(", stems %.2f MB/s, %d waiting", stems.megabytesPerSecond(), stems.queuedBlocks()));
+            }
+            if (history != null) {
+                summary.append(String.format(", history %.1f MB", history.bytesReserved() / 1e6));
+            }
+            if (loudness != null) {
+                summary.append(String.format(", loudness %.0f us a buffer", loudness.micros()));
+            }
+            if (behind.length() > 0) {
+                summary.append(" - behind: ").append(behind);
+                falling = true;
+            }
+        }
+        AudioCaptureManager.WarmCaptureStats warm = AudioCaptureManager.getInstance().warmCaptureStats();
+        if (!warm.warmDevices().isEmpty()) {
+            summary.append(summary.length() > 0 ? "   |   " : "").append("kept open: ")
+                    .append(String.join(", ", warm.warmDevices()));
+        }
+        if (warm.hits() + warm.misses() > 0) {
+            details.append(String.format("Kept open: %d of %d meter starts found their device already open (%.0f%%);"
+                            + " %d device%s kept open now, %d pw-record running for them%n",
+                    warm.hits(), warm.hits() + warm.misses(), warm.hitRate() * 100, warm.warmDevices().size(),
+                    warm.warmDevices().size() == 1 ? "" : "s", warm.recorders()));
+        }
+        dispatchFooter.setText(summary.length() > 0 ? summary.toString() : "No device is being captured");
+        dispatchFooter.setStyle("-fx-background-color: #222; -fx-font-size: 11; -fx-text-fill: "
+                + (falling ? "#FFA500;" : "#777;"));
+        dispatchDetails.setText(details.length() > 0 ? details.toString().trim() : "No device is being captured");
+    }
+
+    /** How much a running count has grown since the previous refresh; nothing the first time. */
+    private long newSinceLastRefresh(String key, long count) {
+        Long previous = lastCounts.put(key, count);
+        return previous != null ? count - previous : 0;
+    }
+
+    /** One device's read histograms, a line each for the intervals and the fills. */
+    private static String describeReads(AudioCaptureManager.CaptureTimings timings) {
+        StringBuilder text = new StringBuilder(String.format("%s - reads (every %.1f ms expected): ",
+                timings.device(), timings.expectedIntervalMillis()));
+        long[] intervals = timings.intervalHistogram();
+        int[] intervalBounds = ReadTimings.INTERVAL_BOUNDS_MS;
+        for (int i = 0; i < intervals.length; i++) {
+            text.append(i < intervalBounds.length ? "≤" + intervalBounds[i] : ">" + intervalBounds[i - 1])
+                    .append(" ms: ").append(intervals[i]).append(i < intervals.length - 1 ? ", " : "");
+        }
+        text.append(String.format("%n%s - fill: ", timings.device()));
+        long[] fills = timings.fillHistogram();
+        int[] fillBounds = ReadTimings.FILL_BOUNDS_PERCENT;
+        for (int i = 0; i < fills.length; i++) {
+            text.append(i < fillBounds.length ? "≤" + fillBounds[i] + "%" : "full")
+                    .append(": ").append(fills[i]).append(i < fills.length - 1 ? ", " : "");
+        }
+        text.append(String.format("; %d late, %d nearly full, backlog up to %.0f ms%n",
+                timings.lateReads(), timings.overruns(), timings.peakBacklogMillis()));
+        return text.toString();
+    }
+
+    /**
+     * One device's clock: the drift and how far the audio has moved, then the latest dropouts
+     * with the time each was noticed - the ones to look for in the log.
+     */
+    private static String describeClock(AudioCaptureManager.ClockStats clock) {
+        StringBuilder text = new StringBuilder(String.format("%s - clock: ", clock.device()));
+        if (Double.isNaN(clock.driftPpm())) {
+            text.append("drift not measured yet");
+        } else {
+            text.append(String.format("drift %+.1f ppm over %.0f s", clock.driftPpm(), clock.fitSeconds()));
+        }
+        text.append(String.format(", audio %+.0f ms against the clock, %d gaps, %d short reads (%.0f ms late, none lost)%n",
+                clock.offsetMillis(), clock.gaps(), clock.shortReads(), clock.shortMillis()));
+        List<AudioCaptureManager.Dropout> events = clock.events();
+        for (AudioCaptureManager.Dropout event : events.subList(Math.max(0, events.size() - DROPOUTS_SHOWN), events.size())) {
+            text.append(String.format("    %s  %s, %.0f ms%n",
+                    DROPOUT_TIME.format(Instant.ofEpochMilli(event.atMillis())), event.kind(), event.millis()));
+        }
+        return text.toString();
+    }
+
     private int snapToStep(double scale) {
         return (int) Math.round(scale * 100 / STEP_PERCENT) * STEP_PERCENT;
     }
@@ -428,6 +669,25 @@ public class LevelMeterPanel extends Stage implements LevelMeter.MonitorToggleLi
         source.monitoringActiveProperty().set(!wasMonitoring);
     }
 
+    /**
+     * The broadcast mix of a language as the headphones can play it: the prayers, the English to
+     * be mixed past English, and the language, at the gains the stream mixes them with. The
+     * monitor plays one device, so an input routed from another device is left out of the mix.
+     */
+    private AudioCaptureManager.MonitorMix broadcastMix(int languageIndex) {
+        String device = inputAudioSources[languageIndex].getValue();
+        int[] inputs = languageIndex == 2 ? new int[]{0, languageIndex} : new int[]{0, 1, languageIndex};
+        float[] gains = StreamRecorderRunnable.broadcastMixGains(languageIndex);
+        int[] channels = new int[inputs.length];
+        for (int k = 0; k < inputs.length; k++) {
+            boolean sameDevice = Objects.equals(inputAudioSources[inputs[k]].getValue(), device);
+            // A channel past the device's last is left out by the monitor
+            channels[k] = sameDevice ? SettingsUtil.audioChannelIndex(inputAudioSourcesChannel[inputs[k]].getValue())
+                    : Integer.MAX_VALUE;
+        }
+        return new AudioCaptureManager.MonitorMix(channels, gains);
+    }
+
     private Mixer.Info getMixerInfo(String mixerName) {
         // One resolver for the whole application: it also insists on a capture line, so a
         // playback device sharing the name can no longer be picked up by mistake
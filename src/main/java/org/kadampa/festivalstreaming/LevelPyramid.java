@@ -0,0 +1,186 @@
+package org.kadampa.festivalstreaming;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * The levels of one meter over the whole session, at four resolutions, so that a strip of any
+ * width can show all of it - and an interpreter drifting slowly off the microphone over half an
+ * hour can be seen, which the meter's current level and its peak hold never show.
+ * <p>
+ * Each reading - one capture buffer's peak and RMS - goes straight into the bucket it falls in at
+ * every resolution: a tenth of a second, a second, ten seconds and a minute. A bucket keeps the
+ * quietest and the loudest peak and the sum of the squared RMS, so the extremes and the power of
+ * any stretch come from adding buckets up rather than from the readings. Each resolution is a
+ * ring of plain arrays, and each bucket remembers which stretch of time it holds, so a bucket
+ * left over from a lap ago - or never written, while the meter was stopped - reads as empty
+ * rather than being cleared in advance. Adding a reading is therefore four small updates whatever
+ * has gone before, and a long stop costs nothing.
+ * <p>
+ * A strip asks for a number of columns over a span of time, and is answered from the coarsest
+ * resolution whose buckets are no longer than a column and which still reaches back to the
+ * span's start. Each column then adds up at most the ten buckets between one resolution and the
+ * next, so drawing the strip costs the same after ten hours as after ten minutes.
+ * <p>
+ * One thread writes - the meter's audio thread - and any thread reads, without a lock, as in
+ * {@link LevelHistory}: the writer makes a sequence number odd while it works, and a reader that
+ * sees it odd, or changed by the time it is done, reads again.
+ */
+final class LevelPyramid {
+
+    private static final long[] BUCKET_NANOS = {100_000_000L, 1_000_000_000L, 10_000_000_000L, 60_000_000_000L};
+    /**
+     * Buckets kept at each resolution, powers of two: about 7 minutes, an hour, 5.7 hours and 34
+     * hours. Any span reaches the minute ring at least, so a session is shown whole up to a day
+     * and a half.
+     */
+    private static final int[] BUCKETS = {4096, 4096, 2048, 2048};
+
+    private static final VarHandle SEQUENCE;
+
+    static {
+        try {
+            SEQUENCE = MethodHandles.lookup().findVarHandle(LevelPyramid.class, "sequence", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @SuppressWarnings("unused")  // accessed through SEQUENCE
+    private long sequence;
+    private final Tier[] tiers = new Tier[BUCKET_NANOS.length];
+    /** When the first reading came, or -1 before it. */
+    private volatile long firstNanos = -1;
+
+    LevelPyramid() {
+        for (int tier = 0; tier < tiers.length; tier++) {
+            tiers[tier] = new Tier(BUCKET_NANOS[tier], BUCKETS[tier]);
+        }
+    }
+
+    /** Writer side: one buffer's peak and RMS, each from 0 to 1. */
+    void add(double peak, double rms, long nowNanos) {
+        long sequenceNow = (long) SEQUENCE.getOpaque(this);
+        SEQUENCE.setOpaque(this, sequenceNow + 1);
+        VarHandle.storeStoreFence();
+        for (Tier tier : tiers) {
+            tier.add((float) peak, (float) (rms * rms), nowNanos);
+        }
+        SEQUENCE.setRelease(this, sequenceNow + 2);
+        if (firstNanos < 0) {
+            firstNanos = nowNanos;
+        }
+    }
+
+    /** When the first reading came, or -1 when none has. */
+    long firstNanos() {
+        return firstNanos;
+    }
+
+    /**
+     * Any thread: the span from {@code fromNanos} to {@code toNanos} in as many columns as the
+     * arrays are long - each column's quietest and loudest peak and its RMS, or NaN in all three
+     * for a column with no readings. One consistent view, even while the writer is adding.
+     */
+    void columns(long fromNanos, long toNanos, float[] min, float[] max, float[] rms) {
+        int columns = min.length;
+        long columnNanos = Math.max(1, (toNanos - fromNanos) / Math.max(1, columns));
+        Tier tier = tiers[0];
+        for (Tier coarser : tiers) {
+            if (coarser.bucketNanos <= columnNanos || !tier.reaches(fromNanos)) {
+                tier = coarser;
+            }
+        }
+        while (true) {
+            long before = (long) SEQUENCE.getAcquire(this);
+            if ((before & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            for (int column = 0; column < columns; column++) {
+                long start = fromNanos + column * columnNanos;
+                tier.fill(start, start + columnNanos, min, max, rms, column);
+            }
+            VarHandle.loadLoadFence();
+            if ((long) SEQUENCE.getOpaque(this) == before) {
+                return;
+            }
+        }
+    }
+
+    /** One resolution: a ring of buckets, each knowing which stretch of time it holds. */
+    private static final class Tier {
+        private final long bucketNanos;
+        private final int mask;
+        private final long[] bucketOf;
+        private final float[] min;
+        private final float[] max;
+        private final float[] sumSquares;
+        private final int[] count;
+        /** The latest bucket written, as a count of buckets since the clock's origin. */
+        private long latest = Long.MIN_VALUE;
+
+        Tier(long bucketNanos, int buckets) {
+            this.bucketNanos = bucketNanos;
+            this.mask = buckets - 1;
+            this.bucketOf = new long[buckets];
+            Arrays.fill(bucketOf, Long.MIN_VALUE);
+            this.min = new float[buckets];
+            this.max = new float[buckets];
+            this.sumSquares = new float[buckets];
+            this.count = new int[buckets];
+        }
+
+        void add(float peak, float square, long nowNanos) {
+            long bucket = Math.floorDiv(nowNanos, bucketNanos);
+            int index = (int) bucket & mask;
+            if (bucketOf[index] != bucket) {
+                bucketOf[index] = bucket;
+                min[index] = peak;
+                max[index] = peak;
+                sumSquares[index] = 0;
+                count[index] = 0;
+            }
+            min[index] = Math.min(min[index], peak);
+            max[index] = Math.max(max[index], peak);
+            sumSquares[index] += square;
+            count[index]++;
+            latest = Math.max(latest, bucket);
+        }
+
+        /** Whether this ring still holds the bucket of the given time, or anything later. */
+        boolean reaches(long nanos) {
+            return latest == Long.MIN_VALUE || Math.floorDiv(nanos, bucketNanos) > latest - mask;
+        }
+
+        /** Adds up the buckets from one time to before another into one column. */
+        void fill(long fromNanos, long toNanos, float[] columnMin, float[] columnMax, float[] columnRms, int column) {
+            long first = Math.floorDiv(fromNanos, bucketNanos);
+            long last = Math.max(first, Math.floorDiv(toNanos - 1, bucketNanos));
+            float low = Float.POSITIVE_INFINITY;
+            float high = 0;
+            double squares = 0;
+            long readings = 0;
+            for (long bucket = Math.max(first, last - mask); bucket <= last; bucket++) {
+                int index = (int) bucket & mask;
+                if (bucketOf[index] != bucket) {
+                    continue;
+                }
+                low = Math.min(low, min[index]);
+                high = Math.max(high, max[index]);
+                squares += sumSquares[index];
+                readings += count[index];
+            }
+            if (readings == 0) {
+                columnMin[column] = Float.NaN;
+                columnMax[column] = Float.NaN;
+                columnRms[column] = Float.NaN;
+            } else {
+                columnMin[column] = low;
+                columnMax[column] = high;
+                columnRms[column] = (float) Math.sqrt(squares / readings);
+            }
+        }
+    }
+}
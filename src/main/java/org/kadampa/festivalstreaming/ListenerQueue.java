@@ -0,0 +1,212 @@
+package org.kadampa.festivalstreaming;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * The frames waiting for one consumer of a capture, and the thread that hands them over.
+ * <p>
+ * The capture thread used to call every listener itself, and then write the headphone monitor's
+ * line, before it went back to the device for the next chunk. Anything slow in there - a meter
+ * waiting on a lock, the monitor's line blocking while its buffer was full - came straight out of
+ * the device's headroom: Java Sound overruns its line, pw-record backs up in the pipe. Now the
+ * capture thread only puts the frame into each consumer's queue and goes back to reading, and
+ * every consumer has a thread of its own to take it from there, so the capture keeps the same
+ * timing whatever is attached to it and however slow any of it is.
+ * <p>
+ * One thread puts frames in, one takes them out, and neither waits for the other. A consumer that
+ * falls behind loses frames rather than holding the capture up, in one of two ways (see
+ * {@link AudioCaptureManager.DispatchPolicy}): past two seconds of waiting audio the oldest frame
+ * makes room for the new one, or the queue holds just the latest frame and each new one replaces
+ * it. Each lost frame is
+ * counted, and so is the lag - how long a frame waited between the device and its consumer - so
+ * the meter window can show a consumer that cannot keep up.
+ * <p>
+ * Each frame in a queue carries a reference of its own (see {@link AudioFrame#retain()}), given
+ * back once the consumer has had it or the frame has been dropped.
+ */
+final class ListenerQueue {
+
+    /**
+     * How much audio a drop-oldest queue holds before it drops any, in seconds. The relays and
+     * pipes to ffmpeg sit behind such queues, and ffmpeg counts samples for its timestamps, so
+     * every dropped buffer moves the sound against the picture for the rest of the stream: the
+     * queue is sized by time, not by a number of buffers, so that short capture chunks get no
+     * less slack than long ones.
+     */
+    private static final double MAX_QUEUED_SECONDS = 2.0;
+    /**
+     * Slots a drop-oldest queue has, enough for {@link #MAX_QUEUED_SECONDS} of the shortest
+     * capture chunk there is (5 ms); a power of two for the index mask.
+     */
+    private static final int SLOTS = 512;
+    private static final int MASK = SLOTS - 1;
+
+    private static final Logger logger = LoggerFactory.getLogger(ListenerQueue.class);
+
+    private final String name;
+    private final AudioCaptureManager.DispatchPolicy policy;
+    private final Consumer<AudioFrame> consumer;
+    private final Thread thread;
+
+    // Drop-oldest: the producer moves the tail; both sides move the head, the consumer to take
+    // a frame and the producer to drop one, so the head only ever moves by compare-and-set
+    private final AtomicReferenceArray<AudioFrame> slots = new AtomicReferenceArray<>(SLOTS);
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+    // Coalesce-latest: the one frame waiting
+    private final AtomicReference<AudioFrame> latest = new AtomicReference<>();
+
+    private volatile boolean closed;
+    // Written by the producer only
+    private volatile long overruns;
+    // Written by the consumer only
+    private volatile long delivered;
+    private volatile long lastLagNanos;
+    private final AtomicLong peakLagNanos = new AtomicLong();
+
+    ListenerQueue(String name, AudioCaptureManager.DispatchPolicy policy, Consumer<AudioFrame> consumer) {
+        this.name = name;
+        this.policy = policy;
+        this.consumer = consumer;
+        this.thread = new Thread(this::dispatch, "AudioDispatch-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Capture thread: queues the frame for the consumer, dropping a waiting one if the consumer
+     * is behind. Never waits.
+     */
+    void publish(AudioFrame frame) {
+        if (closed) {
+            return;
+        }
+        frame.retain();
+        if (policy == AudioCaptureManager.DispatchPolicy.COALESCE_LATEST) {
+            AudioFrame replaced = latest.getAndSet(frame);
+            if (replaced != null) {
+                overruns++;
+                replaced.release();
+            }
+        } else {
+            long position = tail;
+            long oldest = head.get();
+            if (position - oldest >= capacityFor(frame) && head.compareAndSet(oldest, oldest + 1)) {
+                // The frame at the head is now the producer's to drop: the consumer's own
+                // compare-and-set on that position can no longer succeed
+                overruns++;
+                slots.get((int) oldest & MASK).release();
+            }
+            // If the consumer took the oldest frame in the meantime there is room all the same
+            slots.set((int) position & MASK, frame);
+            tail = position + 1;
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * How many frames the size of this one make up {@link #MAX_QUEUED_SECONDS}, within the slots
+     * there are. The capture's chunk does not change while it runs, so neither does this.
+     */
+    private static int capacityFor(AudioFrame frame) {
+        int frames = Math.max(1, frame.frames());
+        long wanted = (long) Math.ceil(MAX_QUEUED_SECONDS * frame.format().getSampleRate() / frames);
+        return (int) Math.max(1, Math.min(SLOTS, wanted));
+    }
+
+    /** Consumer side: the next frame, or null when none is waiting. */
+    private AudioFrame take() {
+        if (policy == AudioCaptureManager.DispatchPolicy.COALESCE_LATEST) {
+            return latest.getAndSet(null);
+        }
+        while (true) {
+            long position = head.get();
+            if (position == tail) {
+                return null;
+            }
+            AudioFrame frame = slots.get((int) position & MASK);
+            if (head.compareAndSet(position, position + 1)) {
+                return frame;
+            }
+            // The producer dropped this frame first: try the next one
+        }
+    }
+
+    private void dispatch() {
+        while (!closed) {
+            AudioFrame frame = take();
+            if (frame == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            long lag = System.nanoTime() - frame.capturedAtNanos();
+            lastLagNanos = lag;
+            peakLagNanos.accumulateAndGet(lag, Math::max);
+            try {
+                consumer.accept(frame);
+            } catch (RuntimeException e) {
+                // One failing buffer must not end the consumer's audio for good
+                logger.warn("Audio consumer {} failed on a buffer: {}", name, e.toString());
+            } finally {
+                frame.release();
+            }
+            delivered++;
+        }
+        for (AudioFrame frame = take(); frame != null; frame = take()) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Stops the thread once the frame it is handing over, if any, has been handled. Frames still
+     * waiting are given back, not delivered.
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+    }
+
+    /** Waits up to the given time for the thread to finish, after {@link #close()}. */
+    void awaitClosed(long millis) {
+        try {
+            thread.join(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    String name() {
+        return name;
+    }
+
+    AudioCaptureManager.DispatchPolicy policy() {
+        return policy;
+    }
+
+    /** Frames handed to the consumer so far. */
+    long delivered() {
+        return delivered;
+    }
+
+    /** Frames the consumer never got because it was behind: dropped, or replaced by a newer one. */
+    long overruns() {
+        return overruns;
+    }
+
+    /** How long the last frame handed over had waited since it was read from the device. */
+    long lastLagNanos() {
+        return lastLagNanos;
+    }
+
+    /** The longest any frame has waited since the last call. */
+    long takePeakLagNanos() {
+        return peakLagNanos.getAndSet(0);
+    }
+}
@@ -0,0 +1,277 @@
+package org.kadampa.festivalstreaming;
+
+import java.util.Arrays;
+
+/**
+ * The loudness of one language as EBU R128 measures it - momentary, short-term and integrated,
+ * in LUFS - worked out sample by sample from the capture, which is what the platform the stream
+ * goes to normalises by. The meters show the sample peak, which says when a signal clips but
+ * not how loud it sounds: a voice and a bell at the same peak are far apart in loudness.
+ * <p>
+ * The samples go through the K-weighting of ITU-R BS.1770, a high shelf for the head and a
+ * high-pass, as two biquads designed for the capture's own rate. Their mean square is gathered
+ * into 100 ms parts, kept in a ring of the last thirty: the last four are the momentary block of
+ * 400 ms, all thirty the short-term block of 3 s, both added up again from the ring as each part
+ * closes. Every 100 ms the momentary block is also one of the overlapping gating blocks of the
+ * integrated loudness. Those are not kept: each goes into a histogram of tenth-of-a-LU bins
+ * from -70 LUFS, the absolute gate, up to +10 - so a six-hour session takes the same few
+ * kilobytes as a minute - and the relative gate, 10 LU under the mean of what passed the
+ * absolute one, is applied to the histogram once a second. A bin stands for its centre, which
+ * puts the integrated loudness within 0.05 LU of what keeping every block would give.
+ * <p>
+ * A stereo source is measured as BS.1770 does, the two sides' weighted energies added, so the
+ * same voice on both sides reads about 3 LU louder than on one: {@link #shortTermPerChannel()}
+ * takes that back out for comparing a pair with a single channel. Fed on
+ * the capture's thread by {@link LoudnessMonitor}, read from any: the results are published as
+ * they are worked out. Nothing is allocated once the meter is made.
+ */
+final class LoudnessMeter {
+
+    /** What a silent or not yet measured loudness reads as. */
+    static final double SILENCE = Double.NEGATIVE_INFINITY;
+
+    private static final int PARTS = 30;
+    private static final int MOMENTARY_PARTS = 4;
+    private static final double ABSOLUTE_GATE_LUFS = -70;
+    private static final double RELATIVE_GATE_LU = -10;
+    private static final double HIGHEST_LUFS = 10;
+    private static final double BIN_LU = 0.1;
+    private static final int BINS = (int) Math.round((HIGHEST_LUFS - ABSOLUTE_GATE_LUFS) / BIN_LU);
+    /** The mean square each bin stands for: that of its centre. */
+    private static final double[] BIN_ENERGY = new double[BINS];
+
+    static {
+        for (int bin = 0; bin < BINS; bin++) {
+            BIN_ENERGY[bin] = energy(ABSOLUTE_GATE_LUFS + (bin + 0.5) * BIN_LU);
+        }
+    }
+
+    // The capture's thread
+    private float sampleRate;
+    private int partSamples;
+    private final double[] coefficients = new double[10];
+    /** Each side's two biquads: two delays each. */
+    private final double[] state = new double[8];
+    private double partSum;
+    private int partCount;
+    private final double[] parts = new double[PARTS];
+    private int partIndex;
+    private int partsFilled;
+    private final long[] histogram = new long[BINS];
+    private int partsSinceIntegrated;
+    private long busyNanos;
+    private long audioSamples;
+    // Published
+    private volatile double momentary = SILENCE;
+    private volatile double shortTerm = SILENCE;
+    private volatile double integrated = SILENCE;
+    private volatile double corePercent;
+    /** Channels summed into the figures: 2 for a stereo pair, 1 otherwise. */
+    private volatile int channels = 1;
+    private volatile boolean resetRequested;
+    private volatile boolean restartRequested;
+
+    /**
+     * The capture's thread: one buffer of one side, or of both for a stereo source.
+     *
+     * @param right the other side, or null for a single channel
+     */
+    void process(float[] left, float[] right, int frames, float rate) {
+        long started = System.nanoTime();
+        if (rate != sampleRate) {
+            design(rate);
+        }
+        if (resetRequested) {
+            resetRequested = false;
+            clear();
+        } else if (restartRequested) {
+            restartRequested = false;
+            clearBlocks();
+        }
+        channels = right != null ? 2 : 1;
+        double[] c = coefficients;
+        double[] z = state;
+        for (int index = 0; index < frames; index++) {
+            double weighted = weigh(left[index], c, z, 0);
+            double energy = weighted * weighted;
+            if (right != null) {
+                weighted = weigh(right[index], c, z, 4);
+                energy += weighted * weighted;
+            }
+            partSum += energy;
+            if (++partCount == partSamples) {
+                closePart();
+            }
+        }
+        busyNanos += System.nanoTime() - started;
+        audioSamples += frames;
+        corePercent = busyNanos / 1e7 / (audioSamples / sampleRate);
+    }
+
+    /** The K-weighting of one sample, as two biquads in transposed direct form II. */
+    private static double weigh(double sample, double[] c, double[] z, int at) {
+        double shelved = c[0] * sample + z[at];
+        z[at] = c[1] * sample - c[3] * shelved + z[at + 1];
+        z[at + 1] = c[2] * sample - c[4] * shelved;
+        double passed = c[5] * shelved + z[at + 2];
+        z[at + 2] = c[6] * shelved - c[8] * passed + z[at + 3];
+        z[at + 3] = c[7] * shelved - c[9] * passed;
+        return passed;
+    }
+
+    /** A 100 ms part is complete: the blocks ending with it are measured. */
+    private void closePart() {
+        parts[partIndex] = partSum / partCount;
+        partIndex = (partIndex + 1) % PARTS;
+        partsFilled = Math.min(PARTS, partsFilled + 1);
+        partSum = 0;
+        partCount = 0;
+        if (partsFilled >= MOMENTARY_PARTS) {
+            double loudness = lufs(meanOfLast(MOMENTARY_PARTS));
+            momentary = loudness;
+            if (loudness > ABSOLUTE_GATE_LUFS) {
+                histogram[Math.min(BINS - 1, (int) ((loudness - ABSOLUTE_GATE_LUFS) / BIN_LU))]++;
+            }
+        }
+        if (partsFilled == PARTS) {
+            shortTerm = lufs(meanOfLast(PARTS));
+        }
+        if (++partsSinceIntegrated == 10) {
+            partsSinceIntegrated = 0;
+            integrated = gatedLoudness();
+        }
+    }
+
+    private double meanOfLast(int count) {
+        double sum = 0;
+        for (int part = 1; part <= count; part++) {
+            sum += parts[(partIndex - part + PARTS) % PARTS];
+        }
+        return sum / count;
+    }
+
+    /** The two passes of BS.1770's gating, over the histogram instead of the blocks. */
+    private double gatedLoudness() {
+        long blocks = 0;
+        double sum = 0;
+        for (int bin = 0; bin < BINS; bin++) {
+            blocks += histogram[bin];
+            sum += histogram[bin] * BIN_ENERGY[bin];
+        }
+        if (blocks == 0) {
+            return SILENCE;
+        }
+        double gate = lufs(sum / blocks) + RELATIVE_GATE_LU;
+        int firstBin = (int) Math.max(0, Math.ceil((gate - ABSOLUTE_GATE_LUFS) / BIN_LU - 0.5));
+        blocks = 0;
+        sum = 0;
+        for (int bin = firstBin; bin < BINS; bin++) {
+            blocks += histogram[bin];
+            sum += histogram[bin] * BIN_ENERGY[bin];
+        }
+        return blocks > 0 ? lufs(sum / blocks) : SILENCE;
+    }
+
+    /**
+     * The BS.1770 filters for a rate, from their analogue prototypes: the same curve at any
+     * rate, and at 48 kHz the coefficients the standard lists.
+     */
+    private void design(float rate) {
+        sampleRate = rate;
+        partSamples = Math.max(1, Math.round(rate / 10));
+        double frequency = 1681.974450955533;
+        double gainDb = 3.999843853973347;
+        double quality = 0.7071752369554196;
+        double k = Math.tan(Math.PI * frequency / rate);
+        double vh = Math.pow(10, gainDb / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double a0 = 1 + k / quality + k * k;
+        coefficients[0] = (vh + vb * k / quality + k * k) / a0;
+        coefficients[1] = 2 * (k * k - vh) / a0;
+        coefficients[2] = (vh - vb * k / quality + k * k) / a0;
+        coefficients[3] = 2 * (k * k - 1) / a0;
+        coefficients[4] = (1 - k / quality + k * k) / a0;
+        frequency = 38.13547087602444;
+        quality = 0.5003270373238773;
+        k = Math.tan(Math.PI * frequency / rate);
+        a0 = 1 + k / quality + k * k;
+        coefficients[5] = 1;
+        coefficients[6] = -2;
+        coefficients[7] = 1;
+        coefficients[8] = 2 * (k * k - 1) / a0;
+        coefficients[9] = (1 - k / quality + k * k) / a0;
+        clear();
+    }
+
+    private void clear() {
+        clearBlocks();
+        Arrays.fill(histogram, 0);
+        partsSinceIntegrated = 0;
+        integrated = SILENCE;
+    }
+
+    /** Forgets the filters' state and the last 3 s, leaving the integrated loudness be. */
+    private void clearBlocks() {
+        Arrays.fill(state, 0);
+        Arrays.fill(parts, 0);
+        partSum = 0;
+        partCount = 0;
+        partIndex = 0;
+        partsFilled = 0;
+        momentary = SILENCE;
+        shortTerm = SILENCE;
+    }
+
+    /**
+     * Any thread: the meter is no longer fed. Its momentary and short-term loudness read as
+     * silence at once, rather than as the last audio it had, and start from nothing when it is
+     * fed again; the integrated loudness is kept.
+     */
+    void detached() {
+        restartRequested = true;
+        momentary = SILENCE;
+        shortTerm = SILENCE;
+    }
+
+    /** Any thread: starts the integrated loudness again, with the next buffer. */
+    void reset() {
+        resetRequested = true;
+    }
+
+    /** The last 400 ms, in LUFS. */
+    double momentary() {
+        return momentary;
+    }
+
+    /** The last 3 s, in LUFS. */
+    double shortTerm() {
+        return shortTerm;
+    }
+
+    /**
+     * The last 3 s as one channel of it would read, in LUFS: a stereo pair's figure less the
+     * 3 LU its second side adds when both carry the same sound.
+     */
+    double shortTermPerChannel() {
+        double loudness = shortTerm;
+        return channels == 2 ? loudness - 10 * Math.log10(2) : loudness;
+    }
+
+    /** Everything since the start or the last reset, gated, in LUFS. */
+    double integrated() {
+        return integrated;
+    }
+
+    /** The share of one core this meter has cost, in percent of the audio it measured. */
+    double corePercent() {
+        return corePercent;
+    }
+
+    private static double lufs(double meanSquare) {
+        return meanSquare > 0 ? -0.691 + 10 * Math.log10(meanSquare) : SILENCE;
+    }
+
+    private static double energy(double lufs) {
+        return Math.pow(10, (lufs + 0.691) / 10);
+    }
+}
@@ -0,0 +1,139 @@
+package org.kadampa.festivalstreaming;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.Mixer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Feeds the loudness meters of one device with its samples. The level meters only need each
+ * buffer's peak, which the capture measures once for every channel; loudness needs the samples
+ * themselves, so each device with a meter running gets one listener for the stream of buffers,
+ * on its own thread, and every meter on that device is worked out on it, one after another.
+ * <p>
+ * A meter is attached when it starts and detached when it stops, and the listener is there for
+ * as long as one is attached. The meters are kept in an array that is replaced, not changed, so
+ * the listener walks it without a lock and without an iterator; which samples a meter takes is
+ * worked out once, when it is attached, so a buffer costs the filters and nothing else.
+ */
+final class LoudnessMonitor implements AudioCaptureManager.FrameListener {
+
+    private static final Map<Mixer.Info, LoudnessMonitor> MONITORS = new HashMap<>();
+
+    /**
+     * What one device's loudness takes, for the meter window.
+     *
+     * @param device   the device's name
+     * @param meters   loudness meters fed from it
+     * @param corePercentPerChannel the share of one core each meter costs, on average
+     * @param micros   what one buffer costs the listener, all its meters together
+     */
+    record Stats(String device, int meters, double corePercentPerChannel, double micros) {
+    }
+
+    /** One meter and the samples it takes, as the level meter reads its channel setting. */
+    private record Entry(LoudnessMeter meter, boolean bothSides, int channel) {
+    }
+
+    private final Mixer.Info device;
+    private volatile Entry[] entries = new Entry[0];
+    // The listener's thread, apart from being read for the figures
+    private volatile long busyNanos;
+    private volatile long buffers;
+
+    private LoudnessMonitor(Mixer.Info device) {
+        this.device = device;
+    }
+
+    /**
+     * Starts feeding a meter from a device, with the channel setting of the level meter it
+     * belongs to: Left, Right or "Ch n" take that one channel, anything else both sides of a
+     * stereo pair.
+     */
+    static synchronized void attach(Mixer.Info device, String channel, LoudnessMeter meter) {
+        boolean bothSides = !SettingsUtil.AUDIO_CHANNEL_LEFT.equalsIgnoreCase(channel)
+                && !SettingsUtil.AUDIO_CHANNEL_RIGHT.equalsIgnoreCase(channel)
+                && !(channel != null && channel.startsWith(SettingsUtil.AUDIO_CHANNEL_PREFIX));
+        Entry entry = new Entry(meter, bothSides, SettingsUtil.audioChannelIndex(channel));
+        LoudnessMonitor monitor = MONITORS.get(device);
+        if (monitor == null) {
+            monitor = new LoudnessMonitor(device);
+            monitor.entries = new Entry[]{entry};
+            MONITORS.put(device, monitor);
+            AudioCaptureManager.getInstance().registerListener(device, monitor);
+            return;
+        }
+        Entry[] grown = Arrays.copyOf(monitor.entries, monitor.entries.length + 1);
+        grown[grown.length - 1] = entry;
+        monitor.entries = grown;
+    }
+
+    /**
+     * Stops feeding a meter, which then reads as silence; the device's listener goes with its
+     * last meter.
+     */
+    static synchronized void detach(Mixer.Info device, LoudnessMeter meter) {
+        LoudnessMonitor monitor = MONITORS.get(device);
+        if (monitor == null) {
+            meter.detached();
+            return;
+        }
+        List<Entry> kept = new ArrayList<>();
+        for (Entry entry : monitor.entries) {
+            if (entry.meter() != meter) {
+                kept.add(entry);
+            }
+        }
+        monitor.entries = kept.toArray(new Entry[0]);
+        meter.detached();
+        if (kept.isEmpty()) {
+            MONITORS.remove(device);
+            AudioCaptureManager.getInstance().unregisterListener(device, monitor);
+        }
+    }
+
+    /** The figures of every device with loudness meters running. */
+    static synchronized List<Stats> active() {
+        List<Stats> stats = new ArrayList<>();
+        for (LoudnessMonitor monitor : MONITORS.values()) {
+            Entry[] current = monitor.entries;
+            double corePercent = 0;
+            for (Entry entry : current) {
+                corePercent += entry.meter().corePercent();
+            }
+            long count = monitor.buffers;
+            stats.add(new Stats(monitor.device.getName(), current.length,
+                    current.length > 0 ? corePercent / current.length : 0,
+                    count > 0 ? monitor.busyNanos / 1e3 / count : 0));
+        }
+        return stats;
+    }
+
+    @Override
+    public void onFrame(AudioFrame frame) {
+        long started = System.nanoTime();
+        AudioFormat format = frame.format();
+        int channels = format.getChannels();
+        int frames = frame.frames();
+        for (Entry entry : entries) {
+            if (channels == 1) {
+                entry.meter().process(frame.channel(0), null, frames, format.getSampleRate());
+            } else if (entry.bothSides()) {
+                entry.meter().process(frame.channel(0), frame.channel(1), frames, format.getSampleRate());
+            } else {
+                entry.meter().process(frame.channel(Math.min(entry.channel(), channels - 1)), null, frames,
+                        format.getSampleRate());
+            }
+        }
+        busyNanos += System.nanoTime() - started;
+        buffers++;
+    }
+
+    @Override
+    public String listenerName() {
+        return "Loudness";
+    }
+}
@@ -0,0 +1,440 @@
+package org.kadampa.festivalstreaming;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Makes the language tracks again from a recording of the desk, as fast as the machine goes.
+ * <p>
+ * A session streamed with a language on the wrong channel, or with too much or too little noise
+ * reduction, could only be mixed again by playing it back in real time through the whole
+ * pipeline. But a capture journal (see {@link CaptureJournal}) - or any multichannel WAV of the
+ * one mixer - holds every channel before anything touched it, and a file can be read as fast as
+ * the filters run. So each language's chain is built as the stream builds it, from the settings
+ * on screen now, and pointed at the files instead of the devices: see
+ * StreamRecorderRunnable.offlineRenderCommand.
+ * <p>
+ * What costs the time is the noise reduction, and ffmpeg runs one chain's filters one after the
+ * other on one core. So every language gets an ffmpeg of its own, as many at a time as the
+ * machine has cores, and the languages that share a core take turns. A journal's segments are
+ * joined by ffmpeg's concat demuxer, each cut where its audio ends - the header of a segment left
+ * by a crash still states it full - and each placed by when its first sample was taken, which
+ * every journal records on one clock: where the journal lost audio, or the device was reopened,
+ * silence fills the gap, so what follows stays where it was. The devices are lined up by the
+ * same stamps. That clock only means something within one run of the program, so a directory
+ * holding the journals of several runs - a stream restarted after a crash, or journals copied
+ * together - is split by run, and only the run of the segment chosen is rendered. Each ffmpeg reports its position on its standard output, and those positions
+ * summed against the time taken give the speed: how many seconds of language are made per second
+ * of waiting.
+ */
+public final class OfflineRenderer {
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("(.+)-(\\d{4})(?:-\\d+)?\\.wav");
+    /**
+     * How far a segment has to start after the end of the one before for the difference to be
+     * lost audio rather than the jitter of the capture's time stamps, in seconds.
+     */
+    private static final double MIN_GAP_SECONDS = 0.05;
+    /**
+     * How far apart two segments' clock origins may be and still come from one run of the
+     * program: the wall clock may be corrected while it runs, by far less than this.
+     */
+    private static final long SAME_RUN_MILLIS = 10_000;
+    private static final DateTimeFormatter RUN_START = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final Logger logger = LoggerFactory.getLogger(OfflineRenderer.class);
+
+    /**
+     * Where a render is.
+     *
+     * @param languagesDone languages finished, well or not
+     * @param languages     languages to render
+     * @param fraction      how much of all of them is rendered, from 0 to 1
+     * @param speed         seconds of audio rendered per second taken, all languages together
+     */
+    public record Progress(int languagesDone, int languages, double fraction, double speed) {
+    }
+
+    /**
+     * One language's new track.
+     *
+     * @param language the language's name
+     * @param file     where it was written
+     * @param rendered whether ffmpeg finished it; a failed or cancelled one is left as it stopped
+     */
+    public record Track(String language, Path file, boolean rendered) {
+    }
+
+    /**
+     * One device's recording as ffmpeg opens it.
+     *
+     * @param inputArguments   the arguments that open it, -i included
+     * @param firstSampleNanos when its first sample was taken, on the journals' common clock
+     * @param seconds          how long it is
+     * @param sampleRate       its sample rate
+     */
+    private record Recording(List<String> inputArguments, long firstSampleNanos, double seconds, float sampleRate) {
+    }
+
+    /** A journal segment with audio in it, and what its header says. */
+    private record Segment(Path path, CaptureJournal.SegmentHeader header) {
+    }
+
+    private final StreamRecorderRunnable recorder;
+    private final List<Process> running = new CopyOnWriteArrayList<>();
+    private volatile boolean cancelled;
+
+    /**
+     * @param recorder a recorder given the language settings to render with; a separate one from
+     *                 the stream's, so that a render can run next to a stream
+     */
+    public OfflineRenderer(StreamRecorderRunnable recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Renders every language from the recording into a new directory next to it. Blocks until
+     * all are done, so never on the FX thread.
+     *
+     * @param source   a journal's directory or any of its segments, or a multichannel WAV file
+     * @param progress told where the render is, from the rendering threads
+     * @return the tracks, in the order of the languages
+     * @throws IOException when the recording cannot be read or does not hold a language's device
+     */
+    public List<Track> render(Path source, Consumer<Progress> progress) throws IOException, InterruptedException {
+        List<String> devices = recorder.audioDevices();
+        if (devices.size() < 3) {
+            throw new IOException("There is no language to render: the prayers, the English to be mixed and at least English are needed.");
+        }
+        Path directory = Files.isDirectory(source) ? source : source.toAbsolutePath().getParent();
+        Path output = directory.resolve("render-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss")));
+        Files.createDirectories(output);
+        Map<String, Recording> recordings = open(source, new LinkedHashSet<>(devices), output);
+
+        Map<String, List<String>> inputs = new LinkedHashMap<>();
+        Map<String, Long> starts = new LinkedHashMap<>();
+        double seconds = 0;
+        for (Map.Entry<String, Recording> recording : recordings.entrySet()) {
+            inputs.put(recording.getKey(), recording.getValue().inputArguments());
+            starts.put(recording.getKey(), recording.getValue().firstSampleNanos());
+            seconds = Math.max(seconds, recording.getValue().seconds());
+        }
+        Map<String, String> delays = recorder.offlineDelays(starts, recordings.values().iterator().next().sampleRate());
+
+        int languages = devices.size() - 2;
+        int threads = Math.min(languages, Math.max(1, Runtime.getRuntime().availableProcessors()));
+        logger.info("Re-rendering {} languages ({} s each) from {} into {}, {} at a time",
+                languages, String.format("%.0f", seconds), source, output, threads);
+        double[] rendered = new double[languages];
+        int[] done = {0};
+        long startedNanos = System.nanoTime();
+        double totalSeconds = seconds;
+        Runnable report = () -> {
+            double sum = 0;
+            for (double value : rendered) {
+                sum += Math.min(value, totalSeconds);
+            }
+            double elapsed = (System.nanoTime() - startedNanos) / 1e9;
+            progress.accept(new Progress(done[0], languages, totalSeconds > 0 ? sum / (totalSeconds * languages) : 0,
+                    elapsed > 0 ? sum / elapsed : 0));
+        };
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "offline-render");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<Track>> tracks = new ArrayList<>();
+        try {
+            for (int i = 3; i <= devices.size(); i++) {
+                int input = i;
+                String language = recorder.languageName(i);
+                Path file = output.resolve(String.format("%02d-%s.flac", i - 2, CaptureJournal.fileStem(language)));
+                List<String> command = recorder.offlineRenderCommand(i, inputs, delays, file);
+                tracks.add(pool.submit(() -> {
+                    boolean finished = renderOne(language, command, renderedSeconds -> {
+                        synchronized (rendered) {
+                            rendered[input - 3] = renderedSeconds;
+                            report.run();
+                        }
+                    });
+                    synchronized (rendered) {
+                        done[0]++;
+                        if (finished) {
+                            rendered[input - 3] = totalSeconds;
+                        }
+                        report.run();
+                    }
+                    return new Track(language, file, finished);
+                }));
+            }
+            List<Track> results = new ArrayList<>();
+            for (Future<Track> track : tracks) {
+                results.add(track.get());
+            }
+            double elapsed = (System.nanoTime() - startedNanos) / 1e9;
+            logger.info("Re-rendered {} of {} languages in {} s, {}x real time", results.stream().filter(Track::rendered).count(),
+                    languages, String.format("%.1f", elapsed), String.format("%.1f", totalSeconds * languages / Math.max(elapsed, 1e-3)));
+            return results;
+        } catch (ExecutionException e) {
+            throw new IOException("A language could not be rendered", e.getCause());
+        } finally {
+            pool.shutdownNow();
+            if (Thread.currentThread().isInterrupted()) {
+                cancel();
+            }
+        }
+    }
+
+    /** Stops every ffmpeg still rendering; the render then returns with those tracks unfinished. */
+    public void cancel() {
+        cancelled = true;
+        running.forEach(Process::destroy);
+    }
+
+    /** Runs one language's ffmpeg, passing on how many seconds of it are rendered; answers whether it finished. */
+    private boolean renderOne(String language, List<String> command, Consumer<Double> renderedSeconds)
+            throws IOException, InterruptedException {
+        if (cancelled) {
+            return false;
+        }
+        logger.info("Rendering {}: {}", language, StreamRecorderRunnable.formatForDisplay(command));
+        Process ffmpeg = new ProcessBuilder(command).start();
+        running.add(ffmpeg);
+        // Errors only, at -loglevel error: read on a thread of their own so a full pipe never stalls ffmpeg
+        Thread errors = new Thread(new StreamGobbler(ffmpeg.getErrorStream(),
+                line -> logger.warn("Rendering {}: {}", language, line)), "offline-render-errors");
+        errors.setDaemon(true);
+        errors.start();
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(ffmpeg.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                // out_time_us is in microseconds; so, despite its name, is out_time_ms
+                if (line.startsWith("out_time_us=")) {
+                    try {
+                        renderedSeconds.accept(Long.parseLong(line.substring("out_time_us=".length()).trim()) / 1e6);
+                    } catch (NumberFormatException e) {
+                        // N/A before the first frame is out
+                    }
+                }
+            }
+            int exit = ffmpeg.waitFor();
+            errors.join();
+            if (exit != 0 && !cancelled) {
+                logger.warn("Rendering {} failed, ffmpeg exit code {}", language, exit);
+            }
+            return exit == 0 && !cancelled;
+        } finally {
+            running.remove(ffmpeg);
+            if (ffmpeg.isAlive()) {
+                ffmpeg.destroy();
+            }
+        }
+    }
+
+    /**
+     * Each needed device's recording. A journal segment, or a directory, stands for the whole
+     * journal, whose files are found by the device names they start with; any other WAV is one
+     * device's capture, and can only serve when all the languages come from one device. Of a
+     * journal, only the segments of one run of the program are taken: the chosen segment's, or
+     * the only one there is in the directory.
+     */
+    private static Map<String, Recording> open(Path source, LinkedHashSet<String> devices, Path output) throws IOException {
+        CaptureJournal.SegmentHeader chosen = Files.isDirectory(source) ? null : CaptureJournal.readHeader(source);
+        Path journal = Files.isDirectory(source) ? source
+                : chosen != null ? source.toAbsolutePath().getParent() : null;
+        Map<String, Recording> recordings = new LinkedHashMap<>();
+        if (journal == null) {
+            if (devices.size() > 1) {
+                throw new IOException("The languages come from " + devices.size() + " audio devices, and a WAV file holds one."
+                        + " Choose the capture journal instead.");
+            }
+            AudioFileFormat format;
+            try {
+                format = AudioSystem.getAudioFileFormat(source.toFile());
+            } catch (UnsupportedAudioFileException e) {
+                throw new IOException(source + " is not a WAV file this can read", e);
+            }
+            recordings.put(devices.iterator().next(), new Recording(List.of("-i", source.toString()), 0,
+                    format.getFrameLength() / format.getFormat().getSampleRate(), format.getFormat().getSampleRate()));
+            return recordings;
+        }
+
+        Map<String, TreeMap<String, Path>> segmentsByStem = new LinkedHashMap<>();
+        try (Stream<Path> files = Files.list(journal)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Matcher name = SEGMENT_NAME.matcher(file.getFileName().toString());
+                if (name.matches()) {
+                    segmentsByStem.computeIfAbsent(name.group(1), stem -> new TreeMap<>()).put(file.getFileName().toString(), file);
+                }
+            }
+        }
+        Map<String, List<Segment>> segmentsByDevice = new LinkedHashMap<>();
+        List<Segment> all = new ArrayList<>();
+        for (String device : devices) {
+            TreeMap<String, Path> files = segmentsByStem.get(CaptureJournal.fileStem(device));
+            if (files == null) {
+                throw new IOException("The journal in " + journal + " holds nothing from " + device + ".");
+            }
+            List<Segment> segments = new ArrayList<>();
+            for (Path file : files.values()) {
+                CaptureJournal.SegmentHeader header = CaptureJournal.readHeader(file);
+                if (header != null && header.frames() > 0) {
+                    segments.add(new Segment(file, header));
+                }
+            }
+            segmentsByDevice.put(device, segments);
+            all.addAll(segments);
+        }
+
+        List<Long> runs = runs(all);
+        long run;
+        if (chosen != null) {
+            run = chosen.clockOriginMillis();
+        } else if (runs.size() == 1) {
+            run = runs.get(0);
+        } else if (runs.isEmpty()) {
+            throw new IOException("The journal in " + journal + " holds no audio.");
+        } else {
+            List<String> starts = new ArrayList<>();
+            for (long origin : runs) {
+                starts.add(formatMillis(all.stream().filter(segment -> sameRun(segment.header(), origin))
+                        .mapToLong(segment -> segment.header().startMillis()).min().orElseThrow()));
+            }
+            throw new IOException("The journal in " + journal + " holds " + runs.size() + " streams, started "
+                    + String.join(", ", starts) + ", whose times cannot be lined up with each other."
+                    + " Choose a segment of the one to render.");
+        }
+        for (Map.Entry<String, List<Segment>> entry : segmentsByDevice.entrySet()) {
+            List<Segment> segments = new ArrayList<>();
+            for (Segment segment : entry.getValue()) {
+                if (sameRun(segment.header(), run)) {
+                    segments.add(segment);
+                } else {
+                    logger.info("{} was written in another run of the program and is left out", segment.path());
+                }
+            }
+            // In the order they were captured, which a restart in the same second can give
+            // file names out of
+            segments.sort(Comparator.comparingLong(segment -> segment.header().startNanos()));
+            recordings.put(entry.getKey(), concat(entry.getKey(), segments, output));
+        }
+        return recordings;
+    }
+
+    /** The clock origin of each run of the program the segments were written in, earliest first. */
+    private static List<Long> runs(List<Segment> segments) {
+        List<Long> origins = new ArrayList<>();
+        segments.stream().mapToLong(segment -> segment.header().clockOriginMillis()).sorted().forEach(origin -> {
+            if (origins.isEmpty() || origin - origins.get(origins.size() - 1) > SAME_RUN_MILLIS) {
+                origins.add(origin);
+            }
+        });
+        return origins;
+    }
+
+    private static boolean sameRun(CaptureJournal.SegmentHeader header, long clockOriginMillis) {
+        return Math.abs(header.clockOriginMillis() - clockOriginMillis) <= SAME_RUN_MILLIS;
+    }
+
+    private static String formatMillis(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault()).format(RUN_START);
+    }
+
+    /**
+     * Joins one device's segments with the concat demuxer, each cut at the last frame written,
+     * and a file of silence before any that starts later than the audio before it ends. Segments
+     * in another format than the first - the device was reopened differently - cannot be joined
+     * to it and are left out, with a warning, and their time is filled with silence too. So is
+     * a segment that starts before the audio before it ends: two journals of the device were
+     * written at once.
+     *
+     * @param segments the segments of one run of the program, in the order they were captured
+     */
+    private static Recording concat(String device, List<Segment> segments, Path output) throws IOException {
+        StringBuilder list = new StringBuilder("ffconcat version 1.0\n");
+        CaptureJournal.SegmentHeader first = null;
+        double seconds = 0;
+        int gaps = 0;
+        for (Segment entry : segments) {
+            Path segment = entry.path();
+            CaptureJournal.SegmentHeader header = entry.header();
+            if (first == null) {
+                first = header;
+            } else if (!header.format().matches(first.format())) {
+                logger.warn("{} is in another format than the rest of {}'s journal and is left out", segment, device);
+                continue;
+            }
+            double gap = (header.startNanos() - first.startNanos()) / 1e9 - seconds;
+            if (gap < -MIN_GAP_SECONDS) {
+                logger.warn("{} starts {} s before the audio before it ends, and is left out", segment,
+                        String.format(Locale.ROOT, "%.3f", -gap));
+                continue;
+            }
+            if (gap > MIN_GAP_SECONDS) {
+                long frames = Math.round(gap * first.format().getSampleRate());
+                Path silence = output.resolve(String.format("%s-gap-%04d.wav", CaptureJournal.fileStem(device), ++gaps));
+                writeSilence(silence, first.format(), frames);
+                list.append("file '").append(silence.toAbsolutePath().toString().replace("'", "'\\''")).append("'\n");
+                seconds += frames / first.format().getSampleRate();
+                logger.info("{}'s journal lacks {} s before {}: filled with silence", device,
+                        String.format(Locale.ROOT, "%.3f", gap), segment.getFileName());
+            }
+            list.append("file '").append(segment.toAbsolutePath().toString().replace("'", "'\\''")).append("'\n");
+            list.append("outpoint ").append(String.format(Locale.ROOT, "%.6f", header.seconds())).append('\n');
+            seconds += header.seconds();
+        }
+        if (first == null) {
+            throw new IOException("The journal holds no audio from " + device + ".");
+        }
+        Path listFile = output.resolve(CaptureJournal.fileStem(device) + ".ffconcat");
+        Files.writeString(listFile, list, StandardCharsets.UTF_8);
+        return new Recording(List.of("-f", "concat", "-safe", "0", "-i", listFile.toString()),
+                first.startNanos(), seconds, first.format().getSampleRate());
+    }
+
+    /** A WAV file of the given length of silence: zero samples, so the file is left sparse. */
+    private static void writeSilence(Path path, AudioFormat format, long frames) throws IOException {
+        long dataBytes = frames * format.getFrameSize();
+        ByteBuffer header = ByteBuffer.allocate(CaptureJournal.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        CaptureJournal.writeHeader(header, format, dataBytes, new byte[0]);
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.write(header.array());
+            file.setLength(CaptureJournal.HEADER_BYTES + dataBytes);
+        }
+    }
+}
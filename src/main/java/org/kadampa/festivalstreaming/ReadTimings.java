@@ -0,0 +1,106 @@
+package org.kadampa.festivalstreaming;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * How punctually one device's capture gets its audio: the time between reads, how full each read
+ * came back, and how much was already waiting once it had.
+ * <p>
+ * A device that starts delivering late gives no sign of it until the stream has gaps: the reads
+ * still return, just at the wrong moments, and the meters keep moving. The capture thread records
+ * every read here - a few increments, no allocation - and the meter window reads the counts back
+ * once a second. The intervals go into fixed buckets in milliseconds rather than relative to the
+ * chunk, so two devices read at different intervals can be compared at a glance. A read that
+ * came more than half an interval late counts as late, and a read after which the device already
+ * holds most of its buffer counts as an overrun: the next stall loses audio.
+ * <p>
+ * One thread writes and the counts are only ever read for display, so they need no lock; each is
+ * published as it is written so a reader sees whole values.
+ */
+final class ReadTimings {
+
+    /** Upper bounds of the interval buckets, in milliseconds; the last bucket takes the rest. */
+    static final int[] INTERVAL_BOUNDS_MS = {2, 5, 10, 20, 30, 50, 75, 100, 200};
+    /** Upper bounds of the fill buckets, in percent of the chunk asked for; the last is a full read. */
+    static final int[] FILL_BOUNDS_PERCENT = {25, 50, 75, 99};
+    /** A read this much later than the interval counts as late. */
+    private static final double LATE_FACTOR = 1.5;
+    /** Waiting audio, as a share of the device's buffer, that counts as an overrun. */
+    private static final double OVERRUN_SHARE = 0.9;
+
+    private final AtomicLongArray intervals = new AtomicLongArray(INTERVAL_BOUNDS_MS.length + 1);
+    private final AtomicLongArray fills = new AtomicLongArray(FILL_BOUNDS_PERCENT.length + 1);
+    private volatile long reads;
+    private volatile long lateReads;
+    private volatile long overruns;
+    private volatile long peakBacklogBytes;
+    private volatile double expectedIntervalMillis;
+    private volatile double bytesPerMillisecond;
+    private long lastReadNanos;
+
+    /**
+     * Capture thread: a new opening of the device, reading chunks of the given length. The counts
+     * carry on; the interval across the reopening is not counted.
+     */
+    void restart(double intervalMillis, double bytesPerMillisecond) {
+        this.expectedIntervalMillis = intervalMillis;
+        this.bytesPerMillisecond = bytesPerMillisecond;
+        lastReadNanos = 0;
+    }
+
+    /**
+     * Capture thread: one read.
+     *
+     * @param nowNanos      when it returned
+     * @param bytesRead     what it delivered
+     * @param bytesAsked    what it was asked for
+     * @param backlogBytes  what the device still held afterwards, or -1 when it cannot tell
+     * @param capacityBytes the device's buffer, for the overrun test; 0 when it has none to fill
+     */
+    void record(long nowNanos, int bytesRead, int bytesAsked, int backlogBytes, int capacityBytes) {
+        if (lastReadNanos != 0) {
+            double intervalMillis = (nowNanos - lastReadNanos) / 1e6;
+            int interval = bucket(intervalMillis, INTERVAL_BOUNDS_MS);
+            intervals.lazySet(interval, intervals.get(interval) + 1);
+            if (intervalMillis > expectedIntervalMillis * LATE_FACTOR) {
+                lateReads++;
+            }
+        }
+        lastReadNanos = nowNanos;
+        int fill = bucket(bytesAsked > 0 ? bytesRead * 100.0 / bytesAsked : 100, FILL_BOUNDS_PERCENT);
+        fills.lazySet(fill, fills.get(fill) + 1);
+        reads++;
+        if (backlogBytes > peakBacklogBytes) {
+            peakBacklogBytes = backlogBytes;
+        }
+        if (capacityBytes > 0 && backlogBytes >= capacityBytes * OVERRUN_SHARE) {
+            overruns++;
+        }
+    }
+
+    private static int bucket(double value, int[] bounds) {
+        for (int i = 0; i < bounds.length; i++) {
+            if (value <= bounds[i]) {
+                return i;
+            }
+        }
+        return bounds.length;
+    }
+
+    /** A copy of the counts for display. The peak backlog starts over with each call. */
+    AudioCaptureManager.CaptureTimings snapshot(String device) {
+        long[] intervalCounts = new long[intervals.length()];
+        for (int i = 0; i < intervalCounts.length; i++) {
+            intervalCounts[i] = intervals.get(i);
+        }
+        long[] fillCounts = new long[fills.length()];
+        for (int i = 0; i < fillCounts.length; i++) {
+            fillCounts[i] = fills.get(i);
+        }
+        long backlog = peakBacklogBytes;
+        peakBacklogBytes = 0;
+        double rate = bytesPerMillisecond;
+        return new AudioCaptureManager.CaptureTimings(device, expectedIntervalMillis, reads, intervalCounts,
+                fillCounts, lateReads, overruns, rate > 0 ? backlog / rate : 0);
+    }
+}
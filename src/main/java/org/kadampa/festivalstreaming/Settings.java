@@ -247,6 +247,47 @@ public class Settings implements Serializable {
     private double levelMeterHeightScale = 1.0;
     /** A RenderDevice token; a String so an unreadable file degrades to AUTO instead of failing to load. */
     private String renderDevice = "auto";
+    /** Linux: let the audio relay overflow into a file instead of losing audio. Edited in the file only. */
+    private boolean relaySpillToDisk = false;
+    /**
+     * Headphone monitoring latency to aim for, in milliseconds; 0 keeps the standard buffering,
+     * sturdier but late enough to be heard as an echo. Edited in the file only.
+     */
+    private int monitorLatencyMs = 0;
+    /**
+     * How often the capture hands the meters a buffer, in milliseconds; 0 keeps a quarter of the
+     * device's buffer, about 37ms. Edited in the file only.
+     */
+    private int captureIntervalMs = 0;
+    /**
+     * Linux: what the audio relay does once ffmpeg's backlog stays above its target - "off",
+     * "warn" or "trim", see AudioRelay.BacklogPolicy. Edited in the file only.
+     */
+    private String relayBacklogPolicy = "off";
+    /** Linux: the relay backlog to hold, in milliseconds of audio. Edited in the file only. */
+    private int relayBacklogTargetMs = 500;
+    /**
+     * How long a meter's device stays open after the meter leaves it, in seconds, so switching
+     * back is instant; 0 closes it at once. Edited in the file only.
+     */
+    private int warmCaptureSeconds = 30;
+    /**
+     * Whether every device's raw audio is written to WAV segments next to the recordings while a
+     * stream runs, before any processing. Edited in the file only.
+     */
+    private boolean captureJournal = false;
+    /** The length of one journal segment, in seconds. Edited in the file only. */
+    private int journalSegmentSeconds = 120;
+    /**
+     * Whether each language's own channel is written to a mono WAV file of its own while a stream
+     * runs, for post-production. Edited in the file only.
+     */
+    private boolean stemRecording = false;
+    /**
+     * How many minutes of each language's channel are kept in memory while a stream runs, to be
+     * listened back to from its meter; 0 keeps none. Edited in the file only.
+     */
+    private int historyMinutes = 10;
     // Level meter zone thresholds (dB): grey below green, then green, yellow and red zones
     private double meterGreenThresholdDb = -9.0;
     private double meterYellowThresholdDb = 6.0;
@@ -474,6 +515,86 @@ public class Settings implements Serializable {
         this.timeNeededToOpenADevice = timeNeededToOpenADevice;
     }
 
+    public boolean isRelaySpillToDisk() {
+        return relaySpillToDisk;
+    }
+
+    public void setRelaySpillToDisk(boolean relaySpillToDisk) {
+        this.relaySpillToDisk = relaySpillToDisk;
+    }
+
+    public int getMonitorLatencyMs() {
+        return monitorLatencyMs;
+    }
+
+    public void setMonitorLatencyMs(int monitorLatencyMs) {
+        this.monitorLatencyMs = monitorLatencyMs;
+    }
+
+    public int getCaptureIntervalMs() {
+        return captureIntervalMs;
+    }
+
+    public void setCaptureIntervalMs(int captureIntervalMs) {
+        this.captureIntervalMs = captureIntervalMs;
+    }
+
+    public String getRelayBacklogPolicy() {
+        return relayBacklogPolicy;
+    }
+
+    public void setRelayBacklogPolicy(String relayBacklogPolicy) {
+        this.relayBacklogPolicy = relayBacklogPolicy;
+    }
+
+    public int getRelayBacklogTargetMs() {
+        return relayBacklogTargetMs;
+    }
+
+    public void setRelayBacklogTargetMs(int relayBacklogTargetMs) {
+        this.relayBacklogTargetMs = relayBacklogTargetMs;
+    }
+
+    public int getWarmCaptureSeconds() {
+        return warmCaptureSeconds;
+    }
+
+    public void setWarmCaptureSeconds(int warmCaptureSeconds) {
+        this.warmCaptureSeconds = warmCaptureSeconds;
+    }
+
+    public boolean isCaptureJournal() {
+        return captureJournal;
+    }
+
+    public void setCaptureJournal(boolean captureJournal) {
+        this.captureJournal = captureJournal;
+    }
+
+    public int getJournalSegmentSeconds() {
+        return journalSegmentSeconds;
+    }
+
+    public void setJournalSegmentSeconds(int journalSegmentSeconds) {
+        this.journalSegmentSeconds = journalSegmentSeconds;
+    }
+
+    public boolean isStemRecording() {
+        return stemRecording;
+    }
+
+    public void setStemRecording(boolean stemRecording) {
+        this.stemRecording = stemRecording;
+    }
+
+    public int getHistoryMinutes() {
+        return historyMinutes;
+    }
+
+    public void setHistoryMinutes(int historyMinutes) {
+        this.historyMinutes = historyMinutes;
+    }
+
     public boolean isDevelopmentMode() {
         return developmentMode;
     }
@@ -160,7 +160,19 @@ public class SettingsUtil {
         sortedProps.put("levelMeterHeightScale", String.valueOf(settings.getLevelMeterHeightScale()));
         sortedProps.put("renderDevice", settings.getRenderDevice());
 
-        // Group 5: Level meter zone thresholds (dB)
+        // Group 5: Audio capture
+        sortedProps.put("relaySpillToDisk", String.valueOf(settings.isRelaySpillToDisk()));
+        sortedProps.put("monitorLatencyMs", String.valueOf(settings.getMonitorLatencyMs()));
+        sortedProps.put("captureIntervalMs", String.valueOf(settings.getCaptureIntervalMs()));
+        sortedProps.put("relayBacklogPolicy", settings.getRelayBacklogPolicy());
+        sortedProps.put("relayBacklogTargetMs", String.valueOf(settings.getRelayBacklogTargetMs()));
+        sortedProps.put("warmCaptureSeconds", String.valueOf(settings.getWarmCaptureSeconds()));
+        sortedProps.put("captureJournal", String.valueOf(settings.isCaptureJournal()));
+        sortedProps.put("journalSegmentSeconds", String.valueOf(settings.getJournalSegmentSeconds()));
+        sortedProps.put("stemRecording", String.valueOf(settings.isStemRecording()));
+        sortedProps.put("historyMinutes", String.valueOf(settings.getHistoryMinutes()));
+
+        // Group 6: Level meter zone thresholds (dB)
         sortedProps.put("meterThreshold.green", String.valueOf(settings.getMeterGreenThresholdDb()));
         sortedProps.put("meterThreshold.yellow", String.valueOf(settings.getMeterYellowThresholdDb()));
         sortedProps.put("meterThreshold.red", String.valueOf(settings.getMeterRedThresholdDb()));
@@ -202,6 +214,33 @@ public class SettingsUtil {
                 new String[]{"ffmpegPath", "developmentMode", "levelMeterWidthScale", "levelMeterHeightScale",
                     "renderDevice"});
 
+            writer.write("\n# === AUDIO CAPTURE SETTINGS ===\n");
+            writer.write("# relaySpillToDisk (Linux): when ffmpeg falls so far behind that the audio relay is full,\n");
+            writer.write("# keep the audio in a file in the data directory instead of dropping it. The stream\n");
+            writer.write("# then runs late but keeps its sync.\n");
+            writer.write("# monitorLatencyMs: headphone monitoring latency to aim for, e.g. 20 to 40, so a coordinator\n");
+            writer.write("# in the room hears no echo, on top of one capture interval. 0 keeps the standard buffering,\n");
+            writer.write("# which is later but sturdier.\n");
+            writer.write("# captureIntervalMs: how often the capture hands out a buffer, from 5 to 75. Smaller makes\n");
+            writer.write("# the meters smoother; 0 keeps a quarter of the device buffer, about 37.\n");
+            writer.write("# relayBacklogPolicy (Linux): off | warn | trim - once the start-up is over, what to do when\n");
+            writer.write("# ffmpeg keeps more than relayBacklogTargetMs of audio waiting: nothing, say so, or trim it\n");
+            writer.write("# back in small crossfaded steps. Each trim moves the sound that much earlier.\n");
+            writer.write("# warmCaptureSeconds: how long a device stays open after its last meter leaves it, so\n");
+            writer.write("# switching a language back to it is instant. 0 closes it at once.\n");
+            writer.write("# captureJournal: while streaming, also write every device's raw channels, untouched, to\n");
+            writer.write("# WAV segments of journalSegmentSeconds in a journal-<date> folder next to the recordings.\n");
+            writer.write("# A 32-channel desk takes about 11 GB an hour.\n");
+            writer.write("# stemRecording: while streaming, also write each language's own channel, unmixed and\n");
+            writer.write("# unencoded, to a mono WAV file named after the language in a stems-<date> folder.\n");
+            writer.write("# historyMinutes: how many minutes of each language's channel are kept in memory while\n");
+            writer.write("# streaming, to listen back to from its meter. About 2.4 MB a channel for ten minutes;\n");
+            writer.write("# 0 keeps none, at most 60.\n");
+            writePropertiesSection(writer, sortedProps,
+                new String[]{"relaySpillToDisk", "monitorLatencyMs", "captureIntervalMs",
+                    "relayBacklogPolicy", "relayBacklogTargetMs", "warmCaptureSeconds",
+                    "captureJournal", "journalSegmentSeconds", "stemRecording", "historyMinutes"});
+
             writer.write("\n# === LEVEL METER ZONE THRESHOLDS (dB) ===\n");
             writer.write("# Below green = grey zone, then green, yellow and red zones.\n");
             writer.write("# The enMix.* thresholds apply to the \"English (for mix)\" meter only.\n");
@@ -332,6 +371,15 @@ public class SettingsUtil {
         }
     }
 
+    private static int parseInt(Properties props, String key, int defaultValue) {
+        try {
+            return Integer.parseInt(props.getProperty(key, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid value for {}, falling back to {}", key, defaultValue);
+            return defaultValue;
+        }
+    }
+
     private static int readFormat(Properties props) {
         String rawFormat = props.getProperty(KEY_FORMAT);
         if (rawFormat == null) {
@@ -467,6 +515,16 @@ public class SettingsUtil {
         settings.setFps(props.getProperty("fps", ""));
         settings.setDevelopmentMode(Boolean.parseBoolean(props.getProperty("developmentMode", "false")));
         settings.setRenderDevice(props.getProperty("renderDevice", "auto"));
+        settings.setRelaySpillToDisk(Boolean.parseBoolean(props.getProperty("relaySpillToDisk", "false")));
+        settings.setMonitorLatencyMs(parseInt(props, "monitorLatencyMs", settings.getMonitorLatencyMs()));
+        settings.setCaptureIntervalMs(parseInt(props, "captureIntervalMs", settings.getCaptureIntervalMs()));
+        settings.setRelayBacklogPolicy(props.getProperty("relayBacklogPolicy", settings.getRelayBacklogPolicy()));
+        settings.setRelayBacklogTargetMs(parseInt(props, "relayBacklogTargetMs", settings.getRelayBacklogTargetMs()));
+        settings.setWarmCaptureSeconds(parseInt(props, "warmCaptureSeconds", settings.getWarmCaptureSeconds()));
+        settings.setCaptureJournal(Boolean.parseBoolean(props.getProperty("captureJournal", "false")));
+        settings.setJournalSegmentSeconds(parseInt(props, "journalSegmentSeconds", settings.getJournalSegmentSeconds()));
+        settings.setStemRecording(Boolean.parseBoolean(props.getProperty("stemRecording", "false")));
+        settings.setHistoryMinutes(parseInt(props, "historyMinutes", settings.getHistoryMinutes()));
         settings.setLevelMeterWidthScale(parseDouble(props, "levelMeterWidthScale", settings.getLevelMeterWidthScale()));
         settings.setLevelMeterHeightScale(parseDouble(props, "levelMeterHeightScale", settings.getLevelMeterHeightScale()));
         settings.setMeterGreenThresholdDb(parseDouble(props, "meterThreshold.green", settings.getMeterGreenThresholdDb()));
@@ -0,0 +1,470 @@
+package org.kadampa.festivalstreaming;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.Mixer;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Each interpreter's channel on its own, as it came off the desk: one mono WAV file per language
+ * for the editors, with no ffmpeg involved.
+ * <p>
+ * Post-production wants every language isolated - before the prayers are mixed under it, before
+ * the noise reduction and before AAC - and asking ffmpeg for that meant one more output and one
+ * more encode per language on the machine that is streaming. But the capture already hands every
+ * channel to its listeners, and a language's samples only have to be picked out of the interleaved
+ * buffer and written down. So each device with a language on it gets one listener, which copies
+ * each language's samples, unchanged in their bit depth, into a block of its own; a full block
+ * goes to a single writer thread shared by every stem, which writes it through a
+ * {@link FileChannel} at its place in the file. The listener never touches the disk.
+ * <p>
+ * The blocks are large - seconds of audio - so a stem costs the disk one write every few seconds,
+ * and the blocks of each stem are a fixed set, taken back once written, so the steady state
+ * allocates nothing. Each file is extended ahead of its audio a large extent at a time, rather
+ * than growing with every write, so the file system reserves its space in big pieces and updates
+ * the file's size rarely. The header is corrected after every block and the file forced out every
+ * few seconds, so a crash leaves a playable file that ends at the last block written; a clean end
+ * trims the file to its audio. When the disk falls so far behind that a stem has no free block
+ * left, the audio of one block is lost and counted, and its place in the file left silent, so the
+ * stems stay in step with each other and with the stream. For the same reason, audio the device
+ * delivers in another format than the stems were started in - after it was reopened with other
+ * settings - is written as silence of the same length.
+ * <p>
+ * Each file carries a Broadcast WAV {@code bext} chunk stating when its first sample was captured,
+ * as the time of day in samples and as a date and time, so an editor's timeline puts every stem,
+ * and the stream's own recording, in its place without lining them up by ear.
+ */
+final class StemRecorder implements AudioCaptureManager.FrameListener {
+
+    /** Audio bytes in one block: nearly three seconds of 48 kHz 16-bit mono. */
+    private static final int BLOCK_BYTES = 256 * 1024;
+    /** Blocks of each stem, the one being filled included: how far the writer may fall behind. */
+    private static final int BLOCKS_PER_STEM = 8;
+    /** How far a file is extended ahead of its audio at a time. */
+    private static final long EXTENT_BYTES = 64L << 20;
+    private static final long FORCE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    /** The {@code bext} chunk's fields, coding history left out: Description to Reserved. */
+    private static final int BEXT_BYTES = 602;
+    private static final int BEXT_CHUNK_AT = 36;
+    private static final int BEXT_ORIGINATOR_AT = BEXT_CHUNK_AT + 8 + 256;
+    private static final int BEXT_DATE_AT = BEXT_ORIGINATOR_AT + 32 + 32;
+    private static final int BEXT_TIME_REFERENCE_AT = BEXT_DATE_AT + 10 + 8;
+    private static final int DATA_CHUNK_AT = BEXT_CHUNK_AT + 8 + BEXT_BYTES;
+    /** Header bytes: RIFF, fmt, bext and the data chunk's own header, up to where the samples start. */
+    private static final int HEADER_BYTES = DATA_CHUNK_AT + 8;
+    private static final DateTimeFormatter BEXT_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter BEXT_TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final long MAX_WAV_BYTES = 0xFFFF_FFFFL;
+
+    private static final Logger logger = LoggerFactory.getLogger(StemRecorder.class);
+    /** Writes the blocks of every stem, in the order they were filled. */
+    private static final ThreadPoolExecutor WRITER = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "StemWriter");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final List<StemRecorder> OPEN = new CopyOnWriteArrayList<>();
+
+    /**
+     * What one device's stems have written, for the meter window.
+     *
+     * @param device          the device's name
+     * @param directory       where the stems go
+     * @param stems           languages recorded from the device
+     * @param bytesWritten    audio bytes written, all its stems together
+     * @param megabytesPerSecond what the writer took of the device's stems per second since they started
+     * @param writeMegabytesPerSecond how fast the disk took them while being written to: the headroom
+     * @param queuedBlocks    blocks waiting for the writer now
+     * @param peakQueuedBlocks the most that ever waited
+     * @param lostBlocks      blocks given up because the writer was too far behind
+     */
+    record Stats(String device, Path directory, int stems, long bytesWritten, double megabytesPerSecond,
+                 double writeMegabytesPerSecond, int queuedBlocks, int peakQueuedBlocks, long lostBlocks) {
+    }
+
+    private final Mixer.Info device;
+    private final Path directory;
+    private final List<Stem> stems;
+    private final long startedNanos = System.nanoTime();
+    private final AtomicInteger queuedBlocks = new AtomicInteger();
+    private volatile int peakQueuedBlocks;
+    // The writer's thread only, apart from being read for the figures
+    private volatile long bytesWritten;
+    private volatile long writeNanos;
+    private final AtomicLong lostBlocks = new AtomicLong();
+    private AudioFormat format;  // under the recorder's lock
+    /** Frames of silence owed for another format's audio short of a whole one; under the recorder's lock. */
+    private double silentFrames;
+    private boolean closed;  // under the recorder's lock
+
+    private StemRecorder(Mixer.Info device, Path directory, List<Stem> stems) {
+        this.device = device;
+        this.directory = directory;
+        this.stems = stems;
+    }
+
+    /**
+     * Starts recording the given channels of a device, one file each, or answers null when none
+     * of the files can be made: the stream goes on without them.
+     *
+     * @param files the file of each channel to record, by zero-based channel
+     */
+    static StemRecorder open(Mixer.Info device, Path directory, Map<Integer, String> files) {
+        List<Stem> stems = new ArrayList<>();
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            logger.warn("The stems of {} cannot be written to {}: {}", device.getName(), directory, e.getMessage());
+            return null;
+        }
+        files.forEach((channel, name) -> {
+            Path path = directory.resolve(name);
+            try {
+                stems.add(new Stem(channel, path));
+            } catch (IOException e) {
+                logger.warn("Could not create the stem {}: {}", path, e.getMessage());
+            }
+        });
+        if (stems.isEmpty()) {
+            return null;
+        }
+        StemRecorder recorder = new StemRecorder(device, directory, stems);
+        OPEN.add(recorder);
+        AudioCaptureManager.getInstance().registerListener(device, recorder);
+        logger.info("Recording {} stems of {} into {}", stems.size(), device.getName(), directory);
+        return recorder;
+    }
+
+    /** The figures of every device whose stems are being written. */
+    static List<Stats> active() {
+        List<Stats> stats = new ArrayList<>();
+        for (StemRecorder recorder : OPEN) {
+            stats.add(recorder.stats());
+        }
+        return stats;
+    }
+
+    Stats stats() {
+        long written = bytesWritten;
+        double seconds = (System.nanoTime() - startedNanos) / 1e9;
+        long nanos = writeNanos;
+        return new Stats(device.getName(), directory, stems.size(), written,
+                seconds > 0 ? written / seconds / 1e6 : 0, nanos > 0 ? written * 1e3 / nanos : 0,
+                queuedBlocks.get(), peakQueuedBlocks, lostBlocks.get());
+    }
+
+    /**
+     * The listener's thread: picks each stem's samples out of the buffer. The lock is only ever
+     * contended by {@link #close()}, as in CaptureJournal.
+     */
+    @Override
+    public synchronized void onFrame(AudioFrame frame) {
+        if (closed) {
+            return;
+        }
+        AudioFormat frameFormat = frame.format();
+        if (format == null) {
+            format = frameFormat;
+            stampStart(frame);
+        } else if (frameFormat.getSampleRate() != format.getSampleRate()
+                || frameFormat.getSampleSizeInBits() != format.getSampleSizeInBits()
+                || frameFormat.getChannels() != format.getChannels()) {
+            // The device was reopened in another format, which a stem cannot change to: the
+            // buffer's length in silence keeps the stems in step with the stream
+            silentFrames += frame.frames() * (double) format.getSampleRate() / frameFormat.getSampleRate();
+            int frames = (int) silentFrames;
+            silentFrames -= frames;
+            append(null, frames);
+            return;
+        }
+        append(frame.bytes(), frame.frames());
+    }
+
+    /**
+     * Adds each stem's channel of the buffer to its block, or as many silent samples when there
+     * are no bytes.
+     */
+    private void append(byte[] bytes, int frames) {
+        int frameSize = format.getFrameSize();
+        int sampleBytes = frameSize / format.getChannels();
+        for (Stem stem : stems) {
+            if (stem.channel >= format.getChannels()) {
+                continue;
+            }
+            int from = stem.channel * sampleBytes;
+            int done = 0;
+            while (done < frames) {
+                if (stem.block == null || !stem.block.hasRemaining()) {
+                    hand(stem, sampleBytes);
+                }
+                ByteBuffer block = stem.block;
+                byte[] target = block.array();
+                int at = block.position();
+                int count = Math.min(frames - done, block.remaining() / sampleBytes);
+                if (bytes == null) {
+                    Arrays.fill(target, at, at + count * sampleBytes, (byte) 0);
+                    at += count * sampleBytes;
+                } else {
+                    for (int index = 0; index < count; index++) {
+                        for (int b = 0; b < sampleBytes; b++) {
+                            target[at++] = bytes[from + b];
+                        }
+                        from += frameSize;
+                    }
+                }
+                block.position(at);
+                done += count;
+            }
+        }
+    }
+
+    /**
+     * The listener's thread, before any block is handed over: when the first sample was taken,
+     * back from the moment its buffer was read, for every stem's header.
+     */
+    private void stampStart(AudioFrame frame) {
+        long firstSampleNanos = frame.capturedAtNanos() - (long) (frame.frames() * 1e9 / format.getSampleRate());
+        long startMillis = System.currentTimeMillis() - (System.nanoTime() - firstSampleNanos) / 1_000_000L;
+        for (Stem stem : stems) {
+            stem.startMillis = startMillis;
+        }
+    }
+
+    @Override
+    public String listenerName() {
+        return "Stems";
+    }
+
+    /**
+     * Sends the stem's full block to the writer and takes a free one; with none free, the full
+     * block's audio is given up and its place in the file left silent.
+     */
+    private void hand(Stem stem, int sampleBytes) {
+        ByteBuffer full = stem.block;
+        ByteBuffer next = stem.free.poll();
+        if (full != null) {
+            if (next == null) {
+                lostBlocks.incrementAndGet();
+                stem.position += full.position();
+                next = full.clear();
+            } else {
+                submit(stem, full, format);
+            }
+        }
+        // Whole samples only, so a full block never splits one
+        next.limit(BLOCK_BYTES - BLOCK_BYTES % sampleBytes);
+        stem.block = next;
+    }
+
+    private void submit(Stem stem, ByteBuffer block, AudioFormat blockFormat) {
+        long position = stem.position;
+        stem.position += block.position();
+        block.flip();
+        int queued = queuedBlocks.incrementAndGet();
+        if (queued > peakQueuedBlocks) {
+            peakQueuedBlocks = queued;
+        }
+        WRITER.execute(() -> {
+            queuedBlocks.decrementAndGet();
+            write(stem, block, position, blockFormat);
+        });
+    }
+
+    /** The writer's thread: puts a block at its place in the file, and the block back in the stem's set. */
+    private void write(Stem stem, ByteBuffer block, long position, AudioFormat blockFormat) {
+        long started = System.nanoTime();
+        int length = block.remaining();
+        try {
+            stem.write(block, position, blockFormat);
+            bytesWritten += length;
+        } catch (IOException e) {
+            lostBlocks.incrementAndGet();
+            logger.warn("Could not write to the stem {}: {}", stem.path, e.getMessage());
+        } finally {
+            block.clear();
+            stem.free.offer(block);
+        }
+        writeNanos += System.nanoTime() - started;
+    }
+
+    /**
+     * Stops taking audio, writes what the blocks still hold and trims every file to its audio.
+     * Waits for the writer, within reason: a disk that will not take the last blocks should not
+     * hold up the end of a stream.
+     */
+    void close() {
+        AudioCaptureManager.getInstance().unregisterListener(device, this);
+        OPEN.remove(this);
+        Future<?> finished;
+        synchronized (this) {
+            closed = true;
+            for (Stem stem : stems) {
+                if (stem.block != null && stem.block.position() > 0) {
+                    submit(stem, stem.block, format);
+                    stem.block = null;
+                }
+            }
+            finished = WRITER.submit(() -> stems.forEach(Stem::finish));
+        }
+        try {
+            finished.get(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logger.warn("The stems of {} were not all finished: {}", device.getName(), e.toString());
+        }
+        Stats stats = stats();
+        logger.info("Stems of {}: {} MB in {} files, {} MB/s written at up to {} MB/s, {} blocks at most waiting,"
+                        + " {} lost", stats.device(), stats.bytesWritten() >> 20, stats.stems(),
+                String.format("%.2f", stats.megabytesPerSecond()), String.format("%.0f", stats.writeMegabytesPerSecond()),
+                stats.peakQueuedBlocks(), stats.lostBlocks());
+    }
+
+    /** One language's file. Its blocks are filled on the listener's thread and written on the writer's. */
+    private static final class Stem {
+        private final int channel;
+        private final Path path;
+        private final RandomAccessFile file;
+        private final FileChannel fileChannel;
+        private final ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BLOCKS_PER_STEM);
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        // The listener's thread
+        private ByteBuffer block;
+        private long position;
+        // The writer's thread
+        private AudioFormat format;
+        /** When the first sample was captured; set before the first block is handed over. */
+        private long startMillis;
+        private long dataBytes;
+        private long extentEnd;
+        private long lastForceNanos = System.nanoTime();
+
+        Stem(int channel, Path path) throws IOException {
+            this.channel = channel;
+            this.path = path;
+            this.file = new RandomAccessFile(path.toFile(), "rw");
+            this.fileChannel = file.getChannel();
+            for (int index = 0; index < BLOCKS_PER_STEM; index++) {
+                free.add(ByteBuffer.allocate(BLOCK_BYTES));
+            }
+        }
+
+        void write(ByteBuffer block, long position, AudioFormat blockFormat) throws IOException {
+            format = blockFormat;
+            long end = HEADER_BYTES + position + block.remaining();
+            if (end > extentEnd) {
+                extentEnd = end + EXTENT_BYTES;
+                file.setLength(extentEnd);
+            }
+            long at = HEADER_BYTES + position;
+            while (block.hasRemaining()) {
+                at += fileChannel.write(block, at);
+            }
+            dataBytes = Math.max(dataBytes, end - HEADER_BYTES);
+            writeHeader();
+            long now = System.nanoTime();
+            if (now - lastForceNanos >= FORCE_INTERVAL_NANOS) {
+                fileChannel.force(false);
+                lastForceNanos = now;
+            }
+        }
+
+        /** A PCM header with its {@code bext} chunk, stating the audio written so far. */
+        private void writeHeader() throws IOException {
+            int bytesPerSample = format.getSampleSizeInBits() / 8;
+            int sampleRate = (int) format.getSampleRate();
+            header.clear();
+            header.put("RIFF".getBytes(StandardCharsets.US_ASCII));
+            header.putInt((int) Math.min(MAX_WAV_BYTES, HEADER_BYTES - 8 + dataBytes));
+            header.put("WAVEfmt ".getBytes(StandardCharsets.US_ASCII));
+            header.putInt(16);
+            header.putShort((short) 1);  // integer PCM
+            header.putShort((short) 1);  // mono
+            header.putInt(sampleRate);
+            header.putInt(sampleRate * bytesPerSample);
+            header.putShort((short) bytesPerSample);
+            header.putShort((short) format.getSampleSizeInBits());
+            writeBext(sampleRate);
+            header.position(DATA_CHUNK_AT);
+            header.put("data".getBytes(StandardCharsets.US_ASCII));
+            header.putInt((int) Math.min(MAX_WAV_BYTES, dataBytes));
+            header.flip();
+            int at = 0;
+            while (header.hasRemaining()) {
+                at += fileChannel.write(header, at);
+            }
+        }
+
+        /**
+         * The {@code bext} chunk, version 1: the device's channel in the description, and the
+         * first sample's local date and time, with the time of day again in samples as the
+         * time reference an editor places the file by.
+         */
+        private void writeBext(int sampleRate) {
+            LocalDateTime start = LocalDateTime.ofInstant(Instant.ofEpochMilli(startMillis), ZoneId.systemDefault());
+            long sinceMidnightMillis = start.toLocalTime().toNanoOfDay() / 1_000_000L;
+            long timeReference = sinceMidnightMillis * sampleRate / 1000;
+            header.put(BEXT_CHUNK_AT, "bext".getBytes(StandardCharsets.US_ASCII));
+            header.putInt(BEXT_CHUNK_AT + 4, BEXT_BYTES);
+            Arrays.fill(header.array(), BEXT_CHUNK_AT + 8, DATA_CHUNK_AT, (byte) 0);
+            putText(BEXT_CHUNK_AT + 8, 256, "Channel " + (channel + 1));
+            putText(BEXT_ORIGINATOR_AT, 32, "FestivalStreaming");
+            putText(BEXT_DATE_AT, 10, BEXT_DATE.format(start));
+            putText(BEXT_DATE_AT + 10, 8, BEXT_TIME.format(start));
+            header.putInt(BEXT_TIME_REFERENCE_AT, (int) timeReference);
+            header.putInt(BEXT_TIME_REFERENCE_AT + 4, (int) (timeReference >>> 32));
+            header.putShort(BEXT_TIME_REFERENCE_AT + 8, (short) 1);
+        }
+
+        /** ASCII text in a fixed field, cut to fit; the rest of the field stays zero. */
+        private void putText(int at, int length, String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+            header.put(at, bytes, 0, Math.min(length, bytes.length));
+        }
+
+        /** Trims the file to its audio and closes it; a stem that never had audio is removed. */
+        void finish() {
+            try {
+                if (format == null) {
+                    file.close();
+                    Files.deleteIfExists(path);
+                    return;
+                }
+                writeHeader();
+                file.setLength(HEADER_BYTES + dataBytes);
+                fileChannel.force(true);
+                file.close();
+            } catch (IOException e) {
+                logger.warn("Could not finish the stem {}: {}", path, e.getMessage());
+            }
+        }
+    }
+}
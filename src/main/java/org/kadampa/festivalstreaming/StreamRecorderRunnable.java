@@ -15,12 +15,15 @@ import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.Mixer;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 public class StreamRecorderRunnable implements Runnable {
 
@@ -37,6 +40,10 @@ public class StreamRecorderRunnable implements Runnable {
     private static final int KEYFRAME_INTERVAL_SECONDS = 2;
     private static final String X264_ENCODER = "libx264";
     private static final String X264_PRESET = "veryfast";
+    /** What the English is raised by after the prayers are mixed under it: the filter takes some of it away. */
+    private static final double ENGLISH_MIX_GAIN_DB = 7.6;
+    /** Likewise for every other language, mixed with the prayers and the English at low level. */
+    private static final double LANGUAGE_MIX_GAIN_DB = 9.3;
 
     public final static int URL=1;
     public final static int FILE=2;
@@ -57,6 +64,8 @@ public class StreamRecorderRunnable implements Runnable {
     private final List<String> audioDevicesList = new ArrayList<>();
     private final List<String> audioInputsChannel = new ArrayList<>();
     private final List<Integer> noiseReductionValues = new ArrayList<>();
+    /** The place of each of those inputs in Settings.LANGUAGES. */
+    private final List<Integer> audioLanguageIndices = new ArrayList<>();
     private String outputResolution;
     private String pixelFormat;
     private String encoder;
@@ -68,6 +77,8 @@ public class StreamRecorderRunnable implements Runnable {
     private int fps;
     private int delay;
     private int timeNeededToOpenADevice;
+    private String offsetReferenceDevice;
+    private Map<String, Double> measuredOffsetsMillis = Map.of();
     private String ffmpegPath;
     private String videoInputMode;
     private String videoInputPixelFormat;
@@ -82,10 +93,25 @@ public class StreamRecorderRunnable implements Runnable {
      * (verified live on the machine). Simple devices keep the pulse input.
      */
     private static final int PULSE_CHANNEL_LIMIT = 8;
-    private List<String> pwRecordCommand;
-    private Process pwRecordProcess;
-    /** Joins pw-record to ffmpeg on Linux without losing the start-up audio: see AudioRelay. */
-    private AudioRelay audioRelay;
+    /** Time a calibration run may take beyond its recording, to open its inputs and wind down. */
+    private static final long CALIBRATION_GRACE_SECONDS = 20;
+    /**
+     * Joins the meters' capture of each such device to ffmpeg on Linux without losing the
+     * start-up audio: see AudioRelay. Opened with the command, because the command needs their
+     * formats. Replaced whole rather than changed, since Stop and the encoding thread both close
+     * them.
+     */
+    private volatile Map<String, RelayedDevice> audioRelays = Map.of();
+    private boolean relaySpillToDisk;
+    /** Whether each device's raw audio is journaled while the stream runs: see CaptureJournal. */
+    private boolean captureJournal;
+    private int journalSegmentSeconds = 120;
+    /** Whether each language's own channel is recorded to a WAV file of its own: see StemRecorder. */
+    private boolean stemRecording;
+    /** Minutes of each language's channel kept in memory to listen back to: see AudioHistory. */
+    private int historyMinutes;
+    private AudioRelay.BacklogPolicy relayBacklogPolicy = AudioRelay.BacklogPolicy.OFF;
+    private int relayBacklogTargetMs = 500;
     // Built on the FX thread when the Information tab is filled, consumed by the encoding thread
     private volatile List<String> preparedCommand;
     private Process process = null;
@@ -98,6 +124,8 @@ public class StreamRecorderRunnable implements Runnable {
     private final Queue<String> outputLines = new ConcurrentLinkedQueue<>();
     /** Told, on a reader thread, that lines are waiting; the GUI drains them in batches. */
     private volatile Runnable outputListener = () -> { };
+    /** Told, on a capture listener's thread, each fault the channels' detectors find. */
+    private volatile BiConsumer<String, ConsoleSeverity> faultListener = (line, severity) -> { };
     private ExecutorService gobblers;
     private ProcessMonitor monitor;
     private final BooleanProperty isAliveProperty = new SimpleBooleanProperty(); // Create the property
@@ -114,25 +142,14 @@ public class StreamRecorderRunnable implements Runnable {
     public void run() {
         List<String> command = takeCommand();
         stopRequested = false;
+        Map<String, AudioCaptureManager.ClockStats> clocksAtStart = audioClocks();
+        List<CaptureJournal> journals = openJournals();
+        List<StemRecorder> stems = openStems();
+        List<ChannelFaultDetector> faultDetectors = openFaultDetectors();
+        List<AudioHistory> histories = openHistories();
         try {
-            if (pwRecordCommand != null) {
-                // The recorder and ffmpeg are started separately and joined by an AudioRelay
-                // instead of a plain pipe, so the audio recorded during ffmpeg's start-up
-                // survives to be encoded and the delay setting only has to cover the real
-                // chain latency: see AudioRelay
-                ProcessBuilder recorder = new ProcessBuilder(pwRecordCommand)
-                        .redirectError(ProcessBuilder.Redirect.DISCARD);
-                pwRecordProcess = recorder.start();
-                process = new ProcessBuilder(command).start();
-                audioRelay = new AudioRelay(pwRecordProcess.getInputStream(),
-                        process.getOutputStream(), pwRecordBytesPerSecond());
-                audioRelay.start();
-            } else {
-                process = new ProcessBuilder(command).start();
-            }
-            if (audioPipe != null) {
-                audioPipe.start(process.getOutputStream());
-            }
+            process = new ProcessBuilder(command).start();
+            startAudioFeeds(process);
             monitor = new ProcessMonitor(process, isAliveProperty);
             // Named daemons, shut down with the process: a fresh pair used to be created on every
             // Start and left running, so a session of stop/start cycles quietly grew a thread each
@@ -153,9 +170,14 @@ public class StreamRecorderRunnable implements Runnable {
                 stop();
             }
         } finally {
-            // However ffmpeg went away - clean exit, failed start, or crash - the recorder
-            // feeding it must not stay behind
-            stopPwRecord();
+            // However ffmpeg went away - clean exit, failed start, or crash - the relay feeding
+            // it must not stay behind on the capture
+            closeAudioRelays();
+            journals.forEach(CaptureJournal::close);
+            stems.forEach(StemRecorder::close);
+            faultDetectors.forEach(ChannelFaultDetector::close);
+            histories.forEach(AudioHistory::close);
+            logAudioClocks(clocksAtStart);
             if (gobblers != null) {
                 // The readers end by themselves when the streams close; this only stops the pool
                 // from outliving the process it was reading
@@ -165,28 +187,237 @@ public class StreamRecorderRunnable implements Runnable {
         }
     }
 
-    /** Called on a reader thread for every line ffmpeg writes, on either stream. */
-    private void publishOutputLine(String line) {
-        outputLines.add(line);
-        outputListener.run();
+    /** Hands the audio captured here to a freshly started ffmpeg, on macOS and through the relays. */
+    private void startAudioFeeds(Process ffmpeg) {
+        for (RelayedDevice relayed : audioRelays.values()) {
+            // The capture and ffmpeg are joined by an AudioRelay instead of a plain pipe,
+            // so the audio recorded during ffmpeg's start-up survives to be encoded and the
+            // delay setting only has to cover the real chain latency: see AudioRelay
+            if (relayed.fifo() != null) {
+                relayed.relay().start();
+            } else {
+                relayed.relay().start(ffmpeg.getOutputStream());
+            }
+        }
+        if (audioPipe != null) {
+            audioPipe.start(ffmpeg.getOutputStream());
+        }
+    }
+
+    /**
+     * Opens the video and the first language's device exactly as the stream would, for the given
+     * time, and measures where a clap or a flash lands in each instead of encoding: see
+     * {@link SyncCalibration}. Blocks for the run, so never on the FX thread, and never while a
+     * stream runs - the two would fight over the camera.
+     *
+     * @return what was found, or null when ffmpeg saw no event in the picture or the sound
+     */
+    public SyncCalibration.Result calibrateSync(double seconds) throws IOException, InterruptedException {
+        if (audioDevicesList.isEmpty()) {
+            return null;
+        }
+        String audioDevice = audioDevicesList.get(0);
+        openAudioPipe();
+        // Only the device the run reads: a relay of any other would wait forever on a named pipe
+        // nobody opens, or write into this ffmpeg's standard input
+        openAudioRelays(List.of(audioDevice));
+        List<String> command = new ArrayList<>();
+        command.add(Host.ffmpegExecutable(ffmpegPath));
+        command.add("-hide_banner");
+        command.add("-nostats");
+        command.add("-loglevel");
+        command.add("info");
+        addVideoInput(command);
+        addAudioInput(command, audioDevice);
+        command.add("-filter_complex");
+        // No delay on the sound: what is measured is the delay to set
+        command.add(SyncCalibration.filterGraph(pickChannel(1, audioDevice, audioInputsChannel.get(0), "0")));
+        command.add("-map");
+        command.add("[v]");
+        command.add("-map");
+        command.add("[a]");
+        command.add("-t");
+        command.add(String.valueOf(seconds));
+        command.add("-f");
+        command.add("null");
+        command.add("-");
+        if (!command.contains("pipe:0")) {
+            // Otherwise ffmpeg reads its standard input as keys, and a stray 'q' ends the run
+            command.add(1, "-nostdin");
+        }
+        logger.info("Calibrating the audio delay: {}", formatForDisplay(command));
+
+        SyncCalibration calibration = new SyncCalibration();
+        Process ffmpeg = new ProcessBuilder(command).redirectErrorStream(true).start();
+        // One reader on both streams: the figures come a thousand lines a second, and are taken as
+        // they come. It ends when ffmpeg does, and is joined before the result is read
+        Thread reader = new Thread(new StreamGobbler(ffmpeg.getInputStream(), calibration::accept), "calibration-output");
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            startAudioFeeds(ffmpeg);
+            // Generous: opening the camera and the sound server can take seconds of their own
+            if (!ffmpeg.waitFor((long) seconds + CALIBRATION_GRACE_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("The calibration run did not end by itself");
+            } else if (ffmpeg.exitValue() != 0) {
+                logger.warn("The calibration run failed, ffmpeg exit code {}", ffmpeg.exitValue());
+            }
+        } finally {
+            if (ffmpeg.isAlive()) {
+                destroyProcessAndChildren(ffmpeg);
+            }
+            closeAudioRelays();
+            closeAudioPipe();
+        }
+        reader.join();
+        return calibration.result();
+    }
+
+    /**
+     * Starts a journal of the raw audio of every device the stream takes a language from, in a
+     * directory of its own next to the recordings - or in the data directory when the stream is
+     * not recorded. Each segment names the language on each channel it was read from.
+     */
+    private List<CaptureJournal> openJournals() {
+        List<CaptureJournal> journals = new ArrayList<>();
+        if (!captureJournal) {
+            return journals;
+        }
+        String base = outputDirectory != null && !outputDirectory.isBlank()
+                ? outputDirectory : Host.userDataDir().getPath();
+        Path directory = Path.of(base, "journal-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss")));
+        Map<String, StringBuilder> channelMaps = new LinkedHashMap<>();
+        for (int index = 0; index < audioDevicesList.size(); index++) {
+            StringBuilder map = channelMaps.computeIfAbsent(audioDevicesList.get(index), device -> new StringBuilder());
+            int language = audioLanguageIndices.get(index);
+            map.append(map.isEmpty() ? "" : ", ").append(audioInputsChannel.get(index)).append('=')
+                    .append(language < Settings.LANGUAGES.length ? Settings.LANGUAGES[language].name() : "language " + language);
+        }
+        channelMaps.forEach((deviceName, map) -> {
+            Mixer.Info device = AudioCaptureManager.findCaptureDevice(deviceName);
+            CaptureJournal journal = device != null
+                    ? CaptureJournal.open(device, directory, map.toString(), journalSegmentSeconds) : null;
+            if (journal != null) {
+                journals.add(journal);
+            }
+        });
+        return journals;
+    }
+
+    /**
+     * Starts recording every language's own channel to a mono WAV file named after it, in a
+     * directory of its own next to the recordings - or in the data directory when the stream is
+     * not recorded. The files are numbered in the order of the languages, so they list in it.
+     */
+    private List<StemRecorder> openStems() {
+        List<StemRecorder> recorders = new ArrayList<>();
+        if (!stemRecording) {
+            return recorders;
+        }
+        String base = outputDirectory != null && !outputDirectory.isBlank()
+                ? outputDirectory : Host.userDataDir().getPath();
+        Path directory = Path.of(base, "stems-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss")));
+        Map<String, Map<Integer, String>> filesByDevice = new LinkedHashMap<>();
+        for (int index = 0; index < audioDevicesList.size(); index++) {
+            Map<Integer, String> files = filesByDevice.computeIfAbsent(audioDevicesList.get(index), device -> new TreeMap<>());
+            int language = audioLanguageIndices.get(index);
+            String name = String.format("%02d-%s", language + 1, (language < Settings.LANGUAGES.length
+                    ? Settings.LANGUAGES[language].name() : "Language " + language).replaceAll("[\\\\/:*?\"<>|]", "_"));
+            // Two languages read from one channel share its file
+            files.merge(SettingsUtil.audioChannelIndex(audioInputsChannel.get(index)), name + ".wav",
+                    (first, second) -> first.replace(".wav", "") + "+" + second);
+        }
+        filesByDevice.forEach((deviceName, files) -> {
+            Mixer.Info device = AudioCaptureManager.findCaptureDevice(deviceName);
+            StemRecorder recorder = device != null ? StemRecorder.open(device, directory, files) : null;
+            if (recorder != null) {
+                recorders.add(recorder);
+            }
+        });
+        return recorders;
     }
 
-    private void stopPwRecord() {
-        if (audioRelay != null) {
-            audioRelay.stop();
-            audioRelay = null;
+    /**
+     * Starts watching every channel the stream takes a language from for clipping, overs, a DC
+     * offset or a frozen or silent input, for as long as the stream runs. A channel read by two
+     * languages is watched once, under both their names.
+     */
+    private List<ChannelFaultDetector> openFaultDetectors() {
+        List<ChannelFaultDetector> detectors = new ArrayList<>();
+        Map<String, Map<Integer, String>> namesByDevice = new LinkedHashMap<>();
+        for (int index = 0; index < audioDevicesList.size(); index++) {
+            Map<Integer, String> names = namesByDevice.computeIfAbsent(audioDevicesList.get(index), device -> new TreeMap<>());
+            int language = audioLanguageIndices.get(index);
+            names.merge(SettingsUtil.audioChannelIndex(audioInputsChannel.get(index)),
+                    language < Settings.LANGUAGES.length ? Settings.LANGUAGES[language].name() : "Language " + language,
+                    (first, second) -> first + "+" + second);
         }
-        if (pwRecordProcess != null) {
-            pwRecordProcess.destroy();
-            pwRecordProcess = null;
+        namesByDevice.forEach((deviceName, names) -> {
+            Mixer.Info device = AudioCaptureManager.findCaptureDevice(deviceName);
+            if (device != null) {
+                detectors.add(ChannelFaultDetector.open(device, names, (line, severity) -> faultListener.accept(line, severity)));
+            }
+        });
+        return detectors;
+    }
+
+    /**
+     * Starts keeping the last minutes of every channel the stream takes a language from, for
+     * their meters to play back. The last stream's histories are let go first: they were kept
+     * for listening to after it ended, and the new ones take the memory they had - or, with the
+     * history switched off, nothing does.
+     */
+    private List<AudioHistory> openHistories() {
+        List<AudioHistory> histories = new ArrayList<>();
+        AudioHistory.discardAll();
+        if (historyMinutes <= 0) {
+            return histories;
+        }
+        Map<String, Set<Integer>> channelsByDevice = new LinkedHashMap<>();
+        for (int index = 0; index < audioDevicesList.size(); index++) {
+            channelsByDevice.computeIfAbsent(audioDevicesList.get(index), device -> new TreeSet<>())
+                    .add(SettingsUtil.audioChannelIndex(audioInputsChannel.get(index)));
         }
+        channelsByDevice.forEach((deviceName, channels) -> {
+            Mixer.Info device = AudioCaptureManager.findCaptureDevice(deviceName);
+            if (device != null) {
+                histories.add(AudioHistory.open(device, channels, historyMinutes));
+            }
+        });
+        return histories;
     }
 
-    /** The byte rate of pw-record's output, read back off its own command line. */
-    private int pwRecordBytesPerSecond() {
-        int rate = Integer.parseInt(pwRecordCommand.get(pwRecordCommand.indexOf("--rate") + 1));
-        int channels = Integer.parseInt(pwRecordCommand.get(pwRecordCommand.indexOf("--channels") + 1));
-        return rate * channels * 2;  // s16 samples
+    /** The clocks of the devices this stream takes its audio from, by device name. */
+    private Map<String, AudioCaptureManager.ClockStats> audioClocks() {
+        Map<String, AudioCaptureManager.ClockStats> clocks = new HashMap<>();
+        for (AudioCaptureManager.ClockStats clock : AudioCaptureManager.getInstance().clockStats()) {
+            if (audioDevicesList.contains(clock.device())) {
+                clocks.put(clock.device(), clock);
+            }
+        }
+        return clocks;
+    }
+
+    /**
+     * Puts into the session log how far each device's audio moved against the clock while this
+     * stream ran: the sample-counted timestamps moved the sound against the picture by as much,
+     * which is what tells whether a long session wants a restart before the next one.
+     */
+    private void logAudioClocks(Map<String, AudioCaptureManager.ClockStats> atStart) {
+        for (AudioCaptureManager.ClockStats clock : audioClocks().values()) {
+            AudioCaptureManager.ClockStats before = atStart.get(clock.device());
+            double moved = clock.offsetMillis() - (before != null ? before.offsetMillis() : 0);
+            long gaps = clock.gaps() - (before != null ? before.gaps() : 0);
+            logger.info("Over this stream the audio of {} moved {} ms against the clock ({} gaps), drift {}",
+                    clock.device(), String.format("%+.0f", moved), gaps,
+                    Double.isNaN(clock.driftPpm()) ? "not measured" : String.format("%+.1f ppm", clock.driftPpm()));
+        }
+    }
+
+    /** Called on a reader thread for every line ffmpeg writes, on either stream. */
+    private void publishOutputLine(String line) {
+        outputLines.add(line);
+        outputListener.run();
     }
 
     public Process getProcess() {
@@ -197,11 +428,13 @@ public class StreamRecorderRunnable implements Runnable {
      * The command as text for the Information tab. The arguments themselves carry no quotes, so
      * they are quoted here for display only; pasting the result into a shell runs the same thing.
      * <p>
-     * On macOS this also opens the audio capture, because the command cannot be written until the
-     * rate and channel count the device is giving us are known.
+     * On macOS, and on Linux for a multi-channel device, this also joins the audio capture,
+     * because the command cannot be written until the rate and channel count the device is
+     * giving us are known.
      */
     public String getFFMpegCommand() {
         openAudioPipe();
+        openAudioRelays();
         preparedCommand = initialiseFFMpegCommand();
         return formatForDisplay(preparedCommand);
     }
@@ -239,6 +472,83 @@ public class StreamRecorderRunnable implements Runnable {
         }
     }
 
+    /**
+     * A device read natively and relayed to ffmpeg.
+     *
+     * @param channels the desk channels relayed, in the order ffmpeg sees them: see usedChannels
+     * @param fifo     the named pipe ffmpeg reads it from, or null for ffmpeg's standard input
+     */
+    private record RelayedDevice(AudioRelay relay, int[] channels, Path fifo) {
+    }
+
+    /**
+     * Joins the capture of every device the pulse input cannot carry, so their samples can be
+     * relayed to ffmpeg. Each has its own relay and its own named pipe; should the system refuse
+     * a pipe, the device falls back on ffmpeg's standard input, which one device can have. A
+     * relay that still carries the same channels of the same device is kept. Does nothing
+     * elsewhere than on Linux.
+     */
+    private void openAudioRelays() {
+        openAudioRelays(audioDevicesList);
+    }
+
+    /** Relays the given devices only, as {@link #openAudioRelays()} does; any other relay is stopped. */
+    private void openAudioRelays(List<String> deviceNames) {
+        if (!Host.isLinux()) {
+            return;
+        }
+        Map<String, RelayedDevice> previous = audioRelays;
+        Map<String, RelayedDevice> relays = new LinkedHashMap<>();
+        boolean standardInputTaken = false;
+        for (String deviceName : new LinkedHashSet<>(deviceNames)) {
+            if (linuxChannelCount(deviceName) <= PULSE_CHANNEL_LIMIT) {
+                continue;
+            }
+            int[] channels = usedChannels(deviceName);
+            RelayedDevice kept = previous.get(deviceName);
+            if (kept != null && Arrays.equals(channels, kept.channels())
+                    && (kept.fifo() != null || !standardInputTaken)) {
+                relays.put(deviceName, kept);
+                standardInputTaken |= kept.fifo() == null;
+                continue;
+            }
+            Mixer.Info device = AudioCaptureManager.findCaptureDevice(deviceName);
+            if (device == null) {
+                logger.error("The audio device {} was not found", deviceName);
+                continue;
+            }
+            AudioRelay relay = new AudioRelay(device, channels, relaySpillToDisk);
+            relay.setBacklogPolicy(relayBacklogPolicy, relayBacklogTargetMs);
+            Path fifo = relay.createFifo();
+            if (fifo == null) {
+                if (standardInputTaken) {
+                    logger.error("The audio device {} cannot be relayed to ffmpeg: no named pipe, and"
+                            + " the standard input is taken", deviceName);
+                    relay.stop();
+                    continue;
+                }
+                standardInputTaken = true;
+            }
+            relay.open();
+            relays.put(deviceName, new RelayedDevice(relay, channels, fifo));
+        }
+        for (Map.Entry<String, RelayedDevice> entry : previous.entrySet()) {
+            if (relays.get(entry.getKey()) != entry.getValue()) {
+                entry.getValue().relay().stop();
+            }
+        }
+        audioRelays = relays;
+    }
+
+    /** Called both by Stop and by the encoding thread when ffmpeg ends, in either order. */
+    private void closeAudioRelays() {
+        Map<String, RelayedDevice> relays = audioRelays;
+        audioRelays = Map.of();
+        for (RelayedDevice relayed : relays.values()) {
+            relayed.relay().stop();
+        }
+    }
+
     /**
      * The command to run. The GUI asks for the text of the command just before starting, and we
      * reuse exactly that one so the recording shown is the recording made, timestamp included.
@@ -246,6 +556,7 @@ public class StreamRecorderRunnable implements Runnable {
     private List<String> takeCommand() {
         if (preparedCommand == null) {
             openAudioPipe();
+            openAudioRelays();
         }
         List<String> command = preparedCommand != null ? preparedCommand : initialiseFFMpegCommand();
         preparedCommand = null;
@@ -268,7 +579,6 @@ public class StreamRecorderRunnable implements Runnable {
     }
 
     private List<String> initialiseFFMpegCommand() {
-        pwRecordCommand = null;
         List<String> devicesListCommand = new ArrayList<>();
         List<String> filterComplexCommand = new ArrayList<>();
         // The chain ends of the filter graph, one per language, mapped into every output
@@ -283,6 +593,7 @@ public class StreamRecorderRunnable implements Runnable {
 
         //The audio devices
         Map<String,Integer> alreadyOpenedAudioDevices = new LinkedHashMap<>();
+        Map<String,String> deviceDelays = new LinkedHashMap<>();
         int numberOfChannel= audioInputsChannel.size();
         for(String audioDevice:audioDevicesList) {
             i++;
@@ -296,6 +607,7 @@ public class StreamRecorderRunnable implements Runnable {
                 if(j>1) {
                     audioDelay = audioDelay + timeNeededToOpenADevice;
                 }
+                deviceDelays.put(audioDevice, deviceDelay(audioDevice, audioDelay));
             }
 
             int deviceNumber = alreadyOpenedAudioDevices.get(audioDevice);
@@ -305,7 +617,7 @@ public class StreamRecorderRunnable implements Runnable {
             //input 2 is English (not to be mixed with other language, but need the  prayer to be added)
             if(i==1) {
                 //Here it's the prayer
-                filterCommand.append(pickChannel(deviceNumber, audioInputsChannel.get(0), audioDelay)).append("[prayers];");
+                filterCommand.append(pickChannel(deviceNumber, audioDevice, audioInputsChannel.get(0), deviceDelays.get(audioDevice))).append("[prayers];");
                 //We new duplicate prayers to use it in the different mixes
                 //The first 2 channel don't have the mix, because they are the prayers itself and the english to be mixed with the translation
                 filterCommand.append("[prayers]asplit=").append(numberOfChannel-2);
@@ -316,7 +628,7 @@ public class StreamRecorderRunnable implements Runnable {
                 filterCommand.append(";");
             } else if(i==2) {
                 //Here it's the english low level to mix with other languages than english
-                filterCommand.append(pickChannel(deviceNumber, audioInputsChannel.get(i-1), audioDelay))
+                filterCommand.append(pickChannel(deviceNumber, audioDevice, audioInputsChannel.get(i-1), deviceDelays.get(audioDevice)))
                         .append("[englishToBeMixed];");
                 //We new duplicate to use it in the different mixes
                 //The first 3 channel don't have the mix, because they are the prayers, the english to be mixed with the translation itself and the english
@@ -329,35 +641,17 @@ public class StreamRecorderRunnable implements Runnable {
 
             } else if(i==3) {
                 //Here it's the english that need the mix of the prayer but not the english low level
-                filterCommand.append(pickChannel(deviceNumber, audioInputsChannel.get(i-1), audioDelay));
-                //For the english language, the noiseReduction value has a different meaning that the other languages
-                //Here, 3 means we use 100% of the filter, 2 means 75% and 1 means 50%
-                //We also use the bd model that is trained to remove general noise but not human noises
-                //We had 8dB because the filter decrease the sound
-                String generalNoiseModel = NoiseModels.modelPathForFilter(NoiseModels.GENERAL_NOISE_MODEL);
-                if(noiseReductionValues.get(i - 1)==1) {
-                    filterCommand.append(",arnndn=model='").append(generalNoiseModel).append("':mix=0.3");
-                }
-                if(noiseReductionValues.get(i - 1)==2) {
-                    filterCommand.append(",arnndn=model='").append(generalNoiseModel).append("':mix=0.6");
-                }
-                if(noiseReductionValues.get(i - 1)==3) {
-                    filterCommand.append(",arnndn=model='").append(generalNoiseModel).append("'");
-                }
-
-
+                filterCommand.append(pickChannel(deviceNumber, audioDevice, audioInputsChannel.get(i-1), deviceDelays.get(audioDevice)));
+                filterCommand.append(noiseReduction(i));
                 filterCommand.append("[englishfiltered").append(i).append("];");
-                filterCommand.append("[prayers").append(i).append("][englishfiltered").append(i).append("]amix=inputs=2,volume=7.6dB").append("[outmixed").append(i).append("];");
+                filterCommand.append("[prayers").append(i).append("][englishfiltered").append(i).append("]").append(languageMix(i)).append("[outmixed").append(i).append("];");
                 audioLabels.add("outmixed" + i);
 
             } else {
-                filterCommand.append(pickChannel(deviceNumber, audioInputsChannel.get(i-1), audioDelay));
-                //For the other language, the noiseReduction value is the number of time we apply the filter
-                //We use the sh model that is quite a strong filter
-                String speechModel = ",arnndn=model='" + NoiseModels.modelPathForFilter(NoiseModels.SPEECH_MODEL) + "'";
-                filterCommand.append(speechModel.repeat(Math.max(0, noiseReductionValues.get(i - 1))));
+                filterCommand.append(pickChannel(deviceNumber, audioDevice, audioInputsChannel.get(i-1), deviceDelays.get(audioDevice)));
+                filterCommand.append(noiseReduction(i));
                 filterCommand.append("[outfiltered").append(i).append("];");
-                filterCommand.append("[prayers").append(i).append("][englishToBeMixed").append(i).append("][outfiltered").append(i).append("]amix=inputs=3,volume=9.3dB").append("[outmixed").append(i).append("];");
+                filterCommand.append("[prayers").append(i).append("][englishToBeMixed").append(i).append("][outfiltered").append(i).append("]").append(languageMix(i)).append("[outmixed").append(i).append("];");
                 audioLabels.add("outmixed" + i);
             }
         }
@@ -415,6 +709,61 @@ public class StreamRecorderRunnable implements Runnable {
         return finalCommand;
     }
 
+    /**
+     * The noise reduction of the i-th input's chain - one-based, as in the graph - to follow its
+     * head. The prayers and the English to be mixed are not filtered.
+     */
+    private String noiseReduction(int i) {
+        StringBuilder filters = new StringBuilder();
+        if (i == 3) {
+            //For the english language, the noiseReduction value has a different meaning that the other languages
+            //Here, 3 means we use 100% of the filter, 2 means 75% and 1 means 50%
+            //We also use the bd model that is trained to remove general noise but not human noises
+            //We had 8dB because the filter decrease the sound
+            String generalNoiseModel = NoiseModels.modelPathForFilter(NoiseModels.GENERAL_NOISE_MODEL);
+            if(noiseReductionValues.get(i - 1)==1) {
+                filters.append(",arnndn=model='").append(generalNoiseModel).append("':mix=0.3");
+            }
+            if(noiseReductionValues.get(i - 1)==2) {
+                filters.append(",arnndn=model='").append(generalNoiseModel).append("':mix=0.6");
+            }
+            if(noiseReductionValues.get(i - 1)==3) {
+                filters.append(",arnndn=model='").append(generalNoiseModel).append("'");
+            }
+        } else if (i > 3) {
+            //For the other language, the noiseReduction value is the number of time we apply the filter
+            //We use the sh model that is quite a strong filter
+            String speechModel = ",arnndn=model='" + NoiseModels.modelPathForFilter(NoiseModels.SPEECH_MODEL) + "'";
+            filters.append(speechModel.repeat(Math.max(0, noiseReductionValues.get(i - 1))));
+        }
+        return filters.toString();
+    }
+
+    /**
+     * The mix that ends the i-th input's chain: the prayers under English, and the prayers and
+     * the English at low level under every other language.
+     */
+    private static String languageMix(int i) {
+        return i == 3 ? "amix=inputs=2,volume=" + ENGLISH_MIX_GAIN_DB + "dB"
+                : "amix=inputs=3,volume=" + LANGUAGE_MIX_GAIN_DB + "dB";
+    }
+
+    /**
+     * The linear gain languageMix gives each of its inputs, for the headphone preview of a
+     * language (see AudioCaptureManager.MonitorMix): amix averages its inputs, and volume then
+     * raises the average. In the order of the graph - the prayers, the English to be mixed past
+     * English, then the language itself.
+     *
+     * @param languageIndex the language's place in Settings.LANGUAGES; English is 2
+     */
+    static float[] broadcastMixGains(int languageIndex) {
+        int inputs = languageIndex == 2 ? 2 : 3;
+        float gain = (float) (Math.pow(10, (languageIndex == 2 ? ENGLISH_MIX_GAIN_DB : LANGUAGE_MIX_GAIN_DB) / 20) / inputs);
+        float[] gains = new float[inputs];
+        Arrays.fill(gains, gain);
+        return gains;
+    }
+
     /**
      * One complete output section: what it carries and how it is encoded. ffmpeg resets the
      * output options at every sink, so each output repeats the whole set - and encodes on
@@ -638,26 +987,15 @@ public class StreamRecorderRunnable implements Runnable {
         if (Host.isLinux()) {
             int channels = linuxChannelCount(audioDevice);
             String sourceName = PulseAudioDevices.resolveName(ffmpegPath, audioDevice);
-            if (channels > PULSE_CHANNEL_LIMIT && pwRecordCommand == null) {
-                // The mixer: read natively and hand the samples to ffmpeg over its standard
-                // input. pw-record resamples to the configured rate like the server would.
-                // --raw matters: writing to standard output pw-record otherwise prepends a
-                // 24-byte AU file header, which read as samples shifts every channel by 12
-                List<String> recordCommand = new ArrayList<>(List.of("pw-record", "--raw",
-                        "--target", sourceName != null ? sourceName : audioDevice,
-                        "--rate", audioSampleRate,
-                        "--channels", String.valueOf(channels)));
-                // The server routes stream channels to device channels by label, so without
-                // the device's own labels the mixer's channels arrive shifted: see channelMap
-                String channelMap = PulseAudioDevices.channelMap(ffmpegPath, audioDevice);
-                if (channelMap != null && channelMap.split(",").length == channels) {
-                    recordCommand.add("--channel-map");
-                    recordCommand.add(channelMap);
-                }
-                recordCommand.add("--format");
-                recordCommand.add("s16");
-                recordCommand.add("-");
-                pwRecordCommand = List.copyOf(recordCommand);
+            RelayedDevice relayed = audioRelays.get(audioDevice);
+            if (channels > PULSE_CHANNEL_LIMIT && relayed != null) {
+                // A mixer: read natively by the meters' own pw-record capture and handed to
+                // ffmpeg through its relay, so the device is read once for both. The
+                // capture is resampled to the configured rate like the server would, and the
+                // format stated here is the one it actually delivers: see AudioRelay
+                // Only the channels the languages read are relayed, so the channel count is
+                // theirs, not the desk's: see pickChannel
+                AudioFormat format = relayed.relay().getRelayedFormat();
                 devicesListCommand.add("-f");
                 devicesListCommand.add("s16le");
                 devicesListCommand.add("-thread_queue_size");
@@ -675,11 +1013,13 @@ public class StreamRecorderRunnable implements Runnable {
                 // withdrawn: under encoding load the arrival times jitter by whole buffers,
                 // and a resampler chasing that jitter shreds the audio audibly.
                 devicesListCommand.add("-ar");
-                devicesListCommand.add(audioSampleRate);
+                devicesListCommand.add(format != null ? String.valueOf((int) format.getSampleRate()) : audioSampleRate);
                 devicesListCommand.add("-ac");
-                devicesListCommand.add(String.valueOf(channels));
+                devicesListCommand.add(String.valueOf(format != null ? format.getChannels() : relayed.channels().length));
                 devicesListCommand.add("-i");
-                devicesListCommand.add("pipe:0");
+                // Its own named pipe, so any number of devices can take this path; standard
+                // input only when the system would not make one: see RelayFifo
+                devicesListCommand.add(relayed.fifo() != null ? "file:" + relayed.fifo() : "pipe:0");
                 return;
             }
             devicesListCommand.add("-f");
@@ -720,13 +1060,6 @@ public class StreamRecorderRunnable implements Runnable {
                 PulseAudioDevices.channelCount(ffmpegPath, audioDevice));
     }
 
-    /**
-     * Takes one language off an input and delays it: the head of every audio chain.
-     * <p>
-     * A single pan covers every case. On the stereo cables of the Windows machine Left and Right
-     * are channels 0 and 1, and on a mixer presenting all its inputs as one device the language
-     * sits on its own numbered channel. Join keeps the first channel, as it always did.
-     */
     /**
      * The URL as ffmpeg will see it. Resolved here rather than in the interface so the two sinks
      * cannot drift apart, and so the command the Information tab shows is the command that runs -
@@ -739,16 +1072,159 @@ public class StreamRecorderRunnable implements Runnable {
         return withSrtLatency(srtUrl, srtLatencyMillis);
     }
 
-    private String pickChannel(int deviceNumber, String channel, int audioDelay) {
-        return "[" + deviceNumber + ":a]pan=mono|c0=c" + SettingsUtil.audioChannelIndex(channel)
-                + ",adelay=" + audioDelay;
+    /**
+     * Takes one language off an input and delays it: the head of every audio chain.
+     * <p>
+     * A single pan covers every case. On the stereo cables of the Windows machine Left and Right
+     * are channels 0 and 1, and on a mixer presenting all its inputs as one device the language
+     * sits on its own numbered channel. Join keeps the first channel, as it always did. The
+     * relayed mixer only carries the channels the languages use, so there the index is the
+     * channel's place among those rather than its number on the desk: see usedChannels.
+     */
+    private String pickChannel(int deviceNumber, String audioDevice, String channel, String audioDelay) {
+        int index = SettingsUtil.audioChannelIndex(channel);
+        RelayedDevice relayed = audioRelays.get(audioDevice);
+        if (relayed != null) {
+            int[] relayedChannels = relayed.channels();
+            for (int place = 0; place < relayedChannels.length; place++) {
+                if (relayedChannels[place] == index) {
+                    index = place;
+                    break;
+                }
+            }
+        }
+        return channelHead(deviceNumber, index, audioDelay);
+    }
+
+    private static String channelHead(int deviceNumber, int channelIndex, String audioDelay) {
+        return "[" + deviceNumber + ":a]pan=mono|c0=c" + channelIndex + ",adelay=" + audioDelay;
+    }
+
+    /**
+     * The adelay of one device's languages. A device measured against the first one (see
+     * DeviceOffsets) is held back by the stream delay less how late it hears the room, to the
+     * sample; any other goes on with the typed time needed to open a device, in milliseconds as
+     * before. A device that hears the room later than the stream delay can make up for is not
+     * delayed at all, and the rest of the difference stays.
+     */
+    private String deviceDelay(String audioDevice, int typedDelay) {
+        Double offset = measuredOffsetsMillis.get(audioDevice);
+        if (offset == null || audioDevicesList.isEmpty() || !audioDevicesList.get(0).equals(offsetReferenceDevice)) {
+            return String.valueOf(typedDelay);
+        }
+        double millis = delay - offset;
+        if (millis < 0) {
+            logger.warn("{} hears the room {} ms after {}, more than the {} ms delay can make up for",
+                    audioDevice, String.format("%.1f", offset), offsetReferenceDevice, delay);
+            millis = 0;
+        }
+        long samples = Math.round(millis * Integer.parseInt(audioSampleRate) / 1000);
+        return samples + "S";
+    }
+
+    /** The device of each input of the graph, in order: the prayers first, then English to be mixed, then the languages. */
+    List<String> audioDevices() {
+        return List.copyOf(audioDevicesList);
+    }
+
+    /** The name of the i-th input's language, one-based as in the graph. */
+    String languageName(int i) {
+        int language = audioLanguageIndices.get(i - 1);
+        return language < Settings.LANGUAGES.length ? Settings.LANGUAGES[language].name() : "Language " + language;
+    }
+
+    /**
+     * The adelay of each device's recording in a re-render, in samples: what lines the recordings
+     * up with each other. A device whose first sample was taken later starts later, and a device
+     * measured against the first one (see DeviceOffsets) is moved back by how late it hears the
+     * room, as the stream would; the earliest then starts at zero. There is no picture to wait
+     * for, so the stream delay plays no part.
+     *
+     * @param firstSampleNanos when each device's recording starts, by device name, on one clock
+     */
+    Map<String, String> offlineDelays(Map<String, Long> firstSampleNanos, float sampleRate) {
+        boolean measured = !audioDevicesList.isEmpty() && audioDevicesList.get(0).equals(offsetReferenceDevice);
+        Map<String, Double> millis = new LinkedHashMap<>();
+        long firstNanos = firstSampleNanos.isEmpty() ? 0 : Collections.min(firstSampleNanos.values());
+        firstSampleNanos.forEach((device, nanos) -> millis.put(device,
+                (nanos - firstNanos) / 1e6
+                        - (measured ? measuredOffsetsMillis.getOrDefault(device, 0.0) : 0)));
+        double earliest = millis.isEmpty() ? 0 : Collections.min(millis.values());
+        Map<String, String> delays = new LinkedHashMap<>();
+        millis.forEach((device, value) -> delays.put(device, Math.round((value - earliest) * sampleRate / 1000) + "S"));
+        return delays;
+    }
+
+    /**
+     * The command that renders the i-th input's language from recordings instead of from the
+     * devices, for OfflineRenderer: its chain exactly as in the stream's graph - the same noise
+     * reduction, with the prayers and, past English, the English at low level mixed under it -
+     * into a FLAC file of its own. Only the inputs that chain reads are opened. The channel is
+     * the desk's own number, since a recording holds every channel and not the relay's few.
+     * Progress goes to standard output as ffmpeg's key=value blocks, and only errors to the log.
+     *
+     * @param i      the input, one-based as in the graph: English is 3
+     * @param inputs the ffmpeg input arguments of each device's recording, by device name
+     * @param delays the adelay of each device's recording, by device name: see offlineDelays
+     */
+    List<String> offlineRenderCommand(int i, Map<String, List<String>> inputs, Map<String, String> delays, Path output) {
+        List<String> command = new ArrayList<>();
+        command.add(Host.ffmpegExecutable(ffmpegPath));
+        command.addAll(List.of("-hide_banner", "-nostats", "-loglevel", "error", "-progress", "pipe:1", "-y"));
+        Map<String, Integer> opened = new LinkedHashMap<>();
+        StringBuilder graph = new StringBuilder();
+        List<Integer> chain = i == 3 ? List.of(1, i) : List.of(1, 2, i);
+        for (int input : chain) {
+            String device = audioDevicesList.get(input - 1);
+            if (!opened.containsKey(device)) {
+                opened.put(device, opened.size());
+                command.addAll(inputs.get(device));
+            }
+            graph.append(channelHead(opened.get(device), SettingsUtil.audioChannelIndex(audioInputsChannel.get(input - 1)),
+                    delays.getOrDefault(device, "0")));
+            graph.append(noiseReduction(input == i ? i : 0)).append("[in").append(input).append("];");
+        }
+        for (int input : chain) {
+            graph.append("[in").append(input).append(']');
+        }
+        graph.append(languageMix(i)).append("[out]");
+        command.add("-filter_complex");
+        command.add(graph.toString());
+        command.add("-map");
+        command.add("[out]");
+        command.add("-c:a");
+        command.add("flac");
+        command.add("-ar");
+        command.add(audioSampleRate);
+        Settings.Language language = Settings.LANGUAGES[audioLanguageIndices.get(i - 1)];
+        command.add("-metadata");
+        command.add("title=" + (language.nativeName() != null ? language.nativeName() : language.name()));
+        command.add("-metadata");
+        command.add("language=" + language.code());
+        command.add(output.toString());
+        return command;
+    }
+
+    /**
+     * The channels of a device that some language reads, lowest first and each once: what the
+     * relay keeps of the device's capture. Listed in desk order so that languages on
+     * neighbouring inputs stay neighbours and are copied together.
+     */
+    private int[] usedChannels(String audioDevice) {
+        TreeSet<Integer> used = new TreeSet<>();
+        for (int index = 0; index < audioDevicesList.size(); index++) {
+            if (audioDevicesList.get(index).equals(audioDevice)) {
+                used.add(SettingsUtil.audioChannelIndex(audioInputsChannel.get(index)));
+            }
+        }
+        return used.stream().mapToInt(Integer::intValue).toArray();
     }
 
 
     public void stop() {
         stopRequested = true;
         closeAudioPipe();
-        stopPwRecord();
+        closeAudioRelays();
         if (process != null) {
             destroyProcessAndChildren(process);
         }
@@ -763,6 +1239,7 @@ public class StreamRecorderRunnable implements Runnable {
         audioDevicesList.clear();
         audioInputsChannel.clear();
         noiseReductionValues.clear();
+        audioLanguageIndices.clear();
         for (int i = 0; i< deviceNames.length; i++) {
             String deviceName = deviceNames[i];
             String deviceInputChannel = channelInfos[i];
@@ -771,6 +1248,7 @@ public class StreamRecorderRunnable implements Runnable {
                 audioDevicesList.add(deviceName);
                 audioInputsChannel.add(deviceInputChannel);
                 noiseReductionValues.add(noiseReductionIteration);
+                audioLanguageIndices.add(i);
             }
         }
     }
@@ -829,6 +1307,11 @@ public class StreamRecorderRunnable implements Runnable {
         outputListener = listener;
     }
 
+    /** Set once, when the window is built, like the output listener. */
+    public void setFaultListener(BiConsumer<String, ConsoleSeverity> listener) {
+        faultListener = listener;
+    }
+
     public BooleanProperty isAliveProperty() {
         return isAliveProperty;
     }
@@ -901,6 +1384,16 @@ public class StreamRecorderRunnable implements Runnable {
         this.timeNeededToOpenADevice = timeNeededToOpenADevice;
     }
 
+    /**
+     * Offsets measured by DeviceOffsets, in ms by device name, against {@code referenceDevice}.
+     * They take the place of the time needed to open a device for the devices they cover, as long
+     * as the reference is still the device of the first language.
+     */
+    public void setMeasuredDeviceOffsets(String referenceDevice, Map<String, Double> offsetsMillis) {
+        this.offsetReferenceDevice = referenceDevice;
+        this.measuredOffsetsMillis = offsetsMillis == null ? Map.of() : Map.copyOf(offsetsMillis);
+    }
+
     public void setFfmpegPath(String ffmpegPath) {
         this.ffmpegPath = ffmpegPath;
     }
@@ -915,6 +1408,42 @@ public class StreamRecorderRunnable implements Runnable {
         this.videoInputPixelFormat = videoInputPixelFormat;
     }
 
+    /** How the Linux relays hold ffmpeg's audio backlog once the start-up is over: see AudioRelay. */
+    public void setRelayBacklogPolicy(AudioRelay.BacklogPolicy policy, int targetMillis) {
+        this.relayBacklogPolicy = policy;
+        this.relayBacklogTargetMs = targetMillis;
+    }
+
+    /**
+     * How far behind ffmpeg is taking each relayed device's audio, for the status bar; empty
+     * when nothing is relayed. Any thread.
+     */
+    public List<AudioRelay.Backlog> relayBacklogs() {
+        List<AudioRelay.Backlog> backlogs = new ArrayList<>();
+        for (RelayedDevice relayed : audioRelays.values()) {
+            backlogs.add(relayed.relay().backlog());
+        }
+        return backlogs;
+    }
+
+    /** Whether the Linux relay may overflow into a file rather than lose audio: see AudioRelay. */
+    public void setRelaySpillToDisk(boolean relaySpillToDisk) {
+        this.relaySpillToDisk = relaySpillToDisk;
+    }
+
+    public void setCaptureJournal(boolean captureJournal, int segmentSeconds) {
+        this.captureJournal = captureJournal;
+        this.journalSegmentSeconds = segmentSeconds;
+    }
+
+    public void setStemRecording(boolean stemRecording) {
+        this.stemRecording = stemRecording;
+    }
+
+    public void setHistoryMinutes(int historyMinutes) {
+        this.historyMinutes = historyMinutes;
+    }
+
     /**
      * The rate the recording is encoded at. It has to be the rate the capture devices actually
      * run at: a device whose declared rate does not match what it delivers produces a recording
@@ -1,5 +1,6 @@
 package org.kadampa.festivalstreaming;
 
+import org.kadampa.festivalstreaming.linux.AudioRelay;
 import org.kadampa.festivalstreaming.linux.PulseAudioDevices;
 import org.kadampa.festivalstreaming.linux.V4l2Devices;
 import org.kadampa.festivalstreaming.linux.WindowAttention;
@@ -43,6 +44,7 @@ import javafx.scene.shape.SVGPath;
 import javafx.scene.text.Text;
 import javafx.scene.text.TextFlow;
 import javafx.stage.DirectoryChooser;
+import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.util.Duration;
 import org.slf4j.Logger;
@@ -55,9 +57,11 @@ import javax.sound.sampled.Line;
 import javax.sound.sampled.Mixer;
 import javax.sound.sampled.TargetDataLine;
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -139,6 +143,10 @@ public class StreamingGUI extends Application {
     private static final int COMPACT_WINDOW_HEIGHT = 130;
     private static final double TOOLTIP_DELAY = 0.2;
     private static final int TOOLTIP_DURATION=10;
+    /** Long enough for a few sentences of speech, short enough to wait for before a session. */
+    private static final double OFFSET_MEASUREMENT_SECONDS = 5;
+    /** Time for the operator to clap once the camera is open, with some to spare. */
+    private static final double CALIBRATION_SECONDS = 8;
     private static final double LABEL_PREF_WIDTH = 150;
     private final Timeline blinkingTimeLine;
     private final BooleanProperty followingConsoleTail = new SimpleBooleanProperty(true);
@@ -156,6 +164,14 @@ public class StreamingGUI extends Application {
     private final BooleanProperty isTheOutputAFile = new SimpleBooleanProperty();
     /** True while a device re-scan runs, so the refresh button cannot be pressed twice. */
     private final BooleanProperty devicesRefreshing = new SimpleBooleanProperty(false);
+    /** True while the offsets between the audio devices are measured, so the button cannot be pressed twice. */
+    private final BooleanProperty offsetsMeasuring = new SimpleBooleanProperty(false);
+    /** The re-render in progress, if any: its button cancels it. */
+    private OfflineRenderer offlineRenderer;
+    private final Label offlineRenderStatus = new Label();
+    /** The device the last measurement was made against, and how late each other device heard it, in ms. */
+    private String offsetReferenceDevice;
+    private Map<String, Double> measuredDeviceOffsets = Map.of();
     private final BooleanProperty isTheOutputAURL = new SimpleBooleanProperty();
     private final BooleanProperty isTheOutputFileAndUrl = new SimpleBooleanProperty();
     /**
@@ -236,6 +252,8 @@ public class StreamingGUI extends Application {
     private final StreamHealth streamHealth = new StreamHealth();
     /** The live "30 fps · 1.00x" beside the status text, so a fault shows without opening a tab. */
     private final Label statusReadout = new Label();
+    /** Each audio relay's backlog in full, under the readout's short form. */
+    private final Tooltip relayBacklogDetails = new Tooltip();
     /**
      * A capture fault that will not clear on its own, so the window must not quietly return to a
      * healthy green three seconds later the way it does after a passing error.
@@ -286,6 +304,9 @@ public class StreamingGUI extends Application {
         AudioCaptureManager.setPreferredSampleRate(parseIntOrDefault(settings.getAudioSampleRate(), 48000));
         // On Linux the capture manager resolves device names through ffmpeg's own device list
         AudioCaptureManager.setFfmpegPath(settings.getFfmpegPath());
+        AudioCaptureManager.setMonitorLatencyMs(settings.getMonitorLatencyMs());
+        AudioCaptureManager.setCaptureIntervalMs(settings.getCaptureIntervalMs());
+        AudioCaptureManager.setWarmCaptureSeconds(settings.getWarmCaptureSeconds());
         // A JVM killed from outside (an IDE rerun, a session logout) never reaches handleClose,
         // and an ffmpeg left behind keeps the camera busy and the stream ingest occupied
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -294,8 +315,11 @@ public class StreamingGUI extends Application {
                 streamRecorder.stop();
             }
         }));
-        inputAudioSampleRate.valueProperty().addListener((observable, oldValue, newValue) ->
-                AudioCaptureManager.setPreferredSampleRate(parseIntOrDefault(newValue, 48000)));
+        inputAudioSampleRate.valueProperty().addListener((observable, oldValue, newValue) -> {
+            AudioCaptureManager.setPreferredSampleRate(parseIntOrDefault(newValue, 48000));
+            // A capture kept warm was opened at the old rate
+            AudioCaptureManager.getInstance().releaseWarmCaptures();
+        });
         inputRenderDevice = new ComboBox<>();
         // Only Linux can pick a GPU from inside the app; Windows assigns per-app GPUs in its
         // own display settings and macOS decides by itself, so those two offer only the
@@ -580,6 +604,84 @@ public class StreamingGUI extends Application {
         return names;
     }
 
+    /**
+     * Measures how late each extra audio device hears the room compared with the device of the
+     * first language - the prayers, which every microphone in the hall picks up - so the delay of
+     * the later devices need not be guessed. Each other device offers every channel a language
+     * reads from it, and the clearest one is used. Offsets whose correlation peak is not clear
+     * are reported and left out, and those devices go on with the typed time.
+     */
+    private void measureDeviceOffsets() {
+        String referenceDevice = inputAudioSources[0].getValue();
+        Mixer.Info reference = isLanguageUsed(0) ? AudioCaptureManager.findCaptureDevice(referenceDevice) : null;
+        if (reference == null) {
+            appendToConsole("The offsets are measured against the device of the first language, which cannot be opened.",
+                    ConsoleSeverity.WARNING);
+            return;
+        }
+        int referenceChannel = SettingsUtil.audioChannelIndex(inputAudioSourcesChannel[0].getValue());
+        Map<String, Set<Integer>> channelsByDevice = new LinkedHashMap<>();
+        for (int i = 1; i < inputAudioSources.length; i++) {
+            String deviceName = inputAudioSources[i].getValue();
+            if (isLanguageUsed(i) && !referenceDevice.equals(deviceName)) {
+                channelsByDevice.computeIfAbsent(deviceName, name -> new TreeSet<>())
+                        .add(SettingsUtil.audioChannelIndex(inputAudioSourcesChannel[i].getValue()));
+            }
+        }
+        Map<Mixer.Info, int[]> others = new LinkedHashMap<>();
+        channelsByDevice.forEach((deviceName, channels) -> {
+            Mixer.Info device = AudioCaptureManager.findCaptureDevice(deviceName);
+            if (device == null) {
+                appendToConsole("The audio device \"" + deviceName + "\" cannot be opened to measure its offset.",
+                        ConsoleSeverity.WARNING);
+            } else {
+                others.put(device, channels.stream().mapToInt(Integer::intValue).toArray());
+            }
+        });
+        if (others.isEmpty()) {
+            appendToConsole("There is no other audio device to measure against the first language's.", ConsoleSeverity.INFO);
+            return;
+        }
+        int openMillis = parseIntOrDefault(inputTimeNeededToOpenADevice.getText(), 0);
+        offsetsMeasuring.set(true);
+        appendToConsole("Listening to the audio devices for " + (int) OFFSET_MEASUREMENT_SECONDS + " seconds...", ConsoleSeverity.INFO);
+        Thread measurement = new Thread(() -> {
+            List<DeviceOffsets.Offset> offsets;
+            try {
+                offsets = DeviceOffsets.measure(reference, referenceChannel, others, OFFSET_MEASUREMENT_SECONDS,
+                        openMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                offsets = List.of();
+            }
+            List<DeviceOffsets.Offset> measured = offsets;
+            Platform.runLater(() -> {
+                Map<String, Double> reliable = new LinkedHashMap<>();
+                for (DeviceOffsets.Offset offset : measured) {
+                    String line = String.format("%s hears the room %.1f ms %s than %s (channel %d, confidence %.0f)",
+                            offset.device(), Math.abs(offset.millis()), offset.millis() >= 0 ? "later" : "earlier",
+                            referenceDevice, offset.channel() + 1, offset.confidence());
+                    if (offset.reliable()) {
+                        reliable.put(offset.device(), offset.millis());
+                        appendToConsole(line + ". Its delay will be set from this.", ConsoleSeverity.INFO);
+                    } else {
+                        appendToConsole(line + ": not clear enough to use, the typed time is kept for it."
+                                + " Measure again while someone speaks.", ConsoleSeverity.WARNING);
+                    }
+                }
+                if (measured.size() < others.size()) {
+                    appendToConsole("Some audio devices delivered too little audio, or dropped some of it, to be measured;"
+                            + " see the log.", ConsoleSeverity.WARNING);
+                }
+                offsetReferenceDevice = referenceDevice;
+                measuredDeviceOffsets = reliable;
+                offsetsMeasuring.set(false);
+            });
+        }, "device-offsets");
+        measurement.setDaemon(true);
+        measurement.start();
+    }
+
     /**
      * Re-reads the device lists without restarting the program: the sound card or the
      * capture card is often plugged in only after launch. The enumeration shells out to
@@ -867,27 +969,15 @@ public class StreamingGUI extends Application {
      * would only refuse later and more cryptically.
      */
     private boolean checkLinuxAudioSources() {
+        // Any number of devices beyond eight channels can be used: each is read natively and fed
+        // to ffmpeg through a named pipe of its own, see StreamRecorderRunnable
         boolean result = true;
-        Set<String> devices = selectedAudioDevices();
-        int multiChannelDevices = 0;
-        for (String deviceName : devices) {
+        for (String deviceName : selectedAudioDevices()) {
             if (!PulseAudioDevices.exists(settings.getFfmpegPath(), deviceName)) {
                 appendToConsole("The audio device \"" + deviceName + "\" is not connected any more.", ConsoleSeverity.ERROR);
                 result = false;
-                continue;
-            }
-            if (PulseAudioDevices.channelCount(settings.getFfmpegPath(), deviceName) > 8) {
-                multiChannelDevices++;
             }
         }
-        // A device beyond eight channels is read natively and fed to ffmpeg over its one and
-        // only standard input: see StreamRecorderRunnable
-        if (multiChannelDevices > 1) {
-            appendToConsole("Only one device with more than 8 channels can be used on this machine, but "
-                    + multiChannelDevices + " are selected. A mixer presents all of its inputs as one device,"
-                    + " so choose the same one for every language and give each language its own channel.", ConsoleSeverity.ERROR);
-            result = false;
-        }
         return result;
     }
 
@@ -1200,6 +1290,7 @@ public class StreamingGUI extends Application {
                 (observable, oldText, newText) -> repairWindowLayoutLater());
         statusReadout.textProperty().addListener(
                 (observable, oldText, newText) -> repairWindowLayoutLater());
+        relayBacklogDetails.setShowDelay(Duration.millis(300));
 
         nowPlayingBox.getChildren().setAll(logoView, liveDot, nowPlayingLabel, statusReadout);
         nowPlayingBox.setSpacing(14);
@@ -1211,6 +1302,7 @@ public class StreamingGUI extends Application {
         // Subscribed once, for the life of the window: adding this on every Start left the previous
         // one behind, so after three sessions every ffmpeg line reached the console three times
         streamRecorder.setOutputListener(this::scheduleConsoleDrain);
+        streamRecorder.setFaultListener(this::appendToConsole);
 
         TabPane tabPane = new TabPane();
         tabPane.setPrefWidth(WINDOW_WIDTH-2);
@@ -1736,7 +1828,9 @@ public class StreamingGUI extends Application {
         Tooltip tooltipTimeNeededOutput = new Tooltip("""
             The time needed to open an audio device. This is important because each audio device takes time to open so it it async the audios.
             This parameter is used to readjust the sync. To know this value, in the ffmeg output, look for the start value for device 1 and for device 2, and look for the difference.
-             Usually, it's around 650ms""");
+             Usually, it's around 650ms.
+            Measure listens to the room on every device for a few seconds and works out the difference itself, to the sample.
+             A device it measured clearly no longer uses this value.""");
         Tooltip.install(timeNeededinfoLabel, tooltipTimeNeededOutput);
         tooltipTimeNeededOutput.setShowDelay(Duration.seconds(TOOLTIP_DELAY)); // Delay before showing (1 second)
         tooltipTimeNeededOutput.setShowDuration(Duration.seconds(TOOLTIP_DURATION)); // How long to show (10 seconds)
@@ -1747,7 +1841,19 @@ public class StreamingGUI extends Application {
         // The Region that used to sit here was sized by two lines that both addressed the spacer of
         // the row above, so it was always zero wide; the row fits as it is and does not want the 54px
         inputTimeNeededToOpenADevice.setMaxWidth(50);
-        outputTimeNeededLabelHBox.getChildren().addAll(timeNeededLabel,timeNeededinfoLabel, inputTimeNeededToOpenADevice);
+        // Locked while a stream runs: the capture it listens to is the meters' and the relays' own
+        Button measureOffsetsButton = new Button("Measure");
+        Tooltip measureTooltip = new Tooltip("Listen to the room on every audio device for a few seconds\n"
+                + "and measure how late each one hears it compared with the first language's device.\n"
+                + "Someone should be speaking, or the prayers playing.");
+        measureTooltip.setShowDelay(Duration.seconds(TOOLTIP_DELAY));
+        measureTooltip.setShowDuration(Duration.seconds(TOOLTIP_DURATION));
+        measureTooltip.setHideDelay(Duration.seconds(TOOLTIP_DELAY));
+        measureTooltip.getStyleClass().add("tooltip");
+        measureOffsetsButton.setTooltip(measureTooltip);
+        measureOffsetsButton.disableProperty().bind(startButton.disabledProperty().or(offsetsMeasuring));
+        measureOffsetsButton.setOnAction(e -> measureDeviceOffsets());
+        outputTimeNeededLabelHBox.getChildren().addAll(timeNeededLabel,timeNeededinfoLabel, inputTimeNeededToOpenADevice, measureOffsetsButton);
         inputGrid2.add(outputTimeNeededLabelHBox, 2, row);
         GridPane.setColumnSpan(outputTimeNeededLabelHBox, 2);
         // Shown only from the second distinct device onwards - the j>1 test in the recorder is the
@@ -1880,8 +1986,20 @@ public class StreamingGUI extends Application {
         HBox delayHBox = new HBox(1,delayLabel,delayinfoLabel);
         advancedGrid.add(delayHBox, 0, row);
         if(inputSoundDelay.getText()==null || inputSoundDelay.getText().isEmpty()) inputSoundDelay.setText("0");
-        advancedGrid.add(inputSoundDelay, 1, row);
         inputSoundDelay.setMaxWidth(comboWith);
+        // Locked while a stream runs, like the Start button is: the calibration opens the camera
+        Button calibrateDelayButton = new Button("Calibrate");
+        Tooltip calibrateTooltip = new Tooltip("Open the camera and the first language's audio for "
+                + (int) CALIBRATION_SECONDS + " seconds and work out the delay.\n"
+                + "Clap once in front of the camera, or play a flash-and-beep clip through OBS, while it runs.");
+        calibrateTooltip.setShowDelay(Duration.seconds(TOOLTIP_DELAY));
+        calibrateTooltip.setShowDuration(Duration.seconds(TOOLTIP_DURATION));
+        calibrateTooltip.setHideDelay(Duration.seconds(TOOLTIP_DELAY));
+        calibrateTooltip.getStyleClass().add("tooltip");
+        calibrateDelayButton.setTooltip(calibrateTooltip);
+        calibrateDelayButton.disableProperty().bind(startButton.disabledProperty());
+        calibrateDelayButton.setOnAction(e -> calibrateDelay());
+        advancedGrid.add(new HBox(5, inputSoundDelay, calibrateDelayButton), 1, row);
 
         Label pixelFormatInfoLabel = new Label("?");
         pixelFormatInfoLabel.getStyleClass().add("info-for-tooltip");
@@ -2170,6 +2288,35 @@ public class StreamingGUI extends Application {
         inputCommDirectory.disableProperty().bind(inputCommRecording.selectedProperty().not());
         pickCommDirectoryButton.disableProperty().bind(inputCommRecording.selectedProperty().not());
 
+        row++;
+        Label rerenderInfoLabel = new Label("?");
+        rerenderInfoLabel.getStyleClass().add("info-for-tooltip");
+        Tooltip rerenderTooltip = new Tooltip("""
+                Makes the language tracks again from a capture journal (choose any of its segments)
+                or from a multichannel WAV of the mixer, with the languages, channels and noise
+                reduction set on screen now - as fast as the machine goes, one language per core.
+
+                The tracks are written as FLAC files into a render-<date> directory next to the
+                recording. It takes every core, so it is best run when no stream is live.""");
+        Tooltip.install(rerenderInfoLabel, rerenderTooltip);
+        rerenderTooltip.setShowDelay(Duration.seconds(TOOLTIP_DELAY));
+        rerenderTooltip.setShowDuration(Duration.seconds(TOOLTIP_DURATION));
+        rerenderTooltip.setHideDelay(Duration.seconds(TOOLTIP_DELAY));
+        rerenderTooltip.getStyleClass().add("tooltip");
+        advancedGrid.add(new HBox(1, new Label("Re-render languages:"), rerenderInfoLabel), 0, row);
+        Button rerenderButton = new Button("Choose Recording");
+        rerenderButton.setOnAction(event -> {
+            if (offlineRenderer != null) {
+                offlineRenderer.cancel();
+            } else {
+                rerenderLanguages(rerenderButton);
+            }
+        });
+        HBox rerenderHBox = new HBox(8, rerenderButton, offlineRenderStatus);
+        rerenderHBox.setAlignment(Pos.CENTER_LEFT);
+        advancedGrid.add(rerenderHBox, 1, row);
+        GridPane.setColumnSpan(rerenderHBox, 5);
+
         Button saveButton = new Button("Save settings");
         saveButton.getStyleClass().add("event-button");
         saveButton.getStyleClass().add("primary-button");
@@ -2465,31 +2612,21 @@ public class StreamingGUI extends Application {
         if (vuMeterPanel != null) {
             vuMeterPanel.closeVUMeters();
         }
+        // The devices the meters just left would otherwise stay open for their warm period,
+        // and a pw-record is not ended with the application
+        AudioCaptureManager.getInstance().releaseWarmCaptures();
         if (volumeMonitor != null) {
             volumeMonitor.stopMonitoring();
         }
         stopEncodingThread();
     }
 
-    private void startEncodingThread() {
-        if(!checkParameters()) {
-            return;
-        }
-        displayPIDInfo();
-        if (languagesTab != null && languagesTab.hasUnsavedEdits()) {
-            appendToConsole("The language list has unsaved changes. This stream uses the list loaded"
-                    + " when the application started.", ConsoleSeverity.WARNING);
-        }
-        barBaseColor = LIVE_GREEN;
-        playingError.set(false);
-        followingConsoleTail.set(true);
-        // A new run is judged on its own numbers, and gets the benefit of the doubt on a fault the
-        // last one could not recover from
-        streamHealth.reset();
-        videoFaultLatched = false;
-        statusLineRow = null;
-        compactStatusLine.setText("");
-        statusReadout.setText("");
+    /**
+     * Hands every setting the ffmpeg command is built from to the recorder. Both a stream and a
+     * calibration run take them from here, so the calibration opens its inputs exactly as the
+     * stream will.
+     */
+    private void configureRecorder() {
         streamRecorder.setSrtUrl(inputSrtURL.getText());
         // Unticked hands the recorder null, and the URL then reaches ffmpeg byte for byte
         streamRecorder.setSrtLatencyMillis(inputSrtLatencyOverride.isSelected()
@@ -2503,6 +2640,7 @@ public class StreamingGUI extends Application {
         streamRecorder.setEncoder(inputEncoder.getValue());
         // Zero when the field is hidden and was never filled in: with one device it is not read
         streamRecorder.setTimeNeededToOpenADevice(parseIntOrDefault(inputTimeNeededToOpenADevice.getText(), 0));
+        streamRecorder.setMeasuredDeviceOffsets(offsetReferenceDevice, measuredDeviceOffsets);
         streamRecorder.setAudioBitrate(inputAudioBitrate.getValue());
         streamRecorder.setAudioBufferSize(inputAudioSourceBuffer.getValue());
         streamRecorder.setVideoBitrate(inputVideoBitrate.getValue());
@@ -2516,12 +2654,172 @@ public class StreamingGUI extends Application {
         streamRecorder.setVideoInputMode(inputVideoInputMode.getValue());
         streamRecorder.setVideoInputPixelFormat(videoInputPixelFormat);
         streamRecorder.setAudioSampleRate(inputAudioSampleRate.getValue());
+        streamRecorder.setRelaySpillToDisk(settings.isRelaySpillToDisk());
+        streamRecorder.setCaptureJournal(settings.isCaptureJournal(), settings.getJournalSegmentSeconds());
+        streamRecorder.setStemRecording(settings.isStemRecording());
+        streamRecorder.setHistoryMinutes(settings.getHistoryMinutes());
+        streamRecorder.setRelayBacklogPolicy(AudioRelay.BacklogPolicy.fromToken(settings.getRelayBacklogPolicy()),
+                Math.max(50, settings.getRelayBacklogTargetMs()));
 
         if(isTheOutputFileAndUrl.get())  streamRecorder.setOutputType(StreamRecorderRunnable.FILE_AND_URL);
         else if(isTheOutputAFile.get())  streamRecorder.setOutputType(StreamRecorderRunnable.FILE);
         else if(isTheOutputAURL.get())   streamRecorder.setOutputType(StreamRecorderRunnable.URL);
 
         streamRecorder.setFps(Integer.parseInt(inputFramePerSecond.getValue()));
+    }
+
+    /**
+     * Runs the stream's inputs for a few seconds while the operator claps or flashes, and proposes
+     * the delay that puts the sound on the picture: see {@link SyncCalibration}. Start is held back
+     * for the run, since the two would fight over the camera. The value is only written into the
+     * field once the operator accepts it, and saved with the other settings from there.
+     */
+    private void calibrateDelay() {
+        if (!checkParameters()) {
+            return;
+        }
+        configureRecorder();
+        startButton.setDisable(true);
+        appendToConsole("Calibrating the audio delay for " + (int) CALIBRATION_SECONDS
+                + " seconds: clap once in front of the camera now.", ConsoleSeverity.INFO);
+        Thread calibration = new Thread(() -> {
+            SyncCalibration.Result result;
+            try {
+                result = streamRecorder.calibrateSync(CALIBRATION_SECONDS);
+            } catch (IOException e) {
+                logger.error("The calibration could not run", e);
+                result = null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result = null;
+            }
+            SyncCalibration.Result found = result;
+            Platform.runLater(() -> {
+                startButton.setDisable(streamRecorder.isAliveProperty().get());
+                if (found == null) {
+                    appendToConsole("The calibration saw no clap or flash, or could not open the inputs; see the log.",
+                            ConsoleSeverity.WARNING);
+                    return;
+                }
+                String figures = String.format("picture at %.3f s, sound at %.3f s (picture change x%.1f, sound rise %.0f dB)",
+                        found.videoSeconds(), found.audioSeconds(), found.videoScore(), found.audioRiseDb());
+                if (!found.reliable()) {
+                    appendToConsole("The calibration found no clear clap: " + figures + ". Try again with a sharper clap"
+                            + " closer to the camera.", ConsoleSeverity.WARNING);
+                    return;
+                }
+                int proposed = found.proposedDelayMillis();
+                if (proposed < 0) {
+                    appendToConsole("The sound arrives " + -proposed + " ms after the picture (" + figures
+                            + "). Delaying the audio cannot correct this; the delay should stay at 0.", ConsoleSeverity.WARNING);
+                    return;
+                }
+                appendToConsole("The calibration proposes a delay of " + proposed + " ms: " + figures + ".", ConsoleSeverity.INFO);
+                if (confirm("Set the audio delay to " + proposed + " ms?",
+                        "The delay is now " + inputSoundDelay.getText() + " ms. The calibration found the sound "
+                                + proposed + " ms ahead of the picture.", "Set " + proposed + " ms")) {
+                    inputSoundDelay.setText(String.valueOf(proposed));
+                }
+            });
+        }, "delay-calibration");
+        calibration.setDaemon(true);
+        calibration.start();
+    }
+
+    /**
+     * Makes the language tracks again from a recording of the desk, with the languages, channels
+     * and noise reduction on screen now: see {@link OfflineRenderer}. The settings go to a
+     * recorder of its own, so a stream can go on meanwhile. The progress and the speed show next
+     * to the button, which cancels the render while it runs; the outcome goes to the console.
+     */
+    private void rerenderLanguages(Button button) {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Choose a journal segment or a multichannel WAV");
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("WAV files", "*.wav"));
+        File outputDirectory = new File(inputOutputDirectory.getText());
+        if (outputDirectory.isDirectory()) {
+            chooser.setInitialDirectory(outputDirectory);
+        }
+        File source = chooser.showOpenDialog(scene.getWindow());
+        if (source == null) {
+            return;
+        }
+        StreamRecorderRunnable renderRecorder = new StreamRecorderRunnable(this);
+        renderRecorder.initialiseAudioDevices(Arrays.stream(inputAudioSources).map(ComboBox::getValue).toArray(String[]::new),Arrays.stream(inputAudioSourcesChannel).map(ComboBox::getValue).toArray(String[]::new),Arrays.stream(inputNoiseReductionValues).map(ComboBox::getValue).toArray(String[]::new));
+        renderRecorder.setMeasuredDeviceOffsets(offsetReferenceDevice, measuredDeviceOffsets);
+        renderRecorder.setAudioSampleRate(inputAudioSampleRate.getValue());
+        renderRecorder.setFfmpegPath(settings.getFfmpegPath());
+        OfflineRenderer renderer = new OfflineRenderer(renderRecorder);
+        offlineRenderer = renderer;
+        button.setText("Cancel");
+        offlineRenderStatus.setText("Starting...");
+        appendToConsole("Re-rendering the languages from " + source.getPath() + ".", ConsoleSeverity.INFO);
+        // The renderers report twice a second each; the label takes the latest, once per pulse
+        AtomicReference<OfflineRenderer.Progress> latest = new AtomicReference<>();
+        Thread render = new Thread(() -> {
+            List<OfflineRenderer.Track> tracks = List.of();
+            String failure = null;
+            try {
+                tracks = renderer.render(source.toPath(), progress -> {
+                    if (latest.getAndSet(progress) == null) {
+                        Platform.runLater(() -> {
+                            OfflineRenderer.Progress shown = latest.getAndSet(null);
+                            offlineRenderStatus.setText(String.format("%.0f%% at %.1fx real time, %d of %d languages done",
+                                    shown.fraction() * 100, shown.speed(), shown.languagesDone(), shown.languages()));
+                        });
+                    }
+                });
+            } catch (IOException e) {
+                logger.error("The re-render failed", e);
+                failure = e.getMessage();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = "interrupted";
+            }
+            List<OfflineRenderer.Track> rendered = tracks;
+            String failed = failure;
+            Platform.runLater(() -> {
+                offlineRenderer = null;
+                button.setText("Choose Recording");
+                offlineRenderStatus.setText("");
+                if (failed != null) {
+                    appendToConsole("The languages could not be re-rendered: " + failed, ConsoleSeverity.ERROR);
+                    return;
+                }
+                long done = rendered.stream().filter(OfflineRenderer.Track::rendered).count();
+                if (done == rendered.size()) {
+                    appendToConsole("The " + done + " languages were re-rendered into "
+                            + rendered.get(0).file().getParent() + ".", ConsoleSeverity.INFO);
+                } else {
+                    appendToConsole(done + " of " + rendered.size() + " languages were re-rendered; the others were"
+                            + " cancelled or failed (see the log).", ConsoleSeverity.WARNING);
+                }
+            });
+        }, "offline-render-main");
+        render.setDaemon(true);
+        render.start();
+    }
+
+    private void startEncodingThread() {
+        if(!checkParameters()) {
+            return;
+        }
+        displayPIDInfo();
+        if (languagesTab != null && languagesTab.hasUnsavedEdits()) {
+            appendToConsole("The language list has unsaved changes. This stream uses the list loaded"
+                    + " when the application started.", ConsoleSeverity.WARNING);
+        }
+        barBaseColor = LIVE_GREEN;
+        playingError.set(false);
+        followingConsoleTail.set(true);
+        // A new run is judged on its own numbers, and gets the benefit of the doubt on a fault the
+        // last one could not recover from
+        streamHealth.reset();
+        videoFaultLatched = false;
+        statusLineRow = null;
+        compactStatusLine.setText("");
+        statusReadout.setText("");
+        configureRecorder();
         textAreaInfo.setText(streamRecorder.getFFMpegCommand());
         playerURLTextField.setText(buildPlayerURL());
         stopButton.setDisable(false);
@@ -2824,8 +3122,25 @@ public class StreamingGUI extends Application {
      */
     private void showStatusLine(String line) {
         StreamHealth.Alert alert = streamHealth.observe(line, targetFrameRate(), System.currentTimeMillis());
-        statusReadout.setText(streamHealth.readout());
-        applySeverityStyle(statusReadout, streamHealth.level().severity());
+        // The audio relays' backlogs ride along: how late ffmpeg takes the audio is as much the
+        // stream's health as how fast it encodes, and it is read at the same moment
+        StringBuilder readout = new StringBuilder(streamHealth.readout());
+        StringBuilder details = new StringBuilder();
+        boolean audioLate = false;
+        for (AudioRelay.Backlog backlog : streamRecorder.relayBacklogs()) {
+            readout.append(String.format(Locale.ROOT, " · audio %.0f ms", backlog.millis()));
+            details.append(String.format(Locale.ROOT,
+                    "%s: %.0f ms waiting for ffmpeg, %.0f ms at most, writer blocked %.0f%% of the time%s%s%n",
+                    backlog.device(), backlog.millis(), backlog.peakMillis(), backlog.blockedShare() * 100,
+                    backlog.trimmedMillis() > 0 ? String.format(Locale.ROOT, ", %.0f ms trimmed", backlog.trimmedMillis()) : "",
+                    backlog.spilledMillis() > 0 ? String.format(Locale.ROOT, ", %.1f s spilled to disk", backlog.spilledMillis() / 1000) : ""));
+            audioLate |= backlog.overTarget();
+        }
+        statusReadout.setText(readout.toString());
+        relayBacklogDetails.setText(details.toString().trim());
+        statusReadout.setTooltip(details.length() > 0 ? relayBacklogDetails : null);
+        applySeverityStyle(statusReadout, audioLate && streamHealth.level() == StreamHealth.Level.OK
+                ? ConsoleSeverity.WARNING : streamHealth.level().severity());
 
         // The status line rewrites itself twice a second, so it overwrites the tail of the log
         // rather than adding a thousand entries to it
@@ -0,0 +1,176 @@
+package org.kadampa.festivalstreaming;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Works out the audio delay from a clap or a flash, read off ffmpeg's own log while it captures.
+ * <p>
+ * The delay setting used to be tuned by ear at every festival: start the stream, watch someone
+ * speak on the player, nudge the number, start again. But a clap in front of the camera, or a
+ * flash-and-beep clip played through OBS, is one instant that both the picture and the sound
+ * carry, and the distance between the two in the stream is the delay wanted. So for a few
+ * seconds ffmpeg opens the same inputs the stream would, in the same way, and instead of encoding
+ * it measures: the picture is shrunk to a thumbnail in grey and {@code signalstats} gives, for
+ * every frame, how much it differs from the one before; the first language's channel is cut into
+ * blocks of 64 samples and {@code astats} gives the peak of each. A {@code metadata} filter at the
+ * end of each chain prints those figures to the log with the frame's timestamp, which is the
+ * timestamp the stream itself would have given it - delays before ffmpeg included, which no
+ * measurement outside it would see.
+ * <p>
+ * The lines are taken as they come, keeping only a short past for each chain: the picture's
+ * event is the frame that changed most against the ten before it, and the sound's is the block
+ * that rose most above the loudest of the tenth of a second before it. Nothing is stored, so a
+ * calibration is as cheap as the thumbnail and can be run between sessions. The result is as
+ * fine as a video frame, since that is where the picture can say when the clap happened.
+ */
+public final class SyncCalibration {
+
+    /** The key the picture's chain prints. */
+    static final String VIDEO_KEY = "lavfi.signalstats.YDIF";
+    /** The key the sound's chain prints. */
+    static final String AUDIO_KEY = "lavfi.astats.Overall.Peak_level";
+    /** Samples in one block of the sound: under a millisecond and a half at 48 kHz. */
+    private static final int AUDIO_BLOCK_SAMPLES = 64;
+    /** How far the sound's event has to rise above what came before it, in dB. */
+    private static final double MIN_AUDIO_RISE_DB = 20;
+    /** How many times the frame's change has to exceed the recent change of the picture. */
+    private static final double MIN_VIDEO_RATIO = 4;
+    /** A picture and a sound further apart than this are not the same event. */
+    private static final double MAX_SKEW_SECONDS = 2;
+    private static final int VIDEO_PAST_FRAMES = 10;
+    private static final double AUDIO_PAST_SECONDS = 0.1;
+    /** Keeps the ratio finite on a perfectly still picture. */
+    private static final double VIDEO_NOISE_FLOOR = 0.5;
+    private static final double SILENCE_DB = -120;
+
+    /**
+     * What the calibration found.
+     *
+     * @param videoSeconds  when the picture's event happened, in stream time
+     * @param audioSeconds  when the sound's, likewise
+     * @param videoScore    how far the picture's change stood above the recent change, as a ratio
+     * @param audioRiseDb   how far the sound rose above the moment before it
+     */
+    public record Result(double videoSeconds, double audioSeconds, double videoScore, double audioRiseDb) {
+        /** The delay to set, in ms: how long the sound has to wait for the picture. */
+        public int proposedDelayMillis() {
+            return (int) Math.round((videoSeconds - audioSeconds) * 1000);
+        }
+
+        /** Whether both events stand out clearly and are close enough to be one. */
+        public boolean reliable() {
+            return videoScore >= MIN_VIDEO_RATIO && audioRiseDb >= MIN_AUDIO_RISE_DB
+                    && Math.abs(videoSeconds - audioSeconds) <= MAX_SKEW_SECONDS;
+        }
+    }
+
+    /** The timestamp last printed by each filter, by the log prefix that names it. */
+    private final Map<String, Double> pendingTimes = new HashMap<>();
+    private final double[] videoPast = new double[VIDEO_PAST_FRAMES];
+    private int videoFrames;
+    private double videoPastSum;
+    private double bestVideoScore;
+    private double bestVideoSeconds = Double.NaN;
+    private double[] audioPast;
+    private int audioBlocks;
+    private double bestAudioRise;
+    private double bestAudioSeconds = Double.NaN;
+
+    /**
+     * The filter graph for the calibration run: the picture from input 0 and the sound from the
+     * given chain head, which has to end on the one channel to listen to.
+     */
+    static String filterGraph(String audioChannel) {
+        return "[0:v]scale=160:-2,format=gray,signalstats,metadata=mode=print:key=" + VIDEO_KEY + "[v];"
+                + audioChannel + ",asetnsamples=n=" + AUDIO_BLOCK_SAMPLES + ":p=0,astats=metadata=1:reset=1,"
+                + "ametadata=mode=print:key=" + AUDIO_KEY + "[a]";
+    }
+
+    /**
+     * One line of ffmpeg's log. The metadata filters print the frame's timestamp on one line and
+     * the figure on the next, each under its own prefix, so the timestamp is kept per prefix
+     * until its figure arrives.
+     */
+    public void accept(String line) {
+        int end = line.indexOf("] ");
+        if (!line.startsWith("[") || end < 0) {
+            return;
+        }
+        String filter = line.substring(0, end);
+        String text = line.substring(end + 2).trim();
+        int timeAt = text.indexOf("pts_time:");
+        if (text.startsWith("frame:") && timeAt >= 0) {
+            try {
+                pendingTimes.put(filter, Double.parseDouble(text.substring(timeAt + "pts_time:".length()).trim()));
+            } catch (NumberFormatException e) {
+                pendingTimes.remove(filter);
+            }
+        } else if (text.startsWith(VIDEO_KEY + "=")) {
+            Double time = pendingTimes.remove(filter);
+            if (time != null) {
+                videoFrame(time, parse(text.substring(VIDEO_KEY.length() + 1), 0));
+            }
+        } else if (text.startsWith(AUDIO_KEY + "=")) {
+            Double time = pendingTimes.remove(filter);
+            if (time != null) {
+                audioBlock(time, parse(text.substring(AUDIO_KEY.length() + 1), SILENCE_DB));
+            }
+        }
+    }
+
+    private void videoFrame(double seconds, double difference) {
+        if (videoFrames >= VIDEO_PAST_FRAMES) {
+            double score = difference / (videoPastSum / VIDEO_PAST_FRAMES + VIDEO_NOISE_FLOOR);
+            if (score > bestVideoScore) {
+                bestVideoScore = score;
+                bestVideoSeconds = seconds;
+            }
+        }
+        int slot = videoFrames % VIDEO_PAST_FRAMES;
+        videoPastSum += difference - videoPast[slot];
+        videoPast[slot] = difference;
+        videoFrames++;
+    }
+
+    private void audioBlock(double seconds, double peakDb) {
+        if (audioPast == null) {
+            // The rate is not printed; the blocks are a fixed number of samples, so the past is
+            // sized for the highest rate the stream could run at
+            audioPast = new double[(int) Math.ceil(AUDIO_PAST_SECONDS * 96000 / AUDIO_BLOCK_SAMPLES)];
+            Arrays.fill(audioPast, SILENCE_DB);
+        }
+        if (audioBlocks >= audioPast.length) {
+            double loudestBefore = SILENCE_DB;
+            for (double past : audioPast) {
+                loudestBefore = Math.max(loudestBefore, past);
+            }
+            double rise = peakDb - loudestBefore;
+            if (rise > bestAudioRise) {
+                bestAudioRise = rise;
+                bestAudioSeconds = seconds;
+            }
+        }
+        audioPast[audioBlocks % audioPast.length] = peakDb;
+        audioBlocks++;
+    }
+
+    private static double parse(String value, double fallback) {
+        try {
+            double parsed = Double.parseDouble(value.trim());
+            return Double.isFinite(parsed) ? parsed : fallback;
+        } catch (NumberFormatException e) {
+            // astats prints -inf for a block of digital silence
+            return fallback;
+        }
+    }
+
+    /** What was found, or null when the picture or the sound never showed an event at all. */
+    public Result result() {
+        if (Double.isNaN(bestVideoSeconds) || Double.isNaN(bestAudioSeconds)) {
+            return null;
+        }
+        return new Result(bestVideoSeconds, bestAudioSeconds, bestVideoScore, bestAudioRise);
+    }
+}
@@ -10,7 +10,11 @@ public class VolumeMonitor {
 
     private final Map<String, LevelMeter> vuMeters;
     private ScheduledExecutorService scheduler;
-    private static final double WARNING_THRESHOLD_DB = 10.0; // Hardcoded threshold
+    private static final double WARNING_THRESHOLD_DB = 10.0; // Hardcoded threshold, in LU
+    /** A silent channel reads as this, the loudness gate, so it still compares as far quieter. */
+    private static final double LOUDNESS_FLOOR_LUFS = -70.0;
+    /** English quieter than this is a pause, not a level to hold the translations to. */
+    private static final double ENGLISH_SPEAKING_LUFS = -50.0;
     private final Map<String, Long> lowVolumeStartTime = new HashMap<>(); // Tracks when low volume started
     private final Map<String, Long> highVolumeStartTime = new HashMap<>(); // Tracks when high volume started
 
@@ -40,7 +44,11 @@ public class VolumeMonitor {
             return;
         }
 
-        double englishMixAverageDb = englishMixMeter.getAverageActualDb();
+        // Compared by loudness over the last 3 s rather than by peak level: a voice and a
+        // bell with the same peaks can be far apart in how loud the audience hears them.
+        // Per channel, since English is often a stereo pair whose summed sides read 3 LU
+        // louder than the same voice on one of the translations' single channels
+        double englishLufs = Math.max(LOUDNESS_FLOOR_LUFS, englishMixMeter.getShortTermLufsPerChannel());
 
         for (Map.Entry<String, LevelMeter> entry : vuMeters.entrySet()) {
             String language = entry.getKey();
@@ -51,10 +59,10 @@ public class VolumeMonitor {
                 continue;
             }
 
-            double translationAverageDb = meter.getAverageActualDb();
+            double translationLufs = Math.max(LOUDNESS_FLOOR_LUFS, meter.getShortTermLufsPerChannel());
             long currentTime = System.currentTimeMillis();
 
-            if (translationAverageDb - englishMixAverageDb > WARNING_THRESHOLD_DB) {
+            if (translationLufs - englishLufs > WARNING_THRESHOLD_DB) {
                 // High volume condition met
                 if (!highVolumeStartTime.containsKey(language)) {
                     // First time this condition is met, record start time
@@ -65,7 +73,7 @@ public class VolumeMonitor {
                 if (currentTime - highVolumeStartTime.get(language) >= 6_000) { // 6 seconds
                     meter.setWarningDisplay(true, "HIGH VOLUME!", LevelMeter.COLOR_WARNING_HIGH);
                 }
-            } else if (englishMixAverageDb - translationAverageDb > WARNING_THRESHOLD_DB && englishMixAverageDb >= -40.0) {
+            } else if (englishLufs - translationLufs > WARNING_THRESHOLD_DB && englishLufs >= ENGLISH_SPEAKING_LUFS) {
                 // Low volume condition met
                 if (!lowVolumeStartTime.containsKey(language)) {
                     // First time this condition is met, record start time
@@ -1,17 +1,27 @@
 package org.kadampa.festivalstreaming.linux;
 
+import org.kadampa.festivalstreaming.AudioCaptureManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.Mixer;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Carries the Linux capture audio from pw-record into ffmpeg through a buffer large enough
- * to survive ffmpeg's start-up.
+ * Carries the Linux capture audio into ffmpeg through a buffer large enough to survive
+ * ffmpeg's start-up.
  * <p>
- * When the two processes were joined by a plain pipe, every sample recorded before ffmpeg
+ * When the recorder and ffmpeg were joined by a plain pipe, every sample recorded before ffmpeg
  * first read its audio input was lost: a pipe holds 64KB — 68 milliseconds of ten-channel
  * audio — and once it was full the sound server dropped whatever followed. The stream's
  * first audio then dated from that first read while its first video frame dated from the
@@ -21,147 +31,706 @@ import java.io.OutputStream;
  * while a power profile clamped the machine to a fraction of its speed it stretched to
  * seconds — which is where the historical 2500ms delay setting came from. Windows does not
  * have the problem, because ffmpeg opens the audio device itself and DirectShow timestamps
- * whatever queued; macOS has its own feeder already: see {@link AudioPipe}.
+ * whatever queued; macOS has its own feeder already: see {@link org.kadampa.festivalstreaming.macos.AudioPipe}.
  * <p>
- * The relay reads pw-record without ever blocking it and parks the samples in a ring sized
- * for many seconds, so the backlog survives until ffmpeg starts reading and the first audio
- * and the first video date from the same moment — whatever the machine's speed that day.
- * The delay setting then only covers the real chain latency — the same few hundred
- * milliseconds as on the other platforms. Once ffmpeg
+ * The samples are the level meters' own: the relay is one more listener on the device's
+ * capture in {@link AudioCaptureManager}, so the mixer is read once by one pw-record whatever
+ * is watching it, and the meters show exactly the samples being encoded. It used to start a
+ * second pw-record of its own for every stream, which read and resampled the same 32 channels
+ * twice and doubled the PCM passing through the sound server. The capture is usually running
+ * long before Start is pressed, so the relay ignores everything until {@link #start} is
+ * called just before ffmpeg is launched: the first sample kept dates from that moment, as the
+ * first sample of a freshly started recorder did.
+ * <p>
+ * The relay takes the samples without ever blocking the thread that hands them over — a
+ * relay that fell behind would lose buffers out of its queue before they reached it — and
+ * parks them in a ring sized for many seconds, so the backlog survives until
+ * ffmpeg starts reading and the first audio and the first video date from the same moment —
+ * whatever the machine's speed that day. The delay setting then only covers the real chain
+ * latency — the same few hundred milliseconds as on the other platforms. Once ffmpeg
  * has caught up the ring stays near-empty, adding no latency of its own. It can only fill if
  * ffmpeg stops reading for the ring's whole capacity, by which point the stream is beyond
  * rescue anyway, so overflow keeps the newest audio and logs instead of growing without
  * bound. How much was waiting when ffmpeg took its first read is logged: on a healthy
  * start it is the whole start-up backlog that a plain pipe would have dropped.
+ * <p>
+ * The ring is a {@link ByteRing}: the capture thread writes and the relay's writer reads with
+ * no lock between them, where a monitor used to be handed back and forth on every buffer. It
+ * lives in direct memory and is kept for the next stream when this one ends, rather than
+ * sixteen fresh megabytes of heap on every Start. Because only the writer may move the read
+ * position, a full ring refuses what arrives instead of overwriting the oldest; the writer
+ * sees the refusal and throws away the stale backlog before going on, which comes to the same
+ * near-live continuation.
+ * <p>
+ * With the spill option on, a full ring does not lose anything: what it refuses goes to a
+ * {@link RelaySpill} file instead, and everything after follows it there until the writer has
+ * read the file dry, so the order is kept - the ring's older audio first, then the file's, then
+ * the ring again. The backlog is only thrown away if the file fills as well. How much went to the
+ * file is published with the backlog, for the status bar, and logged with the read-back speed
+ * when the relay finishes.
+ * <p>
+ * Only the channels the languages read are relayed. The capture carries every channel of the
+ * desk, since the meters can be pointed at any of them, but a 32-channel mixer feeding twelve
+ * languages sent ffmpeg three times the audio it used - through the ring, the pipe and ffmpeg's
+ * demuxer - and sized the ring for all of it. Given the channels it is to keep, the relay packs
+ * each buffer down to those before it is queued, in the order given, so the ring, the pipe and
+ * the format reported to the command line all shrink with the number of languages rather than
+ * the size of the desk; the command line then picks each language by its place in that list.
+ * Neighbouring channels are copied as one run, which is how a block of languages on adjacent
+ * inputs costs a single copy per frame.
+ * <p>
+ * ffmpeg's standard input can only carry one relay. Every other device is handed over through a
+ * {@link RelayFifo} of its own - see {@link #createFifo()} - with its own ring and writer, so
+ * any number of multi-channel devices can be read natively at once.
+ * <p>
+ * What the ring holds is how late ffmpeg is taking the audio, so it is published as it goes -
+ * see {@link #backlog()} - with its peak and the time the writer spent blocked on ffmpeg, rather
+ * than logged once at the first take and then not again until the ring overflows. Once the
+ * start-up backlog has drained, a {@link BacklogPolicy} can hold it at a target: by warning when
+ * it stays above, or by trimming a few milliseconds at a time, each cut crossfaded so it cannot
+ * be heard, until it is back. A trim is audio ffmpeg never gets, so like any dropout it moves the
+ * sample-counted sound earlier against the picture; the steps are small and spaced out, and each
+ * run of them is reported to the device's clock telemetry with the rest of its gaps.
  */
-public final class AudioRelay {
+public final class AudioRelay implements AudioCaptureManager.AudioDataListener {
 
-    /** Room for about 17 seconds of ten-channel 48kHz 16-bit audio (960KB/s). */
-    private static final int RING_CAPACITY = 16 * 1024 * 1024;
+    /** What to do once the start-up is over and the backlog stays above its target. */
+    public enum BacklogPolicy {
+        /** Nothing: the backlog is only published. */
+        OFF,
+        /** Logs when the backlog has stayed above the target for a few seconds, and when it is back. */
+        WARN,
+        /** Warns, and trims the backlog back down in small crossfaded steps. */
+        TRIM;
+
+        /** The policy a settings token names; OFF for anything unreadable. */
+        public static BacklogPolicy fromToken(String token) {
+            for (BacklogPolicy policy : values()) {
+                if (policy.name().equalsIgnoreCase(token != null ? token.trim() : "")) {
+                    return policy;
+                }
+            }
+            return OFF;
+        }
+    }
+
+    /**
+     * How far behind ffmpeg is taking a relay's audio.
+     *
+     * @param device        the device relayed
+     * @param millis        audio waiting now, in the ring and the spill file
+     * @param peakMillis    the most that waited since the last report
+     * @param blockedShare  the share of the time since the last report the writer spent waiting
+     *                      for ffmpeg to take what it wrote, 0 to 1
+     * @param trimmedMillis audio trimmed away to hold the target, since the relay started
+     * @param spilledMillis audio that went to the spill file since the relay started; 0 without one
+     * @param overTarget    whether the backlog has stayed above the target past the warning time
+     */
+    public record Backlog(String device, double millis, double peakMillis, double blockedShare,
+                          double trimmedMillis, double spilledMillis, boolean overTarget) {
+    }
+
+    /**
+     * How many seconds the ring holds, whatever the format: about 17 seconds of ten-channel
+     * 48kHz audio fitted the old fixed 16MB, and the Qu-5's 32 channels need proportionally more.
+     */
+    private static final int RING_SECONDS = 17;
+    private static final int MIN_RING_CAPACITY = 16 * 1024 * 1024;
     private static final int CHUNK = 64 * 1024;
+    private static final int FORMAT_WAIT_MS = 4000;
+    /** A safety net on the writer's sleep; it is normally woken by the capture thread. */
+    private static final long PARK_NANOS = 20_000_000L;
+    /** The start-up backlog is taken as drained at the latest this long after the first take. */
+    private static final long STARTUP_NANOS = 30_000_000_000L;
+    /** How long the backlog has to stay above the target before it is said. */
+    private static final long OVER_TARGET_NANOS = 5_000_000_000L;
+    /** One trim: this much audio, crossfaded over the same length so the cut is not heard. */
+    private static final double TRIM_STEP_MS = 4;
+    /** Trims are at least this far apart, so the audio is never hurried by more than a few percent. */
+    private static final long TRIM_SPACING_NANOS = 100_000_000L;
+
+    /** The ring of the last stream, kept for the next one: see the class comment. */
+    private static final AtomicReference<ByteRing> spareRing = new AtomicReference<>();
 
     private static final Logger logger = LoggerFactory.getLogger(AudioRelay.class);
 
-    private final InputStream source;
-    private final OutputStream sink;
+    private final Mixer.Info device;
+    private final boolean spillToDisk;
+    /** The capture channels relayed, in the order ffmpeg sees them; null for all of them. */
+    private final int[] channels;
+    /** The packing for the capture format it was worked out for: see packRuns. */
+    private AudioFormat packedFor;
+    private int[] runSource = new int[0];
+    private int[] runTarget = new int[0];
+    private int[] runLength = new int[0];
+    private byte[] packed = new byte[0];
+    private final CountDownLatch formatKnown = new CountDownLatch(1);
+    private volatile AudioFormat captureFormat;
+    private OutputStream sink;
+    /** The named pipe to ffmpeg, when the relay does not use its standard input. */
+    private RelayFifo fifo;
     /** Bytes of one second of audio, only for reporting buffer levels as milliseconds. */
-    private final int bytesPerSecond;
-
-    private final byte[] ring = new byte[RING_CAPACITY];
-    private int head;               // the oldest unread byte
-    private int count;              // how many bytes the ring holds
-    private boolean sourceDone;     // pw-record has ended; drain and finish
-    private volatile boolean stopped;
-    private long overflowed;        // bytes sacrificed because ffmpeg stopped reading
+    private int bytesPerSecond = 1;
+
+    private ByteRing ring;
+    /** The overflow file, when the option is on and the disk allowed it: see RelaySpill. */
+    private volatile RelaySpill spill;
+    private boolean spilling;             // the capture thread's view: the ring is overflowing
+    private volatile Thread writer;
+    private volatile boolean accepting;   // set when ffmpeg is launched
+    private volatile boolean producing;   // the capture thread is inside put
+    private volatile boolean sourceDone;  // the relay was stopped; drain and finish
+    private volatile boolean writerDone;
+    private final AtomicBoolean ringReturned = new AtomicBoolean();
+    /**
+     * The bytes waiting, as the capture thread saw them after its last put and the writer after
+     * its last take: published for {@link #backlog()}, which must not look at the ring itself
+     * while the writer may be handing it on to the next stream.
+     */
+    private volatile long waitingBytes;
+    /** Bytes refused because ffmpeg stopped reading; written by the capture thread only. */
+    private volatile long overflowed;
+    private long overflowSeenByWriter;
     private boolean firstTakeLogged;
 
-    public AudioRelay(InputStream source, OutputStream sink, int bytesPerSecond) {
-        this.source = source;
-        this.sink = sink;
-        this.bytesPerSecond = Math.max(1, bytesPerSecond);
+    private BacklogPolicy backlogPolicy = BacklogPolicy.OFF;
+    private int backlogTargetMillis = 500;
+    // Written by the writer only
+    private final AtomicLong peakBacklogBytes = new AtomicLong();
+    private volatile long blockedNanos;
+    private volatile double trimmedMillis;
+    private volatile boolean overTarget;
+    private long firstTakeNanos;
+    private boolean startupOver;
+    private long overTargetSinceNanos;
+    private long lastTrimNanos;
+    /** Audio trimmed in the current run of trims, reported when the backlog is back at its target. */
+    private double trimRunMillis;
+    // The reader's last report, for the blocked share; under the relay's lock
+    private long lastReportNanos = System.nanoTime();
+    private long lastReportBlockedNanos;
+
+    /**
+     * @param channels    the zero-based capture channels to relay, in the order ffmpeg is to see
+     *                    them; null or empty for every channel the device is captured with
+     * @param spillToDisk whether audio the ring has no room for goes to a file rather than being
+     *                    lost: see {@link RelaySpill}
+     */
+    public AudioRelay(Mixer.Info device, int[] channels, boolean spillToDisk) {
+        this.device = device;
+        this.channels = channels != null && channels.length > 0 ? channels.clone() : null;
+        this.spillToDisk = spillToDisk;
+    }
+
+    /**
+     * Joins the device's capture and waits until its format is known, which is only after the
+     * first buffer arrives. The command line needs the rate and the channel count before ffmpeg
+     * is started, and they have to be the capture's own: the samples are not converted here,
+     * only the channels no language reads are left out.
+     *
+     * @return the format ffmpeg is sent, or null if the device never produced audio
+     */
+    public AudioFormat open() {
+        AudioCaptureManager.getInstance().registerListener(device, this);
+        try {
+            if (!formatKnown.await(FORMAT_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                logger.error("The audio device {} produced no audio to send to ffmpeg", device.getName());
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        return getRelayedFormat();
+    }
+
+    /** The format the device is being captured in, known once {@link #open()} has returned. */
+    public AudioFormat getCaptureFormat() {
+        return captureFormat;
+    }
+
+    /**
+     * The format ffmpeg is sent: the capture's, with only the relayed channels. Known once
+     * {@link #open()} has returned.
+     */
+    public AudioFormat getRelayedFormat() {
+        AudioFormat format = captureFormat;
+        if (format == null || channels == null) {
+            return format;
+        }
+        int sampleBytes = format.getFrameSize() / Math.max(1, format.getChannels());
+        return new AudioFormat(format.getEncoding(), format.getSampleRate(), format.getSampleSizeInBits(),
+                channels.length, sampleBytes * channels.length, format.getFrameRate(), format.isBigEndian());
+    }
+
+    /**
+     * How to hold the backlog once the start-up is over. Set before {@link #start}.
+     *
+     * @param targetMillis the backlog to hold, in milliseconds of audio
+     */
+    public void setBacklogPolicy(BacklogPolicy policy, int targetMillis) {
+        this.backlogPolicy = policy != null ? policy : BacklogPolicy.OFF;
+        this.backlogTargetMillis = Math.max(1, targetMillis);
+    }
+
+    /**
+     * The backlog as it is now, for display from any thread. The peak and the blocked share
+     * start over with each call, so they are meant for one reader - the status bar - and a
+     * second one splits them with it; the lock only keeps two from mixing up the report's time.
+     */
+    public synchronized Backlog backlog() {
+        long waiting = waitingBytes;
+        long now = System.nanoTime();
+        long blocked = blockedNanos;
+        double share = now > lastReportNanos
+                ? Math.min(1, (blocked - lastReportBlockedNanos) / (double) (now - lastReportNanos)) : 0;
+        lastReportNanos = now;
+        lastReportBlockedNanos = blocked;
+        double peak = Math.max(waiting, peakBacklogBytes.getAndSet(0)) * 1000.0 / bytesPerSecond;
+        RelaySpill current = spill;
+        double spilled = current != null ? current.getBytesSpilled() * 1000.0 / bytesPerSecond : 0;
+        return new Backlog(device.getName(), waiting * 1000.0 / bytesPerSecond, peak, share,
+                trimmedMillis, spilled, overTarget);
+    }
+
+    /**
+     * Makes the named pipe this relay is to feed, for a device that cannot have ffmpeg's standard
+     * input. Called before the command is written, since the command names it.
+     *
+     * @return the path to give ffmpeg as the input, or null when no pipe could be made
+     */
+    public Path createFifo() {
+        if (fifo == null) {
+            fifo = RelayFifo.create(device.getName());
+        }
+        return fifo != null ? fifo.path() : null;
+    }
+
+    /**
+     * Starts keeping the captured audio and the thread that hands it to ffmpeg. Called just
+     * before ffmpeg is launched; the stream is closed when the relay stops.
+     */
+    public void start(OutputStream toFfmpeg) {
+        sink = toFfmpeg;
+        startWriter();
     }
 
-    /** Starts the two carrier threads; they end when either process goes away. */
+    /**
+     * Starts keeping the captured audio for the named pipe made by {@link #createFifo()}. Called
+     * once ffmpeg is launched; the writer opens the pipe when ffmpeg reaches that input.
+     */
     public void start() {
-        Thread reader = new Thread(this::readAll, "audio-relay-reader");
-        Thread writer = new Thread(this::writeAll, "audio-relay-writer");
-        reader.setDaemon(true);
-        writer.setDaemon(true);
-        reader.start();
-        writer.start();
+        startWriter();
     }
 
-    /** Lets both threads finish; safe to call more than once. */
+    private void startWriter() {
+        AudioFormat format = getRelayedFormat();
+        if (format != null) {
+            bytesPerSecond = Math.max(1, (int) format.getSampleRate() * format.getFrameSize());
+        }
+        ring = takeRing(Math.max(MIN_RING_CAPACITY, (int) Math.min(1 << 30, (long) bytesPerSecond * RING_SECONDS)));
+        if (spillToDisk) {
+            spill = RelaySpill.create(device.getName());
+        }
+        Thread thread = new Thread(this::writeAll, "audio-relay-writer-" + device.getName());
+        thread.setDaemon(true);
+        writer = thread;
+        accepting = true;
+        thread.start();
+    }
+
+    /**
+     * Leaves the capture and lets the writer drain and finish; safe to call more than once.
+     * The capture itself carries on for as long as the meters are watching the device.
+     */
     public void stop() {
-        stopped = true;
-        synchronized (this) {
-            notifyAll();
+        accepting = false;
+        AudioCaptureManager.getInstance().unregisterListener(device, this);
+        sourceDone = true;
+        Thread thread = writer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
         }
+        if (fifo != null) {
+            // A writer still waiting for ffmpeg to open the pipe is let go
+            fifo.close();
+        }
+        returnRing();
     }
 
-    /** Moves pw-record's output into the ring, never letting the recorder block. */
-    private void readAll() {
-        byte[] buffer = new byte[CHUNK];
-        try {
-            int read;
-            while (!stopped && (read = source.read(buffer)) != -1) {
-                put(buffer, read);
+    /** The spare ring when it is big enough, a new one otherwise. */
+    private static ByteRing takeRing(int minimumCapacity) {
+        ByteRing spare = spareRing.getAndSet(null);
+        if (spare != null && spare.capacity() >= minimumCapacity) {
+            return spare;
+        }
+        return ByteRing.allocateDirect(minimumCapacity);
+    }
+
+    /**
+     * Hands the ring on to the next stream once nobody is using it any more: the writer has
+     * finished and the capture thread is not halfway through a put.
+     */
+    private void returnRing() {
+        if (!sourceDone || !writerDone || producing || ring == null) {
+            return;
+        }
+        if (ringReturned.compareAndSet(false, true)) {
+            if (spill != null) {
+                reportSpill();
+                spill.delete();
             }
-        } catch (IOException e) {
-            // pw-record was stopped; whatever reached the ring is drained below
-        } finally {
-            synchronized (this) {
-                sourceDone = true;
-                notifyAll();
+            ring.reset();
+            waitingBytes = 0;
+            ByteRing spare = spareRing.get();
+            if (spare == null || spare.capacity() < ring.capacity()) {
+                spareRing.set(ring);
+            }
+        }
+    }
+
+    @Override
+    public void onAudioData(byte[] buffer, int bytesRead, AudioFormat format) {
+        if (captureFormat == null) {
+            captureFormat = format;
+            formatKnown.countDown();
+        }
+        if (accepting && bytesRead > 0) {
+            // The buffer goes back to the capture's pool after this call, so it is copied now
+            if (channels == null) {
+                put(buffer, bytesRead);
+            } else {
+                put(packed, pack(buffer, bytesRead, format));
+            }
+        }
+    }
+
+    /**
+     * Copies the relayed channels of every frame into {@link #packed}, one run of neighbouring
+     * channels at a time.
+     *
+     * @return the bytes packed
+     */
+    private int pack(byte[] buffer, int bytesRead, AudioFormat format) {
+        if (format != packedFor) {
+            packRuns(format);
+        }
+        int frameSize = format.getFrameSize();
+        int frames = Math.min(bytesRead, buffer.length) / frameSize;
+        int packedFrameSize = packedFrameSize(format);
+        int length = frames * packedFrameSize;
+        if (packed.length < length) {
+            packed = new byte[length];
+        }
+        int runs = runLength.length;
+        for (int frame = 0, source = 0, target = 0; frame < frames;
+             frame++, source += frameSize, target += packedFrameSize) {
+            for (int run = 0; run < runs; run++) {
+                if (runSource[run] < 0) {
+                    // A channel the device is not captured with: silence in its place
+                    Arrays.fill(packed, target + runTarget[run], target + runTarget[run] + runLength[run], (byte) 0);
+                } else {
+                    System.arraycopy(buffer, source + runSource[run], packed, target + runTarget[run], runLength[run]);
+                }
+            }
+        }
+        return length;
+    }
+
+    private int packedFrameSize(AudioFormat format) {
+        return format.getFrameSize() / Math.max(1, format.getChannels()) * channels.length;
+    }
+
+    /**
+     * Works out the copies that pack one frame: each run is a stretch of channels that are
+     * neighbours both in the capture and in the relayed order. A channel beyond what the device
+     * is captured with becomes a run of its own that is filled with silence, so the places of
+     * the others stay as the command line expects.
+     */
+    private void packRuns(AudioFormat format) {
+        int sampleBytes = format.getFrameSize() / Math.max(1, format.getChannels());
+        int[] source = new int[channels.length];
+        int[] target = new int[channels.length];
+        int[] length = new int[channels.length];
+        int runs = 0;
+        for (int index = 0; index < channels.length; index++) {
+            int channel = channels[index];
+            boolean present = channel >= 0 && channel < format.getChannels();
+            if (runs > 0 && present && source[runs - 1] >= 0
+                    && source[runs - 1] + length[runs - 1] == channel * sampleBytes) {
+                length[runs - 1] += sampleBytes;
+                continue;
             }
+            source[runs] = present ? channel * sampleBytes : -1;
+            target[runs] = index * sampleBytes;
+            length[runs] = sampleBytes;
+            runs++;
+        }
+        runSource = Arrays.copyOf(source, runs);
+        runTarget = Arrays.copyOf(target, runs);
+        runLength = Arrays.copyOf(length, runs);
+        packedFor = format;
+        if (runs < channels.length) {
+            logger.debug("Relaying {} of {} channels in {} copies per frame", channels.length,
+                    format.getChannels(), runs);
         }
     }
 
+    @Override
+    public void onCaptureError(String message) {
+        // The capture reopens the device by itself; whatever was lost meanwhile shifts the
+        // sample-counted timestamps just as an overflow would, so it is worth a warning
+        logger.warn("The audio capture feeding ffmpeg failed: {}", message);
+        formatKnown.countDown();
+    }
+
     /** Moves the ring into ffmpeg at whatever pace ffmpeg reads. */
     private void writeAll() {
         byte[] buffer = new byte[CHUNK];
         try {
+            if (sink == null && fifo != null) {
+                sink = fifo.openForWriting();
+            }
             int taken;
             while ((taken = take(buffer)) > 0) {
+                taken = holdBacklog(buffer, taken);
+                long started = System.nanoTime();
                 sink.write(buffer, 0, taken);
                 sink.flush();
+                blockedNanos += System.nanoTime() - started;
             }
-            // pw-record has ended and the ring is drained: end-of-stream tells ffmpeg
+            // The relay was stopped and the ring is drained: end-of-stream tells ffmpeg
             sink.close();
         } catch (IOException e) {
-            // ffmpeg went away; the caller's clean-up stops pw-record, which ends the reader
+            // ffmpeg went away; the caller's clean-up stops the relay
             logger.debug("ffmpeg stopped taking audio", e);
+        } finally {
+            if (trimRunMillis > 0) {
+                AudioCaptureManager.getInstance().reportDropout(device, "relay trim", trimRunMillis);
+                trimRunMillis = 0;
+            }
+            writerDone = true;
+            returnRing();
         }
     }
 
-    private synchronized void put(byte[] data, int length) {
-        if (count + length > RING_CAPACITY) {
-            // ffmpeg has not read for the ring's whole capacity. Keeping the newest audio
-            // lets a miraculously recovered stream carry on near-live, but the loss shifts
-            // the sample-counted timestamps, so the operator should restart rather than trust
-            // the sync afterwards - hence the warning.
-            int sacrificed = count + length - RING_CAPACITY;
-            head = (head + sacrificed) % RING_CAPACITY;
-            count -= sacrificed;
-            if (overflowed == 0) {
-                logger.warn("ffmpeg read no audio for {} seconds - dropping the oldest;"
-                        + " audio/video sync is not trustworthy until the stream is restarted",
-                        RING_CAPACITY / bytesPerSecond);
-            }
-            overflowed += sacrificed;
-        }
-        int tail = (head + count) % RING_CAPACITY;
-        int firstPart = Math.min(length, RING_CAPACITY - tail);
-        System.arraycopy(data, 0, ring, tail, firstPart);
-        System.arraycopy(data, firstPart, ring, 0, length - firstPart);
-        count += length;
-        notifyAll();
-    }
-
-    private synchronized int take(byte[] into) {
-        while (count == 0 && !sourceDone && !stopped) {
-            try {
-                wait();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return -1;
-            }
-        }
-        if (count == 0) {
-            return -1;
-        }
-        if (!firstTakeLogged) {
-            firstTakeLogged = true;
-            logger.info("ffmpeg took its first audio with {}ms buffered"
-                    + " - the start-up backlog a plain pipe would have lost",
-                    count * 1000L / bytesPerSecond);
-        }
-        int taken = Math.min(count, into.length);
-        int firstPart = Math.min(taken, RING_CAPACITY - head);
-        System.arraycopy(ring, head, into, 0, firstPart);
-        System.arraycopy(ring, 0, into, firstPart, taken - firstPart);
-        head = (head + taken) % RING_CAPACITY;
-        count -= taken;
+    /** Capture thread: never waits, whatever state ffmpeg is in. */
+    private void put(byte[] data, int length) {
+        producing = true;
+        try {
+            if (!accepting) {
+                return;
+            }
+            boolean offered = offerInOrder(data, length);
+            waitingBytes = backlogBytes();
+            if (!offered) {
+                // ffmpeg has not read for the ring's whole capacity. Only the writer may move
+                // the read position, so the buffer is refused here and the writer discards
+                // the backlog when it next looks: see take
+                overflowed += length;
+            }
+            Thread thread = writer;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        } finally {
+            producing = false;
+        }
+        if (sourceDone) {
+            returnRing();
+        }
+    }
+
+    /**
+     * Capture thread: into the ring, unless the spill file holds audio - then behind it, so
+     * nothing overtakes what is waiting there.
+     */
+    private boolean offerInOrder(byte[] data, int length) {
+        if (spill == null) {
+            return ring.offer(data, 0, length);
+        }
+        if (!spill.holdsAudio()) {
+            if (ring.offer(data, 0, length)) {
+                spilling = false;
+                return true;
+            }
+            if (!spilling) {
+                spilling = true;
+                logger.warn("ffmpeg has fallen {} seconds behind - spilling its audio to disk;"
+                        + " the stream runs late but stays in sync",
+                        ring.size() / bytesPerSecond);
+            }
+        }
+        return spill.offer(data, length);
+    }
+
+    /** Writer side: the ring first, since whatever it holds is older than the file's audio. */
+    private int pollInOrder(byte[] into) {
+        int taken = ring.poll(into, 0, into.length);
+        if (taken > 0 || spill == null) {
+            return taken;
+        }
+        taken = spill.poll(into);
+        if (taken == 0) {
+            long drainMillis = spill.drained();
+            if (drainMillis >= 0) {
+                logger.info("The audio spilled to disk has been read back to ffmpeg in {}ms",
+                        drainMillis);
+            }
+        }
         return taken;
     }
+
+    /** Capture thread or writer: what is waiting in the ring and the file. */
+    private long backlogBytes() {
+        return ring.size() + (spill != null ? spill.backlog() : 0);
+    }
+
+    /**
+     * Writer side: applies the backlog policy to a chunk about to go to ffmpeg.
+     *
+     * @return the bytes of the chunk to write, fewer when a step was trimmed out of it
+     */
+    private int holdBacklog(byte[] chunk, int length) {
+        if (backlogPolicy == BacklogPolicy.OFF) {
+            return length;
+        }
+        long now = System.nanoTime();
+        double backlogMillis = backlogBytes() * 1000.0 / bytesPerSecond;
+        if (!startupOver) {
+            // Until the start-up backlog is gone there is nothing to hold: that backlog is the
+            // audio a plain pipe would have lost, and it is what keeps the start in sync
+            startupOver = backlogMillis <= backlogTargetMillis || now - firstTakeNanos >= STARTUP_NANOS;
+            return length;
+        }
+        if (backlogMillis <= backlogTargetMillis) {
+            overTargetSinceNanos = 0;
+            if (overTarget) {
+                overTarget = false;
+                logger.info("ffmpeg is taking the audio of {} within {}ms again", device.getName(), backlogTargetMillis);
+            }
+            if (trimRunMillis > 0) {
+                AudioCaptureManager.getInstance().reportDropout(device, "relay trim", trimRunMillis);
+                trimRunMillis = 0;
+            }
+            return length;
+        }
+        if (overTargetSinceNanos == 0) {
+            overTargetSinceNanos = now;
+        } else if (!overTarget && now - overTargetSinceNanos >= OVER_TARGET_NANOS) {
+            overTarget = true;
+            logger.warn("ffmpeg is taking the audio of {} {}ms late, above the {}ms aimed for{}", device.getName(),
+                    String.format("%.0f", backlogMillis), backlogTargetMillis,
+                    backlogPolicy == BacklogPolicy.TRIM ? " - trimming it back" : "");
+        }
+        if (backlogPolicy == BacklogPolicy.TRIM && now - lastTrimNanos >= TRIM_SPACING_NANOS) {
+            int trimmed = trimStep(chunk, length);
+            if (trimmed < length) {
+                lastTrimNanos = now;
+                double millis = (length - trimmed) * 1000.0 / bytesPerSecond;
+                trimRunMillis += millis;
+                trimmedMillis += millis;
+                return trimmed;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writer side: takes one step of audio out of the start of a chunk, crossfading the step with
+     * the audio after it so the two meet without a click: the chunk's first frames fade from the
+     * audio that was there into the audio that follows the step. Only for the 16-bit samples the
+     * relay carries, in the byte order of its format.
+     *
+     * @return the chunk's new length; unchanged when it is too short for a step
+     */
+    private int trimStep(byte[] chunk, int length) {
+        AudioFormat format = getRelayedFormat();
+        if (format == null || format.getSampleSizeInBits() != 16) {
+            return length;
+        }
+        int frameSize = format.getFrameSize();
+        int channels = format.getChannels();
+        int low = format.isBigEndian() ? 1 : 0;
+        int high = 1 - low;
+        int step = (int) (format.getSampleRate() * TRIM_STEP_MS / 1000);
+        if (step <= 0 || length / frameSize < 2 * step) {
+            return length;
+        }
+        for (int frame = 0; frame < step; frame++) {
+            float fadeIn = (frame + 0.5f) / step;
+            int from = frame * frameSize;
+            int to = (frame + step) * frameSize;
+            for (int channel = 0; channel < channels; channel++) {
+                int out = from + channel * 2;
+                int in = to + channel * 2;
+                short leaving = (short) ((chunk[out + low] & 0xFF) | chunk[out + high] << 8);
+                short arriving = (short) ((chunk[in + low] & 0xFF) | chunk[in + high] << 8);
+                int mixed = Math.round(leaving * (1 - fadeIn) + arriving * fadeIn);
+                chunk[out + low] = (byte) mixed;
+                chunk[out + high] = (byte) (mixed >> 8);
+            }
+        }
+        int stepBytes = step * frameSize;
+        System.arraycopy(chunk, 2 * stepBytes, chunk, stepBytes, length - 2 * stepBytes);
+        return length - stepBytes;
+    }
+
+    /** How much the stream needed the spill file, logged when it ends. */
+    private void reportSpill() {
+        if (spill.getBytesSpilled() == 0) {
+            return;
+        }
+        logger.info("Spilled {}MB of audio to disk, at most {}s of it at once; read back {}MB at {} MB/s",
+                spill.getBytesSpilled() / (1024 * 1024),
+                spill.getPeakBacklog() / bytesPerSecond,
+                spill.getBytesReadBack() / (1024 * 1024),
+                String.format("%.0f", spill.getReadBackMegabytesPerSecond()));
+    }
+
+    private int take(byte[] into) {
+        while (true) {
+            long refused = overflowed;
+            if (refused != overflowSeenByWriter) {
+                // Keeping the newest audio lets a miraculously recovered stream carry on
+                // near-live, but the loss shifts the sample-counted timestamps, so the
+                // operator should restart rather than trust the sync afterwards - hence the
+                // warning.
+                long discarded = ring.discardAll();
+                if (spill != null) {
+                    discarded += spill.discardAll();
+                }
+                if (overflowSeenByWriter == 0) {
+                    logger.warn("ffmpeg read no audio for {} seconds - dropping the oldest;"
+                            + " audio/video sync is not trustworthy until the stream is restarted",
+                            ring.capacity() / bytesPerSecond);
+                }
+                logger.debug("Discarded {} bytes of stale audio", discarded);
+                // Stamped by counting, the stream's audio is now early by all of it
+                AudioCaptureManager.getInstance().reportDropout(device, "relay overflow",
+                        discarded * 1000.0 / bytesPerSecond);
+                overflowSeenByWriter = refused;
+            }
+            int taken = pollInOrder(into);
+            if (taken > 0) {
+                long waiting = backlogBytes();
+                waitingBytes = waiting;
+                peakBacklogBytes.accumulateAndGet(taken + waiting, Math::max);
+                if (!firstTakeLogged) {
+                    firstTakeNanos = System.nanoTime();
+                    firstTakeLogged = true;
+                    logger.info("ffmpeg took its first audio with {}ms buffered"
+                            + " - the start-up backlog a plain pipe would have lost",
+                            (taken + ring.size()) * 1000L / bytesPerSecond);
+                }
+                return taken;
+            }
+            if (sourceDone) {
+                // One last look: the capture thread may have written just before the stop
+                taken = pollInOrder(into);
+                return taken > 0 ? taken : -1;
+            }
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+    }
 }
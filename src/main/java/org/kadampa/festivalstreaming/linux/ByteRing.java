@@ -0,0 +1,182 @@
+package org.kadampa.festivalstreaming.linux;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A byte ring for exactly one writing thread and one reading thread, with no lock between them.
+ * <p>
+ * The relay used to guard a heap array with its own monitor, so every capture buffer put into
+ * it woke the writer through the same lock the writer held while copying out, and the capture
+ * thread - which also drives the meters - could be left waiting on ffmpeg's side of the relay.
+ * Here each side owns one counter and only publishes it: the writer moves the tail, the reader
+ * moves the head, and each reads the other's with acquire semantics to see the bytes it covers.
+ * Neither ever waits for the other; waiting for data when there is none is the caller's
+ * business, and {@link AudioRelay} parks its writer for it.
+ * <p>
+ * The counters are positions that only grow, masked into the storage, so full and empty are
+ * told apart without a spare byte. They sit 128 bytes apart in a padded array, so the two
+ * threads do not keep stealing one cache line from each other on every buffer. The storage is
+ * whatever buffer it is handed - direct memory for the relay, so sixteen or more megabytes are
+ * not something the collector has to move, and a mapped file for the spill - and its capacity
+ * has to be a power of two.
+ */
+final class ByteRing {
+
+    private static final VarHandle COUNTERS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final int HEAD = 8;   // next byte to read; moved by the reader only
+    private static final int TAIL = 24;  // next byte to write; moved by the writer only
+
+    private final long[] counters = new long[32];
+    private final ByteBuffer storage;
+    private final int capacity;
+    private final int mask;
+    /** The writer's last sight of the head, so it reads the reader's counter only when short of room. */
+    private long headSeenByWriter;
+    /** The reader's last sight of the tail, likewise. */
+    private long tailSeenByReader;
+
+    ByteRing(ByteBuffer storage) {
+        int capacity = storage.capacity();
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The ring's capacity must be a power of two, not " + capacity);
+        }
+        this.storage = storage;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+    }
+
+    /** A ring in direct memory of at least the given size, rounded up to a power of two. */
+    static ByteRing allocateDirect(int minimumCapacity) {
+        return new ByteRing(ByteBuffer.allocateDirect(roundUpToPowerOfTwo(minimumCapacity)));
+    }
+
+    static int roundUpToPowerOfTwo(int value) {
+        int rounded = Integer.highestOneBit(Math.max(1, value));
+        if (rounded < value) {
+            rounded <<= 1;
+        }
+        if (rounded <= 0) {
+            throw new IllegalArgumentException("No ring can hold " + value + " bytes");
+        }
+        return rounded;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Writer side: appends the bytes whole, or nothing at all when they do not fit. A partial
+     * write would cut a sample frame in two and shift every channel after it.
+     *
+     * @return whether the bytes were written
+     */
+    boolean offer(byte[] source, int offset, int length) {
+        long tail = (long) COUNTERS.getOpaque(counters, TAIL);
+        if (tail + length - headSeenByWriter > capacity) {
+            headSeenByWriter = (long) COUNTERS.getAcquire(counters, HEAD);
+            if (tail + length - headSeenByWriter > capacity) {
+                return false;
+            }
+        }
+        int position = (int) tail & mask;
+        int firstPart = Math.min(length, capacity - position);
+        storage.put(position, source, offset, firstPart);
+        storage.put(0, source, offset + firstPart, length - firstPart);
+        COUNTERS.setRelease(counters, TAIL, tail + length);
+        return true;
+    }
+
+    /**
+     * Reader side: takes up to {@code length} bytes.
+     *
+     * @return how many bytes were taken, 0 when the ring is empty
+     */
+    int poll(byte[] target, int offset, int length) {
+        long head = (long) COUNTERS.getOpaque(counters, HEAD);
+        int taken = available(head, length);
+        if (taken == 0) {
+            return 0;
+        }
+        int position = (int) head & mask;
+        int firstPart = Math.min(taken, capacity - position);
+        storage.get(position, target, offset, firstPart);
+        storage.get(0, target, offset + firstPart, taken - firstPart);
+        COUNTERS.setRelease(counters, HEAD, head + taken);
+        return taken;
+    }
+
+    /**
+     * Reader side: as {@link #poll(byte[], int, int)}, but for a ring over a mapped file, reading
+     * the bytes from the file itself rather than through the mapping - so that the time the call
+     * takes is the file's. Nothing is taken when the read fails.
+     *
+     * @param file the file the storage maps, from its start
+     */
+    int poll(FileChannel file, byte[] target, int offset, int length) throws IOException {
+        long head = (long) COUNTERS.getOpaque(counters, HEAD);
+        int taken = available(head, length);
+        if (taken == 0) {
+            return 0;
+        }
+        int position = (int) head & mask;
+        int firstPart = Math.min(taken, capacity - position);
+        readFully(file, ByteBuffer.wrap(target, offset, firstPart), position);
+        readFully(file, ByteBuffer.wrap(target, offset + firstPart, taken - firstPart), 0);
+        COUNTERS.setRelease(counters, HEAD, head + taken);
+        return taken;
+    }
+
+    /** Reader side: how many of the wanted bytes are waiting, looking at the tail only when out of them. */
+    private int available(long head, int length) {
+        if (tailSeenByReader == head) {
+            tailSeenByReader = (long) COUNTERS.getAcquire(counters, TAIL);
+            if (tailSeenByReader == head) {
+                return 0;
+            }
+        }
+        return (int) Math.min(length, tailSeenByReader - head);
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer into, long position) throws IOException {
+        while (into.hasRemaining()) {
+            int read = file.read(into, position);
+            if (read < 0) {
+                throw new IOException("The file ends before the ring does");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Reader side: throws away everything written so far, so what is read next is what the
+     * writer writes next.
+     *
+     * @return how many bytes were thrown away
+     */
+    long discardAll() {
+        long head = (long) COUNTERS.getOpaque(counters, HEAD);
+        tailSeenByReader = (long) COUNTERS.getAcquire(counters, TAIL);
+        COUNTERS.setRelease(counters, HEAD, tailSeenByReader);
+        return tailSeenByReader - head;
+    }
+
+    /** How many bytes are waiting. Exact on either side; a moment old when read from elsewhere. */
+    long size() {
+        long head = (long) COUNTERS.getAcquire(counters, HEAD);
+        long tail = (long) COUNTERS.getAcquire(counters, TAIL);
+        return Math.max(0, tail - head);
+    }
+
+    /** Empties the ring for its next user. Only while neither side is using it. */
+    void reset() {
+        COUNTERS.setVolatile(counters, HEAD, 0L);
+        COUNTERS.setVolatile(counters, TAIL, 0L);
+        headSeenByWriter = 0;
+        tailSeenByReader = 0;
+    }
+}
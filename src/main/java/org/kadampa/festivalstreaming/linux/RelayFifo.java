@@ -0,0 +1,112 @@
+package org.kadampa.festivalstreaming.linux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A named pipe of its own between one relay and ffmpeg, for when ffmpeg's standard input is not
+ * enough.
+ * <p>
+ * ffmpeg has one standard input, so only one device could be read natively and relayed: a
+ * second stage-box above eight channels went back to the pulse input, whose channel map above
+ * eight channels is scrambled. A FIFO is read by ffmpeg like a file given on its command line and
+ * fed like a pipe, so every relay can have one, and every multi-channel device keeps the native
+ * path. It lives in a directory of its own that only this user can enter, and is removed with
+ * the relay.
+ * <p>
+ * Opening a FIFO for writing waits until someone opens it for reading, so the relay's writer
+ * opens it, on its own thread, and waits there for ffmpeg to reach that input. If ffmpeg never
+ * does - it failed to start, or stopped first - {@link #close()} opens the FIFO itself for a
+ * moment, which lets the writer's open return and its first write fail, and the writer ends as
+ * it would had ffmpeg gone away.
+ */
+final class RelayFifo {
+
+    private static final long MKFIFO_TIMEOUT_SECONDS = 5;
+
+    private static final Logger logger = LoggerFactory.getLogger(RelayFifo.class);
+
+    private final Path directory;
+    private final Path path;
+
+    private RelayFifo(Path directory, Path path) {
+        this.directory = directory;
+        this.path = path;
+    }
+
+    /**
+     * Makes a fresh FIFO, or answers null when the system will not have it: the caller then
+     * falls back on ffmpeg's standard input for one device, as it always did.
+     */
+    static RelayFifo create(String deviceName) {
+        Path directory = null;
+        try {
+            // A temporary directory is only open to its owner, so nobody else can read the audio
+            directory = Files.createTempDirectory("kfs-relay-");
+            Path path = directory.resolve(deviceName.replaceAll("[^a-zA-Z0-9-]", "_") + ".s16le");
+            Process mkfifo = new ProcessBuilder("mkfifo", "-m", "600", path.toString())
+                    .redirectErrorStream(true).start();
+            if (!mkfifo.waitFor(MKFIFO_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                mkfifo.destroyForcibly();
+                throw new IOException("mkfifo did not finish");
+            }
+            if (mkfifo.exitValue() != 0) {
+                throw new IOException(new String(mkfifo.getInputStream().readAllBytes()).trim());
+            }
+            return new RelayFifo(directory, path);
+        } catch (IOException e) {
+            logger.warn("Could not create a named pipe for the audio of {}: {}", deviceName, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        deleteQuietly(directory);
+        return null;
+    }
+
+    /** What ffmpeg is given as the input. */
+    Path path() {
+        return path;
+    }
+
+    /** Writer side: waits for ffmpeg to open its end, then answers the stream into it. */
+    OutputStream openForWriting() throws IOException {
+        return new FileOutputStream(path.toFile());
+    }
+
+    /**
+     * Releases a writer still waiting for ffmpeg and removes the FIFO. The writer keeps whatever
+     * it already had open; a removed FIFO only loses its name.
+     */
+    void close() {
+        if (Files.exists(path)) {
+            // Opened for both reading and writing a FIFO never waits, and counts as the reader
+            // a waiting writer is blocked on
+            try {
+                new RandomAccessFile(path.toFile(), "rw").close();
+            } catch (IOException e) {
+                logger.debug("Could not release the writer of {}", path, e);
+            }
+        }
+        deleteQuietly(path);
+        deleteQuietly(directory);
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.debug("Could not delete {}", path, e);
+        }
+    }
+}
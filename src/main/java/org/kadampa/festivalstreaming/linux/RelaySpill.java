@@ -0,0 +1,199 @@
+package org.kadampa.festivalstreaming.linux;
+
+import org.kadampa.festivalstreaming.Host;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The relay's second tier: a memory-mapped file that takes the audio the relay's ring has no
+ * room for, and gives it back in order.
+ * <p>
+ * Without it, a relay whose ring fills throws the backlog away and carries on near-live, and
+ * from then on the sample-counted timestamps are short by however much was lost - the stream
+ * keeps going with its sound off the picture until it is restarted. The ring only fills when
+ * ffmpeg stops reading for its whole capacity, and the ways that has happened are the ones
+ * that pass: a power profile clamping the processor, a recording disk stalling on a flush. With
+ * the spill file such a stall costs latency instead of sync - the audio arrives late but none of
+ * it is missing - and the ring drains the file once ffmpeg catches up.
+ * <p>
+ * The file is a {@link ByteRing} over a mapping, so the page cache absorbs the writes and the
+ * disk only sees them if memory runs short. It is created sparse, in the data directory, when a
+ * stream starts with the option on, and removed when the stream ends; its gigabyte only takes
+ * disk space once it is actually written to. Every relay gets a file of its own, numbered, so a
+ * relay opened for a device while the previous one for it is still being removed, or two
+ * instances of the application, never share one. Off by default: it is a safety net for machines
+ * that are known to stall, and a stream that needs it is already running behind.
+ */
+final class RelaySpill {
+
+    /** The largest ring a mapping can hold: about five minutes of the Qu-5's 32 channels. */
+    private static final int SPILL_CAPACITY = 1 << 30;
+
+    private static final Logger logger = LoggerFactory.getLogger(RelaySpill.class);
+    /** Numbers the spill files of this run. */
+    private static final AtomicInteger CREATED = new AtomicInteger();
+
+    private final File file;
+    /** Kept open for reading back: see {@link #poll}. */
+    private final RandomAccessFile raf;
+    private final ByteRing ring;
+    // Written by the capture thread only
+    private volatile long bytesSpilled;
+    private volatile long peakBacklog;
+    // Written by the relay's writer only
+    private volatile long bytesReadBack;
+    private volatile long readBackNanos;
+    private long drainStartedNanos;
+    private boolean readFailed;
+
+    private RelaySpill(File file, RandomAccessFile raf, ByteRing ring) {
+        this.file = file;
+        this.raf = raf;
+        this.ring = ring;
+    }
+
+    /**
+     * Maps a fresh spill file, or answers null when the disk will not have it: the relay then
+     * behaves as it does without the option, which is better than not streaming.
+     */
+    static RelaySpill create(String deviceName) {
+        File directory = Host.userDataDir();
+        //noinspection ResultOfMethodCallIgnored
+        directory.mkdirs();
+        File file = new File(directory, String.format("relay-spill-%d-%d-%s.raw", ProcessHandle.current().pid(),
+                CREATED.incrementAndGet(), deviceName.replaceAll("[^a-zA-Z0-9-]", "_")));
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(SPILL_CAPACITY);
+            // The audio goes in through the mapping and comes back out through the channel
+            ByteRing ring = new ByteRing(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SPILL_CAPACITY));
+            logger.info("Audio that ffmpeg cannot take in time will spill to {}", file);
+            return new RelaySpill(file, raf, ring);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Could not create the audio spill file {}: {}", file, e.getMessage());
+            closeQuietly(raf);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    /** Capture thread: whether audio is waiting in the file, in which case new audio must follow it. */
+    boolean holdsAudio() {
+        return ring.size() > 0;
+    }
+
+    /**
+     * Capture thread: appends a buffer behind whatever the file already holds.
+     *
+     * @return whether it fitted
+     */
+    boolean offer(byte[] data, int length) {
+        if (!ring.offer(data, 0, length)) {
+            return false;
+        }
+        bytesSpilled += length;
+        peakBacklog = Math.max(peakBacklog, ring.size());
+        return true;
+    }
+
+    /**
+     * Writer side: takes audio back out of the file, timing the reading so the rate it drains
+     * at can be reported. It is read from the file itself: copying it out of the mapping would
+     * time the copy and leave the disk, where the audio may by now have gone, out of it.
+     *
+     * @return how many bytes were taken, 0 when the file holds none
+     */
+    int poll(byte[] into) {
+        long started = System.nanoTime();
+        int taken;
+        if (readFailed) {
+            taken = ring.poll(into, 0, into.length);
+        } else {
+            try {
+                taken = ring.poll(raf.getChannel(), into, 0, into.length);
+            } catch (IOException e) {
+                // Nothing was taken, so the mapping gives the same bytes back
+                logger.warn("Reading back the audio spill file {} failed, reading it through its mapping: {}",
+                        file, e.getMessage());
+                readFailed = true;
+                taken = ring.poll(into, 0, into.length);
+            }
+        }
+        if (taken > 0) {
+            if (drainStartedNanos == 0) {
+                drainStartedNanos = started;
+            }
+            bytesReadBack += taken;
+            readBackNanos += System.nanoTime() - started;
+        }
+        return taken;
+    }
+
+    /** Writer side: throws the file's audio away, when even the file has overflowed. */
+    long discardAll() {
+        drainStartedNanos = 0;
+        return ring.discardAll();
+    }
+
+    /**
+     * Writer side: called when the file has run dry, and answers how long the episode took from
+     * the first byte read back, in milliseconds, or -1 when nothing was being read back.
+     */
+    long drained() {
+        if (drainStartedNanos == 0) {
+            return -1;
+        }
+        long elapsed = (System.nanoTime() - drainStartedNanos) / 1_000_000L;
+        drainStartedNanos = 0;
+        return elapsed;
+    }
+
+    long getBytesSpilled() {
+        return bytesSpilled;
+    }
+
+    long getPeakBacklog() {
+        return peakBacklog;
+    }
+
+    /** Bytes waiting in the file now. */
+    long backlog() {
+        return ring.size();
+    }
+
+    long getBytesReadBack() {
+        return bytesReadBack;
+    }
+
+    /** How fast the file gave the audio back, in megabytes a second, or 0 before any was read. */
+    double getReadBackMegabytesPerSecond() {
+        long nanos = readBackNanos;
+        return nanos == 0 ? 0 : bytesReadBack / (nanos / 1e9) / (1024 * 1024);
+    }
+
+    /** Closes and removes the file. The mapping itself goes with the garbage collector. */
+    void delete() {
+        closeQuietly(raf);
+        if (!file.delete() && file.exists()) {
+            logger.warn("Could not remove the audio spill file {}", file);
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile raf) {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                logger.debug("Could not close the audio spill file: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -7,10 +7,11 @@ import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.Mixer;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,13 +28,30 @@ import org.slf4j.LoggerFactory;
  * <p>
  * The capture is shared with the level meters through {@link AudioCaptureManager}, so the device
  * is still only opened once.
+ * <p>
+ * The capture thread that hands the samples over also drives the meters, so it must never wait
+ * and should not make garbage either: it used to copy every buffer into a fresh array, wrap it in
+ * a record and push that through a locked queue, which at 32 channels and 96kHz is megabytes a
+ * second for the collector. The buffers now go into a fixed set of slabs, allocated once when
+ * the first buffer shows the size, and travel to the writer through a {@link SlabRing} with no
+ * lock in between, so a steady capture allocates nothing at all. When every slab is waiting for
+ * ffmpeg the new buffer is the one dropped - the waiting ones are about to be judged stale
+ * anyway. Those drops and the stale buffers are counted apart and logged when the pipe stops,
+ * since they point to different causes: ffmpeg not reading at all, or reading late. Buffers the
+ * capture's queue dropped before they ever reached the pipe are shown with its other listeners'
+ * in the meter window.
  */
 public class AudioPipe implements AudioCaptureManager.AudioDataListener {
 
     private static final Logger logger = LoggerFactory.getLogger(AudioPipe.class);
 
-    /** A ceiling on the backlog. The age limit below is what actually keeps the audio current. */
-    private static final int QUEUE_CAPACITY = 64;
+    /**
+     * A ceiling on the backlog, about a second of ordinary buffers. The age limit below is what
+     * actually keeps the audio current.
+     */
+    private static final int SLAB_COUNT = 32;
+    /** A safety net on the writer's sleep; it is normally woken by the capture thread. */
+    private static final long PARK_NANOS = 200_000_000L;
     private static final int FORMAT_WAIT_MS = 4000;
 
     /**
@@ -49,21 +67,17 @@ public class AudioPipe implements AudioCaptureManager.AudioDataListener {
      */
     private static final long MAX_AUDIO_AGE_MS = 100;
 
-    /** One captured buffer and the moment it was captured, so its age can be judged later. */
-    private record Captured(byte[] samples, long capturedAtNanos) {
-        long ageMillis() {
-            return (System.nanoTime() - capturedAtNanos) / 1_000_000L;
-        }
-    }
-
     private final Mixer.Info device;
-    private final BlockingQueue<Captured> pending = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    /** Made by the capture thread at the first buffer, when its size is known. */
+    private volatile SlabRing pending;
     private final CountDownLatch formatKnown = new CountDownLatch(1);
     private volatile AudioFormat captureFormat;
     private volatile boolean running;
+    /** Buffers that found every slab still waiting for ffmpeg; the capture thread's. */
     private volatile long droppedBuffers;
+    /** Buffers too old by the time ffmpeg could take them; the writer's. */
     private volatile long staleBuffers;
-    private Thread writer;
+    private volatile Thread writer;
 
     public AudioPipe(Mixer.Info device) {
         this.device = device;
@@ -95,62 +109,64 @@ public class AudioPipe implements AudioCaptureManager.AudioDataListener {
      */
     public void start(OutputStream toFfmpeg) {
         running = true;
-        writer = new Thread(() -> {
+        Thread thread = new Thread(() -> {
             boolean firstWrite = true;
             try (OutputStream out = toFfmpeg) {
                 while (running) {
-                    Captured captured = pending.poll(200, TimeUnit.MILLISECONDS);
-                    if (captured == null) {
+                    SlabRing ring = pending;
+                    int slot = ring != null ? ring.peek() : -1;
+                    if (slot < 0) {
+                        LockSupport.parkNanos(this, PARK_NANOS);
                         continue;
                     }
+                    long ageMillis = (System.nanoTime() - ring.capturedAtNanos(slot)) / 1_000_000L;
                     // ffmpeg reads nothing until it has the camera open, and audio that waited
                     // through that would be passed off as current: see MAX_AUDIO_AGE_MS
-                    if (captured.ageMillis() > MAX_AUDIO_AGE_MS) {
+                    if (ageMillis > MAX_AUDIO_AGE_MS) {
                         staleBuffers++;
-                        continue;
-                    }
-                    if (firstWrite) {
-                        firstWrite = false;
-                        logger.info("Audio reached ffmpeg {}ms after capture, {} stale buffers discarded",
-                                captured.ageMillis(), staleBuffers);
+                    } else {
+                        if (firstWrite) {
+                            firstWrite = false;
+                            logger.info("Audio reached ffmpeg {}ms after capture, {} stale buffers discarded",
+                                    ageMillis, staleBuffers);
+                        }
+                        // Written straight out of the slab, which stays taken until this returns
+                        out.write(ring.slab(slot), 0, ring.length(slot));
                     }
-                    out.write(captured.samples());
+                    ring.release();
                 }
             } catch (IOException e) {
                 // ffmpeg closing its input first is the normal way a recording ends
                 logger.debug("The audio pipe to ffmpeg closed: {}", e.getMessage());
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
             }
         });
-        writer.setDaemon(true);
-        writer.setName("AudioPipe-" + device.getName());
-        writer.start();
+        thread.setDaemon(true);
+        thread.setName("AudioPipe-" + device.getName());
+        writer = thread;
+        thread.start();
     }
 
     public void stop() {
         running = false;
         AudioCaptureManager.getInstance().unregisterListener(device, this);
-        if (writer != null) {
+        Thread thread = writer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
             try {
-                writer.join(1000);
+                thread.join(1000);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
             writer = null;
         }
         if (droppedBuffers > 0) {
-            logger.warn("Dropped {} audio buffers on the way to ffmpeg", droppedBuffers);
+            logger.warn("Dropped {} audio buffers on the way to ffmpeg: every slab was still waiting for it",
+                    droppedBuffers);
         }
         if (staleBuffers > 0) {
             // Expected at the start, while ffmpeg is still opening the camera; not during a recording
             logger.info("Discarded {} audio buffers that had gone stale waiting for ffmpeg", staleBuffers);
         }
-        pending.clear();
-    }
-
-    public long getDroppedBuffers() {
-        return droppedBuffers;
     }
 
     /** The format the device is being captured in, known once {@link #open()} has returned. */
@@ -167,15 +183,26 @@ public class AudioPipe implements AudioCaptureManager.AudioDataListener {
         if (!running || bytesRead <= 0) {
             return;
         }
-        // The buffer belongs to the capture thread and is reused, so it has to be copied
-        byte[] copy = new byte[bytesRead];
-        System.arraycopy(buffer, 0, copy, 0, bytesRead);
-        Captured captured = new Captured(copy, System.nanoTime());
-        // Never block here: the capture thread also drives the level meters
-        if (!pending.offer(captured)) {
-            pending.poll();
-            pending.offer(captured);
-            droppedBuffers++;
+        SlabRing ring = pending;
+        if (ring == null) {
+            // Once, on the first buffer: every later one is the same size, give or take
+            ring = new SlabRing(SLAB_COUNT, bytesRead);
+            pending = ring;
+        }
+        long capturedAt = System.nanoTime();
+        // The buffer goes back to the capture's pool after this call, so it has to be copied. One
+        // larger than a slab - the capture changed its chunk - goes over several, in order.
+        // Never block here: buffers arriving meanwhile would be dropped from the pipe's queue.
+        for (int offset = 0; offset < bytesRead; offset += ring.slabSize()) {
+            int length = Math.min(ring.slabSize(), bytesRead - offset);
+            if (!ring.offer(buffer, offset, length, capturedAt)) {
+                droppedBuffers++;
+                break;
+            }
+        }
+        Thread thread = writer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
         }
     }
 
@@ -185,4 +212,76 @@ public class AudioPipe implements AudioCaptureManager.AudioDataListener {
         running = false;
         formatKnown.countDown();
     }
+
+    /**
+     * Slabs handed from one capture thread to one writer thread with no lock between them. Each
+     * slot owns its slab, its length and the moment it was captured, so a slot going round the
+     * ring is both the pool and the queue: the capture thread fills the slot at the tail, the
+     * writer writes out the one at the head and only then gives it back. Each side owns one
+     * counter and publishes it with release semantics; they sit 128 bytes apart so the two
+     * threads do not share a cache line.
+     */
+    static final class SlabRing {
+
+        private static final VarHandle COUNTERS = MethodHandles.arrayElementVarHandle(long[].class);
+        private static final int HEAD = 8;   // the oldest filled slot; moved by the writer only
+        private static final int TAIL = 24;  // the next slot to fill; moved by the capture thread only
+
+        private final long[] counters = new long[32];
+        private final byte[][] slabs;
+        private final int[] lengths;
+        private final long[] capturedAtNanos;
+        private final int slabSize;
+
+        SlabRing(int slabCount, int slabSize) {
+            this.slabs = new byte[slabCount][slabSize];
+            this.lengths = new int[slabCount];
+            this.capturedAtNanos = new long[slabCount];
+            this.slabSize = slabSize;
+        }
+
+        int slabSize() {
+            return slabSize;
+        }
+
+        /** Capture thread: copies into the next free slab, or answers false when none is free. */
+        boolean offer(byte[] source, int offset, int length, long capturedAt) {
+            long tail = (long) COUNTERS.getOpaque(counters, TAIL);
+            if (tail - (long) COUNTERS.getAcquire(counters, HEAD) >= slabs.length) {
+                return false;
+            }
+            int slot = (int) (tail % slabs.length);
+            System.arraycopy(source, offset, slabs[slot], 0, length);
+            lengths[slot] = length;
+            capturedAtNanos[slot] = capturedAt;
+            COUNTERS.setRelease(counters, TAIL, tail + 1);
+            return true;
+        }
+
+        /** Writer: the oldest filled slot, or -1 when there is none. It stays taken until {@link #release}. */
+        int peek() {
+            long head = (long) COUNTERS.getOpaque(counters, HEAD);
+            if (head == (long) COUNTERS.getAcquire(counters, TAIL)) {
+                return -1;
+            }
+            return (int) (head % slabs.length);
+        }
+
+        byte[] slab(int slot) {
+            return slabs[slot];
+        }
+
+        int length(int slot) {
+            return lengths[slot];
+        }
+
+        long capturedAtNanos(int slot) {
+            return capturedAtNanos[slot];
+        }
+
+        /** Writer: gives the slot from {@link #peek} back to the capture thread. */
+        void release() {
+            COUNTERS.setRelease(counters, HEAD, (long) COUNTERS.getOpaque(counters, HEAD) + 1);
+        }
+    }
 }